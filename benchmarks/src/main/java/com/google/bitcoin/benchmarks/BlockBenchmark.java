@@ -0,0 +1,98 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.benchmarks;
+
+import com.google.bitcoin.core.BitcoinSerializer;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.Message;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Parsing and verifying blocks. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BlockBenchmark {
+    /** Number of transactions besides the coinbase in the block that is parsed and verified. */
+    @Param({"10", "1000"})
+    public int transactions;
+
+    private BitcoinSerializer serializer;
+    private byte[] blockMessage;
+    private byte[] largestGeneratedMessage;
+    private Block header;
+    private List<Transaction> blockTransactions;
+
+    @Setup
+    public void setUp() throws Exception {
+        serializer = new BitcoinSerializer(Fixtures.PARAMS);
+        Block block = Fixtures.blockWithTransactions(transactions);
+        blockMessage = serialize(block);
+        header = block.cloneAsHeader();
+        blockTransactions = new ArrayList<Transaction>(block.getTransactions());
+        for (Transaction tx : blockTransactions)
+            tx.getHash();
+        largestGeneratedMessage = serialize(Fixtures.largestGeneratedBlock());
+    }
+
+    private byte[] serialize(Block block) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(block, out);
+        return out.toByteArray();
+    }
+
+    private Block parse(byte[] message) throws Exception {
+        return (Block) serializer.deserialize(ByteBuffer.wrap(message));
+    }
+
+    @Benchmark
+    public Message deserialize() throws Exception {
+        return parse(blockMessage);
+    }
+
+    @Benchmark
+    public Message deserializeLargestGenerated() throws Exception {
+        return parse(largestGeneratedMessage);
+    }
+
+    @Benchmark
+    public Block parseAndVerify() throws Exception {
+        // A freshly parsed block has nothing cached, so this includes hashing the header and the merkle tree.
+        Block block = parse(blockMessage);
+        block.verify();
+        return block;
+    }
+
+    @Benchmark
+    public Sha256Hash merkleRoot() {
+        // Adding transactions drops the cached root. Their own hashes stay cached, so this only measures the tree.
+        Block block = header.cloneAsHeader();
+        for (Transaction tx : blockTransactions)
+            block.addTransaction(tx);
+        return block.getMerkleRoot();
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.benchmarks;
+
+import com.google.bitcoin.core.BloomFilter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Bloom filter lookups, as done for every output script and outpoint of every transaction a peer filters. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BloomFilterBenchmark {
+    private static final int ELEMENTS = 1000;
+
+    private BloomFilter filter;
+    private byte[][] inserted;
+    private byte[][] absent;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        filter = new BloomFilter(ELEMENTS, 0.0001, random.nextLong());
+        inserted = new byte[ELEMENTS][20];
+        absent = new byte[ELEMENTS][20];
+        for (int i = 0; i < ELEMENTS; i++) {
+            random.nextBytes(inserted[i]);
+            random.nextBytes(absent[i]);
+            filter.insert(inserted[i]);
+        }
+    }
+
+    @Benchmark
+    public boolean containsHit() {
+        index = (index + 1) % ELEMENTS;
+        return filter.contains(inserted[index]);
+    }
+
+    @Benchmark
+    public boolean containsMiss() {
+        index = (index + 1) % ELEMENTS;
+        return filter.contains(absent[index]);
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.benchmarks;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.MemoryBlockStore;
+import hashengineering.difficulty.KimotoGravityWell.KimotoGravityWellCalculator;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Kimoto Gravity Well difficulty calculation, fed from arrays so that only the calculator is measured, and from a
+ * block store the way the block chain feeds it when it has no window of recent blocks to use.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DifficultyBenchmark {
+    private static final int CHAIN_LENGTH = 4500;
+
+    private final long[] bits = new long[CHAIN_LENGTH];
+    private final long[] times = new long[CHAIN_LENGTH];
+    private KimotoGravityWellCalculator calculator;
+    private int height;
+    private BlockStore store;
+    private StoredBlock head;
+    private StoredBlock reading;
+
+    @Setup
+    public void setUp() throws Exception {
+        Fixtures.kgwChain(1, bits, times);
+        calculator = new KimotoGravityWellCalculator(Fixtures.kgwProofOfWorkLimit(), 150, 144, 4032);
+        height = CHAIN_LENGTH - 1;
+        store = new MemoryBlockStore(Fixtures.PARAMS);
+        head = Fixtures.storeChain(store, bits, times);
+        reading = head;
+    }
+
+    @Benchmark
+    public BigInteger kimotoGravityWell() {
+        // Move along the chain so the number of blocks examined varies like it does while syncing.
+        if (--height < 1)
+            height = CHAIN_LENGTH - 1;
+        calculator.reset();
+        for (int h = height; h > 0; h--) {
+            if (calculator.addBlock(bits[h], times[h]) != KimotoGravityWellCalculator.CONTINUE)
+                break;
+        }
+        return calculator.getNewDifficulty();
+    }
+
+    @Benchmark
+    public BigInteger kimotoGravityWellFromStore() throws BlockStoreException {
+        // Start one block further back each time, as the block chain would for each new block while syncing.
+        reading = store.get(reading.getHeader().getPrevBlockHash());
+        if (reading.getHeight() < 1)
+            reading = head;
+        calculator.reset();
+        for (StoredBlock block = reading; block != null && block.getHeight() > 0;
+             block = store.get(block.getHeader().getPrevBlockHash())) {
+            Block header = block.getHeader();
+            if (calculator.addBlock(header.getDifficultyTarget(), header.getTimeSeconds()) !=
+                    KimotoGravityWellCalculator.CONTINUE)
+                break;
+        }
+        return calculator.getNewDifficulty();
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.benchmarks;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.utils.BlockFileLoader;
+import com.google.bitcoin.utils.TestUtils;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Creates the data the benchmarks run on. Everything is generated locally and deterministically where the library
+ * allows it, so results can be compared between builds.
+ */
+public class Fixtures {
+    public static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    /** A block on top of the unit test genesis block holding <tt>count</tt> transactions besides the coinbase. */
+    public static Block blockWithTransactions(int count) throws Exception {
+        Block block = PARAMS.getGenesisBlock().createNextBlock(new ECKey().toAddress(PARAMS));
+        for (int i = 0; i < count; i++)
+            block.addTransaction(TestUtils.createFakeTx(PARAMS, Utils.CENT, new ECKey().toAddress(PARAMS)));
+        block.solve();
+        return block;
+    }
+
+    /**
+     * The largest of the blocks made by {@link FullBlockTestGenerator} that pass {@link Block#verify()}. They are read
+     * back from the block file the generator writes, as its rule classes aren't public.
+     */
+    public static Block largestGeneratedBlock() throws Exception {
+        File file = File.createTempFile("generated", ".blocks");
+        try {
+            new FullBlockTestGenerator(PARAMS).getBlocksToTest(false, false, file);
+            Block largest = null;
+            for (Block block : new BlockFileLoader(PARAMS, Collections.singletonList(file))) {
+                if (largest != null && block.getMessageSize() <= largest.getMessageSize())
+                    continue;
+                try {
+                    block.verify();
+                    largest = block;
+                } catch (VerificationException e) {
+                    // One of the invalid blocks the generator makes on purpose.
+                }
+            }
+            return largest;
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Fills <tt>bits</tt> and <tt>times</tt> with a chain whose block spacing alternates between fast and slow every
+     * 300 blocks, so the Kimoto Gravity Well stops at varying depths.
+     */
+    public static void kgwChain(long seed, long[] bits, long[] times) {
+        Random random = new Random(seed);
+        bits[0] = 0x1e0fffffL;
+        times[0] = 1389311371L;
+        for (int h = 1; h < bits.length; h++) {
+            bits[h] = ((long) (0x1b + random.nextInt(3)) << 24) | (0x8000 + random.nextInt(0x7f8000));
+            long max = (h / 300) % 2 == 0 ? 40 : 1200;
+            times[h] = times[h - 1] + random.nextInt((int) max);
+        }
+    }
+
+    /**
+     * Puts a chain of headers with the given difficulty targets and times into the store, on top of the unit test
+     * genesis block, and returns the newest. The headers aren't solved, which the store doesn't check.
+     */
+    public static StoredBlock storeChain(BlockStore store, long[] bits, long[] times) throws Exception {
+        StoredBlock head = store.get(PARAMS.getGenesisBlock().getHash());
+        for (int h = 1; h < bits.length; h++) {
+            byte[] header = new byte[Block.HEADER_SIZE];
+            Utils.uint32ToByteArrayLE(1, header, 0);
+            System.arraycopy(Utils.reverseBytes(head.getHeader().getHash().getBytes()), 0, header, 4, 32);
+            Utils.uint32ToByteArrayLE(times[h], header, 68);
+            Utils.uint32ToByteArrayLE(bits[h], header, 72);
+            head = head.build(new Block(PARAMS, header));
+            store.put(head);
+        }
+        return head;
+    }
+
+    /** The proof of work limit matching the targets made by {@link #kgwChain(long, long[], long[])}. */
+    public static BigInteger kgwProofOfWorkLimit() {
+        return Utils.decodeCompactBits(0x1e0fffffL);
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.benchmarks;
+
+import com.google.bitcoin.core.PowHasher;
+import com.google.bitcoin.core.Utils;
+import fr.cryptohash.Lyra2;
+import fr.cryptohash.Lyra2Engine;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Proof of work and SHA-256 hashing. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class HashingBenchmark {
+    // The single digest Utils shared between all threads before it had one per thread, as a baseline.
+    private static final MessageDigest sharedDigest;
+    static {
+        try {
+            sharedDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+
+    private byte[] header;
+    private byte[] transaction;
+    private final byte[] out = new byte[32];
+    private final byte[] lyra2Input = new byte[32];
+    private final Lyra2Engine lyra2 = Lyra2Engine.forLyra2REv2();
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(1);
+        header = new byte[80];
+        random.nextBytes(header);
+        transaction = new byte[250];
+        random.nextBytes(transaction);
+        random.nextBytes(lyra2Input);
+    }
+
+    @Benchmark
+    public byte[] scryptDigest() {
+        return Utils.scryptDigest(header);
+    }
+
+    @Benchmark
+    public byte[] powHasherIntoBuffer() {
+        PowHasher.get().hash(header, 0, header.length, out, 0);
+        return out;
+    }
+
+    @Benchmark
+    public byte[] lyra2() {
+        lyra2.hash(out, lyra2Input, lyra2Input);
+        return out;
+    }
+
+    // The reference implementation Lyra2Engine replaced, allocating its matrix on every call.
+    @Benchmark
+    public byte[] lyra2Reference() {
+        Lyra2.LYRA2(out, lyra2Input, lyra2Input, Lyra2Engine.LYRA2REV2_TIME_COST, Lyra2Engine.LYRA2REV2_ROWS,
+                Lyra2Engine.LYRA2REV2_COLUMNS);
+        return out;
+    }
+
+    @Benchmark
+    public byte[] doubleDigestHeader() {
+        return Utils.doubleDigest(header);
+    }
+
+    @Benchmark
+    public byte[] doubleDigestTransaction() {
+        return Utils.doubleDigest(transaction);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] doubleDigestTransactionContended() {
+        return Utils.doubleDigest(transaction);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] doubleDigestTransactionIntoBufferContended() {
+        Utils.doubleDigest(transaction, 0, transaction.length, out, 0);
+        return out;
+    }
+
+    @Benchmark
+    public byte[] doubleDigestTransactionSynchronized() {
+        return synchronizedDoubleDigest(transaction);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] doubleDigestTransactionSynchronizedContended() {
+        return synchronizedDoubleDigest(transaction);
+    }
+
+    private static byte[] synchronizedDoubleDigest(byte[] input) {
+        synchronized (sharedDigest) {
+            sharedDigest.reset();
+            sharedDigest.update(input, 0, input.length);
+            byte[] first = sharedDigest.digest();
+            return sharedDigest.digest(first);
+        }
+    }
+}
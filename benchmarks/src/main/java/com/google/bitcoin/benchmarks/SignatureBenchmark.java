@@ -0,0 +1,71 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.benchmarks;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Signature hashes and ECDSA verification, the bulk of the work in checking transaction scripts. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SignatureBenchmark {
+    /** Number of inputs of the transaction being signed. */
+    @Param({"1", "20"})
+    public int inputs;
+
+    private Transaction tx;
+    private Script connectedScript;
+    private ECKey key;
+    private ECKey publicKey;
+    private byte[] data;
+    private byte[] signature;
+
+    @Setup
+    public void setUp() throws Exception {
+        key = new ECKey();
+        publicKey = new ECKey(null, key.getPubKey());
+        connectedScript = ScriptBuilder.createOutputScript(key.toAddress(Fixtures.PARAMS));
+        tx = new Transaction(Fixtures.PARAMS);
+        for (int i = 0; i < inputs; i++) {
+            Transaction prev = new Transaction(Fixtures.PARAMS);
+            prev.addOutput(Utils.COIN, key);
+            tx.addInput(prev.getOutput(0));
+        }
+        tx.addOutput(Utils.COIN, new ECKey().toAddress(Fixtures.PARAMS));
+        data = tx.hashForSignature(0, connectedScript, Transaction.SigHash.ALL, false).getBytes();
+        signature = key.sign(new Sha256Hash(data)).encodeToDER();
+    }
+
+    @Benchmark
+    public Sha256Hash hashForSignature() {
+        // The last input, so every input before it is blanked out too.
+        return tx.hashForSignature(inputs - 1, connectedScript, Transaction.SigHash.ALL, false);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return publicKey.verify(data, signature);
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.benchmarks;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.store.MemoryBlockStore;
+import com.google.bitcoin.utils.TestUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** A wallet receiving a block full of payments to its keys. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class WalletBenchmark {
+    /** Number of payments to the wallet in the block. */
+    @Param({"10", "200"})
+    public int payments;
+
+    private List<ECKey> keys;
+    private List<byte[]> paymentBytes;
+    private StoredBlock storedBlock;
+
+    // Recreated before each invocation, as receiving changes both the wallet and the transactions.
+    private Wallet wallet;
+    private List<Transaction> transactions;
+
+    @Setup
+    public void setUp() throws Exception {
+        keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 20; i++)
+            keys.add(new ECKey());
+        paymentBytes = new ArrayList<byte[]>();
+        Transaction[] txns = new Transaction[payments];
+        for (int i = 0; i < payments; i++) {
+            txns[i] = TestUtils.createFakeTx(Fixtures.PARAMS, Utils.CENT, keys.get(i % keys.size()).toAddress(Fixtures.PARAMS));
+            paymentBytes.add(txns[i].bitcoinSerialize());
+        }
+        storedBlock = TestUtils.createFakeBlock(new MemoryBlockStore(Fixtures.PARAMS), txns).storedBlock;
+    }
+
+    @Setup(Level.Invocation)
+    public void newWallet() throws Exception {
+        wallet = new Wallet(Fixtures.PARAMS);
+        wallet.addKeys(keys);
+        transactions = new ArrayList<Transaction>();
+        for (byte[] bytes : paymentBytes)
+            transactions.add(new Transaction(Fixtures.PARAMS, bytes));
+    }
+
+    @Benchmark
+    public Wallet receiveFromBlock() throws Exception {
+        for (int i = 0; i < transactions.size(); i++)
+            wallet.receiveFromBlock(transactions.get(i), storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, i);
+        wallet.notifyNewBestBlock(storedBlock);
+        return wallet;
+    }
+}
@@ -18,13 +18,14 @@ package com.google.bitcoin.core;
 
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.HeightIndexedBlockStore;
 import com.google.bitcoin.utils.ListenerRegistration;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
-import hashengineering.difficulty.KimotoGravityWell.kgw;
+import hashengineering.difficulty.KimotoGravityWell.KimotoGravityWellCalculator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,7 +35,6 @@ import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.locks.ReentrantLock;
-import hashengineering.difficulty.KimotoGravityWell.kgw;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -135,6 +135,16 @@ public abstract class AbstractBlockChain {
     private double falsePositiveTrend;
     private double previousFalsePositiveRate;
 
+    // Kimoto Gravity Well parameters, see checkDifficultyTransitions_V2.
+    private static final long KGW_TARGET_SPACING = 150;                                 // 2.5 minutes
+    private static final long KGW_PAST_BLOCKS_MIN = (60 * 60 * 24 / 4) / KGW_TARGET_SPACING;  // 144 blocks, 6 hours
+    private static final long KGW_PAST_BLOCKS_MAX = (60 * 60 * 24 * 7) / KGW_TARGET_SPACING;  // 4032 blocks, 7 days
+    // The most recent blocks of the best chain, so KGW doesn't have to read thousands of blocks from the store for
+    // every block it checks. Filled on first use and kept in step with the chain head by setChainHead.
+    private final KimotoGravityWellWindow kgwWindow;
+    // Used for blocks the window can't answer for, such as those on side chains.
+    private final KimotoGravityWellCalculator kgwCalculator;
+
 
     /**
      * Constructs a BlockChain connected to the given list of listeners (eg, wallets) and a store.
@@ -145,6 +155,10 @@ public abstract class AbstractBlockChain {
         chainHead = blockStore.getChainHead();
         log.info("chain head is at height {}:\n{}", chainHead.getHeight(), chainHead.getHeader());
         this.params = params;
+        this.kgwWindow = new KimotoGravityWellWindow(params.getProofOfWorkLimit(), KGW_TARGET_SPACING,
+                KGW_PAST_BLOCKS_MIN, KGW_PAST_BLOCKS_MAX);
+        this.kgwCalculator = new KimotoGravityWellCalculator(params.getProofOfWorkLimit(), KGW_TARGET_SPACING,
+                KGW_PAST_BLOCKS_MIN, KGW_PAST_BLOCKS_MAX);
         this.listeners = new CopyOnWriteArrayList<ListenerRegistration<BlockChainListener>>();
         for (BlockChainListener l : listeners) addListener(l, Threading.SAME_THREAD);
     }
@@ -189,6 +203,11 @@ public abstract class AbstractBlockChain {
         ListenerRegistration.removeFromList(listener, listeners);
     }
     
+    /** Returns true if any listeners, such as wallets, are registered with the chain. */
+    protected boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
     /**
      * Returns the {@link BlockStore} the chain was constructed with. You can use this to iterate over the chain.
      */
@@ -672,15 +691,27 @@ public abstract class AbstractBlockChain {
     private static LinkedList<StoredBlock> getPartialChain(StoredBlock higher, StoredBlock lower, BlockStore store) throws BlockStoreException {
         checkArgument(higher.getHeight() > lower.getHeight(), "higher and lower are reversed");
         LinkedList<StoredBlock> results = new LinkedList<StoredBlock>();
+        HeightIndexedBlockStore index = getHeightIndex(higher, store);
         StoredBlock cursor = higher;
         while (true) {
             results.add(cursor);
-            cursor = checkNotNull(cursor.getPrev(store), "Ran off the end of the chain");
+            StoredBlock prev = index != null ? index.getBestChainBlock(cursor.getHeight() - 1) : null;
+            if (prev == null || !prev.getHeader().getHash().equals(cursor.getHeader().getPrevBlockHash()))
+                prev = cursor.getPrev(store);
+            cursor = checkNotNull(prev, "Ran off the end of the chain");
             if (cursor.equals(lower)) break;
         }
         return results;
     }
 
+    /** Returns the store as a height index if it has one and the given block is the head of its best chain. */
+    @Nullable
+    private static HeightIndexedBlockStore getHeightIndex(StoredBlock head, BlockStore store) throws BlockStoreException {
+        if (store instanceof HeightIndexedBlockStore && head.equals(store.getChainHead()))
+            return (HeightIndexedBlockStore) store;
+        return null;
+    }
+
     /**
      * Locates the point in the chain at which newStoredBlock and chainHead diverge. Returns null if no split point was
      * found (ie they are not part of the same chain). Returns newChainHead or chainHead if they don't actually diverge
@@ -696,6 +727,26 @@ public abstract class AbstractBlockChain {
         //         \--> E -> F -> G
         //
         // findSplit will return block B. oldChainHead = D and newChainHead = G.
+        HeightIndexedBlockStore index = getHeightIndex(oldChainHead, store);
+        if (index != null) {
+            // The old chain can be looked up by height, so only the new one has to be walked.
+            while (newChainCursor.getHeight() > oldChainHead.getHeight()) {
+                newChainCursor = newChainCursor.getPrev(store);
+                checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
+            }
+            while (true) {
+                StoredBlock onOldChain = index.getBestChainBlock(newChainCursor.getHeight());
+                if (onOldChain == null) {
+                    // Not in the index any more, fall back to walking both chains.
+                    newChainCursor = newChainHead;
+                    break;
+                }
+                if (onOldChain.equals(newChainCursor))
+                    return onOldChain;
+                newChainCursor = newChainCursor.getPrev(store);
+                checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
+            }
+        }
         while (!currentChainCursor.equals(newChainCursor)) {
             if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
                 currentChainCursor = currentChainCursor.getPrev(store);
@@ -747,6 +798,7 @@ public abstract class AbstractBlockChain {
 
     protected void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         doSetChainHead(chainHead);
+        kgwWindow.setChainHead(chainHead, blockStore);
         synchronized (chainHeadLock) {
             this.chainHead = chainHead;
         }
@@ -896,8 +948,6 @@ public abstract class AbstractBlockChain {
     private void checkDifficultyTransitions(StoredBlock storedPrev, Block nextBlock) throws BlockStoreException, VerificationException {
 
         checkState(lock.isHeldByCurrentThread());
-        //long now = System.currentTimeMillis();
-
 
         int DiffMode = 1;
         if (params.getId().equals(NetworkParameters.ID_TESTNET)) {
@@ -911,9 +961,6 @@ public abstract class AbstractBlockChain {
         else if	(DiffMode == 2) { checkDifficultyTransitions_V2(storedPrev, nextBlock);/* return;*/}
 
         //checkDifficultyTransitions_V2(storedPrev, nextBlock);
-
-        //long elapsed = System.currentTimeMillis() - now;
-        //log.info("Vertcoin checkDifficultyTransitions({}) is {} seconds", storedPrev.getHeight(), elapsed/1000);
     }
     private void checkDifficultyTransitions_V1(StoredBlock storedPrev, Block nextBlock) throws BlockStoreException, VerificationException {
         checkState(lock.isHeldByCurrentThread());
@@ -1256,409 +1303,79 @@ public abstract class AbstractBlockChain {
 
         return outDenominator;
     }
-    long j = 0;
-    long N = 0;
-    long N2 = 0;
-    int i = 0;
+
     private void checkDifficultyTransitions_V2(StoredBlock storedPrev, Block nextBlock) throws BlockStoreException, VerificationException {
-        final long      	BlocksTargetSpacing			= 150; // 2.5 minutes
-        int         		TimeDaySeconds				= 60 * 60 * 24;
-        long				PastSecondsMin				= TimeDaySeconds / 4;  //6 hours
-        long				PastSecondsMax				= TimeDaySeconds * 7;  // 7 days
-        long				PastBlocksMin				= PastSecondsMin / BlocksTargetSpacing;  //144 blocks
-        long				PastBlocksMax				= PastSecondsMax / BlocksTargetSpacing;  //4032 blocks
-
-        if(!kgw.isNativeLibraryLoaded())
-        //    long start = System.currentTimeMillis();
-            KimotoGravityWell(storedPrev, nextBlock, BlocksTargetSpacing, PastBlocksMin, PastBlocksMax);
-            //long end1 = System.currentTimeMillis();
-            //if(kgw.isNativeLibraryLoaded())
-        else
-          //      KimotoGravityWell_N(storedPrev, nextBlock, BlocksTargetSpacing, PastBlocksMin, PastBlocksMax);
-          //  long end2 = System.currentTimeMillis();
-            //if(kgw.isNativeLibraryLoaded())
-            KimotoGravityWell_N2(storedPrev, nextBlock, BlocksTargetSpacing, PastBlocksMin, PastBlocksMax);
-        /*long end3 = System.currentTimeMillis();
-
-        long java = end1 - start;
-        long n1 = end2 - end1;
-        long n2 = end3 - end2;
-        if(i > 20)
-        {
-            j += java;
-            N += n1;
-            N2 += n2;
-            if(i != 0 && ((i % 10) == 0))
-             //log.info("KGW 10 blocks: J={}; N={} -%.0f%; N2={} -%.0f%", java, n1, ((double)(java-n1))/java*100, n2, ((double)(java-n2))/java*100);
-                 log.info("KGW {} blocks: J={}; N={} -{}%; N2={} -{}%", i-20, j, N, ((double)(j-N))/j*100, N2, ((double)(j-N2))/j*100);
-        }
-        ++i;*/
+        if (!KimotoGravityWell_Window(storedPrev, nextBlock))
+            KimotoGravityWell(storedPrev, nextBlock);
     }
 
-
-
-    private void KimotoGravityWell(StoredBlock storedPrev, Block nextBlock, long TargetBlocksSpacingSeconds, long PastBlocksMin, long PastBlocksMax)  throws BlockStoreException, VerificationException {
-	/* current difficulty formula, vertcoin - kimoto gravity well */
-        //const CBlockIndex  *BlockLastSolved				= pindexLast;
-        //const CBlockIndex  *BlockReading				= pindexLast;
-        //const CBlockHeader *BlockCreating				= pblock;
-        StoredBlock         BlockLastSolved             = storedPrev;
-        StoredBlock         BlockReading                = storedPrev;
-        Block               BlockCreating               = nextBlock;
-
-        BlockCreating				= BlockCreating;
-        long				PastBlocksMass				= 0;
-        long				PastRateActualSeconds		= 0;
-        long				PastRateTargetSeconds		= 0;
-        double				PastRateAdjustmentRatio		= 1f;
-        BigInteger			PastDifficultyAverage = BigInteger.valueOf(0);
-        BigInteger			PastDifficultyAveragePrev = BigInteger.valueOf(0);;
-        double				EventHorizonDeviation;
-        double				EventHorizonDeviationFast;
-        double				EventHorizonDeviationSlow;
-
-        long start = System.currentTimeMillis();
-        long endLoop = 0;
-
-        if (BlockLastSolved == null || BlockLastSolved.getHeight() == 0 || (long)BlockLastSolved.getHeight() < PastBlocksMin)
-        { verifyDifficulty(params.getProofOfWorkLimit(), nextBlock); }
-
-        int i = 0;
-        //log.info("KGW: i = {}; height = {}; hash {} ", i, BlockReading.getHeight(), BlockReading.getHeader().getHashAsString());
-
-        long totalCalcTime = 0;
-        long totalReadtime = 0;
-        long totalBigIntTime = 0;
-
-
-        for (i = 1; BlockReading != null && BlockReading.getHeight() > 0; i++) {
-            long startLoop = System.currentTimeMillis();
-            if (PastBlocksMax > 0 && i > PastBlocksMax)
-            {
-                break;
-            }
-            PastBlocksMass++;
-            BigInteger PastDifficultyAverageN = new BigInteger("0");
-            if (i == 1)	{ PastDifficultyAverage = BlockReading.getHeader().getDifficultyTargetAsInteger(); }
-            else
-            {
-                PastDifficultyAverage = ((BlockReading.getHeader().getDifficultyTargetAsInteger().subtract(PastDifficultyAveragePrev)).divide(BigInteger.valueOf(i)).add(PastDifficultyAveragePrev));
-            }
-            PastDifficultyAveragePrev = PastDifficultyAverage;
-
-            long diff = System.currentTimeMillis();
-            totalBigIntTime += diff - startLoop;
-
-            PastRateActualSeconds			= BlockLastSolved.getHeader().getTimeSeconds() - BlockReading.getHeader().getTimeSeconds();
-            PastRateTargetSeconds			= TargetBlocksSpacingSeconds * PastBlocksMass;
-            PastRateAdjustmentRatio			= 1.0f;
-            if (PastRateActualSeconds < 0) { PastRateActualSeconds = 0; }
-            if (PastRateActualSeconds != 0 && PastRateTargetSeconds != 0) {
-                PastRateAdjustmentRatio			= (double)PastRateTargetSeconds / PastRateActualSeconds;
-            }
-            EventHorizonDeviation			= 1 + (0.7084 * java.lang.Math.pow((Double.valueOf(PastBlocksMass)/Double.valueOf(144)), -1.228));
-            EventHorizonDeviationFast		= EventHorizonDeviation;
-            EventHorizonDeviationSlow		= 1 / EventHorizonDeviation;
-
-            if (PastBlocksMass >= PastBlocksMin) {
-                if ((PastRateAdjustmentRatio <= EventHorizonDeviationSlow) || (PastRateAdjustmentRatio >= EventHorizonDeviationFast))
-                {
-                    /*assert(BlockReading)*/;
-                    break;
-                }
-            }
-            long calcTime = System.currentTimeMillis();
-            StoredBlock BlockReadingPrev = blockStore.get(BlockReading.getHeader().getPrevBlockHash());
-            if (BlockReadingPrev == null)
-            {
-                //If this is triggered, then we are using checkpoints and haven't downloaded enough blocks to verify the difficulty.
-                //assert(BlockReading);     //from C++ code
-                //break;                    //from C++ code
-                return;
-            }
-            //log.info("KGW: i = {}; height = {}; hash {} ", i, BlockReadingPrev.getHeight(), BlockReadingPrev.getHeader().getHashAsString());
-            BlockReading = BlockReadingPrev;
-            endLoop = System.currentTimeMillis();
-            //log.info("KGW: i = {}; height = {}; total time {}=calc {}+read {}", i, BlockReadingPrev.getHeight(), endLoop - startLoop, calcTime - startLoop, endLoop-calcTime);
-            totalCalcTime += calcTime - startLoop;
-            totalReadtime += endLoop-calcTime;
-        }
-
-        /*CBigNum bnNew(PastDifficultyAverage);
-        if (PastRateActualSeconds != 0 && PastRateTargetSeconds != 0) {
-            bnNew *= PastRateActualSeconds;
-            bnNew /= PastRateTargetSeconds;
-        } */
-        //log.info("KGW iterations: {}, rewinding from {} to {}; time {}", i, BlockReading.getHeight(), storedPrev.getHeight()+1, endLoop - start);
-        //log.info("KGW-J: i = {}; height = {}; total time {}=calc {}+read {} / bigint {} + other {}", i, storedPrev.getHeight(), System.currentTimeMillis() - start, totalCalcTime, totalReadtime, totalBigIntTime, totalCalcTime-totalBigIntTime);
-        //log.info("KGW-J, {}, {}, {}", storedPrev.getHeight(), i, System.currentTimeMillis() - start);
-        BigInteger newDifficulty = PastDifficultyAverage;
-        if (PastRateActualSeconds != 0 && PastRateTargetSeconds != 0) {
-            newDifficulty = newDifficulty.multiply(BigInteger.valueOf(PastRateActualSeconds));
-            newDifficulty = newDifficulty.divide(BigInteger.valueOf(PastRateTargetSeconds));
+    /**
+     * Checks the difficulty using {@link KimotoGravityWellWindow} when the block builds on the best chain. Returns
+     * false if the window can't be used, eg. for blocks on a side chain, and the store has to be walked instead.
+     */
+    private boolean KimotoGravityWell_Window(StoredBlock storedPrev, Block nextBlock) throws BlockStoreException, VerificationException {
+        if (!kgwWindow.isAt(storedPrev)) {
+            if (!storedPrev.getHeader().getHash().equals(chainHead.getHeader().getHash()))
+                return false;
+            kgwWindow.fill(storedPrev, blockStore);
         }
-
-        if (newDifficulty.compareTo(params.getProofOfWorkLimit()) > 0) {
-            log.info("Difficulty hit proof of work limit: {}", newDifficulty.toString(16));
-            newDifficulty = params.getProofOfWorkLimit();
+        BigInteger newDifficulty;
+        try {
+            newDifficulty = kgwWindow.calculate();
+        } catch (IllegalStateException e) {
+            log.debug("Falling back to the block store for KGW: {}", e.getMessage());
+            return false;
         }
 
-
-        //log.info("KGW-J Difficulty Calculated: {}", newDifficulty.toString(16));
-        verifyDifficulty(newDifficulty, nextBlock);
-
-    }
-
-    private void KimotoGravityWell_N(StoredBlock storedPrev, Block nextBlock, long TargetBlocksSpacingSeconds, long PastBlocksMin, long PastBlocksMax)  throws BlockStoreException, VerificationException {
-	/* current difficulty formula, vertcoin - kimoto gravity well */
-        //const CBlockIndex  *BlockLastSolved				= pindexLast;
-        //const CBlockIndex  *BlockReading				= pindexLast;
-        //const CBlockHeader *BlockCreating				= pblock;
-        StoredBlock         BlockLastSolved             = storedPrev;
-        StoredBlock         BlockReading                = storedPrev;
-        Block               BlockCreating               = nextBlock;
-
-        /*
-        BlockCreating				= BlockCreating;
-
-        long				PastBlocksMass				= 0;
-        long				PastRateActualSeconds		= 0;
-        long				PastRateTargetSeconds		= 0;
-        double				PastRateAdjustmentRatio		= 1f;
-        BigInteger			PastDifficultyAverage = BigInteger.valueOf(0);
-        BigInteger			PastDifficultyAveragePrev = BigInteger.valueOf(0);;
-        double				EventHorizonDeviation;
-        double				EventHorizonDeviationFast;
-        double				EventHorizonDeviationSlow;
-        */
-        long start = System.currentTimeMillis();
-        long endLoop = 0;
-
-        if (BlockLastSolved == null || BlockLastSolved.getHeight() == 0 || (long)BlockLastSolved.getHeight() < PastBlocksMin)
+        if (storedPrev.getHeight() == 0 || (long)storedPrev.getHeight() < KGW_PAST_BLOCKS_MIN)
         { verifyDifficulty(params.getProofOfWorkLimit(), nextBlock); }
-
-        int i = 0;
-        //log.info("KGW: i = {}; height = {}; hash {} ", i, BlockReading.getHeight(), BlockReading.getHeader().getHashAsString());
-
-        long totalCalcTime = 0;
-        long totalReadtime = 0;
-        long totalBigIntTime = 0;
-
-        int init_result = kgw.KimotoGravityWell_init(TargetBlocksSpacingSeconds, PastBlocksMin, PastBlocksMax, 144d);
-
-
-        for (i = 1; BlockReading != null && BlockReading.getHeight() > 0; i++) {
-            long startLoop = System.currentTimeMillis();
-            int result = kgw.KimotoGravityWell_loop(i, BlockReading.getHeader().getDifficultyTargetAsInteger().toByteArray(),BlockReading.getHeight(), BlockReading.getHeader().getTimeSeconds(), BlockLastSolved.getHeader().getTimeSeconds());
-
-            //if(i == 1)
-                //log.info("KGW-N: difficulty of i=1:%x->{}",  BlockReading.getHeader().getDifficultyTarget(), BlockReading.getHeader().getDifficultyTargetAsInteger().toString(16));
-            //    log.info("KGW-N: difficulty of i=1: " + BlockReading.getHeader().getDifficultyTarget() + "->" + BlockReading.getHeader().getDifficultyTargetAsInteger().toString(16));
-            if(result == 1)
-                break;
-            if(result == 2)
-                return;
-            /*
-            if (PastBlocksMax > 0 && i > PastBlocksMax)
-            {
-                break;
-            }
-            PastBlocksMass++;
-            BigInteger PastDifficultyAverageN = new BigInteger("0");
-            if (i == 1)	{ PastDifficultyAverage = BlockReading.getHeader().getDifficultyTargetAsInteger(); }
-            else
-            {
-                //PastDifficultyAverage = ((BlockReading.getHeader().getDifficultyTargetAsInteger().subtract(PastDifficultyAveragePrev)).divide(BigInteger.valueOf(i)).add(PastDifficultyAveragePrev));
-            }
-            PastDifficultyAveragePrev = PastDifficultyAverage;
-
-            long diff = System.currentTimeMillis();
-            totalBigIntTime += diff - startLoop;
-
-            PastRateActualSeconds			= BlockLastSolved.getHeader().getTimeSeconds() - BlockReading.getHeader().getTimeSeconds();
-            PastRateTargetSeconds			= TargetBlocksSpacingSeconds * PastBlocksMass;
-            PastRateAdjustmentRatio			= 1.0f;
-            if (PastRateActualSeconds < 0) { PastRateActualSeconds = 0; }
-            if (PastRateActualSeconds != 0 && PastRateTargetSeconds != 0) {
-                PastRateAdjustmentRatio			= (double)PastRateTargetSeconds / PastRateActualSeconds;
-            }
-            EventHorizonDeviation			= 1 + (0.7084 * java.lang.Math.pow((Double.valueOf(PastBlocksMass)/Double.valueOf(144)), -1.228));
-            EventHorizonDeviationFast		= EventHorizonDeviation;
-            EventHorizonDeviationSlow		= 1 / EventHorizonDeviation;
-
-            if (PastBlocksMass >= PastBlocksMin) {
-                if ((PastRateAdjustmentRatio <= EventHorizonDeviationSlow) || (PastRateAdjustmentRatio >= EventHorizonDeviationFast))
-                {
-                    //assert(BlockReading);
-                    break;
-                }
-            }*/
-            long calcTime = System.currentTimeMillis();
-            StoredBlock BlockReadingPrev = blockStore.get(BlockReading.getHeader().getPrevBlockHash());
-            if (BlockReadingPrev == null)
-            {
-                //If this is triggered, then we are using checkpoints and haven't downloaded enough blocks to verify the difficulty.
-                //assert(BlockReading);     //from C++ code
-                //break;                    //from C++ code
-                return;
-            }
-            //log.info("KGW: i = {}; height = {}; hash {} ", i, BlockReadingPrev.getHeight(), BlockReadingPrev.getHeader().getHashAsString());
-            BlockReading = BlockReadingPrev;
-            endLoop = System.currentTimeMillis();
-            //log.info("KGW-N: i = {}; height = {}; total time {}=calc {}+read {}", i, BlockReadingPrev.getHeight(), endLoop - startLoop, calcTime - startLoop, endLoop-calcTime);
-            totalCalcTime += calcTime - startLoop;
-            totalReadtime += endLoop-calcTime;
-        }
-
-        /*CBigNum bnNew(PastDifficultyAverage);
-        if (PastRateActualSeconds != 0 && PastRateTargetSeconds != 0) {
-            bnNew *= PastRateActualSeconds;
-            bnNew /= PastRateTargetSeconds;
-        } */
-        //log.info("KGW iterations: {}, rewinding from {} to {}; time {}", i, BlockReading.getHeight(), storedPrev.getHeight()+1, endLoop - start);
-        //log.info("KGW-N: i = {}; height = {}; total time {}=calc {}+read {}", i, storedPrev.getHeight(), System.currentTimeMillis() - start, totalCalcTime, totalReadtime /*, totalBigIntTime, totalCalcTime-totalBigIntTime*/);
-        //log.info("KGW-N, {}, {}, {}", storedPrev.getHeight(), i, System.currentTimeMillis() - start);
-        /*BigInteger newDifficulty = PastDifficultyAverage;
-        if (PastRateActualSeconds != 0 && PastRateTargetSeconds != 0) {
-            newDifficulty = newDifficulty.multiply(BigInteger.valueOf(PastRateActualSeconds));
-            newDifficulty = newDifficulty.divide(BigInteger.valueOf(PastRateTargetSeconds));
-        }*/
-
-        BigInteger newDifficulty = new BigInteger(kgw.KimotoGravityWell_close());
+        // Not enough blocks in the store to check the difficulty, we are using checkpoints.
+        if (newDifficulty == null)
+            return true;
 
         if (newDifficulty.compareTo(params.getProofOfWorkLimit()) > 0) {
             log.info("Difficulty hit proof of work limit: {}", newDifficulty.toString(16));
             newDifficulty = params.getProofOfWorkLimit();
         }
-
-
-        //log.info("KGW-N Difficulty Calculated: {}", newDifficulty.toString(16));
         verifyDifficulty(newDifficulty, nextBlock);
-
+        return true;
     }
-    private void KimotoGravityWell_N2(StoredBlock storedPrev, Block nextBlock, long TargetBlocksSpacingSeconds, long PastBlocksMin, long PastBlocksMax)  throws BlockStoreException, VerificationException {
+
+    /** Checks the difficulty by walking back through the block store from <tt>storedPrev</tt>. */
+    private void KimotoGravityWell(StoredBlock storedPrev, Block nextBlock) throws BlockStoreException, VerificationException {
 	/* current difficulty formula, vertcoin - kimoto gravity well */
-        //const CBlockIndex  *BlockLastSolved				= pindexLast;
-        //const CBlockIndex  *BlockReading				= pindexLast;
-        //const CBlockHeader *BlockCreating				= pblock;
         StoredBlock         BlockLastSolved             = storedPrev;
         StoredBlock         BlockReading                = storedPrev;
-        Block               BlockCreating               = nextBlock;
-
-        BlockCreating				= BlockCreating;
-        long				PastBlocksMass				= 0;
-        long				PastRateActualSeconds		= 0;
-        long				PastRateTargetSeconds		= 0;
-        double				PastRateAdjustmentRatio		= 1f;
-        BigInteger			PastDifficultyAverage = BigInteger.valueOf(0);
-        BigInteger			PastDifficultyAveragePrev = BigInteger.valueOf(0);;
-        double				EventHorizonDeviation;
-        double				EventHorizonDeviationFast;
-        double				EventHorizonDeviationSlow;
-
-        long start = System.currentTimeMillis();
-        long endLoop = 0;
-
-        if (BlockLastSolved == null || BlockLastSolved.getHeight() == 0 || (long)BlockLastSolved.getHeight() < PastBlocksMin)
-        { verifyDifficulty(params.getProofOfWorkLimit(), nextBlock); }
-
-        int i = 0;
-        //log.info("KGW: i = {}; height = {}; hash {} ", i, BlockReading.getHeight(), BlockReading.getHeader().getHashAsString());
-
-        long totalCalcTime = 0;
-        long totalReadtime = 0;
-        long totalBigIntTime = 0;
-
-        int init_result = kgw.KimotoGravityWell_init(TargetBlocksSpacingSeconds, PastBlocksMin, PastBlocksMax, 144d);
 
+        if (BlockLastSolved == null || BlockLastSolved.getHeight() == 0 || (long)BlockLastSolved.getHeight() < KGW_PAST_BLOCKS_MIN)
+        { verifyDifficulty(params.getProofOfWorkLimit(), nextBlock); }
 
-        for (i = 1; BlockReading != null && BlockReading.getHeight() > 0; i++) {
-            long startLoop = System.currentTimeMillis();
-            int result = kgw.KimotoGravityWell_loop2(i, BlockReading.getHeader().getDifficultyTarget(),BlockReading.getHeight(), BlockReading.getHeader().getTimeSeconds(), BlockLastSolved.getHeader().getTimeSeconds());
-            BigInteger diff = BlockReading.getHeader().getDifficultyTargetAsInteger();
-            //if(i == 1)
-            //    log.info("KGW-N2: difficulty of i=1: " + BlockReading.getHeader().getDifficultyTarget() +"->"+ diff.toString(16));
-            if(result == 1)
+        kgwCalculator.reset();
+        while (BlockReading != null && BlockReading.getHeight() > 0) {
+            Block header = BlockReading.getHeader();
+            int result = kgwCalculator.addBlock(header.getDifficultyTarget(), header.getTimeSeconds());
+            if (result == KimotoGravityWellCalculator.STOP)
                 break;
-            if(result == 2)
-                return;
-            /*
-            if (PastBlocksMax > 0 && i > PastBlocksMax)
-            {
-                break;
-            }
-            PastBlocksMass++;
-            BigInteger PastDifficultyAverageN = new BigInteger("0");
-            if (i == 1)	{ PastDifficultyAverage = BlockReading.getHeader().getDifficultyTargetAsInteger(); }
-            else
-            {
-                //PastDifficultyAverage = ((BlockReading.getHeader().getDifficultyTargetAsInteger().subtract(PastDifficultyAveragePrev)).divide(BigInteger.valueOf(i)).add(PastDifficultyAveragePrev));
-            }
-            PastDifficultyAveragePrev = PastDifficultyAverage;
-
-            long diff = System.currentTimeMillis();
-            totalBigIntTime += diff - startLoop;
-
-            PastRateActualSeconds			= BlockLastSolved.getHeader().getTimeSeconds() - BlockReading.getHeader().getTimeSeconds();
-            PastRateTargetSeconds			= TargetBlocksSpacingSeconds * PastBlocksMass;
-            PastRateAdjustmentRatio			= 1.0f;
-            if (PastRateActualSeconds < 0) { PastRateActualSeconds = 0; }
-            if (PastRateActualSeconds != 0 && PastRateTargetSeconds != 0) {
-                PastRateAdjustmentRatio			= (double)PastRateTargetSeconds / PastRateActualSeconds;
+            if (result == KimotoGravityWellCalculator.BAD_TARGET) {
+                // getDifficultyTargetAsInteger rejects the same targets, with a more useful message.
+                header.getDifficultyTargetAsInteger();
+                throw new VerificationException("Difficulty target is bad: " + header.getDifficultyTarget());
             }
-            EventHorizonDeviation			= 1 + (0.7084 * java.lang.Math.pow((Double.valueOf(PastBlocksMass)/Double.valueOf(144)), -1.228));
-            EventHorizonDeviationFast		= EventHorizonDeviation;
-            EventHorizonDeviationSlow		= 1 / EventHorizonDeviation;
-
-            if (PastBlocksMass >= PastBlocksMin) {
-                if ((PastRateAdjustmentRatio <= EventHorizonDeviationSlow) || (PastRateAdjustmentRatio >= EventHorizonDeviationFast))
-                {
-                    //assert(BlockReading);
-                    break;
-                }
-            }*/
-            long calcTime = System.currentTimeMillis();
-            StoredBlock BlockReadingPrev = blockStore.get(BlockReading.getHeader().getPrevBlockHash());
+            StoredBlock BlockReadingPrev = blockStore.get(header.getPrevBlockHash());
             if (BlockReadingPrev == null)
             {
                 //If this is triggered, then we are using checkpoints and haven't downloaded enough blocks to verify the difficulty.
-                //assert(BlockReading);     //from C++ code
-                //break;                    //from C++ code
                 return;
             }
-            //log.info("KGW: i = {}; height = {}; hash {} ", i, BlockReadingPrev.getHeight(), BlockReadingPrev.getHeader().getHashAsString());
             BlockReading = BlockReadingPrev;
-            endLoop = System.currentTimeMillis();
-            //log.info("KGW-N: i = {}; height = {}; total time {}=calc {}+read {}", i, BlockReadingPrev.getHeight(), endLoop - startLoop, calcTime - startLoop, endLoop-calcTime);
-            totalCalcTime += calcTime - startLoop;
-            totalReadtime += endLoop-calcTime;
         }
 
-        /*CBigNum bnNew(PastDifficultyAverage);
-        if (PastRateActualSeconds != 0 && PastRateTargetSeconds != 0) {
-            bnNew *= PastRateActualSeconds;
-            bnNew /= PastRateTargetSeconds;
-        } */
-        //log.info("KGW iterations: {}, rewinding from {} to {}; time {}", i, BlockReading.getHeight(), storedPrev.getHeight()+1, endLoop - start);
-        //log.info("KGW-N: i = {}; height = {}; total time {}=calc {}+read {}", i, storedPrev.getHeight(), System.currentTimeMillis() - start, totalCalcTime, totalReadtime /*, totalBigIntTime, totalCalcTime-totalBigIntTime*/);
-        //log.info("KGW-N2, {}, {}, {}", storedPrev.getHeight(), i, System.currentTimeMillis() - start);
-        /*BigInteger newDifficulty = PastDifficultyAverage;
-        if (PastRateActualSeconds != 0 && PastRateTargetSeconds != 0) {
-            newDifficulty = newDifficulty.multiply(BigInteger.valueOf(PastRateActualSeconds));
-            newDifficulty = newDifficulty.divide(BigInteger.valueOf(PastRateTargetSeconds));
-        }*/
-
-        BigInteger newDifficulty = new BigInteger(kgw.KimotoGravityWell_close());
-
+        BigInteger newDifficulty = kgwCalculator.getNewDifficulty();
         if (newDifficulty.compareTo(params.getProofOfWorkLimit()) > 0) {
             log.info("Difficulty hit proof of work limit: {}", newDifficulty.toString(16));
             newDifficulty = params.getProofOfWorkLimit();
         }
-
-
-
         verifyDifficulty(newDifficulty, nextBlock);
-
     }
 
     private void checkDifficultyTransitions_original(StoredBlock storedPrev, Block nextBlock) throws BlockStoreException, VerificationException {
@@ -1810,6 +1527,16 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    /** Returns true if any blocks are waiting for their parents to arrive. */
+    protected boolean hasOrphanBlocks() {
+        lock.lock();
+        try {
+            return !orphanBlocks.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /** Returns true if the given block is currently in the orphan blocks list. */
     public boolean isOrphan(Sha256Hash block) {
         lock.lock();
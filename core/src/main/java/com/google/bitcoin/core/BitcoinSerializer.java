@@ -17,18 +17,23 @@
 package com.google.bitcoin.core;
 
 
+import com.google.bitcoin.net.ByteBufferPool;
+import com.google.bitcoin.net.PooledByteBufferOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 import static com.google.bitcoin.core.Utils.*;
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * <p>Methods to serialize and de-serialize messages to the Bitcoin network format as defined in
@@ -98,6 +103,15 @@ public class BitcoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
+        byte[] header = header(name, message.length, doubleDigest(message));
+        out.write(header);
+        out.write(message);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, bytesToHexString(header) + bytesToHexString(message));
+    }
+
+    private byte[] header(String name, int length, byte[] hash) {
         byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
         uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
 
@@ -107,26 +121,56 @@ public class BitcoinSerializer {
             header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
         }
 
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
+        Utils.uint32ToByteArrayLE(length, header, 4 + COMMAND_LEN);
 
-        byte[] hash = doubleDigest(message);
         System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        out.write(header);
-        out.write(message);
-
-        if (log.isDebugEnabled())
-            log.debug("Sending {} message: {}", name, bytesToHexString(header) + bytesToHexString(message));
+        return header;
     }
 
     /**
      * Writes message to to the output stream.
      */
     public void serialize(Message message, OutputStream out) throws IOException {
+        serialize(name(message), message.bitcoinSerialize(), out);
+    }
+
+    /**
+     * Serializes message, header and all, straight into buffers leased from the given pool, ready to be handed to
+     * {@link com.google.bitcoin.net.MessageWriteTarget#writeBytes(ByteBuffer[])}. Space for the header is left in
+     * front of the payload and filled in once the payload has been written and hashed, so the payload is only copied
+     * the once, from the message or its cached bytes into the buffers. The caller owns the buffers.
+     */
+    public ByteBuffer[] serialize(Message message, ByteBufferPool pool) throws IOException {
+        String name = name(message);
+        int headerLength = 4 + BitcoinPacketHeader.HEADER_LENGTH;
+        checkArgument(pool.getBufferSize() >= headerLength, "Pool buffers too small to hold a message header");
+        PooledByteBufferOutputStream out = new PooledByteBufferOutputStream(pool);
+        ByteBuffer[] buffers;
+        try {
+            out.write(new byte[headerLength]);
+            message.bitcoinSerialize(out);
+            buffers = out.toBuffers();
+        } finally {
+            out.release();
+        }
+        // The checksum covers the payload, which starts straight after the space left for the header.
+        ByteBuffer first = buffers[0];
+        first.position(headerLength);
+        byte[] header = header(name, out.size() - headerLength, doubleDigest(buffers));
+        first.position(0);
+        first.duplicate().put(header);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message of {} bytes", name, out.size() - headerLength);
+        return buffers;
+    }
+
+    private static String name(Message message) {
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.bitcoinSerialize(), out);
+        return name;
     }
 
     /**
@@ -168,10 +212,29 @@ public class BitcoinSerializer {
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes, null);
+    }
 
+    /**
+     * <p>Deserializes a payload which has already been read into the first header.size bytes of the given array. The
+     * array may be longer than that, eg. because it came from a {@link com.google.bitcoin.net.ByteArrayPool}.</p>
+     *
+     * <p>Blocks and transactions are parsed straight from the array when neither lazy parsing nor retaining is on,
+     * and other messages from a copy of the payload, so that the returned message never refers to the array and it may
+     * be reused as soon as this returns.</p>
+     *
+     * @param payloadDigest The single SHA-256 hash of the payload if it was hashed as it arrived, or null to hash it
+     *                      here. Either way the checksum in the header is verified.
+     */
+    public Message deserializePayload(BitcoinPacketHeader header, byte[] payload, @Nullable byte[] payloadDigest)
+            throws ProtocolException {
+        checkArgument(payload.length >= header.size);
         // Verify the checksum.
         byte[] hash;
-        hash = doubleDigest(payloadBytes);
+        if (payloadDigest != null)
+            hash = singleDigest(payloadDigest, 0, payloadDigest.length);
+        else
+            hash = doubleDigest(payload, 0, header.size);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -181,14 +244,29 @@ public class BitcoinSerializer {
 
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    Utils.bytesToHexString(payloadBytes));
+                    Utils.bytesToHexString(Arrays.copyOf(payload, header.size)));
         }
 
+        // Messages other than blocks and transactions may parse up to the end of the array they are given, or keep
+        // it, so they get an exact copy unless the payload already fills the array.
+        byte[] payloadBytes = payload;
+        boolean parseInPlace = !parseLazy && !parseRetain &&
+                (header.command.equals("block") || header.command.equals("tx"));
+        if (payload.length != header.size && !parseInPlace)
+            payloadBytes = Arrays.copyOf(payload, header.size);
+        Message message;
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            message = makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + Utils.bytesToHexString(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " +
+                    Utils.bytesToHexString(Arrays.copyOf(payload, header.size)) + "\n", e);
         }
+        // Parsing in place isn't stopped at the end of the payload, so a truncated one would be completed from whatever
+        // the array held before.
+        if (payloadBytes.length != header.size && message.getMessageSize() > header.size)
+            throw new ProtocolException("Message '" + header.command + "' of " + header.size +
+                    " bytes ran on to " + message.getMessageSize() + " bytes");
+        return message;
     }
 
     private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
@@ -37,7 +37,6 @@ import java.util.List;
 
 import static com.google.bitcoin.core.Utils.doubleDigest;
 import static com.google.bitcoin.core.Utils.doubleDigestTwoBuffers;
-import static com.google.bitcoin.core.Utils.scryptDigest;
 
 /**
  * <p>A block is a group of transactions, and is one of the fundamental data structures of the Bitcoin system.
@@ -177,6 +176,7 @@ public class Block extends Message {
         // This code is not actually necessary, as transient fields are initialized to the default value which is in
         // this case null. However it clears out a FindBugs warning and makes it explicit what we're doing.
         hash = null;
+        scryptHash = null;
     }
 
     private void parseHeader() throws ProtocolException {
@@ -203,7 +203,9 @@ public class Block extends Message {
 
         cursor = offset + HEADER_SIZE;
         optimalEncodingMessageSize = HEADER_SIZE;
-        if (bytes.length == cursor) {
+        // The array may run on past the end of the block if it was read into a pooled buffer, see BitcoinSerializer.
+        int end = length == UNKNOWN_LENGTH ? bytes.length : offset + length;
+        if (end == cursor) {
             // This message is just a header, it has no transactions.
             transactionsParsed = true;
             transactionBytesValid = false;
@@ -481,6 +483,7 @@ public class Block extends Message {
         if (!transactionBytesValid)
             bytes = null;
         hash = null;
+        scryptHash = null;
         checksum = null;
     }
 
@@ -512,13 +515,20 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateScryptHash() {
-        try {
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
-            writeHeader(bos);
-            return new Sha256Hash(Utils.reverseBytes(scryptDigest(bos.toByteArray())));
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Cannot happen.
+        byte[] pow = new byte[PowHasher.HASH_LENGTH];
+        if (headerBytesValid && bytes != null && bytes.length >= offset + HEADER_SIZE) {
+            // Hash straight out of the message bytes rather than re-serializing the header.
+            PowHasher.get().hash(bytes, offset, HEADER_SIZE, pow, 0);
+        } else {
+            try {
+                ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
+                writeHeader(bos);
+                PowHasher.get().hash(bos.toByteArray(), 0, HEADER_SIZE, pow, 0);
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Cannot happen.
+            }
         }
+        return new Sha256Hash(Utils.reverseBytes(pow));
     }
 
     /**
@@ -550,6 +560,25 @@ public class Block extends Message {
         return scryptHash;
     }
 
+    /** Returns the {@link #HEADER_SIZE} byte header, the part of the block that the proof of work hash covers. */
+    byte[] serializeHeader() {
+        try {
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
+            writeHeader(bos);
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    /**
+     * Caches a proof of work hash of the header calculated elsewhere, in the byte order {@link PowHasher} outputs it,
+     * for {@link #getScryptHash()} to return.
+     */
+    void setScryptHash(byte[] pow) {
+        scryptHash = new Sha256Hash(Utils.reverseBytes(pow));
+    }
+
 
     /**
      * The number that is one greater than the largest representable SHA-256
@@ -1103,4 +1132,9 @@ public class Block extends Message {
     boolean isTransactionBytesValid() {
         return transactionBytesValid;
     }
+
+    @VisibleForTesting
+    boolean isScryptHashCached() {
+        return scryptHash != null;
+    }
 }
@@ -0,0 +1,555 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.utils.SerialExecutor;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads the blocks of the chain from all suitable connected peers at once, rather than only from the download
+ * peer. The download peer still finds out which blocks we need with getblocks, and hands the hashes it is sent over
+ * with {@link #addBlocks(Peer, List)}. Requests for them are spread over the connected peers, with at most
+ * {@link #getMaxBlocksInFlightPerPeer()} outstanding at each peer at a time, and the blocks are added to the chain in
+ * the order they were announced whichever peer they come from. Once all of them have been added, the download peer is
+ * asked for more.</p>
+ *
+ * <p>A request which isn't answered within the stall timeout is given to another peer, and the peer which stalled
+ * isn't asked for anything else until the same time has passed again. {@link #getPeerStats()} reports how much each
+ * peer has sent and how fast.</p>
+ *
+ * <p>It is turned on with {@link PeerGroup#setMaxBlocksInFlightPerPeer(int)}, which keeps it told about peers coming
+ * and going.</p>
+ */
+public class BlockDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    /** The number of blocks requested from each peer at a time by default. */
+    public static final int DEFAULT_MAX_BLOCKS_IN_FLIGHT_PER_PEER = 16;
+    /** How long a request can go unanswered before it is given to another peer, by default. */
+    public static final long DEFAULT_STALL_TIMEOUT_MSEC = 20 * 1000;
+    // How far past the next block to be added to the chain requests can go. This bounds the number of blocks held
+    // waiting for one which is slow to arrive.
+    private static final int MAX_BLOCKS_AHEAD = 1024;
+
+    private final AbstractBlockChain chain;
+    // Blocks are added to the chain and requests sent by tasks run one at a time on this, so that neither happens on a
+    // thread holding the lock of the peer which received a block.
+    private final Executor executor;
+    private final ReentrantLock lock = Threading.lock("blockdownloadscheduler");
+
+    @GuardedBy("lock") private int maxBlocksInFlightPerPeer;
+    @GuardedBy("lock") private long stallTimeoutMsec = DEFAULT_STALL_TIMEOUT_MSEC;
+    // The connected peers, in the order they connected.
+    @GuardedBy("lock") private final Map<Peer, PeerStats> peers = new LinkedHashMap<Peer, PeerStats>();
+    // The peer which last told us about blocks to download. It's asked for more once they have all been added.
+    @Nullable @GuardedBy("lock") private Peer announcer;
+
+    // The blocks being downloaded in the order they were announced, and the position of each in that order.
+    @GuardedBy("lock") private final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Integer> positions = new HashMap<Sha256Hash, Integer>();
+    // The positions of the blocks which haven't been requested from a peer yet.
+    @GuardedBy("lock") private final TreeSet<Integer> unrequested = new TreeSet<Integer>();
+    // The outstanding requests, and the blocks received but waiting for earlier ones, by position.
+    @GuardedBy("lock") private final Map<Integer, Request> requests = new HashMap<Integer, Request>();
+    @GuardedBy("lock") private final Map<Integer, Message> received = new HashMap<Integer, Message>();
+    // The position of the next block to add to the chain.
+    @GuardedBy("lock") private int nextToAdd;
+    // The last block which turned out not to connect to the chain, so the download can continue from its orphan root.
+    @Nullable @GuardedBy("lock") private Sha256Hash lastOrphan;
+    @GuardedBy("lock") private long downloadStartedMsec;
+
+    private final Runnable processTask = new Runnable() {
+        @Override
+        public void run() {
+            process();
+        }
+    };
+
+    private static class Request {
+        final Peer peer;
+        final long timeMsec;
+
+        Request(Peer peer, long timeMsec) {
+            this.peer = peer;
+            this.timeMsec = timeMsec;
+        }
+    }
+
+    /**
+     * How many blocks a peer has sent us and how fast, as returned by {@link #getPeerStats()}. The rate only counts
+     * the time during which blocks were requested from the peer, so it isn't lowered by waiting for getblocks replies
+     * or for slower peers.
+     */
+    public static class PeerStats {
+        private int blocksInFlight;
+        private long blocksReceived;
+        private long bytesReceived;
+        private int stalls;
+        private long busyMsec;
+        private long busySinceMsec;
+        private long stalledUntilMsec;
+
+        private void requestStarted(long nowMsec) {
+            if (blocksInFlight++ == 0)
+                busySinceMsec = nowMsec;
+        }
+
+        private void requestFinished(long nowMsec) {
+            if (--blocksInFlight == 0)
+                busyMsec += nowMsec - busySinceMsec;
+        }
+
+        private PeerStats snapshot(long nowMsec) {
+            PeerStats copy = new PeerStats();
+            copy.blocksInFlight = blocksInFlight;
+            copy.blocksReceived = blocksReceived;
+            copy.bytesReceived = bytesReceived;
+            copy.stalls = stalls;
+            copy.busyMsec = busyMsec + (blocksInFlight > 0 ? nowMsec - busySinceMsec : 0);
+            return copy;
+        }
+
+        /** Returns the number of blocks requested from the peer which it hasn't sent yet. */
+        public int getBlocksInFlight() {
+            return blocksInFlight;
+        }
+
+        /** Returns the number of blocks the peer has sent. */
+        public long getBlocksReceived() {
+            return blocksReceived;
+        }
+
+        /** Returns the size of the block messages the peer has sent, not counting the transactions of filtered blocks. */
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        /** Returns the number of times a request to the peer went unanswered for too long and was given to another. */
+        public int getStalls() {
+            return stalls;
+        }
+
+        /** Returns the rate at which the peer has sent blocks while it had requests outstanding. */
+        public double getBytesPerSecond() {
+            return busyMsec == 0 ? 0 : bytesReceived * 1000.0 / busyMsec;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d blocks, %d bytes at %.1f KB/sec, %d stalls", blocksReceived, bytesReceived,
+                    getBytesPerSecond() / 1024, stalls);
+        }
+    }
+
+    BlockDownloadScheduler(AbstractBlockChain chain, int maxBlocksInFlightPerPeer) {
+        this(chain, maxBlocksInFlightPerPeer, new SerialExecutor(Threading.MESSAGE_POOL));
+    }
+
+    @VisibleForTesting
+    BlockDownloadScheduler(AbstractBlockChain chain, int maxBlocksInFlightPerPeer, Executor executor) {
+        checkArgument(maxBlocksInFlightPerPeer > 0);
+        this.chain = checkNotNull(chain);
+        this.maxBlocksInFlightPerPeer = maxBlocksInFlightPerPeer;
+        this.executor = checkNotNull(executor);
+    }
+
+    /** Makes the peer available to download blocks from. */
+    void peerConnected(Peer peer) {
+        lock.lock();
+        try {
+            if (!peers.containsKey(peer))
+                peers.put(peer, new PeerStats());
+        } finally {
+            lock.unlock();
+        }
+        executor.execute(processTask);
+    }
+
+    /** Gives whatever was requested from the peer to other peers. */
+    void peerDisconnected(Peer peer) {
+        lock.lock();
+        try {
+            if (peers.remove(peer) == null)
+                return;
+            if (announcer == peer)
+                announcer = null;
+            Iterator<Map.Entry<Integer, Request>> it = requests.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Request> entry = it.next();
+                if (entry.getValue().peer == peer) {
+                    it.remove();
+                    unrequested.add(entry.getKey());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        executor.execute(processTask);
+    }
+
+    /**
+     * Queues the given blocks, announced by the download peer in reply to a getblocks, to be downloaded after any
+     * already queued. Blocks which are already queued or in the chain are skipped.
+     */
+    void addBlocks(Peer from, List<Sha256Hash> announced) {
+        List<Sha256Hash> needed = new ArrayList<Sha256Hash>(announced.size());
+        for (Sha256Hash hash : announced) {
+            try {
+                if (chain.getBlockStore().get(hash) != null)
+                    continue;
+            } catch (BlockStoreException e) {
+                log.warn("Failed to look up announced block {}: {}", hash, e.getMessage());
+            }
+            needed.add(hash);
+        }
+        boolean idle;
+        lock.lock();
+        try {
+            announcer = from;
+            if (hashes.isEmpty())
+                downloadStartedMsec = Utils.currentTimeMillis();
+            for (Sha256Hash hash : needed) {
+                if (positions.containsKey(hash))
+                    continue;
+                positions.put(hash, hashes.size());
+                unrequested.add(hashes.size());
+                hashes.add(hash);
+            }
+            idle = hashes.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+        if (idle) {
+            // We had all of them already, perhaps because the chain moved on since the getblocks, so ask again.
+            from.continueBlockChainDownload(null);
+        } else {
+            executor.execute(processTask);
+        }
+    }
+
+    /**
+     * Called with blocks and filtered blocks as they arrive from any peer. Returns true if the block was requested by
+     * the scheduler, in which case it will be added to the chain once the blocks before it have been.
+     */
+    boolean blockReceived(Peer peer, Message block) {
+        checkArgument(block instanceof Block || block instanceof FilteredBlock);
+        long nowMsec = Utils.currentTimeMillis();
+        lock.lock();
+        try {
+            Integer position = positions.get(block.getHash());
+            if (position == null)
+                return false;
+            if (position < nextToAdd || received.containsKey(position))
+                return true;  // A duplicate, probably from a peer we gave up waiting for.
+            Request request = requests.remove(position);
+            if (request != null) {
+                PeerStats requestedFrom = peers.get(request.peer);
+                if (requestedFrom != null)
+                    requestedFrom.requestFinished(nowMsec);
+            } else {
+                unrequested.remove(position);
+            }
+            PeerStats stats = peers.get(peer);
+            if (stats != null) {
+                stats.blocksReceived++;
+                stats.bytesReceived += block.getMessageSize();
+            }
+            received.put(position, block);
+        } finally {
+            lock.unlock();
+        }
+        executor.execute(processTask);
+        return true;
+    }
+
+    /** Returns true if there are blocks queued which haven't been added to the chain yet. */
+    boolean isDownloading() {
+        lock.lock();
+        try {
+            return !hashes.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives requests which have gone unanswered for longer than the stall timeout to other peers. This is called
+     * periodically by the {@link PeerGroup}.
+     */
+    void checkForStalls() {
+        long nowMsec = Utils.currentTimeMillis();
+        boolean stalled = false;
+        lock.lock();
+        try {
+            Iterator<Map.Entry<Integer, Request>> it = requests.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Request> entry = it.next();
+                Request request = entry.getValue();
+                if (nowMsec - request.timeMsec < stallTimeoutMsec)
+                    continue;
+                it.remove();
+                unrequested.add(entry.getKey());
+                stalled = true;
+                PeerStats stats = peers.get(request.peer);
+                if (stats != null) {
+                    stats.requestFinished(nowMsec);
+                    if (stats.stalledUntilMsec <= nowMsec) {
+                        log.info("{}: Stalled downloading block {}, asking other peers", request.peer,
+                                hashes.get(entry.getKey()));
+                        stats.stalls++;
+                    }
+                    stats.stalledUntilMsec = nowMsec + stallTimeoutMsec;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (stalled)
+            executor.execute(processTask);
+    }
+
+    // Adds whatever blocks are ready to the chain, continues the download if they're all in, and sends out requests.
+    private void process() {
+        Message block;
+        while ((block = takeNextBlock()) != null)
+            addToChain(block);
+
+        Peer continueFrom = null;
+        Sha256Hash orphan = null;
+        Map<Peer, List<Sha256Hash>> toRequest;
+        int chainHeight = chain.getBestChainHeight();
+        lock.lock();
+        try {
+            if (!hashes.isEmpty() && nextToAdd == hashes.size()) {
+                logProgress();
+                continueFrom = announcer;
+                orphan = lastOrphan;
+                hashes.clear();
+                positions.clear();
+                nextToAdd = 0;
+                lastOrphan = null;
+            }
+            toRequest = assignRequests(chainHeight);
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Peer, List<Sha256Hash>> entry : toRequest.entrySet()) {
+            try {
+                entry.getKey().requestBlocks(entry.getValue());
+            } catch (Exception e) {
+                // The peer is going away, so the requests will be given to another when it does or when they stall.
+                log.warn("{}: Failed to request blocks: {}", entry.getKey(), e.toString());
+            }
+        }
+        if (continueFrom != null)
+            continueFrom.continueBlockChainDownload(orphan);
+    }
+
+    @Nullable
+    private Message takeNextBlock() {
+        lock.lock();
+        try {
+            Message block = received.remove(nextToAdd);
+            if (block != null)
+                nextToAdd++;
+            return block;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addToChain(Message block) {
+        try {
+            boolean connected;
+            Block header;
+            if (block instanceof FilteredBlock) {
+                connected = chain.add((FilteredBlock) block);
+                header = ((FilteredBlock) block).getBlockHeader();
+            } else {
+                connected = chain.add((Block) block);
+                header = (Block) block;
+            }
+            Peer peer;
+            lock.lock();
+            try {
+                if (!connected)
+                    lastOrphan = block.getHash();
+                peer = announcer;
+            } finally {
+                lock.unlock();
+            }
+            // Progress is reported through the download peer, which is where PeerGroup registers its download
+            // listener.
+            if (connected && peer != null)
+                peer.invokeOnBlocksDownloaded(header);
+        } catch (VerificationException e) {
+            // We don't want verification failures to stop the download.
+            log.warn("Block verification failed", e);
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        }
+    }
+
+    @GuardedBy("lock")
+    private Map<Peer, List<Sha256Hash>> assignRequests(int chainHeight) {
+        Map<Peer, List<Sha256Hash>> toRequest = new LinkedHashMap<Peer, List<Sha256Hash>>();
+        long nowMsec = Utils.currentTimeMillis();
+        while (!unrequested.isEmpty()) {
+            int position = unrequested.first();
+            if (position >= nextToAdd + MAX_BLOCKS_AHEAD)
+                break;
+            // Pick the peer with the most room in its window, so requests are spread evenly.
+            Peer best = null;
+            int bestFree = 0;
+            for (Map.Entry<Peer, PeerStats> entry : peers.entrySet()) {
+                Peer peer = entry.getKey();
+                PeerStats stats = entry.getValue();
+                int free = maxBlocksInFlightPerPeer - stats.blocksInFlight;
+                if (free <= bestFree || stats.stalledUntilMsec > nowMsec)
+                    continue;
+                // A peer which isn't ahead of us can't have the blocks, though the one which announced them must.
+                if (peer != announcer && peer.getBestHeight() <= chainHeight)
+                    continue;
+                best = peer;
+                bestFree = free;
+            }
+            if (best == null)
+                break;
+            unrequested.remove(position);
+            requests.put(position, new Request(best, nowMsec));
+            peers.get(best).requestStarted(nowMsec);
+            List<Sha256Hash> list = toRequest.get(best);
+            if (list == null) {
+                list = new ArrayList<Sha256Hash>();
+                toRequest.put(best, list);
+            }
+            list.add(hashes.get(position));
+        }
+        return toRequest;
+    }
+
+    @GuardedBy("lock")
+    private void logProgress() {
+        if (!log.isInfoEnabled())
+            return;
+        long nowMsec = Utils.currentTimeMillis();
+        log.info("Downloaded {} blocks in {} msec", hashes.size(), nowMsec - downloadStartedMsec);
+        for (Map.Entry<Peer, PeerStats> entry : peers.entrySet()) {
+            if (entry.getValue().blocksReceived > 0)
+                log.info("{}: {}", entry.getKey(), entry.getValue().snapshot(nowMsec));
+        }
+    }
+
+    /** Returns how many blocks each connected peer has sent so far and how fast. */
+    public Map<Peer, PeerStats> getPeerStats() {
+        long nowMsec = Utils.currentTimeMillis();
+        lock.lock();
+        try {
+            Map<Peer, PeerStats> stats = new LinkedHashMap<Peer, PeerStats>();
+            for (Map.Entry<Peer, PeerStats> entry : peers.entrySet())
+                stats.put(entry.getKey(), entry.getValue().snapshot(nowMsec));
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks which have been requested but not yet received. */
+    public int getBlocksInFlight() {
+        lock.lock();
+        try {
+            return requests.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks queued to download which haven't been added to the chain yet. */
+    public int getBlocksPending() {
+        lock.lock();
+        try {
+            return hashes.size() - nextToAdd;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks requested from each peer at a time. */
+    public int getMaxBlocksInFlightPerPeer() {
+        lock.lock();
+        try {
+            return maxBlocksInFlightPerPeer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the number of blocks requested from each peer at a time, which defaults to
+     * {@link #DEFAULT_MAX_BLOCKS_IN_FLIGHT_PER_PEER}. Larger windows hide more of the round trip time to each peer,
+     * at the cost of more blocks to re-request if one stalls.
+     */
+    public void setMaxBlocksInFlightPerPeer(int maxBlocksInFlightPerPeer) {
+        checkArgument(maxBlocksInFlightPerPeer > 0);
+        lock.lock();
+        try {
+            this.maxBlocksInFlightPerPeer = maxBlocksInFlightPerPeer;
+        } finally {
+            lock.unlock();
+        }
+        executor.execute(processTask);
+    }
+
+    /** Returns how long a request can go unanswered before it is given to another peer. */
+    public long getStallTimeoutMsec() {
+        lock.lock();
+        try {
+            return stallTimeoutMsec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how long a request can go unanswered before it is given to another peer, which defaults to
+     * {@link #DEFAULT_STALL_TIMEOUT_MSEC}. Stalls are only checked for every few seconds, so they can take a little
+     * longer than this to be noticed.
+     */
+    public void setStallTimeoutMsec(long stallTimeoutMsec) {
+        checkArgument(stallTimeoutMsec > 0);
+        lock.lock();
+        try {
+            this.stallTimeoutMsec = stallTimeoutMsec;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
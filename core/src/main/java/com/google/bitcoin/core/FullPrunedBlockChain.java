@@ -22,14 +22,12 @@ import com.google.bitcoin.store.FullPrunedBlockStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.concurrent.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -39,16 +37,38 @@ import static com.google.common.base.Preconditions.checkState;
  * is deleted to ensure disk space usage doesn't grow forever. For this reason a pruning node cannot serve the full
  * block chain to other clients, but it nevertheless provides the same security guarantees as a regular Satoshi
  * client does.</p>
+ *
+ * <p>When catching up with the chain, several blocks can be kept in flight at once, see
+ * {@link #setMaxBlocksInFlight(int)}.</p>
  */
-public class FullPrunedBlockChain extends AbstractBlockChain {    
+public class FullPrunedBlockChain extends AbstractBlockChain {
     private static final Logger log = LoggerFactory.getLogger(FullPrunedBlockChain.class);
-    
+
     /** Keeps a map of block hashes to StoredBlocks. */
     protected final FullPrunedBlockStore blockStore;
 
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
 
+    // Blocks connected before their scripts were checked, oldest first, see setMaxBlocksInFlight(). Their changes to
+    // the store share one batch, which is committed once all of their scripts have been checked.
+    private final List<BlockInFlight> blocksInFlight = new ArrayList<BlockInFlight>();
+    private int maxBlocksInFlight = 0;
+    // Set by add() while connecting a block that may join blocksInFlight.
+    private boolean pipelining;
+    // The chain head as of the last commit, which the chain goes back to if a block in flight fails.
+    private StoredBlock committedChainHead;
+
+    private static class BlockInFlight {
+        final Block block;
+        final ScriptVerificationScheduler.Batch scriptChecks;
+
+        BlockInFlight(Block block, ScriptVerificationScheduler.Batch scriptChecks) {
+            this.block = block;
+            this.scriptChecks = scriptChecks;
+        }
+    }
+
     /**
      * Constructs a BlockChain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
      * one from scratch, or you can deserialize a saved wallet from disk using {@link Wallet#loadFromFile(java.io.File)}
@@ -76,6 +96,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.blockStore = blockStore;
         // Ignore upgrading for now
         this.chainHead = blockStore.getVerifiedChainHead();
+        this.committedChainHead = chainHead;
     }
 
     @Override
@@ -85,7 +106,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         blockStore.put(newBlock, new StoredUndoableBlock(newBlock.getHeader().getHash(), txOutChanges));
         return newBlock;
     }
-    
+
     @Override
     protected StoredBlock addToBlockStore(StoredBlock storedPrev, Block block)
             throws BlockStoreException, VerificationException {
@@ -109,163 +130,120 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     public void setRunScripts(boolean value) {
         this.runScripts = value;
     }
-    
-    //TODO: Remove lots of duplicated code in the two connectTransactions
-    
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-    /** A job submitted to the executor which verifies signatures. */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final boolean enforcePayToScriptHash;
-
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final boolean enforcePayToScriptHash) {
-            this.tx = tx; this.prevOutScripts = prevOutScripts; this.enforcePayToScriptHash = enforcePayToScriptHash;
+
+    /**
+     * <p>Sets how many consecutive blocks may be connected before the scripts of the first of them have been checked.
+     * Looking up the outputs spent by each block then overlaps with checking the signatures of the ones before it, and
+     * their changes are committed to the store together. Zero, the default, connects each block completely before
+     * {@link #add(Block)} returns.</p>
+     *
+     * <p>This is meant for importing blocks and catching up with the chain, and only applies to blocks which extend
+     * the chain head while there are no listeners or orphan blocks. A block in flight that fails its script checks is
+     * reported by the call to add() or {@link #flushBlocksInFlight()} that finds out about it, by which time the chain
+     * head may have moved past it: the chain goes back to the block before the failed one, dropping it and any blocks
+     * added after it. Call flushBlocksInFlight() once the last block has been added.</p>
+     */
+    public void setMaxBlocksInFlight(int maxBlocksInFlight) {
+        checkArgument(maxBlocksInFlight >= 0);
+        lock.lock();
+        try {
+            this.maxBlocksInFlight = maxBlocksInFlight;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        @Nullable
-        @Override
-        public VerificationException call() throws Exception {
-            try{
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), enforcePayToScriptHash);
+    /** Returns the number of blocks connected whose scripts may not have been checked yet. */
+    public int getBlocksInFlight() {
+        lock.lock();
+        try {
+            return blocksInFlight.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the script checks of the blocks in flight, see {@link #setMaxBlocksInFlight(int)}, and commits them
+     * to the store. If one of them failed, the chain goes back to the block before it and the failure is thrown.
+     */
+    public void flushBlocksInFlight() throws VerificationException, BlockStoreException {
+        lock.lock();
+        try {
+            for (int i = 0; i < blocksInFlight.size(); i++) {
+                BlockInFlight inFlight = blocksInFlight.get(i);
+                try {
+                    inFlight.scriptChecks.await();
+                } catch (VerificationException e) {
+                    rollBackBlocksInFlight(i);
+                    throw new VerificationException("Block " + inFlight.block.getHashAsString() +
+                            " failed script verification", e);
                 }
-            } catch (VerificationException e) {
-                return e;
             }
-            return null;
+            if (!blocksInFlight.isEmpty()) {
+                blocksInFlight.clear();
+                blockStore.commitDatabaseBatchWrite();
+                committedChainHead = chainHead;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean add(Block block) throws VerificationException, PrunedException {
+        lock.lock();
+        try {
+            // Listeners mustn't hear about blocks that may yet be rolled back, and anything but extending the chain
+            // head may need to disconnect blocks, which can't be done before their changes are committed.
+            boolean extendsChainHead = block.getPrevBlockHash().equals(chainHead.getHeader().getHash());
+            pipelining = maxBlocksInFlight > 0 && extendsChainHead && !hasListeners() && !hasOrphanBlocks();
+            if (!pipelining || blocksInFlight.size() >= maxBlocksInFlight)
+                flushBlocksInFlight();
+            return super.add(block);
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pipelining = false;
+            lock.unlock();
         }
     }
-    
+
+    // Shared by every chain, as its threads are never stopped.
+    private static final ScriptVerificationScheduler scriptVerificationScheduler =
+            new ScriptVerificationScheduler(Runtime.getRuntime().availableProcessors());
+
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
+        checkState(pipelining || blocksInFlight.isEmpty());
         if (block.transactions == null)
             throw new RuntimeException("connectTransactions called with Block that didn't have transactions!");
         if (!params.passesCheckpoint(height, block.getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + height);
 
-        blockStore.beginDatabaseBatchWrite();
-
-        LinkedList<StoredTransactionOutput> txOutsSpent = new LinkedList<StoredTransactionOutput>();
-        LinkedList<StoredTransactionOutput> txOutsCreated = new LinkedList<StoredTransactionOutput>();  
-        long sigOps = 0;
-        final boolean enforcePayToScriptHash = block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
-        
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        // Blocks in flight share the batch of the first of them.
+        if (blocksInFlight.isEmpty())
+            blockStore.beginDatabaseBatchWrite();
+        TransactionOutputChanges txOutChanges;
+        ScriptVerificationScheduler.Batch scriptChecks = scriptVerificationScheduler.newBatch();
         try {
-            if (!params.isCheckpoint(height)) {
-                // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
-                // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
-                // BIP30 document for more details on this: https://en.bitcoin.it/wiki/BIP_0030
-                for (Transaction tx : block.transactions) {
-                    Sha256Hash hash = tx.getHash();
-                    // If we already have unspent outputs for this hash, we saw the tx already. Either the block is
-                    // being added twice (bug) or the block is a BIP30 violator.
-                    if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
-                        throw new VerificationException("Block failed BIP30 test!");
-                    if (enforcePayToScriptHash) // We already check non-BIP16 sigops in Block.verifyTransactions(true)
-                        sigOps += tx.getSigOpCount();
-                }
-            }
-            BigInteger totalFees = BigInteger.ZERO;
-            BigInteger coinbaseValue = null;
-            for (final Transaction tx : block.transactions) {
-                boolean isCoinBase = tx.isCoinBase();
-                BigInteger valueIn = BigInteger.ZERO;
-                BigInteger valueOut = BigInteger.ZERO;
-                final List<Script> prevOutScripts = new LinkedList<Script>();
-                if (!isCoinBase) {
-                    // For each input of the transaction remove the corresponding output from the set of unspent
-                    // outputs.
-                    for (int index = 0; index < tx.getInputs().size(); index++) {
-                        TransactionInput in = tx.getInputs().get(index);
-                        StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                          in.getOutpoint().getIndex());
-                        if (prevOut == null)
-                            throw new VerificationException("Attempted to spend a non-existent or already spent output!");
-                        // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
-                        // chains. The assumption is there will ~never be re-orgs deeper than the spendable coinbase
-                        // chain depth.
-                        if (height - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
-                            throw new VerificationException("Tried to spend coinbase at depth " + (height - prevOut.getHeight()));
-                        // TODO: Check we're not spending the genesis transaction here. Satoshis code won't allow it.
-                        valueIn = valueIn.add(prevOut.getValue());
-                        if (enforcePayToScriptHash) {
-                            if (new Script(prevOut.getScriptBytes()).isPayToScriptHash())
-                                sigOps += Script.getP2SHSigOpCount(in.getScriptBytes());
-                            if (sigOps > Block.MAX_BLOCK_SIGOPS)
-                                throw new VerificationException("Too many P2SH SigOps in block");
-                        }
-                        
-                        prevOutScripts.add(new Script(prevOut.getScriptBytes()));
-                        
-                        //in.getScriptSig().correctlySpends(tx, index, new Script(params, prevOut.getScriptBytes(), 0, prevOut.getScriptBytes().length));
-                        
-                        blockStore.removeUnspentTransactionOutput(prevOut);
-                        txOutsSpent.add(prevOut);
-                    }
-                }
-                Sha256Hash hash = tx.getHash();
-                for (TransactionOutput out : tx.getOutputs()) {
-                    valueOut = valueOut.add(out.getValue());
-                    // For each output, add it to the set of unspent outputs so it can be consumed in future.
-                    StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
-                            height, isCoinBase, out.getScriptBytes());
-                    blockStore.addUnspentTransactionOutput(newOut);
-                    txOutsCreated.add(newOut);
-                }
-                // All values were already checked for being non-negative (as it is verified in Transaction.verify())
-                // but we check again here just for defence in depth. Transactions with zero output value are OK.
-                if (valueOut.compareTo(BigInteger.ZERO) < 0 || valueOut.compareTo(params.MAX_MONEY) > 0)
-                    throw new VerificationException("Transaction output value out of rage");
-                if (isCoinBase) {
-                    coinbaseValue = valueOut;
-                } else {
-                    if (valueIn.compareTo(valueOut) < 0 || valueIn.compareTo(params.MAX_MONEY) > 0)
-                        throw new VerificationException("Transaction input value out of range");
-                    totalFees = totalFees.add(valueIn.subtract(valueOut));
-                }
-                
-                if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
-                }
-            }
-            if (totalFees.compareTo(params.MAX_MONEY) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
-                throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            txOutChanges = connectTransactions(height, block, block.transactions, runScripts, scriptChecks);
+            if (!pipelining)
+                scriptChecks.await();
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            scriptChecks.cancel();
+            abortBatch();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            scriptChecks.cancel();
+            abortBatch();
             throw e;
         }
-        return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
+        if (pipelining)
+            blocksInFlight.add(new BlockInFlight(block, scriptChecks));
+        return txOutChanges;
     }
 
     @Override
@@ -275,9 +253,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     protected synchronized TransactionOutputChanges connectTransactions(StoredBlock newBlock)
             throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
+        checkState(blocksInFlight.isEmpty());
         if (!params.passesCheckpoint(newBlock.getHeight(), newBlock.getHeader().getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + newBlock.getHeight());
-        
+
         blockStore.beginDatabaseBatchWrite();
         StoredUndoableBlock block = blockStore.getUndoBlock(newBlock.getHeader().getHash());
         if (block == null) {
@@ -286,100 +265,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerificationScheduler.Batch scriptChecks = scriptVerificationScheduler.newBatch();
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
-                LinkedList<StoredTransactionOutput> txOutsSpent = new LinkedList<StoredTransactionOutput>();
-                LinkedList<StoredTransactionOutput> txOutsCreated = new LinkedList<StoredTransactionOutput>();
-                long sigOps = 0;
-                final boolean enforcePayToScriptHash = newBlock.getHeader().getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
-                if (!params.isCheckpoint(newBlock.getHeight())) {
-                    for(Transaction tx : transactions) {
-                        Sha256Hash hash = tx.getHash();
-                        if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
-                            throw new VerificationException("Block failed BIP30 test!");
-                    }
-                }
-                BigInteger totalFees = BigInteger.ZERO;
-                BigInteger coinbaseValue = null;
-                
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
-                for(final Transaction tx : transactions) {
-                    boolean isCoinBase = tx.isCoinBase();
-                    BigInteger valueIn = BigInteger.ZERO;
-                    BigInteger valueOut = BigInteger.ZERO;
-                    final List<Script> prevOutScripts = new LinkedList<Script>();
-                    if (!isCoinBase) {
-                        for (int index = 0; index < tx.getInputs().size(); index++) {
-                            final TransactionInput in = tx.getInputs().get(index);
-                            final StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                                    in.getOutpoint().getIndex());
-                            if (prevOut == null)
-                                throw new VerificationException("Attempted spend of a non-existent or already spent output!");
-                            if (newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
-                                throw new VerificationException("Tried to spend coinbase at depth " + (newBlock.getHeight() - prevOut.getHeight()));
-                            valueIn = valueIn.add(prevOut.getValue());
-                            if (enforcePayToScriptHash) {
-                                Script script = new Script(prevOut.getScriptBytes());
-                                if (script.isPayToScriptHash())
-                                    sigOps += Script.getP2SHSigOpCount(in.getScriptBytes());
-                                if (sigOps > Block.MAX_BLOCK_SIGOPS)
-                                    throw new VerificationException("Too many P2SH SigOps in block");
-                            }
-                            
-                            prevOutScripts.add(new Script(prevOut.getScriptBytes()));
-                            
-                            blockStore.removeUnspentTransactionOutput(prevOut);
-                            txOutsSpent.add(prevOut);
-                        }
-                    }
-                    Sha256Hash hash = tx.getHash();
-                    for (TransactionOutput out : tx.getOutputs()) {
-                        valueOut = valueOut.add(out.getValue());
-                        StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
-                                                                                     newBlock.getHeight(), isCoinBase,
-                                                                                     out.getScriptBytes());
-                        blockStore.addUnspentTransactionOutput(newOut);
-                        txOutsCreated.add(newOut);
-                    }
-                    // All values were already checked for being non-negative (as it is verified in Transaction.verify())
-                    // but we check again here just for defence in depth. Transactions with zero output value are OK.
-                    if (valueOut.compareTo(BigInteger.ZERO) < 0 || valueOut.compareTo(params.MAX_MONEY) > 0)
-                        throw new VerificationException("Transaction output value out of rage");
-                    if (isCoinBase) {
-                        coinbaseValue = valueOut;
-                    } else {
-                        if (valueIn.compareTo(valueOut) < 0 || valueIn.compareTo(params.MAX_MONEY) > 0)
-                            throw new VerificationException("Transaction input value out of range");
-                        totalFees = totalFees.add(valueIn.subtract(valueOut));
-                    }
-                    
-                    if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
-                    }
-                }
-                if (totalFees.compareTo(params.MAX_MONEY) > 0 ||
-                        newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
-                    throw new VerificationException("Transaction fees out of range");
-                txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                txOutChanges = connectTransactions(newBlock.getHeight(), newBlock.getHeader(), transactions, true,
+                        scriptChecks);
+                scriptChecks.await();
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -394,17 +286,160 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptChecks.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptChecks.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
         return txOutChanges;
     }
-    
+
+    /**
+     * Applies the transactions of a block to the set of unspent outputs, checking everything but their scripts, which
+     * are queued in scriptChecks if verifyScripts is set. Used both for new blocks and for blocks connected again
+     * during a re-org, which is why the header and transactions are passed separately.
+     */
+    private TransactionOutputChanges connectTransactions(int height, Block header, List<Transaction> transactions,
+                                                         boolean verifyScripts,
+                                                         ScriptVerificationScheduler.Batch scriptChecks)
+            throws VerificationException, BlockStoreException {
+        LinkedList<StoredTransactionOutput> txOutsSpent = new LinkedList<StoredTransactionOutput>();
+        LinkedList<StoredTransactionOutput> txOutsCreated = new LinkedList<StoredTransactionOutput>();
+        long sigOps = 0;
+        final boolean enforcePayToScriptHash = header.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
+
+        if (!params.isCheckpoint(height)) {
+            // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
+            // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
+            // BIP30 document for more details on this: https://en.bitcoin.it/wiki/BIP_0030
+            for (Transaction tx : transactions) {
+                Sha256Hash hash = tx.getHash();
+                // If we already have unspent outputs for this hash, we saw the tx already. Either the block is
+                // being added twice (bug) or the block is a BIP30 violator.
+                if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
+                    throw new VerificationException("Block failed BIP30 test!");
+                if (enforcePayToScriptHash) // We already check non-BIP16 sigops in Block.verifyTransactions(true)
+                    sigOps += tx.getSigOpCount();
+            }
+        }
+        BigInteger totalFees = BigInteger.ZERO;
+        BigInteger coinbaseValue = null;
+        for (final Transaction tx : transactions) {
+            boolean isCoinBase = tx.isCoinBase();
+            BigInteger valueIn = BigInteger.ZERO;
+            BigInteger valueOut = BigInteger.ZERO;
+            if (!isCoinBase) {
+                // For each input of the transaction remove the corresponding output from the set of unspent
+                // outputs.
+                for (int index = 0; index < tx.getInputs().size(); index++) {
+                    TransactionInput in = tx.getInputs().get(index);
+                    StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
+                                                                                      in.getOutpoint().getIndex());
+                    if (prevOut == null)
+                        throw new VerificationException("Attempted to spend a non-existent or already spent output!");
+                    // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
+                    // chains. The assumption is there will ~never be re-orgs deeper than the spendable coinbase
+                    // chain depth.
+                    if (height - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
+                        throw new VerificationException("Tried to spend coinbase at depth " + (height - prevOut.getHeight()));
+                    // TODO: Check we're not spending the genesis transaction here. Satoshis code won't allow it.
+                    valueIn = valueIn.add(prevOut.getValue());
+                    if (enforcePayToScriptHash) {
+                        if (new Script(prevOut.getScriptBytes()).isPayToScriptHash())
+                            sigOps += Script.getP2SHSigOpCount(in.getScriptBytes());
+                        if (sigOps > Block.MAX_BLOCK_SIGOPS)
+                            throw new VerificationException("Too many P2SH SigOps in block");
+                    }
+
+                    if (verifyScripts)
+                        scriptChecks.submit(tx, index, new Script(prevOut.getScriptBytes()), enforcePayToScriptHash);
+
+                    blockStore.removeUnspentTransactionOutput(prevOut);
+                    txOutsSpent.add(prevOut);
+                }
+            }
+            Sha256Hash hash = tx.getHash();
+            for (TransactionOutput out : tx.getOutputs()) {
+                valueOut = valueOut.add(out.getValue());
+                // For each output, add it to the set of unspent outputs so it can be consumed in future.
+                StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
+                        height, isCoinBase, out.getScriptBytes());
+                blockStore.addUnspentTransactionOutput(newOut);
+                txOutsCreated.add(newOut);
+            }
+            // All values were already checked for being non-negative (as it is verified in Transaction.verify())
+            // but we check again here just for defence in depth. Transactions with zero output value are OK.
+            if (valueOut.compareTo(BigInteger.ZERO) < 0 || valueOut.compareTo(params.MAX_MONEY) > 0)
+                throw new VerificationException("Transaction output value out of rage");
+            if (isCoinBase) {
+                coinbaseValue = valueOut;
+            } else {
+                if (valueIn.compareTo(valueOut) < 0 || valueIn.compareTo(params.MAX_MONEY) > 0)
+                    throw new VerificationException("Transaction input value out of range");
+                totalFees = totalFees.add(valueIn.subtract(valueOut));
+            }
+        }
+        if (totalFees.compareTo(params.MAX_MONEY) > 0 || header.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
+            throw new VerificationException("Transaction fees out of range");
+        return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
+    }
+
+    // Throws away the changes of a block that failed to connect. If there are blocks in flight, their changes are in
+    // the same batch, so the chain goes back to the last commit and those whose scripts pass are connected again.
+    private void abortBatch() throws BlockStoreException {
+        if (blocksInFlight.isEmpty()) {
+            blockStore.abortDatabaseBatchWrite();
+            return;
+        }
+        int good = 0;
+        try {
+            for (; good < blocksInFlight.size(); good++)
+                blocksInFlight.get(good).scriptChecks.await();
+        } catch (VerificationException e) {
+            log.warn("Block {} in flight failed script verification: {}",
+                    blocksInFlight.get(good).block.getHashAsString(), e.getMessage());
+        }
+        rollBackBlocksInFlight(good);
+    }
+
+    // Aborts the batch shared by the blocks in flight, and whatever the block being connected added to it, then
+    // connects the first good ones again one at a time. Their signatures are in the SignatureCache by now, so this
+    // is mostly store work.
+    private void rollBackBlocksInFlight(int good) throws BlockStoreException {
+        List<Block> replay = new ArrayList<Block>(good);
+        for (int i = 0; i < blocksInFlight.size(); i++) {
+            if (i < good)
+                replay.add(blocksInFlight.get(i).block);
+            else
+                blocksInFlight.get(i).scriptChecks.cancel();
+        }
+        log.warn("Rolling back {} blocks in flight to {}", blocksInFlight.size(),
+                committedChainHead.getHeader().getHashAsString());
+        blocksInFlight.clear();
+        pipelining = false;
+        blockStore.abortDatabaseBatchWrite();
+        blockStore.beginDatabaseBatchWrite();
+        blockStore.setChainHead(committedChainHead);
+        setChainHead(committedChainHead);
+        try {
+            for (Block block : replay) {
+                StoredBlock storedPrev = chainHead;
+                TransactionOutputChanges txOutChanges = connectTransactions(storedPrev.getHeight() + 1, block);
+                // Stores which write headers straight through still have this one.
+                StoredBlock newBlock = blockStore.get(block.getHash());
+                if (newBlock == null)
+                    newBlock = addToBlockStore(storedPrev, block.cloneAsHeader(), txOutChanges);
+                setChainHead(newBlock);
+            }
+        } catch (VerificationException e) {
+            // Shouldn't happen, as these blocks were verified already.
+            throw new BlockStoreException(e);
+        }
+    }
+
     /**
      * This is broken for blocks that do not pass BIP30, so all BIP30-failing blocks which are allowed to fail BIP30
      * must be checkpointed.
@@ -412,6 +447,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     @Override
     protected void disconnectTransactions(StoredBlock oldBlock) throws PrunedException, BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
+        checkState(blocksInFlight.isEmpty());
         blockStore.beginDatabaseBatchWrite();
         try {
             StoredUndoableBlock undoBlock = blockStore.getUndoBlock(oldBlock.getHeader().getHash());
@@ -434,12 +470,27 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     protected void doSetChainHead(StoredBlock chainHead) throws BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
         blockStore.setVerifiedChainHead(chainHead);
-        blockStore.commitDatabaseBatchWrite();
+        // Blocks in flight are committed once their scripts have been checked, see flushBlocksInFlight().
+        if (blocksInFlight.isEmpty()) {
+            blockStore.commitDatabaseBatchWrite();
+            committedChainHead = chainHead;
+        }
     }
 
     @Override
     protected void notSettingChainHead() throws BlockStoreException {
-        blockStore.abortDatabaseBatchWrite();
+        // A block that fails to connect while others are in flight has already rolled back their batch, see
+        // abortBatch(), but one that failed after connecting is still in flight and has to be taken out of it.
+        if (blocksInFlight.isEmpty()) {
+            blockStore.abortDatabaseBatchWrite();
+            return;
+        }
+        BlockInFlight last = blocksInFlight.get(blocksInFlight.size() - 1);
+        if (!last.block.getHash().equals(chainHead.getHeader().getHash())) {
+            blocksInFlight.remove(blocksInFlight.size() - 1);
+            last.scriptChecks.cancel();
+            abortBatch();
+        }
     }
 
     @Override
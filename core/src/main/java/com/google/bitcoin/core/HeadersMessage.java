@@ -24,6 +24,10 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * A protocol message that contains a repeated series of block headers, sent in response to the "getheaders" command.
@@ -97,8 +101,51 @@ public class HeadersMessage extends Message {
         }
     }
 
-
     public List<Block> getBlockHeaders() {
         return blockHeaders;
     }
+
+    /**
+     * Calculates the proof of work hashes of the first <tt>count</tt> headers in this message, splitting them into
+     * contiguous runs that are each hashed with {@link PowHasher#hash(byte[][], byte[][])} in parallel on the given
+     * executor. The hashes are cached by each {@link Block}, so the serial verification done later when the headers
+     * are added to a chain finds them already computed. Nothing is verified here, and the headers after the first
+     * <tt>count</tt>, which the caller isn't going to verify, are left alone. If the calling thread is interrupted the
+     * remaining hashes are simply left to be calculated lazily.
+     */
+    public void calculateScryptHashes(ExecutorService executor, int count) {
+        final List<Block> headers = getBlockHeaders();
+        final int numHeaders = Math.min(count, headers.size());
+        if (numHeaders <= 0)
+            return;
+        // A few tasks per thread so one slow thread doesn't hold up the whole batch.
+        final int numTasks = Math.min(numHeaders, Runtime.getRuntime().availableProcessors() * 4);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numTasks);
+        for (int i = 0; i < numTasks; i++) {
+            final int start = (int) ((long) numHeaders * i / numTasks);
+            final int end = (int) ((long) numHeaders * (i + 1) / numTasks);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    byte[][] input = new byte[end - start][];
+                    byte[][] output = new byte[end - start][PowHasher.HASH_LENGTH];
+                    for (int j = start; j < end; j++)
+                        input[j - start] = headers.get(j).serializeHeader();
+                    PowHasher.get().hash(input, output);
+                    for (int j = start; j < end; j++)
+                        headers.get(j).setScryptHash(output[j - start]);
+                    return null;
+                }
+            });
+        }
+        try {
+            // Completion of each future makes the cached hashes visible to this thread.
+            for (Future<Void> future : executor.invokeAll(tasks))
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
 }
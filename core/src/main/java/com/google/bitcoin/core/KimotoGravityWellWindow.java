@@ -0,0 +1,212 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.HeightIndexedBlockStore;
+import hashengineering.difficulty.KimotoGravityWell.KimotoGravityWellCalculator;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.LinkedList;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Keeps the height, time and difficulty target of the most recent blocks of the best chain in a ring buffer so the
+ * Kimoto Gravity Well difficulty can be calculated without walking the block store. The window is moved forward as
+ * blocks are connected and rewound to the fork point on a re-organize.</p>
+ *
+ * <p>The calculation itself is done by {@link KimotoGravityWellCalculator}. The window holds one block more than the
+ * number of blocks KGW may examine, because the loop fetches the parent of the last block it looks at.</p>
+ *
+ * <p>Not thread safe, callers must hold the block chain lock.</p>
+ */
+class KimotoGravityWellWindow {
+    private final KimotoGravityWellCalculator calculator;
+    private final int capacity;
+
+    // Ring buffer, index head is the newest block.
+    private final Sha256Hash[] hashes;
+    private final int[] heights;
+    private final long[] times;
+    private final long[] targets;   // Compact form.
+    private int head;
+    private int size;
+    // True if the oldest block in the window has no parent in the block store, ie. the store starts at a checkpoint.
+    private boolean oldestIsFirstStored;
+
+    KimotoGravityWellWindow(BigInteger proofOfWorkLimit, long targetSpacingSeconds, long pastBlocksMin,
+                            long pastBlocksMax) {
+        checkArgument(pastBlocksMax > 0 && pastBlocksMax < Integer.MAX_VALUE);
+        this.calculator = new KimotoGravityWellCalculator(proofOfWorkLimit, targetSpacingSeconds, pastBlocksMin,
+                pastBlocksMax);
+        this.capacity = (int) pastBlocksMax + 1;
+        this.hashes = new Sha256Hash[capacity];
+        this.heights = new int[capacity];
+        this.times = new long[capacity];
+        this.targets = new long[capacity];
+    }
+
+    /** Returns true if the newest block in the window is the given block. */
+    boolean isAt(StoredBlock block) {
+        return size > 0 && hashes[head].equals(block.getHeader().getHash());
+    }
+
+    /**
+     * Moves the window so its newest block is <tt>newHead</tt>. Connecting a block on top of the window just appends
+     * it; anything else rewinds the window to the point where the new chain forks from it and appends the new blocks,
+     * or rebuilds the window from the store if the fork is older than the window.
+     */
+    void setChainHead(StoredBlock newHead, BlockStore store) throws BlockStoreException {
+        if (size == 0 || isAt(newHead))
+            return;
+        Block header = newHead.getHeader();
+        if (hashes[head].equals(header.getPrevBlockHash())) {
+            push(newHead);
+            return;
+        }
+        // Re-organize: walk back from the new head until we reach a block in the window.
+        LinkedList<StoredBlock> newBlocks = new LinkedList<StoredBlock>();
+        StoredBlock cursor = newHead;
+        int forkIndex = -1;
+        while (cursor != null) {
+            forkIndex = indexOf(cursor);
+            if (forkIndex >= 0)
+                break;
+            if (cursor.getHeight() <= heights[index(size - 1)]) {
+                // Forked before the start of the window.
+                cursor = null;
+                break;
+            }
+            newBlocks.addFirst(cursor);
+            cursor = cursor.getPrev(store);
+        }
+        if (cursor == null) {
+            clear();
+            fill(newHead, store);
+            return;
+        }
+        // Drop the blocks above the fork point and append the new ones.
+        head = index(forkIndex);
+        size -= forkIndex;
+        for (StoredBlock block : newBlocks)
+            push(block);
+        if (size < capacity && !oldestIsFirstStored && heights[index(size - 1)] > 0)
+            extendBackwards(store);
+    }
+
+    /** Empties the window and fills it by walking back from <tt>newest</tt> through the store. */
+    void fill(StoredBlock newest, BlockStore store) throws BlockStoreException {
+        clear();
+        push(newest);
+        extendBackwards(store);
+    }
+
+    void clear() {
+        size = 0;
+        head = 0;
+        oldestIsFirstStored = false;
+        for (int i = 0; i < capacity; i++)
+            hashes[i] = null;
+    }
+
+    private void extendBackwards(BlockStore store) throws BlockStoreException {
+        int oldest = index(size - 1);
+        StoredBlock cursor = store.get(hashes[oldest]);
+        // The window normally ends at the head of the store's best chain, so its blocks can be found by height.
+        HeightIndexedBlockStore heightIndex = null;
+        if (store instanceof HeightIndexedBlockStore && hashes[head].equals(store.getChainHead().getHeader().getHash()))
+            heightIndex = (HeightIndexedBlockStore) store;
+        while (size < capacity && cursor != null && cursor.getHeight() > 0) {
+            StoredBlock prev = heightIndex != null ? heightIndex.getBestChainBlock(cursor.getHeight() - 1) : null;
+            if (prev != null && prev.getHeader().getHash().equals(cursor.getHeader().getPrevBlockHash()))
+                cursor = prev;
+            else
+                cursor = cursor.getPrev(store);
+            if (cursor == null) {
+                oldestIsFirstStored = true;
+                return;
+            }
+            size++;
+            set(index(size - 1), cursor);
+        }
+    }
+
+    private void push(StoredBlock block) {
+        head = (head + 1) % capacity;
+        if (size < capacity) {
+            size++;
+        } else {
+            // The block dropped from the end had a parent: the block that is now oldest.
+            oldestIsFirstStored = false;
+        }
+        set(head, block);
+    }
+
+    private void set(int index, StoredBlock block) {
+        Block header = block.getHeader();
+        hashes[index] = header.getHash();
+        heights[index] = block.getHeight();
+        times[index] = header.getTimeSeconds();
+        targets[index] = header.getDifficultyTarget();
+    }
+
+    // Ring buffer index of the block that is age blocks older than the newest.
+    private int index(int age) {
+        return (head - age + capacity) % capacity;
+    }
+
+    // Returns the age of the given block in the window, or -1 if it isn't in the window.
+    private int indexOf(StoredBlock block) {
+        int age = heights[head] - block.getHeight();
+        if (age < 0 || age >= size)
+            return -1;
+        return hashes[index(age)].equals(block.getHeader().getHash()) ? age : -1;
+    }
+
+    /**
+     * Calculates the target required of the block following the newest block in the window. Returns null if
+     * the original algorithm would not check the difficulty at all, which happens when the store does not go back far
+     * enough. Throws {@link IllegalStateException} if the window can't answer, in which case the caller must fall
+     * back to walking the store.
+     */
+    @Nullable
+    BigInteger calculate() {
+        if (size == 0)
+            throw new IllegalStateException("Empty KGW window");
+        calculator.reset();
+        for (int age = 0; ; age++) {
+            final int index = index(age);
+            if (heights[index] <= 0)
+                break;
+            int result = calculator.addBlock(targets[index], times[index]);
+            if (result == KimotoGravityWellCalculator.STOP)
+                break;
+            if (result == KimotoGravityWellCalculator.BAD_TARGET)
+                throw new IllegalStateException("Bad difficulty target at height " + heights[index]);
+            // The loop fetches the parent before checking whether it needs it.
+            if (age + 1 >= size) {
+                if (oldestIsFirstStored)
+                    return null;
+                throw new IllegalStateException("KGW window too short");
+            }
+        }
+        return calculator.getNewDifficulty();
+    }
+}
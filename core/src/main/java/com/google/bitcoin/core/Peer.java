@@ -117,6 +117,11 @@ public class Peer extends PeerSocketHandler {
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
+    // When set by the PeerGroup, the blocks announced in reply to our getblocks are handed to this to download from
+    // all connected peers, and blocks it asked us for are handed back to it.
+    @Nullable private volatile BlockDownloadScheduler vDownloadScheduler;
+    // Whether we sent a getblocks which hasn't been answered with an inv yet.
+    @GuardedBy("lock") private boolean awaitingBlocksInv;
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = Pong.MIN_PROTOCOL_VERSION;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
@@ -251,15 +256,21 @@ public class Peer extends PeerSocketHandler {
 
     @Override
     public void connectionClosed() {
-        for (final PeerListenerRegistration registration : eventListeners) {
-            if (registration.callOnDisconnect)
-                registration.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        registration.listener.onPeerDisconnected(Peer.this, 0);
-                    }
-                });
-        }
+        // Messages the peer sent before disconnecting may still be waiting to be processed.
+        executeAfterReceivedMessages(new Runnable() {
+            @Override
+            public void run() {
+                for (final PeerListenerRegistration registration : eventListeners) {
+                    if (registration.callOnDisconnect)
+                        registration.executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                registration.listener.onPeerDisconnected(Peer.this, 0);
+                            }
+                        });
+                }
+            }
+        });
     }
 
     @Override
@@ -469,6 +480,16 @@ public class Peer extends PeerSocketHandler {
 
         try {
             checkState(!downloadBlockBodies, toString());
+            // Lyra2REv2 is far more expensive than the rest of header verification, so hash the headers the loop below
+            // will add across all cores up front: those before the fast catchup time, up to the height the peer
+            // claims. Linking them into the chain stays serial and finds the hashes cached.
+            List<Block> headers = m.getBlockHeaders();
+            long headroom = vPeerVersionMessage.bestHeight - blockChain.getBestChainHeight();
+            int toVerify = 0;
+            while (toVerify < headers.size() && toVerify < headroom &&
+                    headers.get(toVerify).getTimeSeconds() < fastCatchupTimeSecs)
+                toVerify++;
+            m.calculateScryptHashes(Threading.WORKER_POOL, toVerify);
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
@@ -786,6 +807,9 @@ public class Peer extends PeerSocketHandler {
             log.warn("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        // Was this block requested by the download scheduler, from this or another peer?
+        BlockDownloadScheduler scheduler = vDownloadScheduler;
+        if (scheduler != null && scheduler.blockReceived(this, m)) return;
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
@@ -842,6 +866,8 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled()) {
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
         }
+        BlockDownloadScheduler scheduler = vDownloadScheduler;
+        if (scheduler != null && scheduler.blockReceived(this, m)) return;
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -922,7 +948,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block m) {
+    void invokeOnBlocksDownloaded(final Block m) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1006,9 +1032,22 @@ public class Peer extends PeerSocketHandler {
         // end to the final FilteredBlock's transactions (in the form of a pong) sent to us
         boolean pingAfterGetData = false;
 
+        // With a download scheduler, the blocks sent in reply to a getblocks are downloaded from all connected peers.
+        final BlockDownloadScheduler scheduler = vDownloadScheduler;
+        List<Sha256Hash> toSchedule = null;
+        boolean schedulerBusy = false;
+
         lock.lock();
         try {
             if (blocks.size() > 0 && downloadData && blockChain != null) {
+                if (scheduler != null) {
+                    if (awaitingBlocksInv || blocks.size() > 1) {
+                        awaitingBlocksInv = false;
+                        toSchedule = new ArrayList<Sha256Hash>(blocks.size());
+                    } else {
+                        schedulerBusy = scheduler.isDownloading();
+                    }
+                }
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
@@ -1018,6 +1057,13 @@ public class Peer extends PeerSocketHandler {
                         // full block data because we have a getheaders outstanding.
                         final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(item.hash));
                         blockChainDownloadLocked(orphanRoot.getHash());
+                    } else if (toSchedule != null) {
+                        toSchedule.add(item.hash);
+                    } else if (schedulerBusy) {
+                        // A lone block announced mid-download is most likely the head block, which the remote peer
+                        // announces once we've asked for the last block it sent. The scheduler will ask for more
+                        // blocks once those it has are all in, so there's no need to chase it.
+                        log.debug("{}: Ignoring block {} announced during scheduled download", getAddress(), item.hash);
                     } else {
                         // Don't re-request blocks we already requested. Normally this should not happen. However there is
                         // an edge case: if a block is solved and we complete the inv<->getdata<->block<->getblocks cycle
@@ -1059,6 +1105,9 @@ public class Peer extends PeerSocketHandler {
 
         if (pingAfterGetData)
             sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+
+        if (toSchedule != null && !toSchedule.isEmpty())
+            scheduler.addBlocks(this, toSchedule);
     }
 
     /**
@@ -1226,6 +1275,7 @@ public class Peer extends PeerSocketHandler {
 
         if (downloadBlockBodies) {
             GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
+            awaitingBlocksInv = true;
             sendMessage(message);
         } else {
             // Downloading headers for a while instead of full blocks.
@@ -1262,6 +1312,45 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Called by the {@link BlockDownloadScheduler} once it has added all the blocks we announced to it, to ask for
+     * the next lot. If one of them turned out to be an orphan, the download continues from its orphan root.
+     */
+    void continueBlockChainDownload(@Nullable Sha256Hash orphan) {
+        lock.lock();
+        try {
+            // If we're downloading headers instead, the download continues as those arrive.
+            if (!vDownloadData || !downloadBlockBodies)
+                return;
+            Sha256Hash toHash = Sha256Hash.ZERO_HASH;
+            if (orphan != null && blockChain.isOrphan(orphan))
+                toHash = checkNotNull(blockChain.getOrphanRoot(orphan)).getHash();
+            blockChainDownloadLocked(toHash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Asks the peer for the given blocks on behalf of the {@link BlockDownloadScheduler}, as filtered blocks if it
+     * supports Bloom filtering and we've given it a filter.
+     */
+    void requestBlocks(List<Sha256Hash> hashes) {
+        boolean filtered = vBloomFilter != null && vPeerVersionMessage.isBloomFilteringSupported();
+        GetDataMessage getdata = new GetDataMessage(params);
+        for (Sha256Hash hash : hashes)
+            getdata.addItem(new InventoryItem(filtered ? InventoryItem.Type.FilteredBlock : InventoryItem.Type.Block, hash));
+        sendMessage(getdata);
+        // As in processInv, the pong marks the end of the last filtered block's transactions.
+        if (filtered)
+            sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+    }
+
+    /** Sets the scheduler which this peer hands announced blocks to and takes block requests from, or null. */
+    void setDownloadScheduler(@Nullable BlockDownloadScheduler scheduler) {
+        this.vDownloadScheduler = scheduler;
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public SettableFuture<Long> future;
@@ -40,6 +40,7 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -106,6 +107,11 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     /** How many milliseconds to wait after receiving a pong before sending another ping. */
     public static final long DEFAULT_PING_INTERVAL_MSEC = 2000;
     private long pingIntervalMsec = DEFAULT_PING_INTERVAL_MSEC;
+    // How often the download scheduler, if there is one, is told to look for stalled block requests.
+    private static final long STALL_CHECK_INTERVAL_MSEC = 2000;
+
+    // Downloads blocks from all connected peers at once, if turned on with setMaxBlocksInFlightPerPeer.
+    @Nullable private volatile BlockDownloadScheduler vDownloadScheduler;
 
     private final NetworkParameters params;
     private final AbstractBlockChain chain;
@@ -588,6 +594,14 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     protected void startUp() throws Exception {
         // This is run in a background thread by the Service implementation.
         vPingTimer = new Timer("Peer pinging thread", true);
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                BlockDownloadScheduler scheduler = vDownloadScheduler;
+                if (scheduler != null)
+                    scheduler.checkForStalls();
+            }
+        }, STALL_CHECK_INTERVAL_MSEC, STALL_CHECK_INTERVAL_MSEC);
         channels.startAndWait();
     }
 
@@ -885,6 +899,11 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                     startBlockChainDownloadFromPeer(downloadPeer);
                 }
             }
+            BlockDownloadScheduler scheduler = vDownloadScheduler;
+            if (scheduler != null) {
+                scheduler.peerConnected(peer);
+                peer.setDownloadScheduler(scheduler);
+            }
             // Make sure the peer knows how to upload transactions that are requested from us.
             peer.addEventListener(peerListener, Threading.SAME_THREAD);
             // And set up event listeners for clients. This will allow them to find out about new transactions and blocks.
@@ -1081,6 +1100,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         for (Wallet wallet : wallets) {
             peer.removeWallet(wallet);
         }
+        BlockDownloadScheduler scheduler = vDownloadScheduler;
+        if (scheduler != null)
+            scheduler.peerDisconnected(peer);
 
         final int fNumConnectedPeers = numConnectedPeers;
         for (final ListenerRegistration<PeerEventListener> registration : peerEventListeners) {
@@ -1259,6 +1281,52 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    /**
+     * <p>Sets how many blocks can be requested from each peer at once when downloading the chain from all connected
+     * peers in parallel, see {@link BlockDownloadScheduler}. The download peer still works out which blocks we need,
+     * but the blocks themselves are then fetched from every peer with a chain longer than ours, so the download isn't
+     * limited to the speed of one peer. {@link BlockDownloadScheduler#DEFAULT_MAX_BLOCKS_IN_FLIGHT_PER_PEER} is a
+     * reasonable value.</p>
+     *
+     * <p>The default of zero downloads blocks from the download peer alone. This is best set before the chain download
+     * starts: turning it off part way through drops the blocks which were requested, and the download only carries on
+     * once the download peer announces another block.</p>
+     */
+    public void setMaxBlocksInFlightPerPeer(int maxBlocksInFlightPerPeer) {
+        checkArgument(maxBlocksInFlightPerPeer >= 0);
+        lock.lock();
+        try {
+            BlockDownloadScheduler scheduler = vDownloadScheduler;
+            if (maxBlocksInFlightPerPeer == 0) {
+                vDownloadScheduler = null;
+                if (scheduler != null)
+                    for (Peer peer : peers)
+                        peer.setDownloadScheduler(null);
+            } else if (scheduler != null) {
+                scheduler.setMaxBlocksInFlightPerPeer(maxBlocksInFlightPerPeer);
+            } else {
+                checkState(chain != null, "Blocks can't be downloaded without a block chain");
+                scheduler = new BlockDownloadScheduler(chain, maxBlocksInFlightPerPeer);
+                for (Peer peer : peers) {
+                    scheduler.peerConnected(peer);
+                    peer.setDownloadScheduler(scheduler);
+                }
+                vDownloadScheduler = scheduler;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the scheduler downloading blocks from all connected peers, which reports how fast each one is, or null
+     * if blocks are only downloaded from the download peer. See {@link #setMaxBlocksInFlightPerPeer(int)}.
+     */
+    @Nullable
+    public BlockDownloadScheduler getDownloadScheduler() {
+        return vDownloadScheduler;
+    }
+
     /**
      * If a peer is connected to that claims to speak a protocol version lower than the given version, it will
      * be disconnected and another one will be tried instead.
@@ -17,20 +17,25 @@
 package com.google.bitcoin.core;
 
 import com.google.bitcoin.net.AbstractTimeoutHandler;
+import com.google.bitcoin.net.ByteArrayPool;
+import com.google.bitcoin.net.ByteBufferPool;
 import com.google.bitcoin.net.MessageWriteTarget;
 import com.google.bitcoin.net.StreamParser;
+import com.google.bitcoin.utils.SerialExecutor;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.security.MessageDigest;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -51,13 +56,34 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
+    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes. It comes
+    // from the ByteArrayPool, as do the arrays of smaller messages, so may be longer than the message. The payload is
+    // hashed as it arrives, so that checking the checksum doesn't have to go through it all again once it is here.
     private byte[] largeReadBuffer;
     private int largeReadBufferPos;
     private BitcoinSerializer.BitcoinPacketHeader header;
+    private MessageDigest largeReadDigest;
 
     private Lock lock = Threading.lock("PeerSocketHandler");
 
+    /** The most bytes of received messages which may wait to be processed before reading from the peer is paused. */
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+    /** The most received messages which may wait to be processed before reading from the peer is paused. */
+    public static final int DEFAULT_MAX_QUEUED_MESSAGES = 1000;
+
+    // Received messages are decoded and processed here, in order, off the network thread. The network thread stops
+    // reading from the peer while more than the limits are queued, and starts again once half of it is done, so that
+    // a peer can't fill our memory or keep the pool busy while the others wait.
+    private final SerialExecutor messageExecutor = new SerialExecutor(Threading.MESSAGE_POOL);
+    private final Lock queueLock = Threading.lock("PeerSocketHandler queue");
+    @GuardedBy("queueLock") private long queuedBytes;
+    @GuardedBy("queueLock") private int queuedMessages;
+    @GuardedBy("queueLock") private boolean readingPaused;
+    @GuardedBy("queueLock") private long maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+    @GuardedBy("queueLock") private int maxQueuedMessages = DEFAULT_MAX_QUEUED_MESSAGES;
+    // Set once a message fails, after which the connection is closing and the rest of the queue is dropped.
+    private volatile boolean messageFailed;
+
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         serializer = new BitcoinSerializer(checkNotNull(params));
         this.peerAddress = new PeerAddress(remoteIp);
@@ -81,11 +107,9 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // The message goes straight into pooled direct buffers, which the write target hands back once written.
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            writeTarget.writeBytes(serializer.serialize(message, ByteBufferPool.get()));
         } catch (IOException e) {
             exceptionCaught(e);
         }
@@ -130,23 +154,31 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // This can only happen in the first iteration
                     checkState(i == 0);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
+                    int bytesToGet = Math.min(buff.remaining(), header.size - largeReadBufferPos);
                     buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
+                    largeReadDigest.update(largeReadBuffer, largeReadBufferPos, bytesToGet);
                     largeReadBufferPos += bytesToGet;
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
-                        // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                    if (largeReadBufferPos == header.size) {
+                        // ...queueing a message to be processed if one is available
+                        queueMessage(header, largeReadBuffer, largeReadDigest.digest());
                         largeReadBuffer = null;
                         header = null;
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
                 }
-                // Now try to deserialize any messages left in buff
-                Message message;
+                // Now try to find any messages left in buff. Only their headers are read here, on the network
+                // thread, and the payloads are decoded along with processing them.
+                BitcoinSerializer.BitcoinPacketHeader messageHeader;
+                byte[] payload;
                 int preSerializePosition = buff.position();
                 try {
-                    message = serializer.deserialize(buff);
+                    serializer.seekPastMagicBytes(buff);
+                    messageHeader = serializer.deserializeHeader(buff);
+                    if (buff.remaining() < messageHeader.size)
+                        throw new BufferUnderflowException();
+                    payload = ByteArrayPool.get().acquire(messageHeader.size);
+                    buff.get(payload, 0, messageHeader.size);
                 } catch (BufferUnderflowException e) {
                     // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
                     if (i == 0 && buff.limit() == buff.capacity()) {
@@ -157,9 +189,12 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                             header = serializer.deserializeHeader(buff);
                             // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
+                            largeReadBuffer = ByteArrayPool.get().acquire(header.size);
                             largeReadBufferPos = buff.remaining();
                             buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            if (largeReadDigest == null)
+                                largeReadDigest = MessageDigest.getInstance("SHA-256");
+                            largeReadDigest.update(largeReadBuffer, 0, largeReadBufferPos);
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
                             // In cases where the buff is just really small, we could create a second largeReadBuffer
@@ -174,8 +209,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     }
                     return buff.position();
                 }
-                // Process our freshly deserialized message
-                processMessage(message);
+                // Queue our freshly read message to be processed
+                queueMessage(messageHeader, payload, null);
             }
         } catch (Exception e) {
             exceptionCaught(e);
@@ -183,6 +218,103 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    // Queues a message read from the network to be decoded and processed, pausing reading if too much is queued.
+    // The payload is in a pooled array, which is released once the message has been decoded from it.
+    private void queueMessage(final BitcoinSerializer.BitcoinPacketHeader header, final byte[] payload,
+                              @Nullable final byte[] payloadDigest) {
+        queueLock.lock();
+        try {
+            queuedBytes += header.size;
+            queuedMessages++;
+            if (!readingPaused && writeTarget != null &&
+                    (queuedBytes > maxQueuedBytes || queuedMessages > maxQueuedMessages)) {
+                readingPaused = true;
+                writeTarget.pauseReading();
+            }
+        } finally {
+            queueLock.unlock();
+        }
+        messageExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Message message = null;
+                    try {
+                        if (!messageFailed)
+                            message = serializer.deserializePayload(header, payload, payloadDigest);
+                    } finally {
+                        ByteArrayPool.get().release(payload);
+                    }
+                    if (message != null)
+                        processMessage(message);
+                } catch (Exception e) {
+                    messageFailed = true;
+                    exceptionCaught(e);
+                } finally {
+                    messageProcessed(header.size);
+                }
+            }
+        });
+    }
+
+    private void messageProcessed(int size) {
+        queueLock.lock();
+        try {
+            queuedBytes -= size;
+            queuedMessages--;
+            if (readingPaused && queuedBytes <= maxQueuedBytes / 2 && queuedMessages <= maxQueuedMessages / 2) {
+                readingPaused = false;
+                writeTarget.resumeReading();
+            }
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Runs the given task once the messages received before now have been processed, on the thread which processes
+     * them, eg. so that listeners hear of a disconnection after any messages the peer sent before it.
+     */
+    protected void executeAfterReceivedMessages(Runnable task) {
+        messageExecutor.execute(task);
+    }
+
+    /**
+     * Sets how many bytes and how many messages received from the peer may wait to be processed before reading from
+     * the peer is paused, by default {@link #DEFAULT_MAX_QUEUED_BYTES} and {@link #DEFAULT_MAX_QUEUED_MESSAGES}.
+     * Reading carries on once no more than half of each is left.
+     */
+    public void setReceiveQueueLimits(long maxBytes, int maxMessages) {
+        checkArgument(maxBytes > 0 && maxMessages > 0);
+        queueLock.lock();
+        try {
+            maxQueuedBytes = maxBytes;
+            maxQueuedMessages = maxMessages;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /** Returns the number of bytes of received messages waiting to be processed. */
+    public long getQueuedBytes() {
+        queueLock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /** Returns the number of received messages waiting to be processed. */
+    public int getQueuedMessages() {
+        queueLock.lock();
+        try {
+            return queuedMessages;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link com.google.bitcoin.net.NioClient} or
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import fr.cryptohash.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Computes the Lyra2REv2 proof of work hash used by Vertcoin block headers: BLAKE-256, Keccak-256, CubeHash-256,
+ * Lyra2, Skein-256, CubeHash-256 and finally BMW-256, each fed the output of the previous step.</p>
+ *
+ * <p>A PowHasher holds one instance of every digest engine plus its intermediate buffers and reuses them for every
+ * call, so hashing into a caller supplied buffer allocates nothing. The Lyra2 step uses the calling thread's
+ * {@link Lyra2Engine#forLyra2REv2()} engine. Instances are not thread safe: use {@link #get()} to obtain the one
+ * belonging to the current thread.</p>
+ */
+public class PowHasher {
+    /** Length in bytes of the proof of work hash. */
+    public static final int HASH_LENGTH = 32;
+
+    private static final ThreadLocal<PowHasher> hashers = new ThreadLocal<PowHasher>() {
+        @Override
+        protected PowHasher initialValue() {
+            return new PowHasher();
+        }
+    };
+
+    private final BLAKE256 blake256 = new BLAKE256();
+    private final Keccak256 keccak256 = new Keccak256();
+    private final CubeHash256 cubeHash256 = new CubeHash256();
+    private final Skein256 skein256 = new Skein256();
+    private final BMW256 bmw256 = new BMW256();
+
+    private final byte[] bufferA = new byte[HASH_LENGTH];
+    private final byte[] bufferB = new byte[HASH_LENGTH];
+
+    /** Returns the hasher belonging to the calling thread. */
+    public static PowHasher get() {
+        return hashers.get();
+    }
+
+    /**
+     * Hashes <tt>length</tt> bytes of <tt>input</tt> starting at <tt>offset</tt> and writes the
+     * {@link #HASH_LENGTH} byte result into <tt>out</tt> at <tt>outOffset</tt>. The result is in the byte order the
+     * digests produce it, ie. the reverse of what {@link Block#getScryptHash()} shows.
+     */
+    public void hash(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        checkArgument(out.length - outOffset >= HASH_LENGTH, "Output buffer too small");
+        // Engines reset themselves after producing a digest, but a previous call may have been interrupted half way.
+        blake256.reset();
+        blake256.update(input, offset, length);
+        blake256.digest(bufferA, 0, HASH_LENGTH);
+
+        keccak256.reset();
+        keccak256.update(bufferA, 0, HASH_LENGTH);
+        keccak256.digest(bufferB, 0, HASH_LENGTH);
+
+        cubeHash256.reset();
+        cubeHash256.update(bufferB, 0, HASH_LENGTH);
+        cubeHash256.digest(bufferA, 0, HASH_LENGTH);
+
+        Lyra2Engine.forLyra2REv2().hash(bufferB, bufferA, bufferA);
+
+        skein256.reset();
+        skein256.update(bufferB, 0, HASH_LENGTH);
+        skein256.digest(bufferA, 0, HASH_LENGTH);
+
+        cubeHash256.update(bufferA, 0, HASH_LENGTH);
+        cubeHash256.digest(bufferB, 0, HASH_LENGTH);
+
+        bmw256.reset();
+        bmw256.update(bufferB, 0, HASH_LENGTH);
+        bmw256.digest(out, outOffset, HASH_LENGTH);
+    }
+
+    /** Hashes the whole of <tt>input</tt>, returning the result in a new array. */
+    public byte[] hash(byte[] input) {
+        byte[] out = new byte[HASH_LENGTH];
+        hash(input, 0, input.length, out, 0);
+        return out;
+    }
+
+    /**
+     * Hashes every entry of <tt>headers</tt> into the corresponding entry of <tt>out</tt>, which must be at least
+     * {@link #HASH_LENGTH} bytes long.
+     */
+    public void hash(byte[][] headers, byte[][] out) {
+        checkArgument(headers.length == out.length, "Mismatched header and output counts");
+        for (int i = 0; i < headers.length; i++)
+            hash(headers[i], 0, headers[i].length, out[i], 0);
+    }
+}
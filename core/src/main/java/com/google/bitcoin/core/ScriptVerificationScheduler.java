@@ -0,0 +1,203 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.script.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Runs the script checks of the blocks connected by a {@link FullPrunedBlockChain} on a set of worker threads.
+ * Each input is checked on its own, so the inputs of a large transaction are spread over all the threads, and is
+ * queued as soon as the output it spends has been looked up rather than once the whole block has been. When there is
+ * more work queued than there are threads to run it, the inputs of the transactions with the most inputs go
+ * first.</p>
+ *
+ * <p>The threads live as long as the scheduler. The checks of a block are grouped in a {@link Batch}: the first one
+ * that fails cancels the rest, which the threads then drop without running, and the thread waiting for a batch runs
+ * queued checks itself rather than sitting idle.</p>
+ */
+class ScriptVerificationScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationScheduler.class);
+
+    private final PriorityBlockingQueue<Check> queue = new PriorityBlockingQueue<Check>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    ScriptVerificationScheduler(int threads) {
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        try {
+                            queue.take().run();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "Script verification thread " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /** Returns a new batch, to hold the checks of one block. */
+    Batch newBatch() {
+        return new Batch();
+    }
+
+    /** The script checks of one block. Only the thread that created a batch may submit to it or wait for it. */
+    class Batch {
+        private int pending;
+        @Nullable private VerificationException failure;
+        private boolean cancelled;
+        // Checks get a copy of their transaction to work on, see submit().
+        @Nullable private Transaction lastTx;
+        @Nullable private Transaction lastCopy;
+
+        private Batch() {}
+
+        /**
+         * Queues a check that the given input of tx correctly spends scriptPubKey. The checks of each transaction must
+         * be submitted one after the other.
+         */
+        void submit(Transaction tx, int index, Script scriptPubKey, boolean enforcePayToScriptHash)
+                throws VerificationException {
+            // Checking a script serializes its transaction, which isn't safe to do from several threads at once
+            // unless the serialized form is already cached, so the checks share a copy that was made that way.
+            if (tx != lastTx) {
+                byte[] bytes = tx.bitcoinSerialize();
+                lastTx = tx;
+                lastCopy = new Transaction(tx.getParams(), bytes, null, false, true, bytes.length);
+            }
+            Script scriptSig = lastCopy.getInputs().get(index).getScriptSig();
+            synchronized (this) {
+                if (cancelled)
+                    return;
+                pending++;
+            }
+            queue.add(new Check(this, lastCopy, index, scriptSig, scriptPubKey, enforcePayToScriptHash,
+                    tx.getInputs().size(), sequence.getAndIncrement()));
+        }
+
+        /**
+         * Waits for every check submitted to finish, running queued ones on this thread in the meantime, and throws
+         * the first failure if there was one.
+         */
+        void await() throws VerificationException {
+            lastTx = lastCopy = null;
+            while (true) {
+                synchronized (this) {
+                    if (failure != null)
+                        throw failure;
+                    if (pending == 0)
+                        return;
+                }
+                Check check = queue.poll();
+                if (check != null) {
+                    check.run();
+                    continue;
+                }
+                // Everything left of this batch is running on other threads, which notify us when they are done.
+                synchronized (this) {
+                    if (failure == null && pending > 0) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e); // Shouldn't happen
+                        }
+                    }
+                }
+            }
+        }
+
+        /** Drops the checks that haven't been run yet, for when the block fails for some other reason. */
+        synchronized void cancel() {
+            cancelled = true;
+            lastTx = lastCopy = null;
+        }
+
+        private synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        private synchronized void done(@Nullable VerificationException e) {
+            pending--;
+            if (e != null && failure == null) {
+                failure = e;
+                cancelled = true;
+            }
+            notifyAll();
+        }
+    }
+
+    private static class Check implements Runnable, Comparable<Check> {
+        final Batch batch;
+        final Transaction tx;
+        final int index;
+        final Script scriptSig;
+        final Script scriptPubKey;
+        final boolean enforcePayToScriptHash;
+        final int weight;
+        final long sequence;
+
+        Check(Batch batch, Transaction tx, int index, Script scriptSig, Script scriptPubKey,
+              boolean enforcePayToScriptHash, int weight, long sequence) {
+            this.batch = batch;
+            this.tx = tx;
+            this.index = index;
+            this.scriptSig = scriptSig;
+            this.scriptPubKey = scriptPubKey;
+            this.enforcePayToScriptHash = enforcePayToScriptHash;
+            this.weight = weight;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (batch.isCancelled()) {
+                batch.done(null);
+                return;
+            }
+            try {
+                scriptSig.correctlySpends(tx, index, scriptPubKey, enforcePayToScriptHash);
+                batch.done(null);
+            } catch (VerificationException e) {
+                batch.done(e);
+            } catch (Throwable e) {
+                // Anything else still has to count the check as done, or the batch would never finish. Errors such as
+                // a StackOverflowError fail the block too, rather than killing the thread.
+                log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                batch.done(new VerificationException(
+                        "Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", e));
+            }
+        }
+
+        @Override
+        public int compareTo(Check other) {
+            // Inputs of larger transactions first, otherwise in the order they were queued.
+            if (weight != other.weight)
+                return weight > other.weight ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
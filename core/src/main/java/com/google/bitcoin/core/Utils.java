@@ -27,6 +27,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -35,8 +37,6 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
-import fr.cryptohash.*;
-
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterruptibly;
 
@@ -46,13 +46,27 @@ import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterrup
  */
 public class Utils {
     public static final BigInteger NEGATIVE_ONE = BigInteger.valueOf(-1);
-    private static final MessageDigest digest;
-    static {
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Can't happen.
+    /** Length in bytes of a SHA-256 hash. */
+    public static final int SHA256_LENGTH = 32;
+
+    // One SHA-256 digest per thread, so hashing from several threads doesn't serialize on a shared instance.
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Can't happen.
+            }
         }
+    };
+
+    /** Returns the calling thread's SHA-256 digest, reset and ready for use. */
+    private static MessageDigest sha256() {
+        MessageDigest digest = digests.get();
+        // A previous user may have thrown half way through.
+        digest.reset();
+        return digest;
     }
 
     /** The string that prefixes all text messages signed using Bitcoin keys. */
@@ -193,39 +207,11 @@ public class Utils {
         return doubleDigest(input, 0, input.length);
     }
 
+    /**
+     * Calculates the Lyra2REv2 proof of work hash of the given bytes using the calling thread's {@link PowHasher}.
+     */
     public static byte[] scryptDigest(byte[] input) {
-	byte[] digestA;
-	byte[] digestB;
-        try {
-            //return SCrypt.scrypt(input, input, 2048, 1, 1, 32);
-
-            BLAKE256 blake256 = new BLAKE256();
-            digestA = blake256.digest(input);
-
-	    Keccak256 keccak = new Keccak256();
-	    digestB = keccak.digest(digestA);
-
-	    CubeHash256 cubehash = new CubeHash256();
-	    digestA = cubehash.digest(digestB);
-
-	    Lyra2.LYRA2(digestB, digestA, digestA, 1, 4, 4);
-
-	    Skein256 skein = new Skein256();
-	    digestA = skein.digest(digestB); 
-
-	    CubeHash256 cubehash2 = new CubeHash256();
-	    digestB = cubehash2.digest(digestA);
-
-	    BMW256 bmw = new BMW256();
-	    digestA = bmw.digest(digestB);
-
-	    //BMW256 bmw2 = new BMW256();
-
-	    return digestA;
-
-        } catch (Exception e) {
-            return null;
-        }
+        return PowHasher.get().hash(input);
     }
 
     /**
@@ -233,19 +219,51 @@ public class Utils {
      * standard procedure in Bitcoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        MessageDigest digest = sha256();
+        digest.update(input, offset, length);
+        byte[] first = digest.digest();
+        return digest.digest(first);
+    }
+
+    /**
+     * Like {@link Utils#doubleDigest(byte[], int, int)} but writes the {@link #SHA256_LENGTH} byte result into
+     * <tt>out</tt> at <tt>outOffset</tt> instead of allocating new arrays.
+     */
+    public static void doubleDigest(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        MessageDigest digest = sha256();
+        digest.update(input, offset, length);
+        finishDoubleDigest(digest, out, outOffset);
+    }
+
+    /**
+     * Like {@link Utils#doubleDigest(byte[], int, int)} but hashes the remaining bytes of each of the given buffers in
+     * turn, as if they were one array. The positions of the buffers are left as they were.
+     */
+    public static byte[] doubleDigest(ByteBuffer... buffers) {
+        MessageDigest digest = sha256();
+        for (ByteBuffer buffer : buffers)
+            digest.update(buffer.duplicate());
+        byte[] first = digest.digest();
+        return digest.digest(first);
     }
 
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
+        MessageDigest digest = sha256();
+        digest.update(input, offset, length);
+        return digest.digest();
+    }
+
+    /**
+     * Like {@link Utils#singleDigest(byte[], int, int)} but writes the {@link #SHA256_LENGTH} byte result into
+     * <tt>out</tt> at <tt>outOffset</tt>.
+     */
+    public static void singleDigest(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        MessageDigest digest = sha256();
+        digest.update(input, offset, length);
+        try {
+            digest.digest(out, outOffset, SHA256_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException(e);  // Output buffer too small.
         }
     }
 
@@ -254,12 +272,33 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
+        MessageDigest digest = sha256();
+        digest.update(input1, offset1, length1);
+        digest.update(input2, offset2, length2);
+        byte[] first = digest.digest();
+        return digest.digest(first);
+    }
+
+    /**
+     * Like {@link Utils#doubleDigestTwoBuffers(byte[], int, int, byte[], int, int)} but writes the
+     * {@link #SHA256_LENGTH} byte result into <tt>out</tt> at <tt>outOffset</tt>. This is what merkle tree nodes need.
+     */
+    public static void doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
+                                              byte[] input2, int offset2, int length2, byte[] out, int outOffset) {
+        MessageDigest digest = sha256();
+        digest.update(input1, offset1, length1);
+        digest.update(input2, offset2, length2);
+        finishDoubleDigest(digest, out, outOffset);
+    }
+
+    // Completes the first hash into out, then hashes that again in place.
+    private static void finishDoubleDigest(MessageDigest digest, byte[] out, int outOffset) {
+        try {
+            digest.digest(out, outOffset, SHA256_LENGTH);
+            digest.update(out, outOffset, SHA256_LENGTH);
+            digest.digest(out, outOffset, SHA256_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException(e);  // Output buffer too small.
         }
     }
 
@@ -351,16 +390,12 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] sha256 = sha256().digest(input);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(sha256, 0, sha256.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
     }
 
     /**
@@ -35,6 +35,7 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -131,6 +132,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     // A list of public/private EC keys owned by this user. Access it using addKey[s], hasKey[s] and findPubKeyFromHash.
     private ArrayList<ECKey> keychain;
+    // Indexes of the keychain by pubkey hash and by pubkey, so finding the key for an output doesn't need to scan the
+    // whole keychain. Rebuilt whenever keychain is replaced, see rebuildKeyIndexes.
+    private transient HashMap<ByteString, ECKey> keysByPubKeyHash;
+    private transient HashMap<ByteString, ECKey> keysByPubKey;
 
     // A list of scripts watched by this wallet.
     private Set<Script> watchedScripts;
@@ -160,6 +165,24 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private int onWalletChangedSuppressions;
     private boolean insideReorg;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
+
+    // The balances are running totals, so reading them doesn't run the coin selector over every output. Each
+    // transaction in the unspent and pending pools has a share of them, and code that changes the pool of a
+    // transaction, the spent flags of its outputs or its confidence passes it to balanceChanged(). The shares of those
+    // transactions are worked out again before the next read, see updateBalances(). They are rebuilt from the pools
+    // when balanceShares is null.
+    @Nullable private transient Map<Transaction, BalanceShare> balanceShares;
+    private transient BigInteger estimatedBalance, availableBalance, watchedBalance;
+    private transient Set<Transaction> balanceChanges;
+    // Our own pending spends with change that isn't available yet. The peers that announce them are recorded by the
+    // network code without telling the wallet, so these are looked at again on each read.
+    private transient Set<Transaction> balanceWaitingForPeers;
+
+    // The outputs from the unspent and pending pools that we can spend, including immature coinbases, in the order
+    // DefaultCoinSelector spends them. Rebuilt from the pools when null. Committing a transaction updates it in place,
+    // so a run of spends doesn't rescan the pools each time, and a new block only makes it need sorting again.
+    @Nullable private transient ArrayList<TransactionOutput> spendCandidates;
+    private transient boolean spendCandidatesSorted;
     private volatile WalletFiles vFileManager;
     // Object that is used to send transactions asynchronously when the wallet requires it.
     private volatile TransactionBroadcaster vTransactionBroadcaster;
@@ -213,7 +236,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     private void createTransientState() {
+        rebuildKeyIndexes();
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        balanceChanges = new HashSet<Transaction>();
+        balanceWaitingForPeers = new HashSet<Transaction>();
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
@@ -274,11 +300,30 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.remove(key);
+            if (!keychain.remove(key))
+                return false;
+            keysByPubKeyHash.remove(ByteString.copyFrom(key.getPubKeyHash()));
+            keysByPubKey.remove(ByteString.copyFrom(key.getPubKey()));
+            spendCandidates = null;
+            invalidateBalances();
+            return true;
         } finally {
             lock.unlock();
         }
     }
+
+    private void indexKey(ECKey key) {
+        keysByPubKeyHash.put(ByteString.copyFrom(key.getPubKeyHash()), key);
+        keysByPubKey.put(ByteString.copyFrom(key.getPubKey()), key);
+    }
+
+    /** Recreates the keychain indexes from scratch, must be called whenever keychain is replaced. */
+    private void rebuildKeyIndexes() {
+        keysByPubKeyHash = new HashMap<ByteString, ECKey>(keychain.size() * 2);
+        keysByPubKey = new HashMap<ByteString, ECKey>(keychain.size() * 2);
+        for (ECKey key : keychain)
+            indexKey(key);
+    }
     
     /**
      * Returns the number of keys in the keychain.
@@ -807,6 +852,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         // Runs in a peer thread.
         checkState(lock.isHeldByCurrentThread());
         BigInteger prevBalance = getBalance();
+        spendCandidates = null;
         Sha256Hash txHash = tx.getHash();
         boolean bestChain = blockType == BlockChain.NewBlockType.BEST_CHAIN;
         boolean sideChain = blockType == BlockChain.NewBlockType.SIDE_CHAIN;
@@ -875,6 +921,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 ignoreNextNewBlock.add(txHash);
             }
         }
+        balanceChanged(tx);
+        // In case anything read the spend candidates part way through.
+        spendCandidates = null;
 
         onWalletChangedSuppressions--;
 
@@ -941,6 +990,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             return;
         lock.lock();
         try {
+            // Depths change, so the order of the spend candidates does too.
+            spendCandidatesSorted = false;
             // Store the new block hash.
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
@@ -957,6 +1008,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 } else if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
                     tx.getConfidence().notifyWorkDone(block.getHeader());
                     confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                    // Coinbases become spendable once they are deep enough.
+                    if (tx.isCoinBase())
+                        balanceChanged(tx);
                 }
             }
 
@@ -1149,6 +1203,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        balanceChanged(tx);
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -1215,6 +1270,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);
             confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
             addWalletTransaction(Pool.PENDING, tx);
+            updateSpendCandidates(tx);
 
             try {
                 BigInteger valueSentFromMe = tx.getValueSentFromMe(this);
@@ -1309,6 +1365,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             addWalletTransaction(wtx.getPool(), wtx.getTransaction());
+            spendCandidates = null;
         } finally {
             lock.unlock();
         }
@@ -1339,6 +1396,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(txConfidenceListener);
+        balanceChanged(tx);
     }
 
     /**
@@ -1412,6 +1470,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                spendCandidates = null;
+                invalidateBalances();
                 saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -1828,12 +1888,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Calculate a list of ALL potential candidates for spending and then ask a coin selector to provide us
             // with the actual outputs that'll be used to gather the required amount of value. In this way, users
-            // can customize coin selection policies.
-            //
-            // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
-            // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
-            // Note that output.isMine(this) needs to test the keychain which is currently an array, so it's
-            // O(candidate outputs ^ keychain.size())! There's lots of low hanging fruit here.
+            // can customize coin selection policies. The candidates are held in RAM between changes to the wallet and
+            // are already in the order the default coin selector wants them.
             LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
@@ -1925,15 +1981,26 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public LinkedList<TransactionOutput> calculateAllSpendCandidates(boolean excludeImmatureCoinbases) {
         lock.lock();
         try {
+            if (spendCandidates == null) {
+                spendCandidates = new ArrayList<TransactionOutput>();
+                for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+                    for (TransactionOutput output : tx.getOutputs()) {
+                        if (!output.isAvailableForSpending()) continue;
+                        if (!output.isMine(this)) continue;
+                        spendCandidates.add(output);
+                    }
+                }
+                spendCandidatesSorted = false;
+            }
+            if (!spendCandidatesSorted) {
+                Collections.sort(spendCandidates, DefaultCoinSelector.COIN_DEPTH_ORDER);
+                spendCandidatesSorted = true;
+            }
             LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+            for (TransactionOutput output : spendCandidates) {
                 // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (!output.isAvailableForSpending()) continue;
-                    if (!output.isMine(this)) continue;
-                    candidates.add(output);
-                }
+                if (excludeImmatureCoinbases && !output.getParentTransaction().isMature()) continue;
+                candidates.add(output);
             }
             return candidates;
         } finally {
@@ -1941,6 +2008,31 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * Updates the spend candidates for a transaction we just committed to the pending pool: the outputs it spends are
+     * removed and its own outputs that we can spend are inserted in order.
+     */
+    private void updateSpendCandidates(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        if (spendCandidates == null)
+            return;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutput connected = input.getConnectedOutput();
+            if (connected != null && !connected.isAvailableForSpending())
+                spendCandidates.remove(connected);
+        }
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!output.isAvailableForSpending()) continue;
+            if (!output.isMine(this)) continue;
+            if (spendCandidatesSorted) {
+                int index = Collections.binarySearch(spendCandidates, output, DefaultCoinSelector.COIN_DEPTH_ORDER);
+                spendCandidates.add(index < 0 ? -index - 1 : index, output);
+            } else {
+                spendCandidates.add(output);
+            }
+        }
+    }
+
     /**
      * Returns all the outputs that match addresses or scripts added via {@link #addWatchedAddress(Address)} or
      * {@link #addWatchedScripts(java.util.List)}.
@@ -2004,9 +2096,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             int added = 0;
-            // TODO: Consider making keys a sorted list or hashset so membership testing is faster.
             for (final ECKey key : keys) {
-                if (keychain.contains(key)) continue;
+                if (keysByPubKey.containsKey(ByteString.copyFrom(key.getPubKey()))) continue;
 
                 // If the key has a keyCrypter that does not match the Wallet's then a KeyCrypterException is thrown.
                 // This is done because only one keyCrypter is persisted per Wallet and hence all the keys must be homogenous.
@@ -2016,8 +2107,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     }
                 }
                 keychain.add(key);
+                indexKey(key);
                 added++;
             }
+            if (added > 0) {
+                spendCandidates = null;
+                invalidateBalances();
+            }
             queueOnKeysAdded(keys);
             // Force an auto-save immediately rather than queueing one, as keys are too important to risk losing.
             saveNow();
@@ -2087,6 +2183,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 watchedScripts.add(script);
                 added++;
             }
+            if (added > 0)
+                invalidateBalances();
 
             queueOnScriptsAdded(scripts);
             saveNow();
@@ -2106,20 +2204,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKeyHash(), pubkeyHash)) return key;
-            }
-            return null;
+            return keysByPubKeyHash.get(ByteString.copyFrom(pubkeyHash));
         } finally {
             lock.unlock();
         }
     }
 
-    /** Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation. */
+    /** Returns true if the given key is in the wallet, false otherwise. */
     public boolean hasKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.contains(key);
+            return keysByPubKey.containsKey(ByteString.copyFrom(key.getPubKey()));
         } finally {
             lock.unlock();
         }
@@ -2150,10 +2245,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubKey(byte[] pubkey) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKey(), pubkey)) return key;
-            }
-            return null;
+            return keysByPubKey.get(ByteString.copyFrom(pubkey));
         } finally {
             lock.unlock();
         }
@@ -2207,10 +2299,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (balanceType == BalanceType.AVAILABLE) {
                 return getBalance(coinSelector);
             } else if (balanceType == BalanceType.ESTIMATED) {
-                LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
-                BigInteger value = BigInteger.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+                updateBalances();
+                return estimatedBalance;
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
@@ -2221,12 +2311,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     /**
      * Returns the balance that would be considered spendable by the given coin selector. Just asks it to select
-     * as many coins as possible and returns the total.
+     * as many coins as possible and returns the total. For the wallets own coin selector this is a running total,
+     * see {@link #setCoinSelector(com.google.bitcoin.wallet.CoinSelector)}.
      */
     public BigInteger getBalance(CoinSelector selector) {
         lock.lock();
         try {
             checkNotNull(selector);
+            if (selector == coinSelector && isAvailableBalanceKept()) {
+                updateBalances();
+                return availableBalance;
+            }
             LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
             CoinSelection selection = selector.select(NetworkParameters.MAX_MONEY, candidates);
             return selection.valueGathered;
@@ -2248,6 +2343,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             checkNotNull(selector);
+            if (selector == coinSelector && isAvailableBalanceKept()) {
+                updateBalances();
+                return watchedBalance;
+            }
             LinkedList<TransactionOutput> candidates = getWatchedOutputs(true);
             CoinSelection selection = selector.select(NetworkParameters.MAX_MONEY, candidates);
             return selection.valueGathered;
@@ -2256,6 +2355,116 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    // The share of the running balances held by one transaction.
+    private static class BalanceShare {
+        final BigInteger estimated, available, watched;
+        // How many peers had announced the transaction when the share was worked out.
+        final int broadcastPeers;
+
+        BalanceShare(BigInteger estimated, BigInteger available, BigInteger watched, int broadcastPeers) {
+            this.estimated = estimated;
+            this.available = available;
+            this.watched = watched;
+            this.broadcastPeers = broadcastPeers;
+        }
+    }
+
+    /**
+     * Returns true if the AVAILABLE and watched balances are kept as running totals for the wallet's coin selector.
+     * A {@link DefaultCoinSelector} decides on each transaction by itself, so what it selects from all the outputs is
+     * the sum of what it selects from the outputs of each transaction.
+     */
+    private boolean isAvailableBalanceKept() {
+        return coinSelector instanceof DefaultCoinSelector;
+    }
+
+    /** Marks the share of the balances held by the given transaction as needing to be worked out again. */
+    private void balanceChanged(Transaction tx) {
+        balanceChanges.add(tx);
+    }
+
+    /** Drops the running balances, so they are rebuilt from the pools when next read. */
+    private void invalidateBalances() {
+        balanceShares = null;
+    }
+
+    /** Brings the running balances up to date with the transactions passed to balanceChanged() since the last read. */
+    private void updateBalances() {
+        checkState(lock.isHeldByCurrentThread());
+        if (balanceShares == null) {
+            balanceShares = new HashMap<Transaction, BalanceShare>();
+            estimatedBalance = availableBalance = watchedBalance = BigInteger.ZERO;
+            balanceWaitingForPeers.clear();
+            balanceChanges.addAll(unspent.values());
+            balanceChanges.addAll(pending.values());
+        }
+        for (Transaction tx : balanceWaitingForPeers) {
+            if (tx.getConfidence().numBroadcastPeers() != balanceShares.get(tx).broadcastPeers)
+                balanceChanges.add(tx);
+        }
+        for (Transaction tx : balanceChanges) {
+            BalanceShare share = balanceShares.remove(tx);
+            if (share != null) {
+                estimatedBalance = estimatedBalance.subtract(share.estimated);
+                availableBalance = availableBalance.subtract(share.available);
+                watchedBalance = watchedBalance.subtract(share.watched);
+                balanceWaitingForPeers.remove(tx);
+            }
+            share = calculateBalanceShare(tx);
+            if (share == null)
+                continue;
+            balanceShares.put(tx, share);
+            estimatedBalance = estimatedBalance.add(share.estimated);
+            availableBalance = availableBalance.add(share.available);
+            watchedBalance = watchedBalance.add(share.watched);
+            if (share.available.compareTo(share.estimated) < 0 && pending.containsKey(tx.getHash()) &&
+                    tx.getConfidence().getSource() == TransactionConfidence.Source.SELF)
+                balanceWaitingForPeers.add(tx);
+        }
+        balanceChanges.clear();
+    }
+
+    /**
+     * Returns the share of the balances held by the given transaction, the same amounts as the balances would add up
+     * if it was the only transaction in the wallet, or null if it holds nothing we can spend or watch.
+     */
+    @Nullable
+    private BalanceShare calculateBalanceShare(Transaction tx) {
+        // Only transactions in the unspent and pending pools count. Look them up so we use the canonical object.
+        Sha256Hash hash = tx.getHash();
+        tx = unspent.get(hash);
+        if (tx == null)
+            tx = pending.get(hash);
+        if (tx == null)
+            return null;
+        LinkedList<TransactionOutput> mine = Lists.newLinkedList();
+        LinkedList<TransactionOutput> watched = Lists.newLinkedList();
+        BigInteger estimated = BigInteger.ZERO;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!output.isAvailableForSpending()) continue;
+            if (output.isMine(this)) {
+                mine.add(output);
+                estimated = estimated.add(output.getValue());
+            }
+            try {
+                if (watchedScripts.contains(output.getScriptPubKey()))
+                    watched.add(output);
+            } catch (ScriptException e) {
+                // Ignore
+            }
+        }
+        if (mine.isEmpty() && watched.isEmpty())
+            return null;
+        BigInteger available = BigInteger.ZERO;
+        BigInteger watchedValue = BigInteger.ZERO;
+        // Do not count coinbases that were mined too recently, the protocol forbids spending them.
+        if (tx.isMature() && isAvailableBalanceKept()) {
+            available = coinSelector.select(NetworkParameters.MAX_MONEY, mine).valueGathered;
+            watchedValue = coinSelector.select(NetworkParameters.MAX_MONEY, watched).valueGathered;
+        }
+        return new BalanceShare(estimated, available, watchedValue, tx.getConfidence().numBroadcastPeers());
+    }
+
     @Override
     public String toString() {
         return toString(false, true, true, null);
@@ -2384,6 +2593,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) throws VerificationException {
         lock.lock();
         try {
+            spendCandidates = null;
             // This runs on any peer thread with the block chain locked.
             //
             // The reorganize functionality of the wallet is tested in ChainSplitTest.java
@@ -2494,6 +2704,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, spent.values());
             subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, unspent.values());
             subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, dead.values());
+            // Transactions were taken out of the pools and disconnected above without going through balanceChanged().
+            invalidateBalances();
 
             // The effective last seen block is now the split point so set the lastSeenBlockHash.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
@@ -2728,6 +2940,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the encrypted one.
             keychain = encryptedKeyChain;
+            rebuildKeyIndexes();
 
             // The wallet is now encrypted.
             this.keyCrypter = keyCrypter;
@@ -2769,6 +2982,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the unencrypted one.
             keychain = decryptedKeyChain;
+            rebuildKeyIndexes();
 
             // The wallet is now unencrypted.
             keyCrypter = null;
@@ -3059,12 +3273,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * A coin selector is responsible for choosing which outputs to spend when creating transactions. The default
      * selector implements a policy of spending transactions that appeared in the best chain and pending transactions
      * that were created by this wallet, but not others. You can override the coin selector for any given send
-     * operation by changing {@link Wallet.SendRequest#coinSelector}.
+     * operation by changing {@link Wallet.SendRequest#coinSelector}. If the selector is a {@link DefaultCoinSelector},
+     * the available balance is kept as a running total, so it should only decide on each transaction by its state and
+     * the state of its outputs. Other selectors are run over every output each time the balance is read.
      */
     public void setCoinSelector(@Nonnull CoinSelector coinSelector) {
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            invalidateBalances();
         } finally {
             lock.unlock();
         }
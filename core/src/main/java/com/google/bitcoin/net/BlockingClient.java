@@ -19,8 +19,10 @@ package com.google.bitcoin.net;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
@@ -44,6 +46,9 @@ public class BlockingClient implements MessageWriteTarget {
     private final ByteBuffer dbuf;
     private final Socket socket;
     private volatile boolean vCloseRequested = false;
+    // Guards readingPaused, and is notified when reading may carry on
+    private final Object readLock = new Object();
+    @GuardedBy("readLock") private boolean readingPaused = false;
 
     /**
      * <p>Creates a new client to the given server address using the given {@link StreamParser} to decode the data.
@@ -76,6 +81,10 @@ public class BlockingClient implements MessageWriteTarget {
                     byte[] readBuff = new byte[dbuf.capacity()];
 
                     while (true) {
+                        synchronized (readLock) {
+                            while (readingPaused && !vCloseRequested)
+                                readLock.wait();
+                        }
                         // TODO Kill the message duplication here
                         checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
                         int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
@@ -120,12 +129,30 @@ public class BlockingClient implements MessageWriteTarget {
         // Closes the channel, triggering an exception in the network-handling thread triggering connectionClosed()
         try {
             vCloseRequested = true;
+            synchronized (readLock) {
+                readLock.notifyAll();
+            }
             socket.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
+    public void pauseReading() {
+        synchronized (readLock) {
+            readingPaused = true;
+        }
+    }
+
+    @Override
+    public void resumeReading() {
+        synchronized (readLock) {
+            readingPaused = false;
+            readLock.notifyAll();
+        }
+    }
+
     @Override
     public synchronized void writeBytes(byte[] message) throws IOException {
         try {
@@ -136,4 +163,26 @@ public class BlockingClient implements MessageWriteTarget {
             throw e;
         }
     }
+
+    @Override
+    public synchronized void writeBytes(ByteBuffer[] buffers) throws IOException {
+        // Sockets from a SocketFactory may have no channel, so the buffers are copied out through a stream.
+        try {
+            OutputStream out = socket.getOutputStream();
+            byte[] bytes = new byte[BUFFER_SIZE_UPPER_BOUND];
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    int n = Math.min(bytes.length, buffer.remaining());
+                    buffer.get(bytes, 0, n);
+                    out.write(bytes, 0, n);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw e;
+        } finally {
+            ByteBufferPool.get().release(buffers);
+        }
+    }
 }
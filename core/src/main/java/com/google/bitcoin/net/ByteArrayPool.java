@@ -0,0 +1,138 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A pool of byte arrays in size classes, each a power of two from {@link #MIN_ARRAY_SIZE} up to a maximum. Received
+ * messages are read into arrays leased from it, so that downloading blocks doesn't allocate a new array the size of
+ * every block and leave it to the garbage collector.</p>
+ *
+ * <p>{@link #acquire(int)} returns an array of at least the size asked for, which is usually bigger, so whoever reads
+ * it must keep track of how much of it is in use. Arrays are handed back with {@link #release(byte[])} once nothing
+ * refers to them any more. Up to maxPooledBytes of free arrays are kept for reuse, and arrays bigger than the largest
+ * size class aren't pooled at all.</p>
+ */
+public class ByteArrayPool {
+    /** The size of the smallest arrays. */
+    public static final int MIN_ARRAY_SIZE = 4 * 1024;
+    /** The size of the largest arrays in the default pool, which fits any block. */
+    public static final int DEFAULT_MAX_ARRAY_SIZE = 2 * 1024 * 1024;
+    /** The number of bytes of free arrays the default pool keeps. */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 32 * 1024 * 1024;
+
+    private static volatile ByteArrayPool instance =
+            new ByteArrayPool(DEFAULT_MAX_ARRAY_SIZE, DEFAULT_MAX_POOLED_BYTES);
+
+    private final int maxArraySize;
+    private final long maxPooledBytes;
+    // Free arrays of each size class, smallest first.
+    private final ConcurrentLinkedQueue<byte[]>[] free;
+    private final AtomicLong freeBytes = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * Creates a pool of arrays up to maxArraySize bytes, which is rounded up to a power of two, keeping up to
+     * maxPooledBytes of them free for reuse.
+     */
+    @SuppressWarnings("unchecked")
+    public ByteArrayPool(int maxArraySize, long maxPooledBytes) {
+        checkArgument(maxArraySize >= MIN_ARRAY_SIZE && maxArraySize <= 1 << 30);
+        checkArgument(maxPooledBytes >= 0);
+        this.maxArraySize = sizeClass(maxArraySize);
+        this.maxPooledBytes = maxPooledBytes;
+        free = new ConcurrentLinkedQueue[classIndex(this.maxArraySize) + 1];
+        for (int i = 0; i < free.length; i++)
+            free[i] = new ConcurrentLinkedQueue<byte[]>();
+    }
+
+    /** Returns the pool used for received messages. */
+    public static ByteArrayPool get() {
+        return instance;
+    }
+
+    /** Replaces the pool used for received messages, eg. with one which keeps more arrays. */
+    public static void set(ByteArrayPool pool) {
+        instance = checkNotNull(pool);
+    }
+
+    // The size of the arrays used for the given size.
+    private static int sizeClass(int size) {
+        if (size <= MIN_ARRAY_SIZE)
+            return MIN_ARRAY_SIZE;
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    private static int classIndex(int sizeClass) {
+        return Integer.numberOfTrailingZeros(sizeClass) - Integer.numberOfTrailingZeros(MIN_ARRAY_SIZE);
+    }
+
+    /**
+     * Returns an array of at least size bytes, reusing a free one if there is one. The array isn't cleared, so may hold
+     * whatever was in it before.
+     */
+    public byte[] acquire(int size) {
+        checkArgument(size >= 0);
+        if (size > maxArraySize) {
+            allocated.incrementAndGet();
+            return new byte[size];
+        }
+        int sizeClass = sizeClass(size);
+        byte[] array = free[classIndex(sizeClass)].poll();
+        if (array == null) {
+            allocated.incrementAndGet();
+            return new byte[sizeClass];
+        }
+        freeBytes.addAndGet(-sizeClass);
+        return array;
+    }
+
+    /**
+     * Hands back an array leased from {@link #acquire(int)}, which mustn't be used again by the caller. Arrays which
+     * aren't one of the pool's size classes are ignored.
+     */
+    public void release(byte[] array) {
+        int size = array.length;
+        if (size < MIN_ARRAY_SIZE || size > maxArraySize || Integer.bitCount(size) != 1)
+            return;
+        if (freeBytes.addAndGet(size) > maxPooledBytes) {
+            freeBytes.addAndGet(-size);
+            return;
+        }
+        free[classIndex(size)].offer(array);
+    }
+
+    /** Returns the size of the largest arrays the pool keeps. */
+    public int getMaxArraySize() {
+        return maxArraySize;
+    }
+
+    /** Returns the number of bytes of arrays waiting to be reused. */
+    public long getFreeBytes() {
+        return freeBytes.get();
+    }
+
+    /** Returns the number of arrays allocated because there were none free, which stops growing once warmed up. */
+    public long getAllocatedArrays() {
+        return allocated.get();
+    }
+}
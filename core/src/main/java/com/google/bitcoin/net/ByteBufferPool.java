@@ -0,0 +1,117 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A pool of direct {@link ByteBuffer}s, all of one size. Messages are serialized straight into buffers leased from
+ * it, see {@link PooledByteBufferOutputStream}, and written to the network from there. The JDK would otherwise copy
+ * each message into a temporary direct buffer to write it, and allocating direct memory for every message is slow
+ * and leaves it to the garbage collector to free.</p>
+ *
+ * <p>Buffers are leased with {@link #acquire()} and handed back with {@link #release(ByteBuffer)} once nothing refers
+ * to them any more. Up to maxPooled free buffers are kept for reuse, and any others released are left to the garbage
+ * collector.</p>
+ */
+public class ByteBufferPool {
+    /** The size of the buffers in the default pool. */
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    /** The number of free buffers the default pool keeps. */
+    public static final int DEFAULT_MAX_POOLED = 256;
+
+    private static volatile ByteBufferPool instance = new ByteBufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    // The size of free, which ConcurrentLinkedQueue can only count by walking it.
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final AtomicLong allocated = new AtomicLong();
+
+    /** Creates a pool of buffers of bufferSize bytes, keeping up to maxPooled of them free for reuse. */
+    public ByteBufferPool(int bufferSize, int maxPooled) {
+        checkArgument(bufferSize > 0);
+        checkArgument(maxPooled >= 0);
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /** Returns the pool used for outbound messages. */
+    public static ByteBufferPool get() {
+        return instance;
+    }
+
+    /** Replaces the pool used for outbound messages, eg. with one which keeps more buffers. */
+    public static void set(ByteBufferPool pool) {
+        instance = checkNotNull(pool);
+    }
+
+    /** Returns a cleared buffer of {@link #getBufferSize()} bytes, reusing a free one if there is one. */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        freeCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands back a buffer leased from {@link #acquire()}, which mustn't be used again by the caller. Buffers which
+     * didn't come from a pool like this one are ignored, so anything written with
+     * {@link MessageWriteTarget#writeBytes(ByteBuffer[])} can be released.
+     */
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.capacity() != bufferSize)
+            return;
+        if (freeCount.incrementAndGet() > maxPooled) {
+            freeCount.decrementAndGet();
+            return;
+        }
+        free.offer(buffer);
+    }
+
+    /** Releases each of the given buffers, see {@link #release(ByteBuffer)}. */
+    public void release(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers)
+            release(buffer);
+    }
+
+    /** Returns the size of the buffers in the pool. */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Returns the number of buffers waiting to be reused. */
+    public int getFreeBuffers() {
+        return freeCount.get();
+    }
+
+    /** Returns the number of buffers allocated because there were none free, which stops growing once warmed up. */
+    public long getAllocatedBuffers() {
+        return allocated.get();
+    }
+}
@@ -29,7 +29,6 @@ import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
@@ -39,7 +38,8 @@ import static com.google.common.base.Preconditions.checkState;
 
 /**
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
- * Used only by the NioClient and NioServer classes
+ * Used only by the NioClient and NioServer classes, each of which may have several threads running ConnectionHandlers,
+ * see {@link SelectorLoop}. A ConnectionHandler is only ever handled by the thread of the loop it was registered with.
  */
 class ConnectionHandler implements MessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
@@ -83,9 +83,18 @@ class ConnectionHandler implements MessageWriteTarget {
         connectedHandlers = null;
     }
 
+    public ConnectionHandler(StreamParserFactory parserFactory, SelectionKey key,
+                             Set<ConnectionHandler> connectedHandlers) throws IOException {
+        this(parserFactory, key);
+        addTo(connectedHandlers);
+    }
+
     public ConnectionHandler(StreamParser parser, SelectionKey key, Set<ConnectionHandler> connectedHandlers) {
         this(checkNotNull(parser), key);
+        addTo(connectedHandlers);
+    }
 
+    private void addTo(Set<ConnectionHandler> connectedHandlers) {
         // closeConnection() may have already happened, in which case we shouldn't add ourselves to the connectedHandlers set
         lock.lock();
         boolean alreadyClosed = false;
@@ -111,14 +120,13 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network buffer, with one gathering
+            // write for as many buffers as it will take, returning the ones written to the pool.
+            while (!bytesToWrite.isEmpty()) {
+                bytesToWriteRemaining -= channel.write(bytesToWrite.toArray(new ByteBuffer[bytesToWrite.size()]));
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().hasRemaining())
+                    ByteBufferPool.get().release(bytesToWrite.poll());
+                if (!bytesToWrite.isEmpty()) {
                     setWriteOps();
                     break;
                 }
@@ -162,6 +170,62 @@ class ConnectionHandler implements MessageWriteTarget {
         lock.unlock();
     }
 
+    @Override
+    public void writeBytes(ByteBuffer[] buffers) throws IOException {
+        lock.lock();
+        try {
+            // As writeBytes(byte[]), but the buffers are queued as they are: they are already ours, see
+            // MessageWriteTarget.
+            long length = 0;
+            for (ByteBuffer buffer : buffers)
+                length += buffer.remaining();
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT)
+                throw new IOException("Outbound buffer overflowed");
+            bytesToWrite.addAll(Arrays.asList(buffers));
+            bytesToWriteRemaining += length;
+            setWriteOps();
+        } catch (IOException e) {
+            lock.unlock();
+            ByteBufferPool.get().release(buffers);
+            log.error("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw e;
+        } catch (CancelledKeyException e) {
+            lock.unlock();
+            log.error("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw new IOException(e);
+        }
+        lock.unlock();
+    }
+
+    @Override
+    public void pauseReading() {
+        lock.lock();
+        try {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            // Don't bother waking up the selector here, since we're just removing an op, not adding
+        } catch (CancelledKeyException e) {
+            // The connection is closing anyway
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void resumeReading() {
+        lock.lock();
+        try {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            // Refresh the selector to make sure it gets the new interestOps
+            key.selector().wakeup();
+        } catch (CancelledKeyException e) {
+            // The connection is closing anyway
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     // May NOT be called with lock held
     public void closeConnection() {
@@ -179,6 +243,11 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // Nothing more will be written, so what is still queued can go back to the pool.
+            for (ByteBuffer buffer : bytesToWrite)
+                ByteBufferPool.get().release(buffer);
+            bytesToWrite.clear();
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
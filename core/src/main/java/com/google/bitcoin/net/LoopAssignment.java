@@ -0,0 +1,28 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+/**
+ * How {@link NioClientManager} and {@link NioServer} choose which of their selector loops a new connection is handled
+ * by.
+ */
+public enum LoopAssignment {
+    /** Each loop in turn. */
+    ROUND_ROBIN,
+    /** The loop with the fewest connections, counting ones that are still being opened. */
+    LEAST_LOADED
+}
@@ -17,6 +17,7 @@
 package com.google.bitcoin.net;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A target to which messages can be written/connection can be closed
@@ -26,6 +27,22 @@ public interface MessageWriteTarget {
      * Writes the given bytes to the remote server.
      */
     void writeBytes(byte[] message) throws IOException;
+    /**
+     * Writes the remaining bytes of each of the given buffers to the remote server, in order. The target takes the
+     * buffers over, whether or not this throws, and releases them to {@link ByteBufferPool#get()} once they have been
+     * written, so the caller mustn't touch them again.
+     */
+    void writeBytes(ByteBuffer[] buffers) throws IOException;
+    /**
+     * Stops reading from the remote end until {@link #resumeReading()} is called, so that a parser which can't keep up
+     * with what it is sent makes the remote end wait rather than buffering without limit. Bytes which have already been
+     * read are still passed to the parser.
+     */
+    void pauseReading();
+    /**
+     * Starts reading from the remote end again after {@link #pauseReading()}.
+     */
+    void resumeReading();
     /**
      * Closes the connection to the server, triggering the {@link StreamParser#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
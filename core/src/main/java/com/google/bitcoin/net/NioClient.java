@@ -104,4 +104,19 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBytes(ByteBuffer[] buffers) throws IOException {
+        handler.writeTarget.writeBytes(buffers);
+    }
+
+    @Override
+    public void pauseReading() {
+        handler.writeTarget.pauseReading();
+    }
+
+    @Override
+    public void resumeReading() {
+        handler.writeTarget.resumeReading();
+    }
 }
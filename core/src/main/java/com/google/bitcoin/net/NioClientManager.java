@@ -16,6 +16,7 @@
 
 package com.google.bitcoin.net;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.slf4j.LoggerFactory;
@@ -23,64 +24,65 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
-import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * single network processing thread, or spreads the connections over several threads each with its own selector.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
-
-    // SocketChannels and StreamParsers of newly-created connections which should be registered with OP_CONNECT
-    class SocketChannelAndParser {
-        SocketChannel sc; StreamParser parser;
-        SocketChannelAndParser(SocketChannel sc, StreamParser parser) { this.sc = sc; this.parser = parser; }
-    }
-    final Queue<SocketChannelAndParser> newConnectionChannels = new LinkedBlockingQueue<SocketChannelAndParser>();
-
-    // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
-    private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
+    @VisibleForTesting final SelectorLoopGroup loops;
 
     // Handle a SelectionKey which was selected
-    private void handleKey(SelectionKey key) throws IOException {
-        // We could have a !isValid() key here if the connection is already closed at this point
-        if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
-            // Create a ConnectionHandler and hook everything together
-            StreamParser parser = (StreamParser) key.attachment();
-            SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers);
-            try {
-                if (sc.finishConnect()) {
-                    log.info("Successfully connected to {}", sc.socket().getRemoteSocketAddress());
-                    key.interestOps(SelectionKey.OP_READ).attach(handler);
-                    handler.parser.connectionOpened();
-                } else {
-                    log.error("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
-                    handler.closeConnection(); // Failed to connect for some reason
+    private final SelectorLoop.KeyHandler keyHandler = new SelectorLoop.KeyHandler() {
+        @Override
+        public void handleKey(SelectorLoop loop, SelectionKey key) throws IOException {
+            // ie a client connection which has finished the initial connect process. We could have a !isValid() key
+            // here if the connection is already closed at this point, in which case finishConnect() fails below.
+            if (key.attachment() instanceof SelectorLoop.PendingChannel) {
+                SelectorLoop.PendingChannel pending = (SelectorLoop.PendingChannel) key.attachment();
+                pending.resolve();
+                // Create a ConnectionHandler and hook everything together
+                SocketChannel sc = (SocketChannel) key.channel();
+                ConnectionHandler handler = new ConnectionHandler(pending.parser, key, loop.connectedHandlers);
+                try {
+                    if (sc.finishConnect()) {
+                        log.info("Successfully connected to {}", sc.socket().getRemoteSocketAddress());
+                        key.interestOps(SelectionKey.OP_READ).attach(handler);
+                        handler.parser.connectionOpened();
+                    } else {
+                        log.error("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
+                        handler.closeConnection(); // Failed to connect for some reason
+                    }
+                } catch (Exception e) {
+                    // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
+                    // may cause this. Otherwise it may be any arbitrary kind of connection failure.
+                    // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
+                    log.error("Failed to connect with exception: {}", Throwables.getRootCause(e).getMessage());
+                    handler.closeConnection();
                 }
-            } catch (Exception e) {
-                // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
-                // may cause this. Otherwise it may be any arbitrary kind of connection failure.
-                // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
-                log.error("Failed to connect with exception: {}", Throwables.getRootCause(e).getMessage());
-                handler.closeConnection();
-            }
-        } else // Process bytes read
-            ConnectionHandler.handleKey(key);
-    }
+            } else // Process bytes read
+                ConnectionHandler.handleKey(key);
+        }
+    };
 
     /**
      * Creates a new client manager which uses Java NIO for socket management. Uses a single thread to handle all select
      * calls.
      */
     public NioClientManager() {
+        this(1, LoopAssignment.ROUND_ROBIN);
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management, with the given number of threads each
+     * handling the select calls for its share of the connections. Each new connection is given to one of them, chosen
+     * as the assignment says, and stays with it until it is closed.
+     */
+    public NioClientManager(int selectorLoops, LoopAssignment assignment) {
         try {
-            selector = SelectorProvider.provider().openSelector();
+            loops = new SelectorLoopGroup(selectorLoops, assignment);
         } catch (IOException e) {
             throw new RuntimeException(e); // Shouldn't ever happen
         }
@@ -88,60 +90,40 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void run() {
-        try {
-            while (isRunning()) {
-                SocketChannelAndParser conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn.parser);
-                    } catch (ClosedChannelException e) {
-                        log.info("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
-            }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: ", e);
-        } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing client manager selector", e);
-            }
-        }
+        loops.run("NioClientManager", keyHandler);
     }
 
     @Override
-    public void openConnection(SocketAddress serverAddress, StreamParser parser) {
+    public void openConnection(SocketAddress serverAddress, final StreamParser parser) {
         if (!isRunning())
             throw new IllegalStateException();
         // Create a new connection, give it a parser as an attachment
         try {
-            SocketChannel sc = SocketChannel.open();
+            final SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            newConnectionChannels.offer(new SocketChannelAndParser(sc, parser));
-            selector.wakeup();
+            while (true) {
+                final SelectorLoop loop = loops.next();
+                if (loop == null) {
+                    sc.close();
+                    throw new IllegalStateException("All selector loops have stopped");
+                }
+                final SelectorLoop.PendingChannel pending = loop.newPendingChannel(parser);
+                if (loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            sc.register(loop.selector, SelectionKey.OP_CONNECT, pending);
+                        } catch (ClosedChannelException e) {
+                            pending.resolve();
+                            log.info("SocketChannel was closed before it could be registered");
+                        }
+                    }
+                }))
+                    break;
+                // The loop stopped before it could take the channel, so it won't be chosen again
+                pending.resolve();
+            }
         } catch (IOException e) {
             log.error("Could not connect to " + serverAddress);
             throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
@@ -150,20 +132,25 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        loops.stop();
     }
 
     @Override
     public int getConnectedClientCount() {
-        return connectedHandlers.size();
+        return loops.getConnectedCount();
     }
 
     @Override
     public void closeConnections(int n) {
         while (n-- > 0) {
-            ConnectionHandler handler;
-            synchronized (connectedHandlers) {
-                handler = connectedHandlers.iterator().next();
+            ConnectionHandler handler = null;
+            for (SelectorLoop loop : loops.getLoops()) {
+                synchronized (loop.connectedHandlers) {
+                    if (!loop.connectedHandlers.isEmpty()) {
+                        handler = loop.connectedHandlers.iterator().next();
+                        break;
+                    }
+                }
             }
             if (handler != null)
                 handler.closeConnection(); // Removes handler from connectedHandlers before returning
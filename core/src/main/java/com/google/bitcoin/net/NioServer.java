@@ -19,16 +19,11 @@ package com.google.bitcoin.net;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
-import java.util.Iterator;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.slf4j.LoggerFactory;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Preconditions.checkState;
-
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamParser} to
  * process data.
@@ -39,20 +34,56 @@ public class NioServer extends AbstractExecutionThreadService {
     private final StreamParserFactory parserFactory;
 
     private final ServerSocketChannel sc;
+    @VisibleForTesting final SelectorLoopGroup loops;
+    // The selector of the loop which accepts connections
     @VisibleForTesting final Selector selector;
 
     // Handle a SelectionKey which was selected
-    private void handleKey(Selector selector, SelectionKey key) throws IOException {
-        if (key.isValid() && key.isAcceptable()) {
-            // Accept a new connection, give it a parser as an attachment
-            SocketChannel newChannel = sc.accept();
-            newChannel.configureBlocking(false);
-            SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
-            ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey);
+    private final SelectorLoop.KeyHandler keyHandler = new SelectorLoop.KeyHandler() {
+        @Override
+        public void handleKey(SelectorLoop loop, SelectionKey key) throws IOException {
+            if (key.isValid() && key.isAcceptable()) {
+                // Accept a new connection and hand it to a loop, which gives it a parser as an attachment
+                final SocketChannel newChannel = sc.accept();
+                newChannel.configureBlocking(false);
+                while (true) {
+                    final SelectorLoop handlerLoop = loops.next();
+                    if (handlerLoop == null) { // Shutting down
+                        newChannel.close();
+                        break;
+                    }
+                    final SelectorLoop.PendingChannel pending = handlerLoop.newPendingChannel(null);
+                    if (handlerLoop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            pending.resolve();
+                            register(handlerLoop, newChannel);
+                        }
+                    }))
+                        break;
+                    // The loop stopped before it could take the channel, so it won't be chosen again
+                    pending.resolve();
+                }
+            } else { // Got a closing channel or a channel to a client connection
+                ConnectionHandler.handleKey(key);
+            }
+        }
+    };
+
+    // Registers an accepted connection with the loop which will handle it, on that loop's thread
+    private void register(SelectorLoop loop, SocketChannel newChannel) {
+        try {
+            SelectionKey newKey = newChannel.register(loop.selector, SelectionKey.OP_READ);
+            ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey, loop.connectedHandlers);
             newKey.attach(handler);
             handler.parser.connectionOpened();
-        } else { // Got a closing channel or a channel to a client connection
-            ConnectionHandler.handleKey(key);
+        } catch (IOException e) {
+            log.error("Error opening accepted connection: {}", e.getMessage());
+            try {
+                newChannel.close();
+            } catch (IOException e1) {
+                log.error("Error closing channel", e1);
+            }
         }
     }
 
@@ -63,51 +94,33 @@ public class NioServer extends AbstractExecutionThreadService {
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress) throws IOException {
+        this(parserFactory, bindAddress, 1, LoopAssignment.ROUND_ROBIN);
+    }
+
+    /**
+     * Creates a new server as {@link #NioServer(StreamParserFactory, java.net.InetSocketAddress)} does, but which
+     * spreads the connections it accepts over the given number of threads, each handling the select calls for its
+     * share of them. Connections are accepted by the first.
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress, int selectorLoops,
+                     LoopAssignment assignment) throws IOException {
         this.parserFactory = parserFactory;
 
+        loops = new SelectorLoopGroup(selectorLoops, assignment);
+        selector = loops.first().selector;
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
         sc.socket().bind(bindAddress);
-        selector = SelectorProvider.provider().openSelector();
         sc.register(selector, SelectionKey.OP_ACCEPT);
     }
 
     @Override
     protected void run() throws Exception {
         try {
-            while (isRunning()) {
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-
-                    handleKey(selector, key);
-                }
-            }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: {}", e);
+            loops.run("NioServer", keyHandler);
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                try {
-                    key.cancel();
-                    handleKey(selector, key);
-                } catch (IOException e) {
-                    log.error("Error closing selection key", e);
-                }
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing server selector", e);
-            }
             try {
                 sc.close();
             } catch (IOException e) {
@@ -123,7 +136,12 @@ public class NioServer extends AbstractExecutionThreadService {
      */
     @Override
     public void triggerShutdown() {
-        // Wake up the selector and let the selection thread break its loop as the ExecutionService !isRunning()
-        selector.wakeup();
+        // Wake up the selectors and let the selection threads break their loops
+        loops.stop();
+    }
+
+    /** Returns the number of connections the server has open. */
+    public int getConnectedClientCount() {
+        return loops.getConnectedCount();
     }
 }
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * An OutputStream which writes into buffers leased from a {@link ByteBufferPool}, taking another each time the last
+ * one fills up, so that something of any size can be written without knowing the size up front or copying what was
+ * already written to grow. The buffers are then sent with a gathering write.
+ */
+public class PooledByteBufferOutputStream extends OutputStream {
+    private final ByteBufferPool pool;
+    private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    private ByteBuffer current;
+    private int size;
+    private boolean done;
+
+    public PooledByteBufferOutputStream(ByteBufferPool pool) {
+        this.pool = pool;
+    }
+
+    private ByteBuffer current() {
+        checkState(!done, "Stream already finished with");
+        if (current == null || !current.hasRemaining()) {
+            current = pool.acquire();
+            buffers.add(current);
+        }
+        return current;
+    }
+
+    @Override
+    public void write(int b) {
+        current().put((byte) b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            ByteBuffer buffer = current();
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    /** Returns the number of bytes written. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the buffers holding what was written, flipped ready to be read. They now belong to the caller, who
+     * should release them to the pool once they have been read.
+     */
+    public ByteBuffer[] toBuffers() {
+        checkState(!done, "Stream already finished with");
+        done = true;
+        for (ByteBuffer buffer : buffers)
+            buffer.flip();
+        return buffers.toArray(new ByteBuffer[buffers.size()]);
+    }
+
+    /** Releases the buffers back to the pool, for when what was written won't be used after all. */
+    public void release() {
+        if (done)
+            return;
+        done = true;
+        for (ByteBuffer buffer : buffers)
+            pool.release(buffer);
+    }
+}
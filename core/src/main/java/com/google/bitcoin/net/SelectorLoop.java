@@ -0,0 +1,174 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A {@link Selector} and the connections registered with it, whose network events are all handled by the one thread
+ * which runs it. {@link NioClientManager} and {@link NioServer} spread their connections over several of these, see
+ * {@link SelectorLoopGroup}, so that they use more than one core.</p>
+ *
+ * <p>Channels may only be registered with the selector by the loop's own thread, as registering blocks while it is
+ * selecting, so other threads hand the loop a task to do it with {@link #execute(Runnable)}.</p>
+ */
+class SelectorLoop {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(SelectorLoop.class);
+
+    /** Handles a selected key on the loop's thread. */
+    interface KeyHandler {
+        void handleKey(SelectorLoop loop, SelectionKey key) throws IOException;
+    }
+
+    final Selector selector;
+
+    // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
+    final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
+
+    // Channels given to this loop which have no ConnectionHandler yet, because they are still connecting or haven't
+    // been registered yet. Counted as load so that a burst of new connections isn't all given to the same loop.
+    final AtomicInteger pendingChannels = new AtomicInteger();
+
+    /**
+     * A channel counted in {@link #pendingChannels}, which stops being counted the first time {@link #resolve()} is
+     * called, however many of the connect, failure, cancel and shutdown paths it goes through. Attached to the keys of
+     * connecting client channels in place of the {@link ConnectionHandler} they get once connected.
+     */
+    final class PendingChannel {
+        @Nullable final StreamParser parser;
+        private final AtomicBoolean pending = new AtomicBoolean(true);
+
+        private PendingChannel(@Nullable StreamParser parser) {
+            this.parser = parser;
+            pendingChannels.incrementAndGet();
+        }
+
+        void resolve() {
+            if (pending.compareAndSet(true, false))
+                pendingChannels.decrementAndGet();
+        }
+    }
+
+    private final Queue<Runnable> tasks = new LinkedBlockingQueue<Runnable>();
+    private volatile boolean running = true;
+
+    SelectorLoop() throws IOException {
+        selector = SelectorProvider.provider().openSelector();
+    }
+
+    /** Counts a channel which is about to be given to the loop as pending until it is resolved. */
+    PendingChannel newPendingChannel(@Nullable StreamParser parser) {
+        return new PendingChannel(parser);
+    }
+
+    /**
+     * Runs the given task on the loop's thread before it next selects, returning false if the loop has stopped and so
+     * the task will never be run.
+     */
+    boolean execute(Runnable task) {
+        if (!running)
+            return false;
+        tasks.offer(task);
+        selector.wakeup();
+        // If the loop stopped meanwhile, its last look at the queue may or may not have found the task
+        return running || !tasks.remove(task);
+    }
+
+    /** Returns false once the loop has been stopped or has exited because of an error. */
+    boolean isRunning() {
+        return running;
+    }
+
+    /** Returns the number of connections the loop has, or is about to have. */
+    int getLoad() {
+        return connectedHandlers.size() + pendingChannels.get();
+    }
+
+    /** Makes {@link #run(KeyHandler)} return, closing all of the loop's connections. */
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /** Selects and handles network events until {@link #stop()} is called, then closes everything. */
+    void run(KeyHandler handler) {
+        try {
+            while (running) {
+                runTasks();
+
+                selector.select();
+
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    handler.handleKey(this, key);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error trying to open/read from connection: ", e);
+        } finally {
+            // Also when exiting on an exception, so that no more connections are given to the loop
+            running = false;
+            // Register anything still waiting, so that it is closed below along with everything else.
+            try {
+                runTasks();
+            } catch (Exception e) {
+                log.error("Error registering channel", e);
+            }
+            // Go through and close everything, without letting IOExceptions get in our way
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    log.error("Error closing channel", e);
+                }
+                key.cancel();
+                if (key.attachment() instanceof PendingChannel)
+                    ((PendingChannel) key.attachment()).resolve();
+                else if (key.attachment() instanceof ConnectionHandler)
+                    ConnectionHandler.handleKey(key); // Close connection if relevant
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.error("Error closing selector", e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+            task.run();
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import com.google.bitcoin.utils.Threading;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The {@link SelectorLoop}s of a {@link NioClientManager} or {@link NioServer}. The first loop is run by the service's
+ * own thread, and each of the others gets a thread of its own, so that with a single loop everything happens on one
+ * thread as it always has.
+ */
+class SelectorLoopGroup {
+    private final List<SelectorLoop> loops;
+    private final LoopAssignment assignment;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    SelectorLoopGroup(int size, LoopAssignment assignment) throws IOException {
+        checkArgument(size > 0);
+        this.assignment = checkNotNull(assignment);
+        List<SelectorLoop> loops = new ArrayList<SelectorLoop>(size);
+        for (int i = 0; i < size; i++)
+            loops.add(new SelectorLoop());
+        this.loops = Collections.unmodifiableList(loops);
+    }
+
+    /** Returns the loop run by the service thread. */
+    SelectorLoop first() {
+        return loops.get(0);
+    }
+
+    List<SelectorLoop> getLoops() {
+        return loops;
+    }
+
+    /**
+     * Chooses the loop a new connection goes to, skipping any which have stopped, or returns null if they all have.
+     */
+    @Nullable
+    SelectorLoop next() {
+        if (assignment == LoopAssignment.ROUND_ROBIN) {
+            for (int i = 0; i < loops.size(); i++) {
+                SelectorLoop loop = loops.get((nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.size());
+                if (loop.isRunning())
+                    return loop;
+            }
+            return null;
+        }
+        SelectorLoop best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (SelectorLoop loop : loops) {
+            if (!loop.isRunning())
+                continue;
+            int load = loop.getLoad();
+            if (best == null || load < bestLoad) {
+                best = loop;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    /** Runs every loop but the first on its own thread, then runs the first on this one until the group is stopped. */
+    void run(String name, final SelectorLoop.KeyHandler handler) {
+        for (int i = 1; i < loops.size(); i++) {
+            final SelectorLoop loop = loops.get(i);
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop.run(handler);
+                }
+            }, name + " selector loop " + i);
+            t.setDaemon(true);
+            t.setUncaughtExceptionHandler(Threading.uncaughtExceptionHandler);
+            t.start();
+            threads.add(t);
+        }
+        try {
+            first().run(handler);
+        } finally {
+            // The first loop can also stop because something went wrong, in which case the others go with it.
+            stop();
+            for (Thread t : threads) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    void stop() {
+        for (SelectorLoop loop : loops)
+            loop.stop();
+    }
+
+    /** Returns the number of open connections across all the loops. */
+    int getConnectedCount() {
+        int count = 0;
+        for (SelectorLoop loop : loops)
+            count += loop.connectedHandlers.size();
+        return count;
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.script;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.VarInt;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers which signatures have already been found valid, so that a transaction checked when it arrives in the
+ * memory pool or a wallet doesn't have its signatures checked again when the block containing it is connected.
+ * {@link Script} consults the cache returned by {@link #get()} before calling {@link ECKey#verify}.</p>
+ *
+ * <p>Entries are keyed on the SHA-256 of the signature hash, public key and signature, so each takes a fixed, small
+ * amount of memory, and the least recently used are evicted once the cache is full. Only successful checks are
+ * recorded: a bad signature costs a full check every time, as it would without the cache.</p>
+ */
+public class SignatureCache {
+    /** The number of signatures the default cache remembers. */
+    public static final int DEFAULT_MAX_ENTRIES = 50000;
+
+    private static volatile SignatureCache instance = new SignatureCache(DEFAULT_MAX_ENTRIES);
+
+    private final Cache<Sha256Hash, Boolean> validSignatures;
+
+    /** Creates a cache which remembers up to maxEntries valid signatures. */
+    public SignatureCache(int maxEntries) {
+        checkArgument(maxEntries >= 0);
+        validSignatures = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .recordStats()
+                .build();
+    }
+
+    /** Returns the cache used by {@link Script}. */
+    public static SignatureCache get() {
+        return instance;
+    }
+
+    /** Replaces the cache used by {@link Script}, eg. with one of a different size. */
+    public static void set(SignatureCache cache) {
+        instance = checkNotNull(cache);
+    }
+
+    /**
+     * Checks the given signature the same way as {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])}, unless it
+     * was found valid before.
+     *
+     * @param sigHash The signature hash that was signed.
+     * @param sigBytes The signature as it appears in the script, which sig was decoded from.
+     * @param sig The decoded signature.
+     * @param pubKey The public key bytes to use.
+     */
+    public boolean verify(byte[] sigHash, byte[] sigBytes, ECKey.ECDSASignature sig, byte[] pubKey) {
+        // Fake signatures are all valid, which mustn't be remembered for when they are turned off again.
+        if (ECKey.FAKE_SIGNATURES)
+            return ECKey.verify(sigHash, sig, pubKey);
+        Sha256Hash key = key(sigHash, sigBytes, pubKey);
+        if (validSignatures.getIfPresent(key) != null)
+            return true;
+        if (!ECKey.verify(sigHash, sig, pubKey))
+            return false;
+        validSignatures.put(key, Boolean.TRUE);
+        return true;
+    }
+
+    private static Sha256Hash key(byte[] sigHash, byte[] sigBytes, byte[] pubKey) {
+        // Public keys and signatures both vary in length, and pushes go up to 520 bytes, so the full length of the key
+        // is written as a VarInt to keep the boundary between them unambiguous. Otherwise the same bytes split
+        // differently could match the entry of a valid signature, as signatures are decoded leniently.
+        byte[] length = new VarInt(pubKey.length).encode();
+        byte[] bytes = new byte[sigHash.length + length.length + pubKey.length + sigBytes.length];
+        int offset = 0;
+        System.arraycopy(sigHash, 0, bytes, offset, sigHash.length);
+        offset += sigHash.length;
+        System.arraycopy(length, 0, bytes, offset, length.length);
+        offset += length.length;
+        System.arraycopy(pubKey, 0, bytes, offset, pubKey.length);
+        offset += pubKey.length;
+        System.arraycopy(sigBytes, 0, bytes, offset, sigBytes.length);
+        return Sha256Hash.create(bytes);
+    }
+
+    /** Returns the number of checks that found the signature already in the cache. */
+    public long getHits() {
+        return validSignatures.stats().hitCount();
+    }
+
+    /** Returns the number of checks that had to verify the signature. */
+    public long getMisses() {
+        return validSignatures.stats().missCount();
+    }
+
+    /** Returns the fraction of checks that found the signature already in the cache, or 1 if there were none. */
+    public double getHitRate() {
+        return validSignatures.stats().hitRate();
+    }
+
+    /** Returns the number of signatures currently remembered. */
+    public long size() {
+        return validSignatures.size();
+    }
+
+    /** Forgets every signature. The hit and miss counts are kept. */
+    public void clear() {
+        validSignatures.invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = validSignatures.stats();
+        return String.format("%d signatures cached, %d hits, %d misses, %.1f%% hit rate", validSignatures.size(),
+                stats.hitCount(), stats.missCount(), stats.hitRate() * 100);
+    }
+}
@@ -0,0 +1,349 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * <p>An append-only log of typed records in a memory mapped file, used by {@link LogFullPrunedBlockStore}.</p>
+ *
+ * <p>The file is mapped in regions of {@link #REGION_SIZE} bytes and a record never spans two regions, so a record
+ * that doesn't fit in what is left of a region starts the next one. The unused end of a region is left as zeros.
+ * Records are grouped into batches, each ended by a commit record holding the CRC32 of the records in the batch.
+ * When the log is opened it is read up to the end of the last complete batch, and anything after that is discarded,
+ * so a batch that was only partly written when the process or machine died disappears as a whole.</p>
+ *
+ * <p>Records are addressed by their position in the file. Once written they never change, so they can be read by
+ * other threads while records are being appended. Appending is not thread safe.</p>
+ */
+class BlockStoreLog {
+    private static final Logger log = LoggerFactory.getLogger(BlockStoreLog.class);
+
+    /** The size of the regions the file is mapped in, which is also the upper limit on the size of a record. */
+    static final int REGION_SIZE = 32 * 1024 * 1024;
+    static final String HEADER_MAGIC = "VLOG";
+    static final int VERSION = 1;
+
+    /** Type of the record that ends a batch. Other types are up to the user of the log, but must not be zero. */
+    static final byte COMMIT = 127;
+
+    // File format:
+    //   4 header bytes = "VLOG"
+    //   4 bytes version
+    //   4 bytes flags, bit 0 set once the log is complete and may be used
+    //   20 bytes reserved
+    //
+    // For each record, starting at HEADER_SIZE
+    //   1 byte type, zero for the unused end of a region
+    //   4 bytes length of the payload
+    //   the payload, for a commit record the CRC32 of the batch as 4 bytes
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_HEADER_SIZE = 5;
+    private static final int FLAGS_OFFSET = 8;
+    private static final int FLAG_SEALED = 1;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    // Copy on write because records may be read by other threads while a new region is added.
+    private final List<MappedByteBuffer> regions = new CopyOnWriteArrayList<MappedByteBuffer>();
+    // Where the next record goes, which is just after the last commit record when no batch is being written.
+    private long end;
+    private long committedEnd;
+    // Where the records known to be on disk end.
+    private long syncedEnd;
+    private final CRC32 crc = new CRC32();
+
+    private BlockStoreLog(File file) throws IOException {
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+    }
+
+    /** Creates a new, empty log in the given file, replacing whatever was there. */
+    static BlockStoreLog create(File file, boolean sealed) throws IOException {
+        BlockStoreLog result = new BlockStoreLog(file);
+        try {
+            result.randomAccessFile.setLength(0);
+            result.randomAccessFile.setLength(REGION_SIZE);
+            MappedByteBuffer first = result.map(0);
+            first.put(HEADER_MAGIC.getBytes("US-ASCII"));
+            first.putInt(VERSION);
+            first.putInt(sealed ? FLAG_SEALED : 0);
+            result.end = result.committedEnd = result.syncedEnd = HEADER_SIZE;
+            return result;
+        } catch (IOException e) {
+            result.randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing log, reading it to find the end of the last complete batch. Returns null if the file isn't a
+     * sealed log.
+     */
+    static BlockStoreLog open(File file) throws IOException {
+        if (file.length() < REGION_SIZE || file.length() % REGION_SIZE != 0)
+            return null;
+        BlockStoreLog result = new BlockStoreLog(file);
+        try {
+            for (long regionStart = 0; regionStart < file.length(); regionStart += REGION_SIZE)
+                result.map(regionStart);
+            MappedByteBuffer first = result.regions.get(0);
+            byte[] magic = new byte[4];
+            first.get(magic);
+            if (!new String(magic, "US-ASCII").equals(HEADER_MAGIC) || first.getInt(4) != VERSION ||
+                    (first.getInt(FLAGS_OFFSET) & FLAG_SEALED) == 0) {
+                result.randomAccessFile.close();
+                return null;
+            }
+            result.recover();
+            return result;
+        } catch (IOException e) {
+            result.randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    private MappedByteBuffer map(long regionStart) throws IOException {
+        MappedByteBuffer region = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, regionStart,
+                REGION_SIZE);
+        regions.add(region);
+        return region;
+    }
+
+    // Finds the end of the last complete batch and clears anything written after it.
+    private void recover() {
+        long position = HEADER_SIZE;
+        long lastCommitEnd = HEADER_SIZE;
+        CRC32 batchCrc = new CRC32();
+        while (true) {
+            position = align(position, 0);
+            if (position < 0)
+                break;
+            ByteBuffer region = regions.get((int) (position / REGION_SIZE));
+            int offset = (int) (position % REGION_SIZE);
+            byte type = region.get(offset);
+            if (type == 0) {
+                // Unused end of a region, or the end of the log.
+                if (offset == 0)
+                    break;
+                position = position - offset + REGION_SIZE;
+                continue;
+            }
+            if (REGION_SIZE - offset < RECORD_HEADER_SIZE)
+                break;
+            int length = region.getInt(offset + 1);
+            if (length < 0 || length > REGION_SIZE - offset - RECORD_HEADER_SIZE)
+                break;
+            if (type == COMMIT) {
+                if (length != 4 || region.getInt(offset + RECORD_HEADER_SIZE) != (int) batchCrc.getValue())
+                    break;
+                batchCrc.reset();
+                lastCommitEnd = position + RECORD_HEADER_SIZE + length;
+            } else {
+                byte[] record = new byte[RECORD_HEADER_SIZE + length];
+                ByteBuffer copy = region.duplicate();
+                copy.position(offset);
+                copy.get(record);
+                batchCrc.update(record);
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        end = committedEnd = syncedEnd = lastCommitEnd;
+        if (clear(lastCommitEnd, (long) regions.size() * REGION_SIZE))
+            log.info("Discarded incomplete batch at the end of " + file);
+    }
+
+    // Zeros the given range of the file, so nothing in it can be mistaken for a record. Returns true if it wasn't
+    // all zeros already.
+    private boolean clear(long from, long to) {
+        final byte[] chunk = new byte[64 * 1024];
+        final byte[] zeros = new byte[chunk.length];
+        boolean dirty = false;
+        for (long position = from; position < to; ) {
+            ByteBuffer region = regions.get((int) (position / REGION_SIZE)).duplicate();
+            int offset = (int) (position % REGION_SIZE);
+            int length = (int) Math.min(Math.min(chunk.length, REGION_SIZE - offset), to - position);
+            region.position(offset);
+            region.get(chunk, 0, length);
+            for (int i = 0; i < length; i++) {
+                if (chunk[i] != 0) {
+                    region.position(offset);
+                    region.put(zeros, 0, length);
+                    dirty = true;
+                    break;
+                }
+            }
+            position += length;
+        }
+        return dirty;
+    }
+
+    // Returns the position a record of the given payload length starting at or after position would be written at,
+    // or -1 if position is past the end of the file.
+    private long align(long position, int length) {
+        int offset = (int) (position % REGION_SIZE);
+        if (REGION_SIZE - offset < RECORD_HEADER_SIZE + length)
+            position = position - offset + REGION_SIZE;
+        return position / REGION_SIZE < regions.size() ? position : -1;
+    }
+
+    /** Returns the file holding the log. */
+    File getFile() {
+        return file;
+    }
+
+    /** Returns the position just after the last committed record. */
+    long getCommittedEnd() {
+        return committedEnd;
+    }
+
+    /** Returns the number of bytes the records take up, including the unused ends of regions. */
+    long getSize() {
+        return committedEnd - HEADER_SIZE;
+    }
+
+    /**
+     * Appends a record and returns its position. It only becomes durable, and visible when the log is next opened,
+     * once the batch is committed.
+     */
+    long append(byte type, byte[] payload, int length) throws IOException {
+        if (type == 0 || length < 0 || RECORD_HEADER_SIZE + length > REGION_SIZE - HEADER_SIZE)
+            throw new IllegalArgumentException("Can't append a record of type " + type + " and length " + length);
+        int offset = (int) (end % REGION_SIZE);
+        if (REGION_SIZE - offset < RECORD_HEADER_SIZE + length)
+            end = end - offset + REGION_SIZE;
+        int index = (int) (end / REGION_SIZE);
+        if (index == regions.size()) {
+            randomAccessFile.setLength((long) (index + 1) * REGION_SIZE);
+            map(end);
+        }
+        ByteBuffer region = regions.get(index).duplicate();
+        region.position((int) (end % REGION_SIZE));
+        byte[] header = new byte[RECORD_HEADER_SIZE];
+        ByteBuffer.wrap(header).put(type).putInt(length);
+        region.put(header);
+        region.put(payload, 0, length);
+        if (type != COMMIT) {
+            crc.update(header);
+            crc.update(payload, 0, length);
+        }
+        long position = end;
+        end += RECORD_HEADER_SIZE + length;
+        return position;
+    }
+
+    /** Ends the current batch. It is only sure to survive the machine crashing once {@link #sync()} is called. */
+    void commit() throws IOException {
+        byte[] crcBytes = new byte[4];
+        ByteBuffer.wrap(crcBytes).putInt((int) crc.getValue());
+        append(COMMIT, crcBytes, 4);
+        crc.reset();
+        committedEnd = end;
+    }
+
+    /** Discards the records appended since the last commit. */
+    void rollback() {
+        clear(committedEnd, end);
+        end = committedEnd;
+        crc.reset();
+    }
+
+    /** Returns the type of the record at the given position. */
+    byte getType(long position) {
+        return regions.get((int) (position / REGION_SIZE)).get((int) (position % REGION_SIZE));
+    }
+
+    /**
+     * Returns a buffer holding the payload of the record at the given position. The buffer is independent of the
+     * log, so different threads can each read their own.
+     */
+    ByteBuffer getPayload(long position) {
+        ByteBuffer region = regions.get((int) (position / REGION_SIZE));
+        int offset = (int) (position % REGION_SIZE);
+        int length = region.getInt(offset + 1);
+        ByteBuffer payload = region.duplicate();
+        payload.position(offset + RECORD_HEADER_SIZE);
+        payload.limit(offset + RECORD_HEADER_SIZE + length);
+        return payload.slice();
+    }
+
+    /** Returns the size of the record at the given position, including its header. */
+    int getRecordSize(long position) {
+        return RECORD_HEADER_SIZE + regions.get((int) (position / REGION_SIZE)).getInt((int) (position % REGION_SIZE) + 1);
+    }
+
+    /** Returns the position of the record after the one at the given position, or -1 if it is the last one. */
+    long next(long position) {
+        return first(position + getRecordSize(position));
+    }
+
+    /**
+     * Returns the position of the first committed record at or after the given position, or -1 if there is none.
+     * Commit records are included.
+     */
+    long first(long position) {
+        position = Math.max(position, HEADER_SIZE);
+        while (position < committedEnd) {
+            int offset = (int) (position % REGION_SIZE);
+            if (REGION_SIZE - offset >= RECORD_HEADER_SIZE && getType(position) != 0)
+                return position;
+            position = position - offset + REGION_SIZE;
+        }
+        return -1;
+    }
+
+    /** Marks the log complete, so that {@link #open(File)} accepts it, and writes everything to disk. */
+    void seal() {
+        MappedByteBuffer first = regions.get(0);
+        first.putInt(FLAGS_OFFSET, first.getInt(FLAGS_OFFSET) | FLAG_SEALED);
+        force();
+    }
+
+    /** Writes the regions holding batches committed since the last sync or force to disk. */
+    void sync() {
+        if (syncedEnd == committedEnd)
+            return;
+        int last = (int) ((committedEnd - 1) / REGION_SIZE);
+        for (int i = (int) (syncedEnd / REGION_SIZE); i <= last; i++)
+            regions.get(i).force();
+        syncedEnd = committedEnd;
+    }
+
+    /** Writes everything to disk. */
+    void force() {
+        for (MappedByteBuffer region : regions)
+            region.force();
+        syncedEnd = committedEnd;
+    }
+
+    void close() throws IOException {
+        force();
+        regions.clear();
+        randomAccessFile.close();
+    }
+}
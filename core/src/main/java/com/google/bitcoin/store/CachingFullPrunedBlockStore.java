@@ -0,0 +1,427 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.bitcoin.core.StoredUndoableBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps recently used unspent outputs in memory in front of another
+ * FullPrunedBlockStore. Most outputs are spent a few blocks after they are created, so during a sync the majority of
+ * lookups made while connecting a block are answered from memory, and an output created and spent between two
+ * flushes never reaches the underlying store at all.</p>
+ *
+ * <p>Changes to the unspent output set are kept in memory and written to the underlying store in one batch, together
+ * with the verified chain head, every {@code flushInterval} blocks or when they take more than half of the cache.
+ * Headers and undo blocks are written through straight away, so the underlying store may hold blocks above its
+ * verified chain head. After a crash the chain carries on from the last flushed verified chain head.</p>
+ *
+ * <p>Writes made between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are only seen
+ * by the thread making them until they are committed, and are dropped by {@link #abortDatabaseBatchWrite()}.</p>
+ *
+ * <p>{@link #close()} flushes the cache before closing the underlying store.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** Default memory used by the cache, in bytes. */
+    public static final long DEFAULT_CACHE_SIZE = 64 * 1024 * 1024;
+    /** Default number of blocks between flushes. */
+    public static final int DEFAULT_FLUSH_INTERVAL = 1000;
+
+    // Rough heap cost of a cached output on top of its script: the map entry, key, output, hash and value.
+    private static final int OUTPUT_OVERHEAD = 200;
+
+    private final FullPrunedBlockStore store;
+    private final long cacheSize;
+    private final int flushInterval;
+
+    // Everything below is guarded by this.
+
+    // Outputs that are the same here as in the store, least recently used first.
+    private final LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput> clean =
+            new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>(16, 0.75f, true);
+    private long cleanBytes;
+    // Outputs added or removed since the last flush.
+    private final Map<StoredTransactionOutPoint, DirtyOutput> dirty = new HashMap<StoredTransactionOutPoint, DirtyOutput>();
+    private long dirtyBytes;
+    private StoredBlock verifiedChainHead;
+    private boolean verifiedChainHeadDirty;
+    private int blocksSinceFlush;
+    private long hits, misses;
+
+    private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+
+    private static class DirtyOutput {
+        // The output as it is now, or null if it has been spent.
+        @Nullable StoredTransactionOutput output;
+        // The output as it is in the store, or null if the store doesn't have it.
+        @Nullable final StoredTransactionOutput storedOutput;
+
+        DirtyOutput(@Nullable StoredTransactionOutput output, @Nullable StoredTransactionOutput storedOutput) {
+            this.output = output;
+            this.storedOutput = storedOutput;
+        }
+    }
+
+    private static class Change {
+        final StoredTransactionOutput output;
+        final boolean added;
+
+        Change(StoredTransactionOutput output, boolean added) {
+            this.output = output;
+            this.added = added;
+        }
+    }
+
+    private static class Batch {
+        // The outputs changed by the batch, mapped to null if they were removed.
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> outputs =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        // The same changes, in the order they were made.
+        final List<Change> changes = new ArrayList<Change>();
+        @Nullable StoredBlock verifiedChainHead;
+    }
+
+    /**
+     * Creates a cache of {@link #DEFAULT_CACHE_SIZE} bytes in front of the given store, flushed every
+     * {@link #DEFAULT_FLUSH_INTERVAL} blocks.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) throws BlockStoreException {
+        this(store, DEFAULT_CACHE_SIZE, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Creates a cache in front of the given store.
+     *
+     * @param cacheSize roughly how many bytes of memory the cached outputs may take
+     * @param flushInterval the number of blocks after which changes are written to the store
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long cacheSize, int flushInterval)
+            throws BlockStoreException {
+        checkArgument(cacheSize > 0, "cacheSize must be positive");
+        checkArgument(flushInterval > 0, "flushInterval must be positive");
+        this.store = checkNotNull(store);
+        this.cacheSize = cacheSize;
+        this.flushInterval = flushInterval;
+        this.verifiedChainHead = store.getVerifiedChainHead();
+    }
+
+    /** Returns the store this cache writes to. */
+    public FullPrunedBlockStore getStore() {
+        return store;
+    }
+
+    /** Returns the number of output lookups answered from memory. */
+    public synchronized long getCacheHits() {
+        return hits;
+    }
+
+    /** Returns the number of output lookups that had to go to the underlying store. */
+    public synchronized long getCacheMisses() {
+        return misses;
+    }
+
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        Batch b = batch.get();
+        if (b != null && b.verifiedChainHead != null)
+            return b.verifiedChainHead;
+        return verifiedChainHead;
+    }
+
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        // The store only learns about the verified chain head when the outputs are flushed, but the other chain
+        // head can move on straight away.
+        if (store.getChainHead().getHeight() < chainHead.getHeight())
+            store.setChainHead(chainHead);
+        Batch b = batch.get();
+        if (b != null) {
+            b.verifiedChainHead = chainHead;
+        } else {
+            b = new Batch();
+            b.verifiedChainHead = chainHead;
+            store.beginDatabaseBatchWrite();
+            commit(b);
+        }
+    }
+
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+        Batch b = batch.get();
+        if (b != null && b.outputs.containsKey(key))
+            return b.outputs.get(key);
+        DirtyOutput d = dirty.get(key);
+        if (d != null) {
+            hits++;
+            return d.output;
+        }
+        StoredTransactionOutput out = clean.get(key);
+        if (out != null) {
+            hits++;
+            return out;
+        }
+        misses++;
+        out = store.getTransactionOutput(hash, index);
+        if (out != null) {
+            clean.put(key, out);
+            cleanBytes += sizeOf(out);
+            trim();
+        }
+        return out;
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        Batch b = batch.get();
+        if (b != null) {
+            b.outputs.put(key, out);
+            b.changes.add(new Change(out, true));
+        } else {
+            applyAdd(key, out);
+        }
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        // Also brings the output into the cache, so it is known whether the store has it when the removal is applied.
+        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        Batch b = batch.get();
+        if (b != null) {
+            b.outputs.put(key, null);
+            b.changes.add(new Change(out, false));
+        } else {
+            applyRemove(key, out);
+        }
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        Batch b = batch.get();
+        for (int i = 0; i < numOutputs; i++) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, i);
+            if (b != null && b.outputs.containsKey(key)) {
+                if (b.outputs.get(key) != null)
+                    return true;
+                continue;
+            }
+            DirtyOutput d = dirty.get(key);
+            if (d != null ? d.output != null : clean.containsKey(key))
+                return true;
+        }
+        // The store may still have outputs that were spent since the last flush, so only believe a yes from it once
+        // each output has been checked against the changes held here. Transactions that aren't in the store at all,
+        // which is almost all of them, only cost the one query.
+        if (!store.hasUnspentOutputs(hash, numOutputs))
+            return false;
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (batch.get() == null)
+            batch.set(new Batch());
+        store.beginDatabaseBatchWrite();
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        Batch b = batch.get();
+        batch.remove();
+        commit(b != null ? b : new Batch());
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        batch.remove();
+        store.abortDatabaseBatchWrite();
+    }
+
+    /**
+     * Writes every change held in memory to the underlying store. Must not be called by a thread that is in the
+     * middle of a batch write.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        if (batch.get() != null)
+            throw new IllegalStateException("Cannot flush in the middle of a batch write");
+        store.beginDatabaseBatchWrite();
+        try {
+            writeDirty();
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        markFlushed();
+    }
+
+    public synchronized void close() throws BlockStoreException {
+        try {
+            flush();
+        } finally {
+            clean.clear();
+            cleanBytes = 0;
+            store.close();
+        }
+    }
+
+    // Applies the batch and commits the batch of the underlying store, which has been begun by the caller. Changes
+    // go along with it if it's time to flush.
+    private void commit(Batch b) throws BlockStoreException {
+        for (Change change : b.changes) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(change.output);
+            if (change.added)
+                applyAdd(key, change.output);
+            else
+                applyRemove(key, change.output);
+        }
+        if (b.verifiedChainHead != null) {
+            verifiedChainHead = b.verifiedChainHead;
+            verifiedChainHeadDirty = true;
+            blocksSinceFlush++;
+        }
+        boolean flushing = blocksSinceFlush >= flushInterval || dirtyBytes > cacheSize / 2;
+        try {
+            if (flushing)
+                writeDirty();
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            // The changes stay in memory, as the store hasn't got them.
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        if (flushing)
+            markFlushed();
+        trim();
+    }
+
+    private void applyAdd(StoredTransactionOutPoint key, StoredTransactionOutput out) {
+        DirtyOutput d = dirty.get(key);
+        if (d != null) {
+            dirtyBytes += sizeOf(out) - sizeOf(d.output);
+            d.output = out;
+            return;
+        }
+        StoredTransactionOutput old = clean.remove(key);
+        if (old != null)
+            cleanBytes -= sizeOf(old);
+        dirty.put(key, new DirtyOutput(out, old));
+        dirtyBytes += sizeOf(out);
+    }
+
+    private void applyRemove(StoredTransactionOutPoint key, StoredTransactionOutput out) {
+        DirtyOutput d = dirty.get(key);
+        if (d != null) {
+            dirtyBytes -= sizeOf(d.output);
+            if (d.storedOutput == null) {
+                // Created and spent since the last flush, so the store never needs to hear about it.
+                dirty.remove(key);
+            } else {
+                d.output = null;
+                dirtyBytes += sizeOf(null);
+            }
+            return;
+        }
+        // Not changed since the last flush, so the store has it.
+        StoredTransactionOutput old = clean.remove(key);
+        if (old != null)
+            cleanBytes -= sizeOf(old);
+        dirty.put(key, new DirtyOutput(null, old != null ? old : out));
+        dirtyBytes += sizeOf(null);
+    }
+
+    private void writeDirty() throws BlockStoreException {
+        for (DirtyOutput d : dirty.values()) {
+            if (d.storedOutput != null)
+                store.removeUnspentTransactionOutput(d.storedOutput);
+            if (d.output != null)
+                store.addUnspentTransactionOutput(d.output);
+        }
+        if (verifiedChainHeadDirty)
+            store.setVerifiedChainHead(verifiedChainHead);
+    }
+
+    private void markFlushed() {
+        log.debug("Flushed {} changed outputs at height {}", dirty.size(), verifiedChainHead.getHeight());
+        for (Map.Entry<StoredTransactionOutPoint, DirtyOutput> entry : dirty.entrySet()) {
+            StoredTransactionOutput out = entry.getValue().output;
+            if (out != null) {
+                clean.put(entry.getKey(), out);
+                cleanBytes += sizeOf(out);
+            }
+        }
+        dirty.clear();
+        dirtyBytes = 0;
+        verifiedChainHeadDirty = false;
+        blocksSinceFlush = 0;
+        trim();
+    }
+
+    // Drops the least recently used clean outputs until everything fits in the cache again.
+    private void trim() {
+        Iterator<Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput>> it = clean.entrySet().iterator();
+        while (cleanBytes + dirtyBytes > cacheSize && it.hasNext()) {
+            cleanBytes -= sizeOf(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    private static int sizeOf(@Nullable StoredTransactionOutput out) {
+        return OUTPUT_OVERHEAD + (out == null ? 0 : out.getScriptBytes().length);
+    }
+}
@@ -0,0 +1,323 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.bitcoin.core.TransactionOutputChanges;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The compact encoding of unspent outputs used by the full pruned block stores. The hash and index of an output
+ * are its key, so they are left to the store, and the rest is encoded as:</p>
+ *
+ * <ul>
+ *     <li>a varint holding the height and the coinbase flag: height * 2 + 1 for a coinbase, 0 otherwise (only the
+ *     height of a coinbase matters, see {@link StoredTransactionOutput#getHeight()}),</li>
+ *     <li>a varint holding the value, with trailing decimal zeros folded into the exponent,</li>
+ *     <li>the script. Pay to address and pay to script hash scripts are reduced to their 20 byte hash and pay to
+ *     pubkey scripts to the 32 byte X coordinate of the key, behind a varint saying which template it is. Any other
+ *     script is its length plus 6 as a varint, followed by the script.</li>
+ * </ul>
+ *
+ * <p>Varints are the big endian base 128 kind used by the reference client for its UTXO set, rather than
+ * {@link com.google.bitcoin.core.VarInt}s. A typical pay to address output takes 25 bytes rather than the 40 or so
+ * it takes as separate columns.</p>
+ */
+class CompactOutputCodec {
+    // Script templates, as the first varint of an encoded script.
+    private static final int PAY_TO_ADDRESS = 0;
+    private static final int PAY_TO_SCRIPT_HASH = 1;
+    // 2 and 3 are pay to compressed pubkey, with that first byte of the key. 4 and 5 are pay to uncompressed pubkey,
+    // with an even or odd Y coordinate.
+    private static final int SPECIAL_SCRIPTS = 6;
+
+    private static final int OP_DUP = 0x76;
+    private static final int OP_HASH160 = 0xa9;
+    private static final int OP_EQUAL = 0x87;
+    private static final int OP_EQUALVERIFY = 0x88;
+    private static final int OP_CHECKSIG = 0xac;
+
+    // Far more than there are coins, and small enough that compressValue doesn't overflow.
+    private static final BigInteger MAX_VALUE = BigInteger.valueOf(Long.MAX_VALUE / 10);
+
+    private CompactOutputCodec() {}
+
+    /** Returns the encoding of everything about the output but its hash and index. */
+    static byte[] encode(StoredTransactionOutput out) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(out.getScriptBytes().length + 8);
+        encode(out, stream);
+        return stream.toByteArray();
+    }
+
+    static void encode(StoredTransactionOutput out, ByteArrayOutputStream stream) {
+        checkArgument(out.getValue().signum() >= 0 && out.getValue().compareTo(MAX_VALUE) <= 0,
+                "Output value out of range");
+        writeVarInt(stream, out.getHeight() >= 0 ? ((long) out.getHeight() << 1) | 1 : 0);
+        writeVarInt(stream, compressValue(out.getValue().longValue()));
+        writeScript(stream, out.getScriptBytes());
+    }
+
+    /** Decodes an output encoded by {@link #encode(StoredTransactionOutput)}. */
+    static StoredTransactionOutput decode(Sha256Hash hash, long index, byte[] bytes) throws BlockStoreException {
+        return decode(hash, index, ByteBuffer.wrap(bytes));
+    }
+
+    static StoredTransactionOutput decode(Sha256Hash hash, long index, ByteBuffer buffer) throws BlockStoreException {
+        try {
+            long code = readVarInt(buffer);
+            BigInteger value = BigInteger.valueOf(decompressValue(readVarInt(buffer)));
+            byte[] script = readScript(buffer);
+            if ((code & 1) == 0)
+                return new StoredTransactionOutput(hash, index, value, 0, false, script);
+            return new StoredTransactionOutput(hash, index, value, (int) (code >>> 1), true, script);
+        } catch (BufferUnderflowException e) {
+            throw new BlockStoreException("Truncated output " + hash + ":" + index);
+        } catch (IllegalArgumentException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Encodes the undo data of a block. Outputs are grouped by transaction so each hash is written once, after which
+     * each output is its index and its encoding.
+     */
+    static byte[] encode(TransactionOutputChanges changes) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeOutputs(stream, changes.txOutsCreated);
+        writeOutputs(stream, changes.txOutsSpent);
+        return stream.toByteArray();
+    }
+
+    /** Decodes undo data encoded by {@link #encode(TransactionOutputChanges)}. */
+    static TransactionOutputChanges decodeTxOutChanges(byte[] bytes) throws BlockStoreException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            List<StoredTransactionOutput> created = readOutputs(buffer);
+            List<StoredTransactionOutput> spent = readOutputs(buffer);
+            return new TransactionOutputChanges(created, spent);
+        } catch (BufferUnderflowException e) {
+            throw new BlockStoreException("Truncated undo data");
+        }
+    }
+
+    private static void writeOutputs(ByteArrayOutputStream stream, List<StoredTransactionOutput> outputs) {
+        // Count the runs of outputs of the same transaction first, as they are written after their number.
+        int runs = 0;
+        Sha256Hash last = null;
+        for (StoredTransactionOutput out : outputs) {
+            if (!out.getHash().equals(last))
+                runs++;
+            last = out.getHash();
+        }
+        writeVarInt(stream, runs);
+        int i = 0;
+        StoredTransactionOutput[] array = outputs.toArray(new StoredTransactionOutput[outputs.size()]);
+        while (i < array.length) {
+            Sha256Hash hash = array[i].getHash();
+            int end = i + 1;
+            while (end < array.length && array[end].getHash().equals(hash))
+                end++;
+            stream.write(hash.getBytes(), 0, 32);
+            writeVarInt(stream, end - i);
+            for (; i < end; i++) {
+                writeVarInt(stream, array[i].getIndex());
+                encode(array[i], stream);
+            }
+        }
+    }
+
+    private static List<StoredTransactionOutput> readOutputs(ByteBuffer buffer) throws BlockStoreException {
+        List<StoredTransactionOutput> outputs = new LinkedList<StoredTransactionOutput>();
+        long runs = readVarInt(buffer);
+        for (long run = 0; run < runs; run++) {
+            byte[] hashBytes = new byte[32];
+            buffer.get(hashBytes);
+            Sha256Hash hash = new Sha256Hash(hashBytes);
+            long count = readVarInt(buffer);
+            for (long i = 0; i < count; i++) {
+                long index = readVarInt(buffer);
+                outputs.add(decode(hash, index, buffer));
+            }
+        }
+        return outputs;
+    }
+
+    private static void writeScript(ByteArrayOutputStream stream, byte[] script) {
+        if (script.length == 25 && (script[0] & 0xFF) == OP_DUP && (script[1] & 0xFF) == OP_HASH160 &&
+                script[2] == 20 && (script[23] & 0xFF) == OP_EQUALVERIFY && (script[24] & 0xFF) == OP_CHECKSIG) {
+            stream.write(PAY_TO_ADDRESS);
+            stream.write(script, 3, 20);
+        } else if (script.length == 23 && (script[0] & 0xFF) == OP_HASH160 && script[1] == 20 &&
+                (script[22] & 0xFF) == OP_EQUAL) {
+            stream.write(PAY_TO_SCRIPT_HASH);
+            stream.write(script, 2, 20);
+        } else if (script.length == 35 && script[0] == 33 && (script[1] == 2 || script[1] == 3) &&
+                (script[34] & 0xFF) == OP_CHECKSIG) {
+            stream.write(script[1]);
+            stream.write(script, 2, 32);
+        } else if (script.length == 67 && script[0] == 65 && script[1] == 4 && (script[66] & 0xFF) == OP_CHECKSIG &&
+                isRecoverable(script)) {
+            stream.write(4 | (script[65] & 1));
+            stream.write(script, 2, 32);
+        } else {
+            writeVarInt(stream, script.length + SPECIAL_SCRIPTS);
+            stream.write(script, 0, script.length);
+        }
+    }
+
+    private static byte[] readScript(ByteBuffer buffer) {
+        long type = readVarInt(buffer);
+        byte[] script;
+        switch ((int) Math.min(type, SPECIAL_SCRIPTS)) {
+            case PAY_TO_ADDRESS:
+                script = new byte[25];
+                script[0] = (byte) OP_DUP;
+                script[1] = (byte) OP_HASH160;
+                script[2] = 20;
+                buffer.get(script, 3, 20);
+                script[23] = (byte) OP_EQUALVERIFY;
+                script[24] = (byte) OP_CHECKSIG;
+                return script;
+            case PAY_TO_SCRIPT_HASH:
+                script = new byte[23];
+                script[0] = (byte) OP_HASH160;
+                script[1] = 20;
+                buffer.get(script, 2, 20);
+                script[22] = (byte) OP_EQUAL;
+                return script;
+            case 2:
+            case 3:
+                script = new byte[35];
+                script[0] = 33;
+                script[1] = (byte) type;
+                buffer.get(script, 2, 32);
+                script[34] = (byte) OP_CHECKSIG;
+                return script;
+            case 4:
+            case 5:
+                byte[] compressed = new byte[33];
+                compressed[0] = (byte) (type - 2);
+                buffer.get(compressed, 1, 32);
+                script = new byte[67];
+                script[0] = 65;
+                System.arraycopy(decompressKey(compressed), 0, script, 1, 65);
+                script[66] = (byte) OP_CHECKSIG;
+                return script;
+            default:
+                long length = type - SPECIAL_SCRIPTS;
+                checkArgument(length <= buffer.remaining(), "Script length out of range");
+                script = new byte[(int) length];
+                buffer.get(script);
+                return script;
+        }
+    }
+
+    // Only keys that are points on the curve can be rebuilt from their X coordinate, and anything can be in a script.
+    private static boolean isRecoverable(byte[] script) {
+        byte[] compressed = new byte[33];
+        compressed[0] = (byte) (2 | (script[65] & 1));
+        System.arraycopy(script, 2, compressed, 1, 32);
+        try {
+            return Arrays.equals(decompressKey(compressed), Arrays.copyOfRange(script, 1, 66));
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static byte[] decompressKey(byte[] compressed) {
+        ECPoint point = ECKey.CURVE.getCurve().decodePoint(compressed);
+        return new ECPoint.Fp(ECKey.CURVE.getCurve(), point.getX(), point.getY(), false).getEncoded();
+    }
+
+    // Folds trailing decimal zeros into an exponent, as the reference client does. Values are mostly round numbers
+    // of coins or cents, so most end up in a few bytes.
+    static long compressValue(long n) {
+        if (n == 0)
+            return 0;
+        int e = 0;
+        while ((n % 10) == 0 && e < 9) {
+            n /= 10;
+            e++;
+        }
+        if (e < 9) {
+            int d = (int) (n % 10);
+            n /= 10;
+            return 1 + (n * 9 + d - 1) * 10 + e;
+        } else {
+            return 1 + (n - 1) * 10 + 9;
+        }
+    }
+
+    static long decompressValue(long x) {
+        if (x == 0)
+            return 0;
+        x--;
+        int e = (int) (x % 10);
+        x /= 10;
+        long n;
+        if (e < 9) {
+            int d = (int) (x % 9) + 1;
+            x /= 9;
+            n = x * 10 + d;
+        } else {
+            n = x + 1;
+        }
+        while (e > 0) {
+            n *= 10;
+            e--;
+        }
+        return n;
+    }
+
+    static void writeVarInt(ByteArrayOutputStream stream, long n) {
+        byte[] tmp = new byte[10];
+        int len = 0;
+        while (true) {
+            tmp[len] = (byte) ((n & 0x7F) | (len != 0 ? 0x80 : 0x00));
+            if (n <= 0x7F)
+                break;
+            n = (n >>> 7) - 1;
+            len++;
+        }
+        do {
+            stream.write(tmp[len]);
+        } while (len-- > 0);
+    }
+
+    static long readVarInt(ByteBuffer buffer) {
+        long n = 0;
+        while (true) {
+            int b = buffer.get() & 0xFF;
+            n = (n << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0)
+                return n;
+            n++;
+        }
+    }
+}
@@ -27,8 +27,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 
 // Originally written for Apache Derby, but its DELETE (and general) performance was awful
 /**
@@ -38,6 +37,13 @@ import java.util.List;
  * you may see the database files grow quite large (around 1.5G).
  * H2 automatically frees some space at shutdown, so close()ing the database
  * decreases the space usage somewhat (to only around 1.3G).
+ *
+ * Each connection keeps its prepared statements for reuse. Unspent outputs added and removed between
+ * beginDatabaseBatchWrite() and commitDatabaseBatchWrite() are held by the thread making them and sent to the
+ * database as two JDBC batches on commit.
+ *
+ * Unspent outputs and undo data are stored in the compact encoding of {@link CompactOutputCodec}. Databases of schema
+ * version 3 are converted to it when they are opened, older ones have to be reset.
  */
 public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(H2FullPrunedBlockStore.class);
@@ -48,6 +54,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private StoredBlock verifiedChainHeadBlock;
     private NetworkParameters params;
     private ThreadLocal<Connection> conn;
+    private ThreadLocal<Map<String, PreparedStatement>> statements;
+    private ThreadLocal<PendingOutputs> pendingOutputs;
     private List<Connection> allConnections;
     private String connectionURL;
     private int fullStoreDepth;
@@ -60,6 +68,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     static final String CHAIN_HEAD_SETTING = "chainhead";
     static final String VERIFIED_CHAIN_HEAD_SETTING = "verifiedchainhead";
     static final String VERSION_SETTING = "version";
+    // Version 4 keeps outputs and undo data in the encoding of CompactOutputCodec.
+    static final byte SCHEMA_VERSION = 4;
+    // The last version which kept outputs and undo data in their own serialization, and can be upgraded.
+    static final byte UPGRADABLE_SCHEMA_VERSION = 3;
 
     static final String CREATE_HEADERS_TABLE = "CREATE TABLE headers ( "
         + "hash BINARY(28) NOT NULL CONSTRAINT headers_pk PRIMARY KEY,"
@@ -77,14 +89,48 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         + ")";
     static final String CREATE_UNDOABLE_TABLE_INDEX = "CREATE INDEX heightIndex ON undoableBlocks (height)";
     
-    static final String CREATE_OPEN_OUTPUT_TABLE = "CREATE TABLE openOutputs ("
+    private static final String OPEN_OUTPUT_COLUMNS = "("
         + "hash BINARY(32) NOT NULL,"
         + "index INT NOT NULL,"
-        + "height INT NOT NULL,"
-        + "value BLOB NOT NULL,"
-        + "scriptBytes BLOB NOT NULL,"
+        + "output VARBINARY NOT NULL,"
         + "PRIMARY KEY (hash, index),"
         + ")";
+    static final String CREATE_OPEN_OUTPUT_TABLE = "CREATE TABLE openOutputs " + OPEN_OUTPUT_COLUMNS;
+    // Upgraded outputs are written here, and the table replaces openOutputs once the upgrade is committed.
+    static final String UPGRADED_OPEN_OUTPUT_TABLE = "openOutputsUpgraded";
+    // The number of rows an upgrade sends to the database at once.
+    private static final int UPGRADE_BATCH_SIZE = 1000;
+
+    static final String INSERT_HEADER = "INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
+        + " VALUES(?, ?, ?, ?, ?)";
+    static final String MERGE_HEADER = "MERGE INTO headers(hash, chainWork, height, header, wasUndoable) KEY(hash)"
+        + " VALUES(?, ?, ?, ?, ?)";
+    static final String SELECT_HEADER = "SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?";
+    static final String MERGE_UNDOABLE_BLOCK = "MERGE INTO undoableBlocks(hash, height, txOutChanges, transactions)"
+        + " KEY(hash) VALUES(?, ?, ?, ?)";
+    static final String SELECT_UNDOABLE_BLOCK = "SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?";
+    static final String DELETE_UNDOABLE_BLOCKS = "DELETE FROM undoableBlocks WHERE height <= ?";
+    static final String UPDATE_SETTING = "UPDATE settings SET value = ? WHERE name = ?";
+    static final String SELECT_OPEN_OUTPUT = "SELECT output FROM openOutputs"
+        + " WHERE hash = ? AND index = ?";
+    // A MERGE rather than an INSERT so that adding an output that is already there is ignored, as it always has been,
+    // without failing the rest of the batch.
+    static final String MERGE_OPEN_OUTPUT = "MERGE INTO openOutputs(hash, index, output)"
+        + " KEY(hash, index) VALUES(?, ?, ?)";
+    static final String DELETE_OPEN_OUTPUT = "DELETE FROM openOutputs WHERE hash = ? AND index = ?";
+    static final String COUNT_OPEN_OUTPUTS = "SELECT COUNT(*) FROM openOutputs WHERE hash = ?";
+
+    /**
+     * The unspent outputs added and removed by the batch write of a thread, which haven't been sent to the database
+     * yet.
+     */
+    private static class PendingOutputs {
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> added =
+                new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        // Outputs in the database that the batch removes.
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> removed =
+                new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+    }
 
     /**
      * Creates a new H2FullPrunedBlockStore
@@ -101,6 +147,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         connectionURL = "jdbc:h2:" + dbName + ";create=true;LOCK_TIMEOUT=60000";
         
         conn = new ThreadLocal<Connection>();
+        statements = new ThreadLocal<Map<String, PreparedStatement>>();
+        pendingOutputs = new ThreadLocal<PendingOutputs>();
         allConnections = new LinkedList<Connection>();
 
         try {
@@ -157,6 +205,22 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
     
+    // Returns the prepared statement for the given SQL on the connection of this thread, preparing it the first time.
+    // The statement stays open for the next caller, so it must not be closed.
+    private PreparedStatement prepare(String sql) throws SQLException {
+        Map<String, PreparedStatement> cache = statements.get();
+        if (cache == null) {
+            cache = new HashMap<String, PreparedStatement>();
+            statements.set(cache);
+        }
+        PreparedStatement s = cache.get(sql);
+        if (s == null) {
+            s = conn.get().prepareStatement(sql);
+            cache.put(sql, s);
+        }
+        return s;
+    }
+
     public synchronized void close() {
         for (Connection conn : allConnections) {
             try {
@@ -177,6 +241,13 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.executeUpdate("DROP TABLE undoableBlocks");
             s.executeUpdate("DROP TABLE openOutputs");
             s.close();
+            // The cached statements refer to the dropped tables.
+            Map<String, PreparedStatement> cache = statements.get();
+            if (cache != null)
+                for (PreparedStatement statement : cache.values())
+                    statement.close();
+            statements.remove();
+            pendingOutputs.remove();
             createTables();
             initFromDatabase();
         } catch (SQLException ex) {
@@ -203,7 +274,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + CHAIN_HEAD_SETTING + "', NULL)");
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERIFIED_CHAIN_HEAD_SETTING + "', NULL)");
-        s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERSION_SETTING + "', '03')");
+        s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERSION_SETTING + "', '0" + SCHEMA_VERSION + "')");
         s.close();
         createNewStore(params);
     }
@@ -214,6 +285,20 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         while (rs.next())
             if (rs.getString(1).equalsIgnoreCase("openOutputsIndex"))
                 throw new BlockStoreException("Attempted to open a H2 database with an old schema, please reset database.");
+        rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + VERSION_SETTING + "'");
+        if (!rs.next() || rs.getBytes(1) == null || rs.getBytes(1).length != 1)
+            throw new BlockStoreException("Attempted to open a H2 database with an old schema, please reset database.");
+        byte version = rs.getBytes(1)[0];
+        rs.close();
+        if (version == UPGRADABLE_SCHEMA_VERSION)
+            upgradeFromVersion3();
+        else if (version != SCHEMA_VERSION)
+            throw new BlockStoreException("Attempted to open a H2 database with an old schema, please reset database.");
+        // Also finishes an upgrade which was interrupted after it was committed.
+        if (tableExists(UPGRADED_OPEN_OUTPUT_TABLE)) {
+            s.executeUpdate("DROP TABLE IF EXISTS openOutputs");
+            s.executeUpdate("ALTER TABLE " + UPGRADED_OPEN_OUTPUT_TABLE + " RENAME TO openOutputs");
+        }
         
         rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + CHAIN_HEAD_SETTING + "'");
         if (!rs.next()) {
@@ -243,6 +328,73 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    /**
+     * Converts the outputs and undo data of a version 3 database into the encoding of {@link CompactOutputCodec}. The
+     * outputs are written to a new table, and the undo data updated in place, in one transaction which also sets the
+     * new version, so an upgrade which fails part way leaves the database as it was. The new table replaces the old
+     * one afterwards.
+     */
+    private void upgradeFromVersion3() throws SQLException, BlockStoreException {
+        log.info("Upgrading H2 database from schema version {} to {}", UPGRADABLE_SCHEMA_VERSION, SCHEMA_VERSION);
+        Connection connection = conn.get();
+        Statement s = connection.createStatement();
+        s.executeUpdate("DROP TABLE IF EXISTS " + UPGRADED_OPEN_OUTPUT_TABLE);
+        s.executeUpdate("CREATE TABLE " + UPGRADED_OPEN_OUTPUT_TABLE + " " + OPEN_OUTPUT_COLUMNS);
+        connection.setAutoCommit(false);
+        try {
+            PreparedStatement insert = connection.prepareStatement("INSERT INTO " + UPGRADED_OPEN_OUTPUT_TABLE
+                    + "(hash, index, output) VALUES(?, ?, ?)");
+            ResultSet rs = s.executeQuery("SELECT hash, index, height, value, scriptBytes FROM openOutputs");
+            int count = 0;
+            while (rs.next()) {
+                // Version 3 didn't record whether an output was created by a coinbase, and always said it was.
+                StoredTransactionOutput out = new StoredTransactionOutput(new Sha256Hash(rs.getBytes(1)),
+                        rs.getInt(2) & 0xFFFFFFFFL, new BigInteger(rs.getBytes(4)), rs.getInt(3), true,
+                        rs.getBytes(5));
+                setOutputParameters(insert, out);
+                insert.addBatch();
+                if (++count % UPGRADE_BATCH_SIZE == 0)
+                    insert.executeBatch();
+            }
+            rs.close();
+            insert.executeBatch();
+            insert.close();
+            log.info("Upgraded {} unspent outputs", count);
+
+            PreparedStatement update = connection.prepareStatement(
+                    "UPDATE undoableBlocks SET txOutChanges = ? WHERE hash = ?");
+            rs = s.executeQuery("SELECT hash, txOutChanges FROM undoableBlocks WHERE txOutChanges IS NOT NULL");
+            count = 0;
+            while (rs.next()) {
+                TransactionOutputChanges changes =
+                        new TransactionOutputChanges(new ByteArrayInputStream(rs.getBytes(2)));
+                update.setBytes(1, CompactOutputCodec.encode(changes));
+                update.setBytes(2, rs.getBytes(1));
+                update.addBatch();
+                if (++count % UPGRADE_BATCH_SIZE == 0)
+                    update.executeBatch();
+            }
+            rs.close();
+            update.executeBatch();
+            update.close();
+            log.info("Upgraded undo data of {} blocks", count);
+
+            s.executeUpdate("UPDATE settings SET value = '0" + SCHEMA_VERSION + "' WHERE name = '"
+                    + VERSION_SETTING + "'");
+            connection.commit();
+        } catch (IOException e) {
+            // Corrupted database.
+            connection.rollback();
+            throw new BlockStoreException(e);
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+            s.close();
+        }
+    }
+
     private void createNewStore(NetworkParameters params) throws BlockStoreException {
         try {
             // Set up the genesis block. When we start out fresh, it is by
@@ -323,20 +475,16 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         System.out.printf("Undoable Blocks size: %d, count: %d, average size: %f%n", size, count, (double)size/count);
         
         totalSize += size; size = 0; count = 0;
-        long scriptSize = 0;
-        rs = s.executeQuery("SELECT value, scriptBytes FROM openOutputs");
+        rs = s.executeQuery("SELECT output FROM openOutputs");
         while (rs.next()) {
             size += 32; // hash
             size += 4; // index
-            size += 4; // height
             size += rs.getBytes(1).length;
-            size += rs.getBytes(2).length;
-            scriptSize += rs.getBytes(2).length;
             count++;
         }
         rs.close();
-        System.out.printf("Open Outputs size: %d, count: %d, average size: %f, average script size: %f (%d in id indexes)%n",
-                size, count, (double)size/count, (double)scriptSize/count, count * 8);
+        System.out.printf("Open Outputs size: %d, count: %d, average size: %f (%d in id indexes)%n",
+                size, count, (double)size/count, count * 8);
         
         totalSize += size;
         System.out.println("Total Size: " + totalSize);
@@ -346,35 +494,18 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     
     
     private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
-        try {
-            PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
-                            + " VALUES(?, ?, ?, ?, ?)");
-            // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
-            byte[] hashBytes = new byte[28];
-            System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
-            s.setBytes(1, hashBytes);
-            s.setBytes(2, storedBlock.getChainWork().toByteArray());
-            s.setInt(3, storedBlock.getHeight());
-            s.setBytes(4, storedBlock.getHeader().unsafeBitcoinSerialize());
-            s.setBoolean(5, wasUndoable);
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException e) {
-            // It is possible we try to add a duplicate StoredBlock if we upgraded
-            // In that case, we just update the entry to mark it wasUndoable
-            if (e.getErrorCode() != 23505 || !wasUndoable)
-                throw e;
-            
-            PreparedStatement s = conn.get().prepareStatement("UPDATE headers SET wasUndoable=? WHERE hash=?");
-            s.setBoolean(1, true);
-            // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
-            byte[] hashBytes = new byte[28];
-            System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
-            s.setBytes(2, hashBytes);
-            s.executeUpdate();
-            s.close();
-        }
+        // It is possible we try to add a duplicate StoredBlock if we upgraded. In that case, the MERGE just updates
+        // the entry to mark it wasUndoable.
+        PreparedStatement s = prepare(wasUndoable ? MERGE_HEADER : INSERT_HEADER);
+        // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
+        byte[] hashBytes = new byte[28];
+        System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
+        s.setBytes(1, hashBytes);
+        s.setBytes(2, storedBlock.getChainWork().toByteArray());
+        s.setInt(3, storedBlock.getHeight());
+        s.setBytes(4, storedBlock.getHeader().unsafeBitcoinSerialize());
+        s.setBoolean(5, wasUndoable);
+        s.executeUpdate();
     }
 
     public void put(StoredBlock storedBlock) throws BlockStoreException {
@@ -397,8 +528,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
             if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
-                txOutChanges = bos.toByteArray();
+                txOutChanges = CompactOutputCodec.encode(undoableBlock.getTxOutChanges());
             } else {
                 int numTxn = undoableBlock.getTransactions().size();
                 bos.write((int) (0xFF & (numTxn >> 0)));
@@ -415,45 +545,18 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
         
         try {
-            try {
-                PreparedStatement s =
-                        conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
-                                + " VALUES(?, ?, ?, ?)");
-                s.setBytes(1, hashBytes);
-                s.setInt(2, height);
-                if (transactions == null) {
-                    s.setBytes(3, txOutChanges);
-                    s.setNull(4, Types.BLOB);
-                } else {
-                    s.setNull(3, Types.BLOB);
-                    s.setBytes(4, transactions);
-                }
-                s.executeUpdate();
-                s.close();
-                try {
-                    putUpdateStoredBlock(storedBlock, true);
-                } catch (SQLException e) {
-                    throw new BlockStoreException(e);
-                }
-            } catch (SQLException e) {
-                if (e.getErrorCode() != 23505)
-                    throw new BlockStoreException(e);
-                
-                // There is probably an update-or-insert statement, but it wasn't obvious from the docs
-                PreparedStatement s =
-                        conn.get().prepareStatement("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
-                                + " WHERE hash = ?");
-                s.setBytes(3, hashBytes);
-                if (transactions == null) {
-                    s.setBytes(1, txOutChanges);
-                    s.setNull(2, Types.BLOB);
-                } else {
-                    s.setNull(1, Types.BLOB);
-                    s.setBytes(2, transactions);
-                }
-                s.executeUpdate();
-                s.close();
+            PreparedStatement s = prepare(MERGE_UNDOABLE_BLOCK);
+            s.setBytes(1, hashBytes);
+            s.setInt(2, height);
+            if (transactions == null) {
+                s.setBytes(3, txOutChanges);
+                s.setNull(4, Types.BLOB);
+            } else {
+                s.setNull(3, Types.BLOB);
+                s.setBytes(4, transactions);
             }
+            s.executeUpdate();
+            putUpdateStoredBlock(storedBlock, true);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -467,14 +570,14 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get().prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+            PreparedStatement s = prepare(SELECT_HEADER);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -496,13 +599,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // blocks.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResults(results);
         }
     }
     
@@ -519,15 +616,14 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     @Nullable
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
+            PreparedStatement s = prepare(SELECT_UNDOABLE_BLOCK);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -549,8 +645,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                 }
                 block = new StoredUndoableBlock(hash, transactionList);
             } else {
-                TransactionOutputChanges outChangesObject =
-                        new TransactionOutputChanges(new ByteArrayInputStream(txOutChanges));
+                TransactionOutputChanges outChangesObject = CompactOutputCodec.decodeTxOutChanges(txOutChanges);
                 block = new StoredUndoableBlock(hash, outChangesObject);
             }
             return block;
@@ -565,17 +660,18 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (ProtocolException e) {
             // Corrupted database.
             throw new BlockStoreException(e);
-        } catch (IOException e) {
-            // Corrupted database.
-            throw new BlockStoreException(e);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            closeResults(results);
         }
     }
 
+    private void closeResults(@Nullable ResultSet results) throws BlockStoreException {
+        if (results != null)
+            try {
+                results.close();
+            } catch (SQLException e) { throw new BlockStoreException("Failed to close ResultSet"); }
+    }
+
     public StoredBlock getChainHead() throws BlockStoreException {
         return chainHeadBlock;
     }
@@ -586,12 +682,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare(UPDATE_SETTING);
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -607,12 +701,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare(UPDATE_SETTING);
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -623,11 +715,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
+            PreparedStatement s = prepare(DELETE_UNDOABLE_BLOCKS);
             s.setInt(1, height);
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -635,71 +725,77 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Nullable
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+            StoredTransactionOutput out = pending.added.get(key);
+            if (out != null)
+                return out;
+            if (pending.removed.containsKey(key))
+                return null;
+        }
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT height, value, scriptBytes FROM openOutputs " +
-                        "WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(SELECT_OPEN_OUTPUT);
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)index);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
-            // Parse it.
-            int height = results.getInt(1);
-            BigInteger value = new BigInteger(results.getBytes(2));
-            // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
-            return new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
+            return CompactOutputCodec.decode(hash, index, results.getBytes(1));
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            closeResults(results);
         }
     }
 
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            pending.added.put(new StoredTransactionOutPoint(out), out);
+            return;
+        }
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes) " +
-                    "VALUES (?, ?, ?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setBytes(4, out.getValue().toByteArray());
-            s.setBytes(5, out.getScriptBytes());
+            PreparedStatement s = prepare(MERGE_OPEN_OUTPUT);
+            setOutputParameters(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
-            if (e.getErrorCode() != 23505)
-                throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
+            throw new BlockStoreException(e);
         }
     }
 
+    private void setOutputParameters(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int)out.getIndex());
+        s.setBytes(3, CompactOutputCodec.encode(out));
+    }
+
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            // An output added by this batch never needs to reach the database. Outputs removed from the database are
+            // checked for when the batch is committed.
+            if (pending.added.remove(key) == null) {
+                if (pending.removed.containsKey(key))
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+                pending.removed.put(key, out);
+            }
+            return;
+        }
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(DELETE_OPEN_OUTPUT);
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            int updateCount = s.getUpdateCount();
-            s.close();
-            if (updateCount == 0)
+            if (s.executeUpdate() == 0)
                 throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
         } catch (SQLException e) {
             throw new BlockStoreException(e);
@@ -713,20 +809,55 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        if (pendingOutputs.get() == null)
+            pendingOutputs.set(new PendingOutputs());
     }
 
     public void commitDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        PendingOutputs pending = pendingOutputs.get();
+        pendingOutputs.remove();
         try {
+            if (pending != null)
+                writePendingOutputs(pending);
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
+            rollback();
             throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            rollback();
+            throw e;
+        }
+    }
+
+    // Removes before adding, so that an output removed and then added again by the batch ends up in the database.
+    private void writePendingOutputs(PendingOutputs pending) throws SQLException, BlockStoreException {
+        if (!pending.removed.isEmpty()) {
+            PreparedStatement s = prepare(DELETE_OPEN_OUTPUT);
+            for (StoredTransactionOutput out : pending.removed.values()) {
+                s.setBytes(1, out.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int)out.getIndex());
+                s.addBatch();
+            }
+            for (int updateCount : s.executeBatch())
+                if (updateCount == 0)
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+        }
+        if (!pending.added.isEmpty()) {
+            PreparedStatement s = prepare(MERGE_OPEN_OUTPUT);
+            for (StoredTransactionOutput out : pending.added.values()) {
+                setOutputParameters(s, out);
+                s.addBatch();
+            }
+            s.executeBatch();
         }
     }
 
     public void abortDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        pendingOutputs.remove();
         try {
             conn.get().rollback();
             conn.get().setAutoCommit(true);
@@ -735,26 +866,42 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    private void rollback() {
+        try {
+            conn.get().rollback();
+            conn.get().setAutoCommit(true);
+        } catch (SQLException e) {
+            log.error("Failed to roll back a failed batch write", e);
+        }
+    }
+
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        PendingOutputs pending = pendingOutputs.get();
+        int removed = 0;
+        if (pending != null) {
+            for (int i = 0; i < numOutputs; i++) {
+                StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, i);
+                if (pending.added.containsKey(key))
+                    return true;
+                if (pending.removed.containsKey(key))
+                    removed++;
+            }
+        }
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
+            PreparedStatement s = prepare(COUNT_OPEN_OUTPUTS);
             s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
             int count = results.getInt(1);
-            return count != 0;
+            return count > removed;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            closeResults(results);
         }
     }
 }
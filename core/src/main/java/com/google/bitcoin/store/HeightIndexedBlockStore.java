@@ -0,0 +1,34 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.StoredBlock;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link BlockStore} that can look up the blocks of its best chain, the chain ending at
+ * {@link BlockStore#getChainHead()}, by height instead of following the previous block hashes back from the head.
+ */
+public interface HeightIndexedBlockStore extends BlockStore {
+    /**
+     * Returns the block at the given height on the chain ending at the chain head, or null if the store no longer
+     * holds it or the height is above the chain head.
+     */
+    @Nullable
+    StoredBlock getBestChainBlock(int height) throws BlockStoreException;
+}
@@ -0,0 +1,996 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A full pruned block store that keeps everything in an append-only, memory mapped log in the given directory,
+ * without a database. Unspent outputs, headers and undo blocks are found through hash tables in memory that hold the
+ * position of each record in the log, so looking up or changing an output costs a hash probe and, for a change, an
+ * append, rather than a round trip through SQL.</p>
+ *
+ * <p>Removing an output or an undo block appends a record saying so, which leaves the original record in the log as
+ * garbage. Once there is more garbage than live data a background thread copies the live records into a new log,
+ * which then replaces the old one. Writes carry on while the copy is made.</p>
+ *
+ * <p>Writes made between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are held in
+ * memory by the thread making them and appended to the log as one batch on commit. A batch is either completely in
+ * the log after a crash or not at all. Writes outside a batch are committed straight away.</p>
+ *
+ * <p>By default each commit writes the log to disk before returning, so a committed batch survives the machine
+ * crashing or losing power as well as the process dying. {@link #setSyncIntervalMsec(long)} trades that for speed by
+ * grouping commits: the log is then only written to disk by a commit at least that long after the last write, or by
+ * {@link #close()}, and the batches committed in between can be lost, though never partly, if the machine crashes.
+ * Batches are never lost when only the process dies, as the operating system still writes them out.</p>
+ *
+ * <p>The index has to be rebuilt by reading the whole log when the store is opened, and needs memory for every
+ * unspent output and header.</p>
+ */
+public class LogFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LogFullPrunedBlockStore.class);
+
+    private static final Pattern LOG_FILE_NAME = Pattern.compile("chain-(\\d+)\\.log");
+
+    // Record types. Layouts of the payloads:
+    //   HEADER                   32 bytes hash, 1 byte wasUndoable flag, StoredBlock in compact form
+    //   UNDOABLE_BLOCK           32 bytes hash, 4 bytes height, 1 byte kind, the undo data as stored by H2
+    //   UNDOABLE_BLOCKS_REMOVED  4 bytes height, every undo block at or below which is removed
+    //   OUTPUT_ADDED             32 bytes hash, 4 bytes index, 4 bytes height, 8 bytes value, the script
+    //   OUTPUT_REMOVED           32 bytes hash, 4 bytes index
+    //   CHAIN_HEAD               32 bytes hash
+    //   VERIFIED_CHAIN_HEAD      32 bytes hash
+    private static final byte HEADER = 1;
+    private static final byte UNDOABLE_BLOCK = 2;
+    private static final byte UNDOABLE_BLOCKS_REMOVED = 3;
+    private static final byte OUTPUT_ADDED = 4;
+    private static final byte OUTPUT_REMOVED = 5;
+    private static final byte CHAIN_HEAD = 6;
+    private static final byte VERIFIED_CHAIN_HEAD = 7;
+
+    private static final byte UNDO_TX_OUT_CHANGES = 0;
+    private static final byte UNDO_TRANSACTIONS = 1;
+
+    private static final int HASH_SIZE = 32;
+    private static final int OUTPUT_HEADER_SIZE = HASH_SIZE + 4 + 4 + 8;
+
+    /** Compaction doesn't start until the log holds at least this much garbage, unless set otherwise. */
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 2L * BlockStoreLog.REGION_SIZE;
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int fullStoreDepth;
+    private final ReentrantLock lock = Threading.lock("LogFullPrunedBlockStore");
+
+    // Used to stop other applications/processes from opening the store.
+    private RandomAccessFile lockFile;
+    private FileLock fileLock;
+
+    // Everything below is guarded by lock.
+    private BlockStoreLog storeLog;
+    private long generation;
+    private final LogPositionIndex headers = new LogPositionIndex();
+    private final LogPositionIndex outputs = new LogPositionIndex();
+    private final Map<Sha256Hash, Long> undoableBlocks = new HashMap<Sha256Hash, Long>();
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+    // Bytes taken by the records the indexes point at. Everything else in the log is garbage.
+    private long liveBytes;
+    private long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private long syncIntervalMsec;
+    private long lastSyncMsec;
+    @Nullable private Thread compactionThread;
+    private volatile boolean closing;
+    // Reused to build the payloads of records.
+    private byte[] scratch = new byte[256];
+
+    private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+
+    /**
+     * Opens the store in the given directory, creating the directory if it's missing.
+     *
+     * @param fullStoreDepth the number of undo blocks kept below the verified chain head, see
+     *                       {@link FullPrunedBlockStore}
+     */
+    public LogFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        lock.lock();
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            lockFile = new RandomAccessFile(new File(directory, "lock"), "rw");
+            fileLock = lockFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store directory is already locked by another process");
+            openLog();
+        } catch (IOException e) {
+            closeQuietly();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeQuietly();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private File logFile(long generation) {
+        return new File(directory, "chain-" + generation + ".log");
+    }
+
+    // Opens the newest complete log, deletes the others and reads the log into the indexes.
+    private void openLog() throws IOException, BlockStoreException {
+        TreeMap<Long, File> files = new TreeMap<Long, File>(Collections.reverseOrder());
+        File[] listing = directory.listFiles();
+        if (listing != null) {
+            for (File file : listing) {
+                Matcher matcher = LOG_FILE_NAME.matcher(file.getName());
+                if (matcher.matches())
+                    files.put(Long.parseLong(matcher.group(1)), file);
+            }
+        }
+        for (Map.Entry<Long, File> entry : files.entrySet()) {
+            if (storeLog == null) {
+                storeLog = BlockStoreLog.open(entry.getValue());
+                if (storeLog != null) {
+                    generation = entry.getKey();
+                    continue;
+                }
+            }
+            // Older, or left over from a compaction that didn't finish.
+            log.info("Deleting " + entry.getValue());
+            if (!entry.getValue().delete())
+                log.warn("Could not delete " + entry.getValue());
+        }
+        if (storeLog == null) {
+            log.info("Creating new block store in " + directory);
+            generation = 1;
+            storeLog = BlockStoreLog.create(logFile(generation), true);
+        }
+        replay();
+    }
+
+    private void replay() throws BlockStoreException {
+        byte[] chainHeadHash = null, verifiedChainHeadHash = null;
+        long count = 0;
+        for (long position = storeLog.first(0); position != -1; position = storeLog.next(position)) {
+            ByteBuffer payload = storeLog.getPayload(position);
+            switch (storeLog.getType(position)) {
+                case HEADER:
+                    indexHeader(payload, position);
+                    break;
+                case UNDOABLE_BLOCK:
+                    indexUndoableBlock(payload, position);
+                    break;
+                case UNDOABLE_BLOCKS_REMOVED:
+                    removeUndoableBlocks(payload.getInt(0));
+                    break;
+                case OUTPUT_ADDED:
+                    indexOutput(payload, position);
+                    break;
+                case OUTPUT_REMOVED:
+                    unindexOutput(payload);
+                    break;
+                case CHAIN_HEAD:
+                    chainHeadHash = readHash(payload);
+                    break;
+                case VERIFIED_CHAIN_HEAD:
+                    verifiedChainHeadHash = readHash(payload);
+                    break;
+                case BlockStoreLog.COMMIT:
+                    break;
+                default:
+                    throw new BlockStoreException("Unknown record type " + storeLog.getType(position) + " at " +
+                            position + " in " + storeLog.getFile());
+            }
+            count++;
+        }
+        log.info("Read {} records from {}: {} headers, {} unspent outputs, {} undo blocks",
+                count, storeLog.getFile(), headers.size(), outputs.size(), undoableBlocks.size());
+        if (chainHeadHash == null) {
+            createNewStore();
+            return;
+        }
+        chainHead = get(new Sha256Hash(chainHeadHash));
+        if (chainHead == null)
+            throw new BlockStoreException("Corrupt block store - head block not found");
+        verifiedChainHead = verifiedChainHeadHash == null ? null : get(new Sha256Hash(verifiedChainHeadHash));
+        if (verifiedChainHead == null)
+            throw new BlockStoreException("Corrupt block store - verified head block not found");
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            // Set up the genesis block. When we start out fresh, it is by definition the top of the chain.
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                    params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable.
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(),
+                    genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    /**
+     * Sets how much garbage the log must hold before it is compacted. Compaction also waits until there is more
+     * garbage than live data.
+     */
+    public void setCompactionThreshold(long bytes) {
+        lock.lock();
+        try {
+            compactionThreshold = bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the minimum time between writes of the log to disk. The default of zero writes it on every commit, see
+     * the class documentation for what a longer interval risks.
+     */
+    public void setSyncIntervalMsec(long syncIntervalMsec) {
+        checkArgument(syncIntervalMsec >= 0);
+        lock.lock();
+        try {
+            this.syncIntervalMsec = syncIntervalMsec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the size of the records in the current log, including garbage. */
+    public long getLogSize() {
+        lock.lock();
+        try {
+            checkOpen();
+            return storeLog.getSize();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the size of the records in the current log that are still needed. */
+    public long getLiveSize() {
+        lock.lock();
+        try {
+            checkOpen();
+            return liveBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() {
+        checkState(storeLog != null, "LogFullPrunedBlockStore is closed");
+    }
+
+    // The writes of a batch, visible only to the thread making them until they are committed.
+    private static class Batch {
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> addedOutputs =
+                new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        // Committed outputs removed by the batch.
+        final Set<StoredTransactionOutPoint> removedOutputs = new LinkedHashSet<StoredTransactionOutPoint>();
+        final Map<Sha256Hash, StoredBlock> headers = new LinkedHashMap<Sha256Hash, StoredBlock>();
+        final Set<Sha256Hash> undoableHeaders = new HashSet<Sha256Hash>();
+        final Map<Sha256Hash, StoredUndoableBlock> undoableBlocks = new LinkedHashMap<Sha256Hash, StoredUndoableBlock>();
+        final Map<Sha256Hash, Integer> undoableBlockHeights = new HashMap<Sha256Hash, Integer>();
+        // Committed undo blocks at or below this height are removed.
+        int removeUndoableBlocksHeight = Integer.MIN_VALUE;
+        StoredBlock chainHead;
+        StoredBlock verifiedChainHead;
+    }
+
+    // Returns the batch of this thread, or a new one that has to be committed by the caller if there is none.
+    private Batch writeBatch() {
+        Batch current = batch.get();
+        return current != null ? current : new Batch();
+    }
+
+    // Commits the batch if it isn't the one of this thread, which is committed by commitDatabaseBatchWrite().
+    private void maybeCommit(Batch b) throws BlockStoreException {
+        if (b != batch.get())
+            commit(b);
+    }
+
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (batch.get() == null)
+            batch.set(new Batch());
+    }
+
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        Batch b = batch.get();
+        if (b == null)
+            return;
+        batch.remove();
+        commit(b);
+    }
+
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        batch.remove();
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = writeBatch();
+            Sha256Hash hash = block.getHeader().getHash();
+            b.headers.put(hash, block);
+            maybeCommit(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = writeBatch();
+            Sha256Hash hash = storedBlock.getHeader().getHash();
+            b.headers.put(hash, storedBlock);
+            b.undoableHeaders.add(hash);
+            b.undoableBlocks.put(hash, undoableBlock);
+            b.undoableBlockHeights.put(hash, storedBlock.getHeight());
+            maybeCommit(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, false);
+    }
+
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    @Nullable
+    private StoredBlock get(Sha256Hash hash, boolean wasUndoable) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = batch.get();
+            if (b != null && b.headers.containsKey(hash)) {
+                // A header that was undoable stays so when it is put again.
+                if (!wasUndoable || b.undoableHeaders.contains(hash))
+                    return b.headers.get(hash);
+            }
+            byte[] hashBytes = hash.getBytes();
+            int slot = findHeader(hashBytes);
+            if (slot < 0)
+                return null;
+            ByteBuffer payload = storeLog.getPayload(headers.positionAt(slot));
+            if (wasUndoable && payload.get(HASH_SIZE) == 0)
+                return null;
+            payload.position(HASH_SIZE + 1);
+            return StoredBlock.deserializeCompact(params, payload);
+        } catch (ProtocolException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = batch.get();
+            if (b != null) {
+                StoredUndoableBlock block = b.undoableBlocks.get(hash);
+                if (block != null)
+                    return block;
+                if (b.removeUndoableBlocksHeight != Integer.MIN_VALUE && undoableBlocks.containsKey(hash) &&
+                        undoableBlockHeight(undoableBlocks.get(hash)) <= b.removeUndoableBlocksHeight)
+                    return null;
+            }
+            Long position = undoableBlocks.get(hash);
+            if (position == null)
+                return null;
+            ByteBuffer payload = storeLog.getPayload(position);
+            byte kind = payload.get(HASH_SIZE + 4);
+            byte[] data = new byte[payload.remaining() - HASH_SIZE - 4 - 1];
+            payload.position(HASH_SIZE + 4 + 1);
+            payload.get(data);
+            if (kind == UNDO_TX_OUT_CHANGES)
+                return new StoredUndoableBlock(hash, new TransactionOutputChanges(new ByteArrayInputStream(data)));
+            int offset = 0;
+            int numTxn = ((data[offset++] & 0xFF) << 0) |
+                         ((data[offset++] & 0xFF) << 8) |
+                         ((data[offset++] & 0xFF) << 16) |
+                         ((data[offset++] & 0xFF) << 24);
+            List<Transaction> transactionList = new LinkedList<Transaction>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = new Transaction(params, data, offset);
+                transactionList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactionList);
+        } catch (ProtocolException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = batch.get();
+            return b != null && b.chainHead != null ? b.chainHead : chainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = writeBatch();
+            b.chainHead = chainHead;
+            maybeCommit(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = batch.get();
+            return b != null && b.verifiedChainHead != null ? b.verifiedChainHead : verifiedChainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = writeBatch();
+            b.verifiedChainHead = chainHead;
+            StoredBlock currentChainHead = b.chainHead != null ? b.chainHead : this.chainHead;
+            if (currentChainHead == null || currentChainHead.getHeight() < chainHead.getHeight())
+                b.chainHead = chainHead;
+            // Remove the undo blocks too old to be needed for a re-org, as H2FullPrunedBlockStore does.
+            int height = chainHead.getHeight() - fullStoreDepth;
+            b.removeUndoableBlocksHeight = Math.max(b.removeUndoableBlocksHeight, height);
+            Iterator<Map.Entry<Sha256Hash, Integer>> it = b.undoableBlockHeights.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Sha256Hash, Integer> entry = it.next();
+                if (entry.getValue() <= height) {
+                    b.undoableBlocks.remove(entry.getKey());
+                    it.remove();
+                }
+            }
+            maybeCommit(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = batch.get();
+            if (b != null) {
+                StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+                StoredTransactionOutput out = b.addedOutputs.get(outPoint);
+                if (out != null)
+                    return out;
+                if (b.removedOutputs.contains(outPoint))
+                    return null;
+            }
+            int slot = findOutput(hash.getBytes(), index);
+            if (slot < 0)
+                return null;
+            ByteBuffer payload = storeLog.getPayload(outputs.positionAt(slot));
+            int height = payload.getInt(HASH_SIZE + 4);
+            BigInteger value = BigInteger.valueOf(payload.getLong(HASH_SIZE + 8));
+            byte[] scriptBytes = new byte[payload.remaining() - OUTPUT_HEADER_SIZE];
+            payload.position(OUTPUT_HEADER_SIZE);
+            payload.get(scriptBytes);
+            // The height was stored as returned by getHeight(), so it must not be changed again.
+            return new StoredTransactionOutput(hash, index, value, height, true, scriptBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = writeBatch();
+            b.addedOutputs.put(new StoredTransactionOutPoint(out), out);
+            maybeCommit(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = writeBatch();
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            boolean removed = b.addedOutputs.remove(outPoint) != null;
+            if (!b.removedOutputs.contains(outPoint) && findOutput(out.getHash().getBytes(), out.getIndex()) >= 0) {
+                b.removedOutputs.add(outPoint);
+                removed = true;
+            }
+            if (!removed)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from LogFullPrunedBlockStore that it didn't have!");
+            maybeCommit(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        lock.lock();
+        try {
+            for (int i = 0; i < numOutputs; i++)
+                if (getTransactionOutput(hash, i) != null)
+                    return true;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Appends the batch to the log as one commit and applies it to the indexes once it's there.
+    private void commit(Batch b) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            long[] removedPositions = new long[b.removedOutputs.size()];
+            long[] addedPositions = new long[b.addedOutputs.size()];
+            long[] headerPositions = new long[b.headers.size()];
+            long[] undoPositions = new long[b.undoableBlocks.size()];
+            try {
+                int i = 0;
+                for (StoredTransactionOutPoint outPoint : b.removedOutputs)
+                    removedPositions[i++] = appendOutputRemoved(outPoint);
+                i = 0;
+                for (StoredTransactionOutput out : b.addedOutputs.values())
+                    addedPositions[i++] = appendOutputAdded(out);
+                i = 0;
+                for (Map.Entry<Sha256Hash, StoredBlock> entry : b.headers.entrySet())
+                    headerPositions[i++] = appendHeader(entry.getKey(), entry.getValue(),
+                            b.undoableHeaders.contains(entry.getKey()) || wasUndoable(entry.getKey()));
+                // Removals first, so they don't affect undo blocks put after them.
+                if (b.removeUndoableBlocksHeight != Integer.MIN_VALUE) {
+                    ByteBuffer.wrap(scratch).putInt(b.removeUndoableBlocksHeight);
+                    storeLog.append(UNDOABLE_BLOCKS_REMOVED, scratch, 4);
+                }
+                i = 0;
+                for (Map.Entry<Sha256Hash, StoredUndoableBlock> entry : b.undoableBlocks.entrySet())
+                    undoPositions[i++] = appendUndoableBlock(entry.getValue(),
+                            b.undoableBlockHeights.get(entry.getKey()));
+                if (b.chainHead != null)
+                    appendHash(CHAIN_HEAD, b.chainHead.getHeader().getHash());
+                if (b.verifiedChainHead != null)
+                    appendHash(VERIFIED_CHAIN_HEAD, b.verifiedChainHead.getHeader().getHash());
+                storeLog.commit();
+            } catch (IOException e) {
+                storeLog.rollback();
+                throw new BlockStoreException(e);
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastSyncMsec >= syncIntervalMsec) {
+                storeLog.sync();
+                lastSyncMsec = now;
+            }
+            // The batch is in the log, now apply it exactly as replay() would.
+            for (long position : removedPositions)
+                unindexOutput(storeLog.getPayload(position));
+            for (long position : addedPositions)
+                indexOutput(storeLog.getPayload(position), position);
+            for (long position : headerPositions)
+                indexHeader(storeLog.getPayload(position), position);
+            if (b.removeUndoableBlocksHeight != Integer.MIN_VALUE)
+                removeUndoableBlocks(b.removeUndoableBlocksHeight);
+            for (long position : undoPositions)
+                indexUndoableBlock(storeLog.getPayload(position), position);
+            if (b.chainHead != null)
+                chainHead = b.chainHead;
+            if (b.verifiedChainHead != null)
+                verifiedChainHead = b.verifiedChainHead;
+            maybeStartCompaction();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private byte[] scratchBuffer(int size) {
+        if (scratch.length < size)
+            scratch = new byte[Math.max(size, scratch.length * 2)];
+        return scratch;
+    }
+
+    // True if the committed header of the block was put with an undo block.
+    private boolean wasUndoable(Sha256Hash hash) {
+        int slot = findHeader(hash.getBytes());
+        return slot >= 0 && storeLog.getPayload(headers.positionAt(slot)).get(HASH_SIZE) != 0;
+    }
+
+    private long appendOutputRemoved(StoredTransactionOutPoint outPoint) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(scratchBuffer(HASH_SIZE + 4));
+        buffer.put(outPoint.getHash().getBytes()).putInt((int) outPoint.getIndex());
+        return storeLog.append(OUTPUT_REMOVED, scratch, buffer.position());
+    }
+
+    private long appendOutputAdded(StoredTransactionOutput out) throws IOException {
+        byte[] scriptBytes = out.getScriptBytes();
+        ByteBuffer buffer = ByteBuffer.wrap(scratchBuffer(OUTPUT_HEADER_SIZE + scriptBytes.length));
+        buffer.put(out.getHash().getBytes()).putInt((int) out.getIndex()).putInt(out.getHeight())
+                .putLong(out.getValue().longValue()).put(scriptBytes);
+        return storeLog.append(OUTPUT_ADDED, scratch, buffer.position());
+    }
+
+    private long appendHeader(Sha256Hash hash, StoredBlock block, boolean wasUndoable) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(scratchBuffer(HASH_SIZE + 1 + StoredBlock.COMPACT_SERIALIZED_SIZE));
+        buffer.put(hash.getBytes()).put((byte) (wasUndoable ? 1 : 0));
+        block.serializeCompact(buffer);
+        return storeLog.append(HEADER, scratch, buffer.position());
+    }
+
+    private long appendUndoableBlock(StoredUndoableBlock undoableBlock, int height) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(undoableBlock.getHash().getBytes());
+        bos.write(height >> 24);
+        bos.write(height >> 16);
+        bos.write(height >> 8);
+        bos.write(height);
+        if (undoableBlock.getTxOutChanges() != null) {
+            bos.write(UNDO_TX_OUT_CHANGES);
+            undoableBlock.getTxOutChanges().serializeToStream(bos);
+        } else {
+            bos.write(UNDO_TRANSACTIONS);
+            int numTxn = undoableBlock.getTransactions().size();
+            bos.write((int) (0xFF & (numTxn >> 0)));
+            bos.write((int) (0xFF & (numTxn >> 8)));
+            bos.write((int) (0xFF & (numTxn >> 16)));
+            bos.write((int) (0xFF & (numTxn >> 24)));
+            for (Transaction tx : undoableBlock.getTransactions())
+                tx.bitcoinSerialize(bos);
+        }
+        byte[] payload = bos.toByteArray();
+        return storeLog.append(UNDOABLE_BLOCK, payload, payload.length);
+    }
+
+    private void appendHash(byte type, Sha256Hash hash) throws IOException {
+        storeLog.append(type, hash.getBytes(), HASH_SIZE);
+    }
+
+    // The index key of a hash, taken from its last bytes as the first ones may be zero.
+    private static long hashKey(byte[] hashBytes) {
+        return ByteBuffer.wrap(hashBytes).getLong(HASH_SIZE - 8);
+    }
+
+    private static long outputKey(byte[] hashBytes, long index) {
+        return hashKey(hashBytes) + index;
+    }
+
+    private static byte[] readHash(ByteBuffer payload) {
+        byte[] hashBytes = new byte[HASH_SIZE];
+        payload.position(0);
+        payload.get(hashBytes);
+        return hashBytes;
+    }
+
+    private static boolean hashEquals(ByteBuffer payload, byte[] hashBytes) {
+        for (int i = 0; i < HASH_SIZE; i++) {
+            if (payload.get(i) != hashBytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    private int findHeader(byte[] hashBytes) {
+        long key = hashKey(hashBytes);
+        for (int slot = headers.first(key); slot >= 0; slot = headers.next(key, slot)) {
+            if (hashEquals(storeLog.getPayload(headers.positionAt(slot)), hashBytes))
+                return slot;
+        }
+        return -1;
+    }
+
+    private int findOutput(byte[] hashBytes, long index) {
+        long key = outputKey(hashBytes, index);
+        for (int slot = outputs.first(key); slot >= 0; slot = outputs.next(key, slot)) {
+            ByteBuffer payload = storeLog.getPayload(outputs.positionAt(slot));
+            if (payload.getInt(HASH_SIZE) == (int) index && hashEquals(payload, hashBytes))
+                return slot;
+        }
+        return -1;
+    }
+
+    private void indexHeader(ByteBuffer payload, long position) {
+        byte[] hashBytes = readHash(payload);
+        int slot = findHeader(hashBytes);
+        if (slot >= 0) {
+            liveBytes -= storeLog.getRecordSize(headers.positionAt(slot));
+            headers.setPositionAt(slot, position);
+        } else {
+            headers.add(hashKey(hashBytes), position);
+        }
+        liveBytes += storeLog.getRecordSize(position);
+    }
+
+    private void indexOutput(ByteBuffer payload, long position) {
+        byte[] hashBytes = readHash(payload);
+        int index = payload.getInt(HASH_SIZE);
+        int slot = findOutput(hashBytes, index);
+        if (slot >= 0) {
+            liveBytes -= storeLog.getRecordSize(outputs.positionAt(slot));
+            outputs.setPositionAt(slot, position);
+        } else {
+            outputs.add(outputKey(hashBytes, index), position);
+        }
+        liveBytes += storeLog.getRecordSize(position);
+    }
+
+    private void unindexOutput(ByteBuffer payload) {
+        int slot = findOutput(readHash(payload), payload.getInt(HASH_SIZE));
+        if (slot >= 0) {
+            liveBytes -= storeLog.getRecordSize(outputs.positionAt(slot));
+            outputs.removeAt(slot);
+        }
+    }
+
+    private void indexUndoableBlock(ByteBuffer payload, long position) {
+        Long old = undoableBlocks.put(new Sha256Hash(readHash(payload)), position);
+        if (old != null)
+            liveBytes -= storeLog.getRecordSize(old);
+        liveBytes += storeLog.getRecordSize(position);
+    }
+
+    private int undoableBlockHeight(long position) {
+        return storeLog.getPayload(position).getInt(HASH_SIZE);
+    }
+
+    private void removeUndoableBlocks(int height) {
+        Iterator<Long> it = undoableBlocks.values().iterator();
+        while (it.hasNext()) {
+            long position = it.next();
+            if (undoableBlockHeight(position) <= height) {
+                liveBytes -= storeLog.getRecordSize(position);
+                it.remove();
+            }
+        }
+    }
+
+    // Compaction. Starts a thread that copies the live records into a new log once there is more garbage than live
+    // data. The copy is made from a snapshot of the indexes without holding the lock. The records appended while
+    // it runs are copied too once it's done, with the lock held, and then the new log replaces the old one.
+
+    private void maybeStartCompaction() {
+        long garbage = storeLog.getSize() - liveBytes;
+        if (compactionThread != null || closing || garbage < Math.max(liveBytes, compactionThreshold))
+            return;
+        log.info("Compacting {}: {} bytes of live records, {} bytes of garbage",
+                storeLog.getFile(), liveBytes, garbage);
+        final BlockStoreLog source = storeLog;
+        final long[] positions = livePositions();
+        final long snapshotEnd = source.getCommittedEnd();
+        final Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
+        final Sha256Hash verifiedChainHeadHash = verifiedChainHead.getHeader().getHash();
+        final File target = logFile(generation + 1);
+        compactionThread = new Thread("LogFullPrunedBlockStore compaction") {
+            @Override
+            public void run() {
+                compact(source, positions, snapshotEnd, chainHeadHash, verifiedChainHeadHash, target);
+            }
+        };
+        compactionThread.setDaemon(true);
+        compactionThread.start();
+    }
+
+    private long[] livePositions() {
+        long[] headerPositions = headers.sortedPositions();
+        long[] outputPositions = outputs.sortedPositions();
+        long[] result = new long[headerPositions.length + outputPositions.length + undoableBlocks.size()];
+        System.arraycopy(headerPositions, 0, result, 0, headerPositions.length);
+        System.arraycopy(outputPositions, 0, result, headerPositions.length, outputPositions.length);
+        int i = headerPositions.length + outputPositions.length;
+        for (long position : undoableBlocks.values())
+            result[i++] = position;
+        Arrays.sort(result);
+        return result;
+    }
+
+    private void compact(BlockStoreLog source, long[] positions, long snapshotEnd, Sha256Hash chainHeadHash,
+                         Sha256Hash verifiedChainHeadHash, File target) {
+        BlockStoreLog copy = null;
+        boolean switched = false;
+        try {
+            copy = BlockStoreLog.create(target, false);
+            // Record positions are only ever read here, so they can be copied while writes carry on.
+            long[] newPositions = new long[positions.length];
+            byte[] buffer = new byte[256];
+            for (int i = 0; i < positions.length && !closing; i++) {
+                ByteBuffer payload = source.getPayload(positions[i]);
+                if (buffer.length < payload.remaining())
+                    buffer = new byte[payload.remaining()];
+                int length = payload.remaining();
+                payload.get(buffer, 0, length);
+                newPositions[i] = copy.append(source.getType(positions[i]), buffer, length);
+            }
+            copy.append(CHAIN_HEAD, chainHeadHash.getBytes(), HASH_SIZE);
+            copy.append(VERIFIED_CHAIN_HEAD, verifiedChainHeadHash.getBytes(), HASH_SIZE);
+            copy.commit();
+            copy.force();
+            lock.lock();
+            try {
+                if (closing || storeLog != source)
+                    return;
+                // Copy the batches committed since the snapshot, which are few.
+                long[] from = Arrays.copyOf(positions, positions.length + 1024);
+                long[] to = Arrays.copyOf(newPositions, from.length);
+                int length = positions.length;
+                for (long position = source.first(snapshotEnd); position != -1; position = source.next(position)) {
+                    byte type = source.getType(position);
+                    if (type == BlockStoreLog.COMMIT) {
+                        copy.commit();
+                        continue;
+                    }
+                    ByteBuffer payload = source.getPayload(position);
+                    if (buffer.length < payload.remaining())
+                        buffer = new byte[payload.remaining()];
+                    int recordLength = payload.remaining();
+                    payload.get(buffer, 0, recordLength);
+                    if (length == from.length) {
+                        from = Arrays.copyOf(from, length * 2);
+                        to = Arrays.copyOf(to, length * 2);
+                    }
+                    from[length] = position;
+                    to[length++] = copy.append(type, buffer, recordLength);
+                }
+                copy.seal();
+                headers.translate(from, to, length);
+                outputs.translate(from, to, length);
+                for (Map.Entry<Sha256Hash, Long> entry : undoableBlocks.entrySet())
+                    entry.setValue(to[Arrays.binarySearch(from, 0, length, entry.getValue())]);
+                storeLog = copy;
+                generation++;
+                switched = true;
+                log.info("Compacted {} into {}: {} bytes", source.getFile(), target, copy.getSize());
+            } finally {
+                lock.unlock();
+            }
+            source.close();
+            if (!source.getFile().delete())
+                log.warn("Could not delete " + source.getFile());
+        } catch (IOException e) {
+            log.error("Failed to compact " + source.getFile(), e);
+        } finally {
+            if (!switched && copy != null) {
+                try {
+                    copy.close();
+                } catch (IOException e) {
+                    log.warn("Could not close " + target, e);
+                }
+                if (!target.delete())
+                    log.warn("Could not delete " + target);
+            }
+            lock.lock();
+            try {
+                compactionThread = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Waits for a running compaction to finish. */
+    void waitForCompaction() throws InterruptedException {
+        Thread thread;
+        lock.lock();
+        try {
+            thread = compactionThread;
+        } finally {
+            lock.unlock();
+        }
+        if (thread != null)
+            thread.join();
+    }
+
+    public void close() throws BlockStoreException {
+        closing = true;
+        try {
+            waitForCompaction();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BlockStoreException(e);
+        }
+        lock.lock();
+        try {
+            if (storeLog != null)
+                storeLog.close();
+            storeLog = null;
+            if (fileLock != null)
+                fileLock.release();
+            fileLock = null;
+            if (lockFile != null)
+                lockFile.close();
+            lockFile = null;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (BlockStoreException e) {
+            log.warn("Failed to close block store", e);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import java.util.Arrays;
+
+/**
+ * <p>An open addressing hash table from 64 bit keys to positions in a {@link BlockStoreLog}, held in two long arrays
+ * so that millions of entries don't cost an object each.</p>
+ *
+ * <p>Keys are derived from part of a hash and so are not unique. Callers walk the entries with a key using
+ * {@link #first(long)} and {@link #next(long, int)} and check the record at each position to find the one they
+ * want. Collisions are resolved by linear probing and removals shift the following entries back, so the table never
+ * fills up with tombstones.</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+class LogPositionIndex {
+    // Position zero is inside the log header, so it marks an empty slot.
+    private static final long EMPTY = 0;
+
+    private long[] keys;
+    private long[] positions;
+    private int mask;
+    private int size;
+
+    LogPositionIndex() {
+        allocate(1024);
+    }
+
+    private void allocate(int slots) {
+        keys = new long[slots];
+        positions = new long[slots];
+        mask = slots - 1;
+    }
+
+    /** Returns the number of entries. */
+    int size() {
+        return size;
+    }
+
+    /** Returns the slot of the first entry with the given key, or -1 if there is none. */
+    int first(long key) {
+        return find(key, home(key));
+    }
+
+    /** Returns the slot of the next entry after <tt>slot</tt> with the given key, or -1 if there is none. */
+    int next(long key, int slot) {
+        return find(key, (slot + 1) & mask);
+    }
+
+    private int find(long key, int slot) {
+        while (positions[slot] != EMPTY) {
+            if (keys[slot] == key)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    long positionAt(int slot) {
+        return positions[slot];
+    }
+
+    void setPositionAt(int slot, long position) {
+        positions[slot] = position;
+    }
+
+    /** Adds an entry. Adding the same key twice adds two entries. */
+    void add(long key, long position) {
+        if (position == EMPTY)
+            throw new IllegalArgumentException("Position zero can't be indexed");
+        // Keep the table at most half full so probe sequences stay short.
+        if ((size + 1) * 2 > keys.length) {
+            long[] oldKeys = keys;
+            long[] oldPositions = positions;
+            allocate(keys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldPositions[i] != EMPTY)
+                    insert(oldKeys[i], oldPositions[i]);
+            }
+        }
+        insert(key, position);
+        size++;
+    }
+
+    private void insert(long key, long position) {
+        int slot = home(key);
+        while (positions[slot] != EMPTY)
+            slot = (slot + 1) & mask;
+        keys[slot] = key;
+        positions[slot] = position;
+    }
+
+    /** Removes the entry in the given slot. Other slots returned before the removal are no longer valid. */
+    void removeAt(int slot) {
+        int free = slot;
+        for (int next = (free + 1) & mask; positions[next] != EMPTY; next = (next + 1) & mask) {
+            // Move back any entry whose probe sequence passes through the free slot.
+            int home = home(keys[next]);
+            boolean movable = free <= next ? (home <= free || home > next) : (home <= free && home > next);
+            if (movable) {
+                keys[free] = keys[next];
+                positions[free] = positions[next];
+                free = next;
+            }
+        }
+        keys[free] = 0;
+        positions[free] = EMPTY;
+        size--;
+    }
+
+    /** Returns the positions of all entries, sorted. */
+    long[] sortedPositions() {
+        long[] result = new long[size];
+        int i = 0;
+        for (long position : positions) {
+            if (position != EMPTY)
+                result[i++] = position;
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Moves every entry to a new position. <tt>from</tt> must be sorted and hold the current position of every entry,
+     * which is replaced by the position at the same index in <tt>to</tt>.
+     */
+    void translate(long[] from, long[] to, int length) {
+        for (int i = 0; i < positions.length; i++) {
+            if (positions[i] == EMPTY)
+                continue;
+            int found = Arrays.binarySearch(from, 0, length, positions[i]);
+            if (found < 0)
+                throw new IllegalStateException("No new position for log record at " + positions[i]);
+            positions[i] = to[found];
+        }
+    }
+
+    private int home(long key) {
+        // Keys are taken straight from hashes, but mix them anyway in case some bits are fixed.
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
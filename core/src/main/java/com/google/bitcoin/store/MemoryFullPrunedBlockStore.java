@@ -231,7 +231,8 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     private TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
     private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
     //TODO: Use something more suited to remove-heavy use?
-    private TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput> transactionOutputMap;
+    // Outputs are kept in the encoding of CompactOutputCodec, which is a fraction of the size of the objects.
+    private TransactionalHashMap<StoredTransactionOutPoint, byte[]> transactionOutputMap;
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
     private int fullStoreDepth;
@@ -244,7 +245,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
         blockMap = new TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag>();
         fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock>();
-        transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, byte[]>();
         this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
         // Insert the genesis block.
         try {
@@ -329,12 +330,13 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     @Nullable
     public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        return transactionOutputMap.get(new StoredTransactionOutPoint(hash, index));
+        byte[] bytes = transactionOutputMap.get(new StoredTransactionOutPoint(hash, index));
+        return bytes == null ? null : CompactOutputCodec.decode(hash, index, bytes);
     }
 
     public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        transactionOutputMap.put(new StoredTransactionOutPoint(out), out);
+        transactionOutputMap.put(new StoredTransactionOutPoint(out), CompactOutputCodec.encode(out));
     }
 
     public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
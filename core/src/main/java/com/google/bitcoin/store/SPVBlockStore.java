@@ -29,7 +29,6 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
@@ -42,8 +41,15 @@ import static com.google.common.base.Preconditions.checkState;
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
+ *
+ * <p>Blocks are looked up through a hash index kept in a second file, named after the store file with ".idx"
+ * appended. It is created from the ring buffer if it's missing, so store files written without one can still be
+ * opened. The blocks of the best chain can also be found by height, see {@link #getBestChainBlock(int)}.</p>
+ *
+ * <p>The number of headers the ring holds is fixed when the file is created, but can be changed later with
+ * {@link #resize(int)}.</p>
  */
-public class SPVBlockStore implements BlockStore {
+public class SPVBlockStore implements HeightIndexedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
 
     /** The default number of headers that will be stored in the ring buffer. */
@@ -85,27 +91,52 @@ public class SPVBlockStore implements BlockStore {
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
+    // Finds the ring buffer record of a block that isn't in blockCache, so get() doesn't have to scan the ring.
+    private SPVBlockStoreHashIndex hashIndex;
+    private final File file;
+
+    // Offsets of the ring records of the best chain, indexed by height modulo numHeaders. The entries from
+    // heightIndexBottom to heightIndexTop are valid, heightIndexTop being the chain head or -1 if nothing is indexed.
+    // The index starts out holding just the chain head and is extended downwards when older heights are asked for.
+    private int[] heightIndex;
+    private int heightIndexTop = -1;
+    private int heightIndexBottom;
 
     /**
-     * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
-     * will block on disk.
+     * Creates and initializes an SPV block store. Will create the given file if it's missing, holding
+     * {@link #DEFAULT_NUM_HEADERS} headers. An existing file keeps the number of headers it was created with. This
+     * operation will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
-        checkNotNull(file);
+        this(params, file, 0);
+    }
+
+    /**
+     * Creates and initializes an SPV block store holding the given number of headers. Will create the given file if
+     * it's missing, or {@link #resize(int)} it if it exists and holds a different number of headers. A capacity of
+     * zero behaves like {@link #SPVBlockStore(NetworkParameters, File)}. This operation will block on disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int capacity) throws BlockStoreException {
+        this.file = checkNotNull(file);
         this.params = checkNotNull(params);
+        checkArgument(capacity >= 0);
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
-            long fileSize = getFileSize();
             if (!exists) {
                 log.info("Creating new SPV block chain file " + file);
-                randomAccessFile.setLength(fileSize);
-            } else if (randomAccessFile.length() != fileSize) {
-                throw new BlockStoreException("File size on disk does not match expected size: " +
-                        randomAccessFile.length() + " vs " + fileSize);
+                this.numHeaders = capacity > 0 ? capacity : DEFAULT_NUM_HEADERS;
+                randomAccessFile.setLength(getFileSize());
+            } else {
+                long ringBytes = randomAccessFile.length() - FILE_PROLOGUE_BYTES;
+                if (ringBytes < RECORD_SIZE || ringBytes % RECORD_SIZE != 0 || ringBytes > Integer.MAX_VALUE - FILE_PROLOGUE_BYTES)
+                    throw new BlockStoreException("File size on disk is not a valid SPV block store size: " +
+                            randomAccessFile.length());
+                this.numHeaders = (int) (ringBytes / RECORD_SIZE);
             }
+            long fileSize = getFileSize();
+            heightIndex = new int[numHeaders];
 
             FileChannel channel = randomAccessFile.getChannel();
             fileLock = channel.tryLock();
@@ -126,6 +157,9 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                openHashIndex();
+                if (capacity > 0 && capacity != numHeaders)
+                    resize(capacity);
             } else {
                 initNewStore(params);
             }
@@ -147,6 +181,7 @@ public class SPVBlockStore implements BlockStore {
         lock.lock();
         try {
             setRingCursor(buffer, FILE_PROLOGUE_BYTES);
+            openHashIndex();
         } finally {
             lock.unlock();
         }
@@ -156,97 +191,259 @@ public class SPVBlockStore implements BlockStore {
         setChainHead(storedGenesis);
     }
 
+    private void openHashIndex() throws IOException {
+        File indexFile = SPVBlockStoreHashIndex.indexFileFor(file);
+        hashIndex = SPVBlockStoreHashIndex.open(indexFile, numHeaders, buffer, getRingCursor(buffer));
+    }
+
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public int getFileSize() {
         return RECORD_SIZE * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
     }
 
-    public void put(StoredBlock block) throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
+    /** Returns the number of headers the ring buffer holds before the oldest ones are overwritten. */
+    public int getCapacity() {
+        lock.lock();
+        try {
+            return numHeaders;
+        } finally { lock.unlock(); }
+    }
 
+    /**
+     * <p>Changes the number of headers the store holds, keeping the newest headers that fit. The file is resized and
+     * mapped again while the store stays open, blocking other users of the store until it is done.</p>
+     *
+     * <p>The headers are rewritten in place, so if the process dies part way through the file may be left
+     * corrupted and the chain has to be downloaded again. Some platforms, notably Windows, don't allow a mapped file
+     * to be truncated, in which case shrinking the store fails and it is left as it was.</p>
+     */
+    public void resize(int capacity) throws BlockStoreException {
+        checkArgument(capacity > 0 && capacity <= (Integer.MAX_VALUE - FILE_PROLOGUE_BYTES) / RECORD_SIZE);
         lock.lock();
         try {
+            final MappedByteBuffer buffer = this.buffer;
+            if (buffer == null) throw new BlockStoreException("Store closed");
+            if (capacity == numHeaders)
+                return;
+            log.info("Resizing SPV block chain file {} from {} to {} headers", file, numHeaders, capacity);
+            // Copy out the newest records that fit, oldest first.
+            final int kept = Math.min(numHeaders, capacity);
+            final int cursor = getRingCursor(buffer);
+            byte[] records = new byte[kept * RECORD_SIZE];
+            int start = cursor - records.length;
+            if (start < FILE_PROLOGUE_BYTES) {
+                // The records wrap around the end of the ring.
+                int wrapped = FILE_PROLOGUE_BYTES - start;
+                buffer.position(getFileSize() - wrapped);
+                buffer.get(records, 0, wrapped);
+                buffer.position(FILE_PROLOGUE_BYTES);
+                buffer.get(records, wrapped, records.length - wrapped);
+            } else {
+                buffer.position(start);
+                buffer.get(records);
+            }
+            final int newFileSize = capacity * RECORD_SIZE + FILE_PROLOGUE_BYTES;
+            buffer.force();
+            // The old mapping must not be touched once the file is truncated.
+            hashIndex.close(buffer, cursor);
+            try {
+                randomAccessFile.setLength(newFileSize);
+            } catch (IOException e) {
+                // Leave the store as it was.
+                openHashIndex();
+                throw e;
+            }
+            MappedByteBuffer newBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newFileSize);
+            numHeaders = capacity;
+            newBuffer.position(FILE_PROLOGUE_BYTES);
+            newBuffer.put(records);
+            // Anything after the copied records must look like it was never written.
+            byte[] zeros = new byte[RECORD_SIZE];
+            while (newBuffer.position() < newFileSize)
+                newBuffer.put(zeros);
+            setRingCursor(newBuffer, FILE_PROLOGUE_BYTES + records.length);
+            newBuffer.force();
+            this.buffer = newBuffer;
+            openHashIndex();
+            heightIndex = new int[capacity];
+            heightIndexTop = -1;
+            // Blocks which didn't fit are gone, so they mustn't be found in the cache either.
+            blockCache.clear();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally { lock.unlock(); }
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.lock();
+        try {
+            final MappedByteBuffer buffer = this.buffer;
+            if (buffer == null) throw new BlockStoreException("Store closed");
             int cursor = getRingCursor(buffer);
             if (cursor == getFileSize()) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            // The block in the record we are about to overwrite drops out of the store.
+            byte[] oldHashBytes = new byte[32];
+            buffer.position(cursor);
+            buffer.get(oldHashBytes);
+            hashIndex.remove(oldHashBytes, cursor);
+            dropFromHeightIndex(buffer, cursor);
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
             notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
+            hashIndex.put(hash.getBytes(), cursor, buffer);
             blockCache.put(hash, block);
         } finally { lock.unlock(); }
     }
 
     @Nullable
     public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
-
         lock.lock();
-        //long start = System.currentTimeMillis();
-        //long cacheTime = 0;
-        //long notFoundTime = 0;
-        //long cursorTime = 0;
-        //String found = "cache";
         try {
+            final MappedByteBuffer buffer = this.buffer;
+            if (buffer == null) throw new BlockStoreException("Store closed");
             StoredBlock cacheHit = blockCache.get(hash);
-           //cacheTime = System.currentTimeMillis();
             if (cacheHit != null)
                 return cacheHit;
             if (notFoundCache.get(hash) != null)
                 return null;
-            //notFoundTime = System.currentTimeMillis();
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-              //      cursorTime = System.currentTimeMillis();
-                //    found = "cursor";
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
-            //found = "not found";
-            return null;
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);  // Cannot happen.
+            int cursor = hashIndex.find(hash.getBytes(), buffer);
+            if (cursor < 0) {
+                notFoundCache.put(hash, notFoundMarker);
+                return null;
+            }
+            return readRecord(buffer, hash, cursor);
         } finally {
             lock.unlock();
-            //if(!found.equals("cache"))
-              //  log.info("KGW BlockStore.get {} {} ms; cache {} ms; cursor {} ms", found, System.currentTimeMillis() - start, cacheTime-start, cursorTime-cacheTime);
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The first lookup of an old height after the store is opened follows the chain back from the oldest height
+     * looked up so far, later ones are a direct lookup.</p>
+     */
+    @Nullable
+    public StoredBlock getBestChainBlock(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            final MappedByteBuffer buffer = this.buffer;
+            if (buffer == null) throw new BlockStoreException("Store closed");
+            if (heightIndexTop < 0)
+                updateHeightIndex(buffer, getChainHead());
+            if (height < 0 || height > heightIndexTop)
+                return null;
+            while (heightIndexBottom > height) {
+                if (!extendHeightIndex(buffer))
+                    return null;
+            }
+            int cursor = heightIndex[height % numHeaders];
+            buffer.position(cursor);
+            byte[] hashBytes = new byte[32];
+            buffer.get(hashBytes);
+            Sha256Hash hash = new Sha256Hash(hashBytes);
+            StoredBlock cacheHit = blockCache.get(hash);
+            if (cacheHit != null)
+                return cacheHit;
+            return readRecord(buffer, hash, cursor);
+        } finally { lock.unlock(); }
+    }
+
+    private StoredBlock readRecord(ByteBuffer buffer, Sha256Hash hash, int cursor) {
+        try {
+            buffer.position(cursor + 32);
+            StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
+            blockCache.put(hash, storedBlock);
+            return storedBlock;
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    // Makes the height index end at the given block, which must be in the store. The blocks above the point where
+    // the index already agrees with the new chain are replaced, so a re-org only touches the blocks that changed.
+    private void updateHeightIndex(ByteBuffer buffer, StoredBlock newHead) {
+        int cursor = hashIndex.find(newHead.getHeader().getHash().getBytes(), buffer);
+        int height = newHead.getHeight();
+        if (cursor < 0) {
+            heightIndexTop = -1;
+            return;
+        }
+        if (heightIndexTop < 0) {
+            heightIndex[height % numHeaders] = cursor;
+            heightIndexTop = heightIndexBottom = height;
+            return;
+        }
+        final int newTop = height;
+        while (true) {
+            final int slot = height % numHeaders;
+            if (height >= heightIndexBottom && height <= heightIndexTop && heightIndex[slot] == cursor)
+                break;  // Joined the chain already in the index.
+            heightIndex[slot] = cursor;
+            if (height <= heightIndexBottom || newTop - height + 1 >= numHeaders) {
+                // Forked below the bottom of the index, or it's full.
+                heightIndexBottom = height;
+                break;
+            }
+            int prev = hashIndex.find(getPrevHashBytes(buffer, cursor), buffer);
+            if (prev < 0) {
+                heightIndexBottom = height;
+                break;
+            }
+            cursor = prev;
+            height--;
+        }
+        heightIndexTop = newTop;
+        // Slots reused by heights above the old top may have held entries for the bottom of the index.
+        heightIndexBottom = Math.max(heightIndexBottom, newTop - numHeaders + 1);
+    }
+
+    // Adds the parent of the lowest block in the height index. Returns false if it isn't in the store.
+    private boolean extendHeightIndex(ByteBuffer buffer) {
+        if (heightIndexBottom == 0 || heightIndexTop - heightIndexBottom + 1 >= numHeaders)
+            return false;
+        int prev = hashIndex.find(getPrevHashBytes(buffer, heightIndex[heightIndexBottom % numHeaders]), buffer);
+        if (prev < 0)
+            return false;
+        heightIndexBottom--;
+        heightIndex[heightIndexBottom % numHeaders] = prev;
+        return true;
+    }
+
+    // Called before the record at the given offset is overwritten.
+    private void dropFromHeightIndex(ByteBuffer buffer, int cursor) {
+        if (heightIndexTop < 0)
+            return;
+        int height = buffer.getInt(cursor + 32 + StoredBlock.CHAIN_WORK_BYTES);
+        if (height < heightIndexBottom || height > heightIndexTop || heightIndex[height % numHeaders] != cursor)
+            return;
+        if (height == heightIndexTop)
+            heightIndexTop = -1;
+        else
+            heightIndexBottom = height + 1;
+    }
+
+    private static byte[] getPrevHashBytes(ByteBuffer buffer, int cursor) {
+        // The previous block hash follows the version in the header, in the reversed byte order used on the wire.
+        byte[] bytes = new byte[32];
+        buffer.position(cursor + 32 + StoredBlock.CHAIN_WORK_BYTES + 4 + 4);
+        buffer.get(bytes);
+        return Utils.reverseBytes(bytes);
+    }
+
     protected StoredBlock lastChainHead = null;
 
     public StoredBlock getChainHead() throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
-
         lock.lock();
         try {
+            final MappedByteBuffer buffer = this.buffer;
+            if (buffer == null) throw new BlockStoreException("Store closed");
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
                 buffer.position(8);
@@ -262,25 +459,29 @@ public class SPVBlockStore implements BlockStore {
     }
 
     public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
-
         lock.lock();
         try {
+            final MappedByteBuffer buffer = this.buffer;
+            if (buffer == null) throw new BlockStoreException("Store closed");
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
+            updateHeightIndex(buffer, chainHead);
         } finally { lock.unlock(); }
     }
 
     public void close() throws BlockStoreException {
+        lock.lock();
         try {
             buffer.force();
+            hashIndex.close(buffer, getRingCursor(buffer));
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
             randomAccessFile.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
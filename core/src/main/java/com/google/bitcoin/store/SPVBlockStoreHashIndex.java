@@ -0,0 +1,270 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A memory mapped open addressing hash table that maps block hashes to the records of an {@link SPVBlockStore}
+ * ring buffer, so a block that isn't in the store's caches can be found without scanning the ring.</p>
+ *
+ * <p>Each slot holds the last four bytes of a block hash as a tag and the number of the ring record holding the
+ * block. Collisions are resolved by linear probing and removals shift the following entries back, so no tombstones
+ * build up as the ring wraps around. A tag match is confirmed by comparing the full hash stored in the ring.</p>
+ *
+ * <p>The index lives in a separate file next to the ring so existing store files can be opened unchanged. When the
+ * store is closed the index records the ring cursor and the newest hash in the ring. If they don't match on the
+ * next open, because the index is missing, the process died or another program wrote to the ring, the index is
+ * rebuilt from the ring.</p>
+ *
+ * <p>Not thread safe, callers must hold the store lock.</p>
+ */
+class SPVBlockStoreHashIndex {
+    private static final Logger log = LoggerFactory.getLogger(SPVBlockStoreHashIndex.class);
+
+    static final String HEADER_MAGIC = "SPVI";
+
+    // File format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes number of slots in the table
+    //   4 bytes number of records in the ring
+    //   4 bytes ring cursor when the store was closed, or zero while it is open
+    //   32 bytes hash of the newest record in the ring when the store was closed
+    //
+    // For each slot (8 bytes)
+    //   4 bytes tag, the last four bytes of the block hash
+    //   4 bytes ring record number plus one, zero if the slot is empty
+    private static final int PROLOGUE_BYTES = 64;
+    private static final int SLOT_SIZE = 8;
+    private static final int CURSOR_OFFSET = 12;
+    private static final int NEWEST_HASH_OFFSET = 16;
+
+    private final int numHeaders;
+    private final int numSlots;
+    private final int mask;
+    private final RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private final byte[] scratch = new byte[32];
+
+    private SPVBlockStoreHashIndex(File file, int numHeaders) throws IOException {
+        this.numHeaders = numHeaders;
+        // Keep the table at most half full so probe sequences stay short.
+        int slots = Integer.highestOneBit(numHeaders) << 2;
+        this.numSlots = slots;
+        this.mask = slots - 1;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+    }
+
+    /** Returns the file the index for the given store file is kept in. */
+    static File indexFileFor(File storeFile) {
+        return new File(storeFile.getPath() + ".idx");
+    }
+
+    /**
+     * Opens the index for a ring of <tt>numHeaders</tt> records, creating or rebuilding it from the ring if it is
+     * missing or out of date. The ring must already be initialized.
+     */
+    static SPVBlockStoreHashIndex open(File file, int numHeaders, ByteBuffer ring, int ringCursor) throws IOException {
+        checkArgument(numHeaders > 0);
+        SPVBlockStoreHashIndex index = new SPVBlockStoreHashIndex(file, numHeaders);
+        try {
+            boolean valid = index.map(ring, ringCursor);
+            if (!valid) {
+                log.info("Rebuilding SPV block store index " + file);
+                index.rebuild(ring, ringCursor);
+            }
+            // Until close() records the sync point again, the index must be considered stale.
+            index.buffer.putInt(CURSOR_OFFSET, 0);
+            index.buffer.force();
+        } catch (IOException e) {
+            index.randomAccessFile.close();
+            throw e;
+        }
+        return index;
+    }
+
+    private int fileSize() {
+        return PROLOGUE_BYTES + numSlots * SLOT_SIZE;
+    }
+
+    // Maps the file and returns true if it holds an index that is in sync with the ring.
+    private boolean map(ByteBuffer ring, int ringCursor) throws IOException {
+        boolean sized = randomAccessFile.length() == fileSize();
+        if (!sized)
+            randomAccessFile.setLength(fileSize());
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize());
+        if (!sized)
+            return false;
+        byte[] header = new byte[4];
+        buffer.position(0);
+        buffer.get(header);
+        if (!new String(header, "US-ASCII").equals(HEADER_MAGIC) || buffer.getInt(4) != numSlots ||
+                buffer.getInt(8) != numHeaders || buffer.getInt(CURSOR_OFFSET) != ringCursor)
+            return false;
+        byte[] newestHash = new byte[32];
+        buffer.position(NEWEST_HASH_OFFSET);
+        buffer.get(newestHash);
+        ring.position(previousRecord(ringCursor));
+        ring.get(scratch);
+        return Arrays.equals(scratch, newestHash);
+    }
+
+    /** Clears the index and adds every record in the ring, oldest first so the newest copy of a block wins. */
+    void rebuild(ByteBuffer ring, int ringCursor) throws IOException {
+        buffer.position(0);
+        buffer.put(HEADER_MAGIC.getBytes("US-ASCII"));
+        buffer.putInt(numSlots);
+        buffer.putInt(numHeaders);
+        buffer.putInt(0);
+        for (int slot = 0; slot < numSlots; slot++)
+            buffer.putLong(PROLOGUE_BYTES + slot * SLOT_SIZE, 0);
+        final byte[] empty = new byte[32];
+        final byte[] hash = new byte[32];
+        int cursor = ringCursor;
+        for (int i = 0; i < numHeaders; i++) {
+            if (cursor == ringEnd())
+                cursor = SPVBlockStore.FILE_PROLOGUE_BYTES;
+            ring.position(cursor);
+            ring.get(hash);
+            // Records that were never written are all zeros.
+            if (!Arrays.equals(hash, empty))
+                put(hash, cursor, ring);
+            cursor += SPVBlockStore.RECORD_SIZE;
+        }
+    }
+
+    /** Returns the offset in the ring of the record for the given hash, or -1 if it isn't in the ring. */
+    int find(byte[] hash, ByteBuffer ring) {
+        final int tag = tag(hash);
+        for (int slot = home(tag); ; slot = (slot + 1) & mask) {
+            final int position = PROLOGUE_BYTES + slot * SLOT_SIZE;
+            final int record = buffer.getInt(position + 4);
+            if (record == 0)
+                return -1;
+            if (buffer.getInt(position) == tag) {
+                final int offset = recordOffset(record);
+                if (hashAt(ring, offset, hash))
+                    return offset;
+            }
+        }
+    }
+
+    /** Points the entry for the given hash at the ring record at <tt>offset</tt>, which must already hold it. */
+    void put(byte[] hash, int offset, ByteBuffer ring) {
+        final int tag = tag(hash);
+        for (int slot = home(tag); ; slot = (slot + 1) & mask) {
+            final int position = PROLOGUE_BYTES + slot * SLOT_SIZE;
+            final int record = buffer.getInt(position + 4);
+            // A block that is put twice is found through its newest record.
+            if (record == 0 || (buffer.getInt(position) == tag && hashAt(ring, recordOffset(record), hash))) {
+                buffer.putInt(position, tag);
+                buffer.putInt(position + 4, recordNumber(offset));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the entry for the given hash if it points at the ring record at <tt>offset</tt>, which is about to be
+     * overwritten. The entry is left alone if the block was put again later.
+     */
+    void remove(byte[] hash, int offset) {
+        final int tag = tag(hash);
+        final int number = recordNumber(offset);
+        int slot = home(tag);
+        while (true) {
+            final int position = PROLOGUE_BYTES + slot * SLOT_SIZE;
+            final int record = buffer.getInt(position + 4);
+            if (record == 0)
+                return;
+            if (record == number && buffer.getInt(position) == tag)
+                break;
+            slot = (slot + 1) & mask;
+        }
+        // Shift back any following entries whose probe sequence passes through the freed slot.
+        int free = slot;
+        for (int next = (free + 1) & mask; ; next = (next + 1) & mask) {
+            final int position = PROLOGUE_BYTES + next * SLOT_SIZE;
+            if (buffer.getInt(position + 4) == 0)
+                break;
+            int home = home(buffer.getInt(position));
+            boolean movable = free <= next ? (home <= free || home > next) : (home <= free && home > next);
+            if (movable) {
+                buffer.putLong(PROLOGUE_BYTES + free * SLOT_SIZE, buffer.getLong(position));
+                free = next;
+            }
+        }
+        buffer.putLong(PROLOGUE_BYTES + free * SLOT_SIZE, 0);
+    }
+
+    /** Records that the index is in sync with the ring and releases the file. */
+    void close(ByteBuffer ring, int ringCursor) throws IOException {
+        ring.position(previousRecord(ringCursor));
+        ring.get(scratch);
+        buffer.position(NEWEST_HASH_OFFSET);
+        buffer.put(scratch);
+        buffer.putInt(CURSOR_OFFSET, ringCursor);
+        buffer.force();
+        buffer = null;
+        randomAccessFile.close();
+    }
+
+    private boolean hashAt(ByteBuffer ring, int offset, byte[] hash) {
+        ring.position(offset);
+        ring.get(scratch);
+        return Arrays.equals(scratch, hash);
+    }
+
+    private int ringEnd() {
+        return SPVBlockStore.FILE_PROLOGUE_BYTES + numHeaders * SPVBlockStore.RECORD_SIZE;
+    }
+
+    private int previousRecord(int ringCursor) {
+        int offset = ringCursor - SPVBlockStore.RECORD_SIZE;
+        return offset < SPVBlockStore.FILE_PROLOGUE_BYTES ? ringEnd() - SPVBlockStore.RECORD_SIZE : offset;
+    }
+
+    private static int recordNumber(int offset) {
+        return (offset - SPVBlockStore.FILE_PROLOGUE_BYTES) / SPVBlockStore.RECORD_SIZE + 1;
+    }
+
+    private static int recordOffset(int number) {
+        return SPVBlockStore.FILE_PROLOGUE_BYTES + (number - 1) * SPVBlockStore.RECORD_SIZE;
+    }
+
+    // Proof of work hashes start with zeros, so take the tag from the other end in case the block hash is one.
+    private static int tag(byte[] hash) {
+        return ((hash[28] & 0xFF) << 24) | ((hash[29] & 0xFF) << 16) | ((hash[30] & 0xFF) << 8) | (hash[31] & 0xFF);
+    }
+
+    private int home(int tag) {
+        // Mix the bits so that tags sharing their low bits don't share home slots.
+        int h = tag * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.utils;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.VerificationException;
+import com.google.common.util.concurrent.Futures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Reads block files stored in the reference/Satoshi client format, like {@link BlockFileLoader}, but does the work
+ * on other threads so that the thread iterating only has to add the blocks to a chain. A scanning thread memory-maps
+ * each file in turn and finds where the blocks in it are, and a pool of threads parses them and verifies their
+ * headers. That calculates the proof of work hash, which is cached in the block, so the chain doesn't have to
+ * calculate it again. Blocks are returned in the order they appear in the files.</p>
+ *
+ * <p>At most queueDepth blocks are read ahead of the one the caller is on, which bounds the memory used. Messages
+ * that can't be parsed and blocks whose headers are invalid are skipped, and counted by
+ * {@link #getBlocksSkipped()}.</p>
+ *
+ * <p>The threads stop once the last block has been returned. Call {@link #close()} to stop them earlier.</p>
+ */
+public class ParallelBlockFileLoader implements Iterable<Block>, Iterator<Block>, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockFileLoader.class);
+
+    /** The number of blocks read ahead by default. */
+    public static final int DEFAULT_QUEUE_DEPTH = 1000;
+
+    // Put on the queue after the last block.
+    private static final Future<Block> END = Futures.immediateFuture(null);
+
+    private final NetworkParameters params;
+    private final ThreadPoolExecutor parsers;
+    private final BlockingQueue<Future<Block>> queue;
+    private final Thread scanner;
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong blocksSkipped = new AtomicLong();
+    private long blocksLoaded;
+    @Nullable private Block nextBlock;
+    private boolean finished;
+
+    /**
+     * Reads the given files with a thread per processor to parse blocks, reading up to
+     * {@link #DEFAULT_QUEUE_DEPTH} blocks ahead.
+     */
+    public ParallelBlockFileLoader(NetworkParameters params, List<File> files) {
+        this(params, files, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_DEPTH);
+    }
+
+    /**
+     * Reads the given files, using the given number of threads to parse blocks and reading up to queueDepth blocks
+     * ahead of the caller.
+     */
+    public ParallelBlockFileLoader(NetworkParameters params, final List<File> files, int threads, int queueDepth) {
+        checkArgument(threads > 0);
+        checkArgument(queueDepth > 0);
+        this.params = params;
+        this.queue = new ArrayBlockingQueue<Future<Block>>(queueDepth);
+        this.parsers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int count;
+            @Nonnull @Override public synchronized Thread newThread(@Nonnull Runnable runnable) {
+                Thread t = new Thread(runnable);
+                t.setName("Block file parser thread " + count++);
+                t.setDaemon(true);
+                t.setUncaughtExceptionHandler(Threading.uncaughtExceptionHandler);
+                return t;
+            }
+        });
+        this.scanner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (File file : files)
+                        scan(file);
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                    // Closed.
+                } catch (RejectedExecutionException e) {
+                    // Closed.
+                }
+            }
+        }, "Block file scanner thread");
+        scanner.setDaemon(true);
+        scanner.start();
+    }
+
+    // Finds the blocks in a file and queues them to be parsed.
+    private void scan(File file) throws InterruptedException {
+        MappedByteBuffer map;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            log.warn("Could not read block file {}: {}", file, e.getMessage());
+            return;
+        }
+        int magic = (int) params.getPacketMagic();
+        int limit = map.limit();
+        int pos = 0;
+        // Files are preallocated, so usually end with zeros, which are skipped over like anything else between blocks.
+        while (pos + 8 <= limit) {
+            if (map.getInt(pos) != magic) {
+                pos++;
+                continue;
+            }
+            long size = Integer.reverseBytes(map.getInt(pos + 4)) & 0xFFFFFFFFL;
+            pos += 8;
+            // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+            if (size > Block.MAX_BLOCK_SIZE * 2 || size <= 0)
+                continue;
+            if (pos + size > limit)
+                break;
+            final ByteBuffer buffer = map.duplicate();
+            buffer.position(pos);
+            buffer.limit(pos + (int) size);
+            queue.put(parsers.submit(new Callable<Block>() {
+                @Override
+                public Block call() throws Exception {
+                    return parse(buffer);
+                }
+            }));
+            pos += size;
+            bytesRead.addAndGet(8 + size);
+        }
+    }
+
+    @Nullable
+    private Block parse(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        try {
+            Block block = new Block(params, bytes);
+            block.verifyHeader();
+            // The transaction hashes are cached too, and needed to connect the block.
+            if (block.getTransactions() != null)
+                for (Transaction tx : block.getTransactions())
+                    tx.getHash();
+            return block;
+        } catch (ProtocolException e) {
+            log.warn("Skipping unparseable block: {}", e.getMessage());
+        } catch (VerificationException e) {
+            log.warn("Skipping block with invalid header: {}", e.getMessage());
+        }
+        blocksSkipped.incrementAndGet();
+        return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (nextBlock == null && !finished) {
+            try {
+                Future<Block> future = queue.take();
+                if (future == END) {
+                    finished = true;
+                    close();
+                } else {
+                    nextBlock = future.get();
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return nextBlock != null;
+    }
+
+    @Override
+    public Block next() throws NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Block next = nextBlock;
+        nextBlock = null;
+        blocksLoaded++;
+        return next;
+    }
+
+    @Override
+    public void remove() throws UnsupportedOperationException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<Block> iterator() {
+        return this;
+    }
+
+    /** Stops the scanning and parsing threads. Blocks that were already read ahead are dropped. */
+    @Override
+    public void close() {
+        scanner.interrupt();
+        parsers.shutdownNow();
+        if (!finished) {
+            finished = true;
+            nextBlock = null;
+            queue.clear();
+        }
+    }
+
+    /** Returns the number of blocks returned so far. */
+    public long getBlocksLoaded() {
+        return blocksLoaded;
+    }
+
+    /** Returns the number of messages skipped because they couldn't be parsed or their header was invalid. */
+    public long getBlocksSkipped() {
+        return blocksSkipped.get();
+    }
+
+    /** Returns the number of bytes of block messages found so far, which runs ahead of the blocks returned. */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /** Returns the number of blocks read ahead and waiting to be returned, including any still being parsed. */
+    public int getQueuedBlocks() {
+        return queue.size();
+    }
+}
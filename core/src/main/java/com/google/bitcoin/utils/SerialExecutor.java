@@ -0,0 +1,104 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An executor which runs its tasks one at a time, in the order they were given to it, on another executor which may
+ * have many threads. Many of these can share one pool, keeping each one's tasks in order while different ones run in
+ * parallel. So that one with a long queue doesn't hog a thread of the pool, it gives the thread up after running a
+ * few tasks and goes to the back of the pool's queue.
+ */
+public class SerialExecutor implements Executor {
+    private static final Logger log = LoggerFactory.getLogger(SerialExecutor.class);
+
+    // The number of tasks run before giving the thread back to the pool.
+    private static final int TASKS_PER_TURN = 16;
+
+    private final Executor executor;
+    @GuardedBy("tasks") private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+    // Whether a runner has been given to the executor and hasn't yet found the queue empty.
+    @GuardedBy("tasks") private boolean scheduled;
+
+    private final Runnable runner = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < TASKS_PER_TURN; i++) {
+                Runnable task;
+                synchronized (tasks) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Exception in serially executed task", e);
+                    Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                    if (handler != null)
+                        handler.uncaughtException(Thread.currentThread(), e);
+                }
+            }
+            reschedule();
+        }
+    };
+
+    public SerialExecutor(Executor executor) {
+        this.executor = checkNotNull(executor);
+    }
+
+    @Override
+    public void execute(@Nonnull Runnable task) {
+        synchronized (tasks) {
+            tasks.offer(checkNotNull(task));
+            if (scheduled)
+                return;
+            scheduled = true;
+        }
+        reschedule();
+    }
+
+    private void reschedule() {
+        try {
+            executor.execute(runner);
+        } catch (RuntimeException e) {
+            synchronized (tasks) {
+                scheduled = false;
+            }
+            throw e;
+        }
+    }
+
+    /** Returns the number of tasks waiting to be run, not counting one which is running. */
+    public int getQueuedTasks() {
+        synchronized (tasks) {
+            return tasks.size();
+        }
+    }
+}
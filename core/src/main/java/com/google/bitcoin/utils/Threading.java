@@ -52,6 +52,22 @@ public class Threading {
      */
     public static final Executor SAME_THREAD;
 
+    /**
+     * A pool with one daemon thread per available processor, for splitting up CPU bound work such as proof of work
+     * hashing across cores. Whoever submits work here usually blocks until it is done, so tasks must not take any
+     * bitcoinj locks. Idle threads are shut down after a few seconds.
+     */
+    public static final ExecutorService WORKER_POOL;
+
+    /**
+     * A pool with one daemon thread per available processor which decodes and processes the messages received from
+     * peers, so that the network threads only have to find where each message starts and ends. Each peer runs its
+     * messages here through its own {@link SerialExecutor}, so they are still processed one at a time and in order.
+     * Set this to {@link #SAME_THREAD} to process messages on the network thread instead. Like the other executors
+     * here, changing it only affects peers created afterwards.
+     */
+    public static Executor MESSAGE_POOL;
+
     // For safety reasons keep track of the thread we use to run user-provided event listeners to avoid deadlock.
     private static volatile WeakReference<Thread> vUserThread;
 
@@ -103,6 +119,33 @@ public class Threading {
             }
         });
         USER_THREAD = SINGLE_THREADED_EXECUTOR;
+        final int processors = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor workerPool = new ThreadPoolExecutor(processors, processors, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int count;
+            @Nonnull @Override public synchronized Thread newThread(@Nonnull Runnable runnable) {
+                Thread t = new Thread(runnable);
+                t.setName("bitcoinj worker thread " + count++);
+                t.setDaemon(true);
+                t.setUncaughtExceptionHandler(uncaughtExceptionHandler);
+                return t;
+            }
+        });
+        workerPool.allowCoreThreadTimeOut(true);
+        WORKER_POOL = workerPool;
+        ThreadPoolExecutor messagePool = new ThreadPoolExecutor(processors, processors, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int count;
+            @Nonnull @Override public synchronized Thread newThread(@Nonnull Runnable runnable) {
+                Thread t = new Thread(runnable);
+                t.setName("bitcoinj message processing thread " + count++);
+                t.setDaemon(true);
+                t.setUncaughtExceptionHandler(uncaughtExceptionHandler);
+                return t;
+            }
+        });
+        messagePool.allowCoreThreadTimeOut(true);
+        MESSAGE_POOL = messagePool;
         SAME_THREAD = new Executor() {
             @Override
             public void execute(@Nonnull Runnable runnable) {
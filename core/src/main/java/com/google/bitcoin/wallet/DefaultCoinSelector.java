@@ -19,7 +19,6 @@ public class DefaultCoinSelector implements CoinSelector {
         long target = biTarget.longValue();
         HashSet<TransactionOutput> selected = new HashSet<TransactionOutput>();
         // Sort the inputs by age*value so we get the highest "coindays" spent.
-        // TODO: Consider changing the wallets internal format to track just outputs and keep them ordered.
         ArrayList<TransactionOutput> sortedOutputs = new ArrayList<TransactionOutput>(candidates);
         // When calculating the wallet balance, we may be asked to select all possible coins, if so, avoid sorting
         // them in order to improve performance.
@@ -41,32 +40,40 @@ public class DefaultCoinSelector implements CoinSelector {
         return new CoinSelection(BigInteger.valueOf(total), selected);
     }
 
+    /**
+     * Orders outputs by value multiplied by the depth of their transaction, highest first, which is the order this
+     * selector spends them in. Outputs of transactions that are not in the best chain have no depth. Ties are broken by
+     * value and then by transaction hash. The wallet keeps its spend candidates in this order, so sorting them again
+     * here only has to check they still are.
+     */
+    public static final Comparator<TransactionOutput> COIN_DEPTH_ORDER = new Comparator<TransactionOutput>() {
+        public int compare(TransactionOutput a, TransactionOutput b) {
+            int depth1 = 0;
+            int depth2 = 0;
+            TransactionConfidence conf1 = a.getParentTransaction().getConfidence();
+            TransactionConfidence conf2 = b.getParentTransaction().getConfidence();
+            if (conf1.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+                depth1 = conf1.getDepthInBlocks();
+            if (conf2.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+                depth2 = conf2.getDepthInBlocks();
+            BigInteger aValue = a.getValue();
+            BigInteger bValue = b.getValue();
+            BigInteger aCoinDepth = aValue.multiply(BigInteger.valueOf(depth1));
+            BigInteger bCoinDepth = bValue.multiply(BigInteger.valueOf(depth2));
+            int c1 = bCoinDepth.compareTo(aCoinDepth);
+            if (c1 != 0) return c1;
+            // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
+            int c2 = bValue.compareTo(aValue);
+            if (c2 != 0) return c2;
+            // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
+            BigInteger aHash = a.getParentTransaction().getHash().toBigInteger();
+            BigInteger bHash = b.getParentTransaction().getHash().toBigInteger();
+            return aHash.compareTo(bHash);
+        }
+    };
+
     @VisibleForTesting static void sortOutputs(ArrayList<TransactionOutput> outputs) {
-        Collections.sort(outputs, new Comparator<TransactionOutput>() {
-            public int compare(TransactionOutput a, TransactionOutput b) {
-                int depth1 = 0;
-                int depth2 = 0;
-                TransactionConfidence conf1 = a.getParentTransaction().getConfidence();
-                TransactionConfidence conf2 = b.getParentTransaction().getConfidence();
-                if (conf1.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
-                    depth1 = conf1.getDepthInBlocks();
-                if (conf2.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
-                    depth2 = conf2.getDepthInBlocks();
-                BigInteger aValue = a.getValue();
-                BigInteger bValue = b.getValue();
-                BigInteger aCoinDepth = aValue.multiply(BigInteger.valueOf(depth1));
-                BigInteger bCoinDepth = bValue.multiply(BigInteger.valueOf(depth2));
-                int c1 = bCoinDepth.compareTo(aCoinDepth);
-                if (c1 != 0) return c1;
-                // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
-                int c2 = bValue.compareTo(aValue);
-                if (c2 != 0) return c2;
-                // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
-                BigInteger aHash = a.getParentTransaction().getHash().toBigInteger();
-                BigInteger bHash = b.getParentTransaction().getHash().toBigInteger();
-                return aHash.compareTo(bHash);
-            }
-        });
+        Collections.sort(outputs, COIN_DEPTH_ORDER);
     }
 
     /** Sub-classes can override this to just customize whether transactions are usable, but keep age sorting. */
@@ -39,7 +39,11 @@ public class Lyra2 {
     }
 
     public static long byte2long(byte[] bytes, int offset) {
-        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getLong(offset);
+        long v = 0;
+        for (int j = Sponge.LONG_SIZE_IN_BYTES - 1; j >= 0; --j) {
+            v = (v << 8) | (bytes[offset + j] & 0xFFL);
+        }
+        return v;
     }
 
     public static void copyByteArray2longArray(byte[] bytes, long[] output, int output_pos) {
@@ -52,11 +56,8 @@ public class Lyra2 {
 
     public static int putLongToByteArray(byte[] array, int offset, long value)
     {
-        ByteBuffer buffer = ByteBuffer.allocate(Sponge.LONG_SIZE_IN_BYTES).order(ByteOrder.LITTLE_ENDIAN);
-        buffer.putLong(value);
-        byte[] bytes = buffer.array();
         for (int j = 0; j < Sponge.LONG_SIZE_IN_BYTES && offset < array.length; ++offset, ++j) {
-            array[offset] = bytes[j];
+            array[offset] = (byte) (value >>> (j * 8));
         }
         return offset;
     }
@@ -143,11 +144,8 @@ public class Lyra2 {
 
     public static long unsignedAdd(long v1, long v2)
     {
-        BigInteger a = Lyra2.long2unsigned(v1);
-        BigInteger b = Lyra2.long2unsigned(v2);
-        a = a.add(b);
-        a = Lyra2.overflowUint64_t(a);
-        return a.longValue();
+        // Two's complement addition already wraps modulo 2^64, exactly like uint64_t.
+        return v1 + v2;
     }
 
     public static int LYRA2(byte[] output_key,
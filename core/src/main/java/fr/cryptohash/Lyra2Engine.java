@@ -0,0 +1,334 @@
+/**
+ * Java mplementation of the Lyra2 Password Hashing Scheme (PHS).
+ *
+ * Author: The Lyra PHC team (http://www.lyra-kdf.net/) -- 2014.
+ * Java implementation created by myood -- 2015.
+ *
+ * This software is hereby placed in the public domain.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS ''AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fr.cryptohash;
+
+/**
+ * <p>A reusable Lyra2 instance for fixed time and memory cost parameters. It produces exactly the same output as
+ * {@link Lyra2#LYRA2(byte[], byte[], byte[], long, int, int)} but works purely on primitive <tt>long</tt>s and keeps
+ * its memory matrix and sponge state between calls, so hashing allocates nothing.</p>
+ *
+ * <p>Instances are not thread safe. Callers that hash from several threads should keep one engine per thread, as
+ * {@link #forLyra2REv2()} does for the parameters used by the Lyra2REv2 proof of work.</p>
+ */
+public final class Lyra2Engine {
+    private static final int BLOCK_LEN_INT64 = 12;
+    private static final int BLOCK_LEN_BYTES = BLOCK_LEN_INT64 * 8;
+    private static final int BLOCK_LEN_BLAKE2_SAFE_INT64 = 8;
+    private static final int BLOCK_LEN_BLAKE2_SAFE_BYTES = BLOCK_LEN_BLAKE2_SAFE_INT64 * 8;
+
+    /** Time cost, rows and columns used by the Lyra2 step of Lyra2REv2. */
+    public static final long LYRA2REV2_TIME_COST = 1;
+    public static final int LYRA2REV2_ROWS = 4;
+    public static final int LYRA2REV2_COLUMNS = 4;
+
+    private static final ThreadLocal<Lyra2Engine> lyra2REv2Engines = new ThreadLocal<Lyra2Engine>() {
+        @Override
+        protected Lyra2Engine initialValue() {
+            return new Lyra2Engine(LYRA2REV2_TIME_COST, LYRA2REV2_ROWS, LYRA2REV2_COLUMNS);
+        }
+    };
+
+    private final long timeCost;
+    private final int rows;
+    private final int columns;
+    private final int rowLen;
+    // Step used while wandering on even values of tau: (2^64 - 1) mod rows, as the reference code does the
+    // addition on unsigned 64 bit integers.
+    private final int evenStep;
+    private final int oddStep;
+
+    private final long[] matrix;
+    private final long[] state = new long[16];
+
+    public Lyra2Engine(long timeCost, int rows, int columns) {
+        if (timeCost < 1 || rows < 2 || columns < 1)
+            throw new IllegalArgumentException("Invalid Lyra2 parameters: " + timeCost + "/" + rows + "/" + columns);
+        this.timeCost = timeCost;
+        this.rows = rows;
+        this.columns = columns;
+        this.rowLen = BLOCK_LEN_INT64 * columns;
+        this.evenStep = unsignedRemainder(-1L, rows);
+        this.oddStep = rows / 2 - 1;
+        this.matrix = new long[rows * rowLen];
+    }
+
+    /**
+     * Returns the engine belonging to the calling thread configured for the Lyra2 step of Lyra2REv2.
+     */
+    public static Lyra2Engine forLyra2REv2() {
+        return lyra2REv2Engines.get();
+    }
+
+    /**
+     * Derives <tt>outputKey.length</tt> bytes from the given password and salt into <tt>outputKey</tt>.
+     */
+    public void hash(byte[] outputKey, byte[] userPassword, byte[] salt) {
+        final long[] state = this.state;
+        final long[] matrix = this.matrix;
+
+        //============= Getting the password + salt + basil padded with 10*1 ===============//
+        final int blocksInput = padding(outputKey.length, userPassword, salt);
+
+        //======================= Initializing the Sponge State ====================//
+        for (int i = 0; i < BLOCK_LEN_BLAKE2_SAFE_INT64; i++)
+            state[i] = 0;
+        System.arraycopy(Sponge.blake2b_IV, 0, state, BLOCK_LEN_BLAKE2_SAFE_INT64, 8);
+
+        //================================ Setup Phase =============================//
+        int pos = 0;
+        for (int i = 0; i < blocksInput; i++) {
+            for (int p = 0; p < BLOCK_LEN_BLAKE2_SAFE_INT64; p++)
+                state[p] ^= matrix[pos + p];
+            blake2bLyra(state, BLOCK_LEN_INT64);
+            pos += BLOCK_LEN_BLAKE2_SAFE_INT64;
+        }
+
+        reducedSqueezeRow0();
+        reducedDuplexRow1(0, rowLen);
+
+        int row = 2;
+        int prev = 1;
+        int rowa = 0;
+        int step = 1;
+        int window = 2;
+        int gap = 1;
+        do {
+            reducedDuplexRowSetup(prev * rowLen, rowa * rowLen, row * rowLen);
+            rowa = (rowa + step) & (window - 1);
+            prev = row;
+            row++;
+            if (rowa == 0) {
+                step = window + gap;
+                window *= 2;
+                gap = -gap;
+            }
+        } while (row < rows);
+
+        //============================ Wandering Phase =============================//
+        row = 0;
+        for (long tau = 1; tau <= timeCost; tau++) {
+            final int wanderStep = (tau % 2 == 0) ? evenStep : oddStep;
+            do {
+                rowa = unsignedRemainder(state[0], rows);
+                reducedDuplexRow(prev * rowLen, rowa * rowLen, row * rowLen);
+                prev = row;
+                row = (row + wanderStep) % rows;
+                if (row < 0)
+                    row += rows;
+            } while (row != 0);
+        }
+
+        //============================ Wrap-up Phase ===============================//
+        final int last = rowa * rowLen;
+        for (int p = 0; p < BLOCK_LEN_INT64; p++)
+            state[p] ^= matrix[last + p];
+        blake2bLyra(state, BLOCK_LEN_INT64);
+        squeeze(outputKey);
+    }
+
+    /**
+     * Writes pad(password || salt || basil) into the start of the matrix and returns the number of
+     * BLOCK_LEN_BLAKE2_SAFE_BYTES blocks it occupies.
+     */
+    private int padding(int outputKeyLen, byte[] userPassword, byte[] salt) {
+        final int blocksInput = (userPassword.length + salt.length + 6 * 8) / BLOCK_LEN_BLAKE2_SAFE_BYTES + 1;
+        final int words = blocksInput * BLOCK_LEN_BLAKE2_SAFE_INT64;
+        if (words > matrix.length)
+            throw new IllegalArgumentException("Password and salt do not fit in the Lyra2 memory matrix");
+        for (int i = 0; i < words; i++)
+            matrix[i] = 0;
+        int offset = 0;
+        for (byte b : userPassword)
+            xorByte(offset++, b);
+        for (byte b : salt)
+            xorByte(offset++, b);
+        offset = xorLong(offset, outputKeyLen);
+        offset = xorLong(offset, userPassword.length);
+        offset = xorLong(offset, salt.length);
+        offset = xorLong(offset, timeCost);
+        offset = xorLong(offset, rows);
+        offset = xorLong(offset, columns);
+        xorByte(offset, (byte) 0x80);
+        xorByte(words * 8 - 1, (byte) 1);
+        return blocksInput;
+    }
+
+    private void xorByte(int offset, byte b) {
+        matrix[offset >>> 3] ^= (b & 0xFFL) << ((offset & 7) << 3);
+    }
+
+    private int xorLong(int offset, long value) {
+        for (int i = 0; i < 8; i++)
+            xorByte(offset++, (byte) (value >>> (i * 8)));
+        return offset;
+    }
+
+    private void squeeze(byte[] out) {
+        int outPos = 0;
+        while (out.length - outPos > BLOCK_LEN_BYTES) {
+            writeState(out, outPos, BLOCK_LEN_BYTES);
+            blake2bLyra(state, BLOCK_LEN_INT64);
+            outPos += BLOCK_LEN_BYTES;
+        }
+        writeState(out, outPos, out.length - outPos);
+    }
+
+    private void writeState(byte[] out, int offset, int len) {
+        for (int i = 0; i < len; i++)
+            out[offset + i] = (byte) (state[i >>> 3] >>> ((i & 7) << 3));
+    }
+
+    private void reducedSqueezeRow0() {
+        int out = (columns - 1) * BLOCK_LEN_INT64;
+        for (int i = 0; i < columns; i++) {
+            System.arraycopy(state, 0, matrix, out, BLOCK_LEN_INT64);
+            out -= BLOCK_LEN_INT64;
+            blake2bLyra(state, 1);
+        }
+    }
+
+    private void reducedDuplexRow1(int rowIn, int rowOut) {
+        final long[] state = this.state;
+        final long[] matrix = this.matrix;
+        int in = rowIn;
+        int out = rowOut + (columns - 1) * BLOCK_LEN_INT64;
+        for (int i = 0; i < columns; i++) {
+            for (int p = 0; p < BLOCK_LEN_INT64; p++)
+                state[p] ^= matrix[in + p];
+            blake2bLyra(state, 1);
+            for (int p = 0; p < BLOCK_LEN_INT64; p++)
+                matrix[out + p] = matrix[in + p] ^ state[p];
+            in += BLOCK_LEN_INT64;
+            out -= BLOCK_LEN_INT64;
+        }
+    }
+
+    private void reducedDuplexRowSetup(int rowIn, int rowInOut, int rowOut) {
+        final long[] state = this.state;
+        final long[] matrix = this.matrix;
+        int in = rowIn;
+        int inOut = rowInOut;
+        int out = rowOut + (columns - 1) * BLOCK_LEN_INT64;
+        for (int i = 0; i < columns; i++) {
+            for (int p = 0; p < BLOCK_LEN_INT64; p++)
+                state[p] ^= matrix[in + p] + matrix[inOut + p];
+            blake2bLyra(state, 1);
+            for (int p = 0; p < BLOCK_LEN_INT64; p++)
+                matrix[out + p] = matrix[in + p] ^ state[p];
+            // M[row*][col] ^= rotW(rand)
+            matrix[inOut] ^= state[BLOCK_LEN_INT64 - 1];
+            for (int p = 1; p < BLOCK_LEN_INT64; p++)
+                matrix[inOut + p] ^= state[p - 1];
+            in += BLOCK_LEN_INT64;
+            inOut += BLOCK_LEN_INT64;
+            out -= BLOCK_LEN_INT64;
+        }
+    }
+
+    private void reducedDuplexRow(int rowIn, int rowInOut, int rowOut) {
+        final long[] state = this.state;
+        final long[] matrix = this.matrix;
+        int in = rowIn;
+        int inOut = rowInOut;
+        int out = rowOut;
+        for (int i = 0; i < columns; i++) {
+            for (int p = 0; p < BLOCK_LEN_INT64; p++)
+                state[p] ^= matrix[in + p] + matrix[inOut + p];
+            blake2bLyra(state, 1);
+            for (int p = 0; p < BLOCK_LEN_INT64; p++)
+                matrix[out + p] ^= state[p];
+            // M[row*][col] ^= rotW(rand). When row* == row this must observe the write above, as in the reference.
+            matrix[inOut] ^= state[BLOCK_LEN_INT64 - 1];
+            for (int p = 1; p < BLOCK_LEN_INT64; p++)
+                matrix[inOut + p] ^= state[p - 1];
+            in += BLOCK_LEN_INT64;
+            inOut += BLOCK_LEN_INT64;
+            out += BLOCK_LEN_INT64;
+        }
+    }
+
+    /**
+     * Applies the given number of rounds of Blake2b's compression function (without message words) to the state,
+     * keeping the sixteen words in locals for the duration.
+     */
+    private static void blake2bLyra(long[] v, int rounds) {
+        long v0 = v[0], v1 = v[1], v2 = v[2], v3 = v[3];
+        long v4 = v[4], v5 = v[5], v6 = v[6], v7 = v[7];
+        long v8 = v[8], v9 = v[9], v10 = v[10], v11 = v[11];
+        long v12 = v[12], v13 = v[13], v14 = v[14], v15 = v[15];
+        for (int r = 0; r < rounds; r++) {
+            // G(0, 4, 8, 12)
+            v0 += v4; v12 = Long.rotateRight(v12 ^ v0, 32);
+            v8 += v12; v4 = Long.rotateRight(v4 ^ v8, 24);
+            v0 += v4; v12 = Long.rotateRight(v12 ^ v0, 16);
+            v8 += v12; v4 = Long.rotateRight(v4 ^ v8, 63);
+            // G(1, 5, 9, 13)
+            v1 += v5; v13 = Long.rotateRight(v13 ^ v1, 32);
+            v9 += v13; v5 = Long.rotateRight(v5 ^ v9, 24);
+            v1 += v5; v13 = Long.rotateRight(v13 ^ v1, 16);
+            v9 += v13; v5 = Long.rotateRight(v5 ^ v9, 63);
+            // G(2, 6, 10, 14)
+            v2 += v6; v14 = Long.rotateRight(v14 ^ v2, 32);
+            v10 += v14; v6 = Long.rotateRight(v6 ^ v10, 24);
+            v2 += v6; v14 = Long.rotateRight(v14 ^ v2, 16);
+            v10 += v14; v6 = Long.rotateRight(v6 ^ v10, 63);
+            // G(3, 7, 11, 15)
+            v3 += v7; v15 = Long.rotateRight(v15 ^ v3, 32);
+            v11 += v15; v7 = Long.rotateRight(v7 ^ v11, 24);
+            v3 += v7; v15 = Long.rotateRight(v15 ^ v3, 16);
+            v11 += v15; v7 = Long.rotateRight(v7 ^ v11, 63);
+            // G(0, 5, 10, 15)
+            v0 += v5; v15 = Long.rotateRight(v15 ^ v0, 32);
+            v10 += v15; v5 = Long.rotateRight(v5 ^ v10, 24);
+            v0 += v5; v15 = Long.rotateRight(v15 ^ v0, 16);
+            v10 += v15; v5 = Long.rotateRight(v5 ^ v10, 63);
+            // G(1, 6, 11, 12)
+            v1 += v6; v12 = Long.rotateRight(v12 ^ v1, 32);
+            v11 += v12; v6 = Long.rotateRight(v6 ^ v11, 24);
+            v1 += v6; v12 = Long.rotateRight(v12 ^ v1, 16);
+            v11 += v12; v6 = Long.rotateRight(v6 ^ v11, 63);
+            // G(2, 7, 8, 13)
+            v2 += v7; v13 = Long.rotateRight(v13 ^ v2, 32);
+            v8 += v13; v7 = Long.rotateRight(v7 ^ v8, 24);
+            v2 += v7; v13 = Long.rotateRight(v13 ^ v2, 16);
+            v8 += v13; v7 = Long.rotateRight(v7 ^ v8, 63);
+            // G(3, 4, 9, 14)
+            v3 += v4; v14 = Long.rotateRight(v14 ^ v3, 32);
+            v9 += v14; v4 = Long.rotateRight(v4 ^ v9, 24);
+            v3 += v4; v14 = Long.rotateRight(v14 ^ v3, 16);
+            v9 += v14; v4 = Long.rotateRight(v4 ^ v9, 63);
+        }
+        v[0] = v0; v[1] = v1; v[2] = v2; v[3] = v3;
+        v[4] = v4; v[5] = v5; v[6] = v6; v[7] = v7;
+        v[8] = v8; v[9] = v9; v[10] = v10; v[11] = v11;
+        v[12] = v12; v[13] = v13; v[14] = v14; v[15] = v15;
+    }
+
+    /** Returns the remainder of dividing <tt>dividend</tt>, read as an unsigned 64 bit integer, by <tt>divisor</tt>. */
+    static int unsignedRemainder(long dividend, int divisor) {
+        if (dividend >= 0)
+            return (int) (dividend % divisor);
+        // Halve the dividend so it fits in a signed long, then restore the dropped bit.
+        long r = ((dividend >>> 1) % divisor) * 2 + (dividend & 1);
+        return (int) (r % divisor);
+    }
+}
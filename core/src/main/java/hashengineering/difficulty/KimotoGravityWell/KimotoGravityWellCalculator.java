@@ -0,0 +1,223 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hashengineering.difficulty.KimotoGravityWell;
+
+import java.math.BigInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Pure Java implementation of the Kimoto Gravity Well difficulty calculation, giving the same results as the
+ * native {@link kgw} library without needing JNI.</p>
+ *
+ * <p>Blocks are fed in one at a time with {@link #addBlock(long, long)}, starting with the last solved block and
+ * moving backwards through the chain, until it returns {@link #STOP}. {@link #getNewDifficulty()} then returns the
+ * target required of the next block, before it is capped at the proof of work limit. Targets are held as fixed width
+ * 256 bit integers in longs and the running average is truncated towards zero, exactly as <tt>mpz_tdiv_q</tt> in the
+ * native code and {@link BigInteger#divide(BigInteger)} in the original Java code do, so no BigInteger is created
+ * until the final result.</p>
+ *
+ * <p>Instances can be reused by calling {@link #reset()} but are not thread safe.</p>
+ */
+public class KimotoGravityWellCalculator {
+    /** Returned by {@link #addBlock(long, long)} when the next older block is needed. */
+    public static final int CONTINUE = 0;
+    /** Returned by {@link #addBlock(long, long)} when the calculation is finished. */
+    public static final int STOP = 1;
+    /**
+     * Returned by {@link #addBlock(long, long)} when the target of the block is negative, zero or above the proof
+     * of work limit. The block is invalid and the calculation can't continue.
+     */
+    public static final int BAD_TARGET = 2;
+
+    // Number of 32 bit limbs used to hold a target. Valid targets are below 2^256.
+    private static final int LIMBS = 8;
+    private static final long MASK = 0xFFFFFFFFL;
+    private static final double DEVIATION_DENOMINATOR = 144d;
+
+    private final long targetBlocksSpacingSeconds;
+    private final long pastBlocksMin;
+    private final long pastBlocksMax;
+    private final long[] proofOfWorkLimit = new long[LIMBS];
+    // The event horizon for each value of PastBlocksMass, calculated once rather than once per block.
+    private final double[] eventHorizonDeviationFast;
+    private final double[] eventHorizonDeviationSlow;
+
+    // Little endian limbs, each holding 32 bits.
+    private final long[] pastDifficultyAverage = new long[LIMBS];
+    private final long[] currentDifficulty = new long[LIMBS];
+    private int i;
+    private long blockLastSolvedTime;
+    private long pastRateActualSeconds;
+    private long pastRateTargetSeconds;
+
+    public KimotoGravityWellCalculator(BigInteger proofOfWorkLimit, long targetBlocksSpacingSeconds,
+                                       long pastBlocksMin, long pastBlocksMax) {
+        checkArgument(proofOfWorkLimit.signum() > 0 && proofOfWorkLimit.bitLength() <= LIMBS * 32);
+        checkArgument(pastBlocksMax > 0 && pastBlocksMax < Integer.MAX_VALUE);
+        this.targetBlocksSpacingSeconds = targetBlocksSpacingSeconds;
+        this.pastBlocksMin = pastBlocksMin;
+        this.pastBlocksMax = pastBlocksMax;
+        for (int j = 0; j < LIMBS; j++)
+            this.proofOfWorkLimit[j] = proofOfWorkLimit.shiftRight(j * 32).longValue() & MASK;
+        eventHorizonDeviationFast = new double[(int) pastBlocksMax + 1];
+        eventHorizonDeviationSlow = new double[(int) pastBlocksMax + 1];
+        for (int mass = 1; mass <= pastBlocksMax; mass++) {
+            double eventHorizonDeviation = 1 + (0.7084 * Math.pow(mass / DEVIATION_DENOMINATOR, -1.228));
+            eventHorizonDeviationFast[mass] = eventHorizonDeviation;
+            eventHorizonDeviationSlow[mass] = 1 / eventHorizonDeviation;
+        }
+    }
+
+    /** Starts a new calculation. */
+    public void reset() {
+        i = 0;
+        blockLastSolvedTime = 0;
+        pastRateActualSeconds = 0;
+        pastRateTargetSeconds = 0;
+        for (int j = 0; j < LIMBS; j++)
+            pastDifficultyAverage[j] = 0;
+    }
+
+    /**
+     * Adds the next older block to the calculation, the first block added being the last solved block.
+     *
+     * @param compactTarget the difficulty target of the block in compact form, as in the block header
+     * @param timeSeconds the time of the block
+     * @return {@link #CONTINUE}, {@link #STOP} or {@link #BAD_TARGET}
+     */
+    public int addBlock(long compactTarget, long timeSeconds) {
+        i++;
+        if (i > pastBlocksMax)
+            return STOP;
+        if (!decodeCompactBits(compactTarget, currentDifficulty))
+            return BAD_TARGET;
+        final long pastBlocksMass = i;
+        if (i == 1) {
+            blockLastSolvedTime = timeSeconds;
+            System.arraycopy(currentDifficulty, 0, pastDifficultyAverage, 0, LIMBS);
+        } else {
+            // PastDifficultyAverage = ((CurrentDifficulty - PastDifficultyAveragePrev) / i) + PastDifficultyAveragePrev
+            updateAverage(pastDifficultyAverage, currentDifficulty, i);
+        }
+
+        pastRateActualSeconds = blockLastSolvedTime - timeSeconds;
+        pastRateTargetSeconds = targetBlocksSpacingSeconds * pastBlocksMass;
+        double pastRateAdjustmentRatio = 1;
+        if (pastRateActualSeconds < 0)
+            pastRateActualSeconds = 0;
+        if (pastRateActualSeconds != 0 && pastRateTargetSeconds != 0)
+            pastRateAdjustmentRatio = (double) pastRateTargetSeconds / (double) pastRateActualSeconds;
+        if (pastBlocksMass >= pastBlocksMin) {
+            if (pastRateAdjustmentRatio <= eventHorizonDeviationSlow[i] ||
+                    pastRateAdjustmentRatio >= eventHorizonDeviationFast[i])
+                return STOP;
+        }
+        return CONTINUE;
+    }
+
+    /**
+     * Returns the target required of the block following the last solved block. Zero if no blocks were added, as in
+     * the original Java implementation.
+     */
+    public BigInteger getNewDifficulty() {
+        byte[] bytes = new byte[LIMBS * 4 + 1];
+        for (int j = 0; j < LIMBS; j++) {
+            long limb = pastDifficultyAverage[j];
+            int pos = bytes.length - 1 - j * 4;
+            bytes[pos] = (byte) limb;
+            bytes[pos - 1] = (byte) (limb >>> 8);
+            bytes[pos - 2] = (byte) (limb >>> 16);
+            bytes[pos - 3] = (byte) (limb >>> 24);
+        }
+        BigInteger newDifficulty = new BigInteger(bytes);
+        if (pastRateActualSeconds != 0 && pastRateTargetSeconds != 0) {
+            newDifficulty = newDifficulty.multiply(BigInteger.valueOf(pastRateActualSeconds));
+            newDifficulty = newDifficulty.divide(BigInteger.valueOf(pastRateTargetSeconds));
+        }
+        return newDifficulty;
+    }
+
+    // average = (current - average) / i + average, with the division truncated towards zero.
+    private static void updateAverage(long[] average, long[] current, int i) {
+        boolean negative = compare(current, average) < 0;
+        long[] larger = negative ? average : current;
+        long[] smaller = negative ? current : average;
+        // |current - average| / i, computed in place in current which isn't needed afterwards.
+        long borrow = 0;
+        for (int j = 0; j < LIMBS; j++) {
+            long d = larger[j] - smaller[j] - borrow;
+            current[j] = d & MASK;
+            borrow = d >>> 63;
+        }
+        long remainder = 0;
+        for (int j = LIMBS - 1; j >= 0; j--) {
+            long dividend = (remainder << 32) | current[j];
+            current[j] = dividend / i;
+            remainder = dividend % i;
+        }
+        if (negative) {
+            borrow = 0;
+            for (int j = 0; j < LIMBS; j++) {
+                long d = average[j] - current[j] - borrow;
+                average[j] = d & MASK;
+                borrow = d >>> 63;
+            }
+        } else {
+            long carry = 0;
+            for (int j = 0; j < LIMBS; j++) {
+                long s = average[j] + current[j] + carry;
+                average[j] = s & MASK;
+                carry = s >>> 32;
+            }
+        }
+    }
+
+    private static int compare(long[] a, long[] b) {
+        for (int j = LIMBS - 1; j >= 0; j--) {
+            if (a[j] != b[j])
+                return a[j] < b[j] ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Decodes a compact target the same way as {@link com.google.bitcoin.core.Utils#decodeCompactBits(long)}.
+     * Returns false if it is negative, zero or above the proof of work limit.
+     */
+    private boolean decodeCompactBits(long compact, long[] out) {
+        for (int j = 0; j < LIMBS; j++)
+            out[j] = 0;
+        int size = ((int) (compact >> 24)) & 0xFF;
+        if (size == 0 || size > LIMBS * 4 || (compact & 0x00800000L) != 0)
+            return false;
+        long mantissa = compact & 0x007FFFFFL;
+        if (size < 3)
+            mantissa >>>= 8 * (3 - size);
+        if (mantissa == 0)
+            return false;
+        int shift = size < 3 ? 0 : 8 * (size - 3);
+        int limb = shift / 32;
+        long shifted = mantissa << (shift % 32);
+        out[limb] = shifted & MASK;
+        if (limb + 1 < LIMBS)
+            out[limb + 1] = shifted >>> 32;
+        else if ((shifted >>> 32) != 0)
+            return false;
+        return compare(out, proofOfWorkLimit) <= 0;
+    }
+}
@@ -8,7 +8,11 @@ import java.lang.UnsatisfiedLinkError;
  *  - init  - before the loop
  *  - loop2 - for each iteration of the loop
  *  - close - at the end of the loop and it returns the calculated difficulty
+ *
+ * @deprecated the block chain no longer uses the native library, use {@link KimotoGravityWellCalculator} which gives
+ * the same results in pure Java.
  */
+@Deprecated
 public class kgw {
     private static boolean native_library_loaded = false;
     static {
@@ -17,7 +17,11 @@
 package com.google.bitcoin.core;
 
 
+import com.google.bitcoin.net.ByteArrayPool;
+import com.google.bitcoin.net.ByteBufferPool;
 import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.ScriptBuilder;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
@@ -265,6 +269,111 @@ public class BitcoinSerializerTest {
         }
     }
 
+    @Test
+    public void testSerializeToPool() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        BitcoinSerializer bs = new BitcoinSerializer(params);
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.COIN, new ECKey());
+        tx.addSignedInput(new TransactionOutPoint(params, 0, Sha256Hash.create(new byte[]{1})),
+                ScriptBuilder.createOutputScript(new ECKey()), new ECKey());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize(tx, bos);
+        byte[] expected = bos.toByteArray();
+
+        // Buffers much smaller than the message, so it is spread over several.
+        ByteBufferPool pool = new ByteBufferPool(32, 100);
+        ByteBuffer[] buffers = bs.serialize(tx, pool);
+        assertTrue(buffers.length > 1);
+        ByteBuffer bytes = ByteBuffer.allocate(expected.length);
+        for (ByteBuffer buffer : buffers) {
+            assertTrue(buffer.isDirect());
+            bytes.put(buffer);
+        }
+        assertArrayEquals(expected, bytes.array());
+        bytes.flip();
+        assertEquals(tx, bs.deserialize(bytes));
+
+        // Released buffers are reused rather than allocating more.
+        pool.release(buffers);
+        assertEquals(buffers.length, pool.getFreeBuffers());
+        long allocated = pool.getAllocatedBuffers();
+        pool.release(bs.serialize(new Ping(1), pool));
+        assertEquals(allocated, pool.getAllocatedBuffers());
+    }
+
+    @Test
+    public void testDeserializeFromPooledArray() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        BitcoinSerializer bs = new BitcoinSerializer(params);
+        Block block = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.COIN, new ECKey());
+        tx.addSignedInput(new TransactionOutPoint(params, 0, Sha256Hash.create(new byte[]{1})),
+                ScriptBuilder.createOutputScript(new ECKey()), new ECKey());
+        block.addTransaction(tx);
+        block.solve();
+        ByteArrayPool pool = new ByteArrayPool(ByteArrayPool.MIN_ARRAY_SIZE, 1024 * 1024);
+        for (Message message : new Message[]{block, tx, new Ping(1)}) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            bs.serialize(message, bos);
+            ByteBuffer in = ByteBuffer.wrap(bos.toByteArray());
+            bs.seekPastMagicBytes(in);
+            BitcoinSerializer.BitcoinPacketHeader header = bs.deserializeHeader(in);
+            // The array is longer than the message, and has junk left over from whatever used it before.
+            byte[] payload = pool.acquire(header.size);
+            assertTrue(payload.length > header.size);
+            Arrays.fill(payload, (byte) 0xFF);
+            in.get(payload, 0, header.size);
+            assertArrayEquals(message.bitcoinSerialize(), bs.deserializePayload(header, payload, null).bitcoinSerialize());
+            // A hash calculated as the payload arrived checks the checksum just as well.
+            byte[] digest = Utils.singleDigest(payload, 0, header.size);
+            assertArrayEquals(message.bitcoinSerialize(), bs.deserializePayload(header, payload, digest).bitcoinSerialize());
+            digest[0]++;
+            try {
+                bs.deserializePayload(header, payload, digest);
+                fail();
+            } catch (ProtocolException e) {
+                // Expected.
+            }
+            pool.release(payload);
+        }
+        // The one array was reused for each message.
+        assertEquals(1, pool.getAllocatedArrays());
+        assertEquals(ByteArrayPool.MIN_ARRAY_SIZE, pool.getFreeBytes());
+    }
+
+    @Test
+    public void testTruncatedBlockInReusedPooledArray() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        BitcoinSerializer bs = new BitcoinSerializer(params);
+        Block block = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        byte[] blockBytes = block.bitcoinSerialize();
+        ByteArrayPool pool = new ByteArrayPool(ByteArrayPool.MIN_ARRAY_SIZE, 1024 * 1024);
+        // An earlier message leaves the whole block in the array.
+        byte[] payload = pool.acquire(blockBytes.length);
+        System.arraycopy(blockBytes, 0, payload, 0, blockBytes.length);
+        pool.release(payload);
+
+        // The next one is the same block cut short, with a checksum that is right for what was sent.
+        int size = blockBytes.length - 10;
+        // The command, padded to 12 bytes, then the size and the checksum.
+        byte[] headerBytes = new byte[BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH];
+        System.arraycopy("block".getBytes("US-ASCII"), 0, headerBytes, 0, 5);
+        Utils.uint32ToByteArrayLE(size, headerBytes, 12);
+        System.arraycopy(Utils.doubleDigest(blockBytes, 0, size), 0, headerBytes, 16, 4);
+        BitcoinSerializer.BitcoinPacketHeader header =
+                new BitcoinSerializer.BitcoinPacketHeader(ByteBuffer.wrap(headerBytes));
+        byte[] reused = pool.acquire(size);
+        assertSame(payload, reused);
+        try {
+            bs.deserializePayload(header, reused, null);
+            fail();
+        } catch (ProtocolException e) {
+            // Expected, rather than the missing bytes being taken from the earlier message.
+        }
+    }
+
     /**
      * Unknown message for testSerializeUnknownMessage.
      */
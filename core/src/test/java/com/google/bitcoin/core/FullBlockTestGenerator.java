@@ -947,10 +947,10 @@ public class FullBlockTestGenerator {
         Block b47 = createNextBlock(b44, chainHeadHeight + 16, out15, null);
         {
             try {
-                // Inverse solve
+                // Inverse solve, against the proof of work hash that the chain checks
                 BigInteger target = b47.getDifficultyTargetAsInteger();
                 while (true) {
-                    BigInteger h = b47.getHash().toBigInteger();
+                    BigInteger h = b47.getScryptHash().toBigInteger();
                     if (h.compareTo(target) > 0) // if invalid
                         break;
                     // increment the nonce and try again.
@@ -20,18 +20,24 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.params.UnitTestParams;
 import com.google.bitcoin.script.Script;
+import com.google.bitcoin.store.CachingFullPrunedBlockStore;
 import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.LogFullPrunedBlockStore;
 import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
 import com.google.bitcoin.utils.BlockFileLoader;
 import com.google.bitcoin.utils.BriefLogFormatter;
+import com.google.bitcoin.utils.ParallelBlockFileLoader;
+import com.google.common.io.Files;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.Iterator;
 
 import static org.junit.Assert.*;
 
@@ -63,6 +69,38 @@ public class FullPrunedBlockChainTest {
         RuleList blockList = generator.getBlocksToTest(false, false, null);
         
         store = new MemoryFullPrunedBlockStore(params, blockList.maximumReorgBlockCount);
+        testGeneratedChain(blockList);
+    }
+
+    @Test
+    public void testGeneratedChainLogStore() throws Exception {
+        FullBlockTestGenerator generator = new FullBlockTestGenerator(params);
+        RuleList blockList = generator.getBlocksToTest(false, false, null);
+
+        File directory = Files.createTempDir();
+        store = new LogFullPrunedBlockStore(params, directory, blockList.maximumReorgBlockCount);
+        try {
+            testGeneratedChain(blockList);
+        } finally {
+            store.close();
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testGeneratedChainCachingStore() throws Exception {
+        FullBlockTestGenerator generator = new FullBlockTestGenerator(params);
+        RuleList blockList = generator.getBlocksToTest(false, false, null);
+
+        // A small cache that is flushed often, so that reorgs straddle flushes and outputs get evicted.
+        store = new CachingFullPrunedBlockStore(new MemoryFullPrunedBlockStore(params, blockList.maximumReorgBlockCount),
+                64 * 1024, 7);
+        testGeneratedChain(blockList);
+    }
+
+    private void testGeneratedChain(RuleList blockList) throws Exception {
         chain = new FullPrunedBlockChain(params, store);
         
         for (Rule rule : blockList.list) {
@@ -191,6 +229,102 @@ public class FullPrunedBlockChainTest {
         assertNull(out.get());
     }
     
+    @Test
+    public void blocksInFlight() throws Exception {
+        store = new MemoryFullPrunedBlockStore(params, 10);
+        testBlocksInFlight();
+    }
+
+    @Test
+    public void blocksInFlightCachingStore() throws Exception {
+        // Headers go straight through to the underlying store, so survive the batch being rolled back.
+        store = new CachingFullPrunedBlockStore(new MemoryFullPrunedBlockStore(params, 10), 64 * 1024, 1000);
+        testBlocksInFlight();
+    }
+
+    private void testBlocksInFlight() throws Exception {
+        chain = new FullPrunedBlockChain(params, store);
+        ECKey outKey = new ECKey();
+        ECKey otherKey = new ECKey();
+
+        // Some mature coinbases to spend.
+        Block rollingBlock = params.getGenesisBlock();
+        Transaction[] coinbases = new Transaction[4];
+        for (int i = 0; i < params.getSpendableCoinbaseDepth() + coinbases.length; i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            if (i < coinbases.length)
+                coinbases[i] = rollingBlock.getTransactions().get(0);
+            assertTrue(chain.add(rollingBlock));
+        }
+        chain.setMaxBlocksInFlight(3);
+
+        // Blocks are connected before their scripts are checked, and committed a window at a time.
+        Block b1 = spend(rollingBlock, coinbases[0], outKey);
+        Block b2 = b1.createNextBlock(null);
+        assertTrue(chain.add(b1));
+        assertTrue(chain.add(b2));
+        assertEquals(2, chain.getBlocksInFlight());
+        assertEquals(b2.getHash(), chain.getChainHead().getHeader().getHash());
+        chain.flushBlocksInFlight();
+        assertEquals(0, chain.getBlocksInFlight());
+        assertEquals(b2.getHash(), store.getVerifiedChainHead().getHeader().getHash());
+        assertNotNull(store.getTransactionOutput(b1.getTransactions().get(1).getHash(), 0));
+        assertNull(store.getTransactionOutput(coinbases[0].getHash(), 0));
+
+        // A block in flight that fails its scripts takes the blocks after it along, but not the ones before.
+        Block b3 = spend(b2, coinbases[1], outKey);
+        Block b4 = spend(b3, coinbases[2], otherKey);
+        Block b5 = b4.createNextBlock(null);
+        assertTrue(chain.add(b3));
+        assertTrue(chain.add(b4));
+        assertTrue(chain.add(b5));
+        try {
+            chain.flushBlocksInFlight();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(0, chain.getBlocksInFlight());
+        assertEquals(b3.getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(b3.getHash(), store.getVerifiedChainHead().getHeader().getHash());
+        assertNotNull(store.getTransactionOutput(b3.getTransactions().get(1).getHash(), 0));
+        assertNotNull(store.getTransactionOutput(coinbases[2].getHash(), 0));
+        assertNull(store.getTransactionOutput(b5.getTransactions().get(0).getHash(), 0));
+
+        // So does a block which fails to connect while others are in flight.
+        Block b6 = spend(b3, coinbases[2], outKey);
+        Block b7 = spend(b6, coinbases[2], outKey);
+        assertTrue(chain.add(b6));
+        try {
+            chain.add(b7);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(0, chain.getBlocksInFlight());
+        assertEquals(b6.getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(b6.getHash(), store.getVerifiedChainHead().getHeader().getHash());
+        assertNull(store.getTransactionOutput(coinbases[2].getHash(), 0));
+
+        // The chain carries on from there.
+        Block b8 = spend(b6, coinbases[3], outKey);
+        assertTrue(chain.add(b8));
+        chain.flushBlocksInFlight();
+        assertEquals(b8.getHash(), store.getVerifiedChainHead().getHeader().getHash());
+    }
+
+    // Returns a block on top of prev which spends the first output of coinbase, signed with key.
+    private Block spend(Block prev, Transaction coinbase, ECKey key) throws Exception {
+        Block block = prev.createNextBlock(null);
+        Transaction t = new Transaction(params);
+        t.addOutput(new TransactionOutput(params, t, Utils.toNanoCoins(50, 0), new byte[] {}));
+        t.addSignedInput(new TransactionOutPoint(params, 0, coinbase.getHash()),
+                new Script(coinbase.getOutput(0).getScriptBytes()), key);
+        block.addTransaction(t);
+        block.solve();
+        return block;
+    }
+
     @Test
     public void testFirst100KBlocks() throws Exception {
         NetworkParameters params = MainNetParams.get();
@@ -202,4 +336,41 @@ public class FullPrunedBlockChainTest {
         for (Block block : loader)
             chain.add(block);
     }
+
+    @Test
+    public void parallelBlockFileLoader() throws Exception {
+        // A block file as the reference client writes them, with some junk between the blocks and zeros at the end.
+        File blockFile = File.createTempFile("blk", ".dat");
+        blockFile.deleteOnExit();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] magic = new byte[4];
+        Utils.uint32ToByteArrayBE(params.getPacketMagic(), magic, 0);
+        ECKey outKey = new ECKey();
+        Block rollingBlock = params.getGenesisBlock();
+        for (int i = 0; i < 50; i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            byte[] block = rollingBlock.bitcoinSerialize();
+            if (i % 2 == 1)
+                bytes.write(magic, 0, 2);
+            bytes.write(magic);
+            Utils.uint32ToByteStreamLE(block.length, bytes);
+            bytes.write(block);
+        }
+        bytes.write(new byte[1000]);
+        Files.write(bytes.toByteArray(), blockFile);
+
+        // A short queue, so that reading ahead has to wait for the chain.
+        ParallelBlockFileLoader loader = new ParallelBlockFileLoader(params, Arrays.asList(blockFile), 4, 3);
+        Iterator<Block> expected = new BlockFileLoader(params, Arrays.asList(blockFile)).iterator();
+        store = new MemoryFullPrunedBlockStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        for (Block block : loader) {
+            assertEquals(expected.next().getHash(), block.getHash());
+            assertTrue(chain.add(block));
+        }
+        assertFalse(expected.hasNext());
+        assertEquals(50, loader.getBlocksLoaded());
+        assertEquals(0, loader.getBlocksSkipped());
+        assertEquals(rollingBlock.getHash(), chain.getChainHead().getHeader().getHash());
+    }
 }
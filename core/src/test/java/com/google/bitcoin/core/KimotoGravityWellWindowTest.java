@@ -0,0 +1,164 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KimotoGravityWellWindowTest {
+    private static final long SPACING = 150;
+    private static final long PAST_BLOCKS_MIN = 144;
+    private static final long PAST_BLOCKS_MAX = 4032;
+
+    private NetworkParameters params;
+    private BlockStore store;
+    private StoredBlock genesis;
+    private Random random;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        store = new MemoryBlockStore(params);
+        genesis = store.getChainHead();
+        random = new Random(1);
+    }
+
+    private KimotoGravityWellWindow newWindow() {
+        return new KimotoGravityWellWindow(params.getProofOfWorkLimit(), SPACING, PAST_BLOCKS_MIN, PAST_BLOCKS_MAX);
+    }
+
+    private StoredBlock next(StoredBlock prev) throws Exception {
+        Block header = prev.getHeader().cloneAsHeader();
+        header.setPrevBlockHash(prev.getHeader().getHash());
+        long spacing = random.nextInt(10) == 0 ? -random.nextInt(500) : random.nextInt(random.nextBoolean() ? 300 : 3000);
+        header.setTime(prev.getHeader().getTimeSeconds() + spacing);
+        header.setDifficultyTarget(((long) (3 + random.nextInt(28)) << 24) | (1 + random.nextInt(0x7fffff)));
+        header.setNonce(random.nextLong() & 0xFFFFFFFFL);
+        StoredBlock block = new StoredBlock(header, BigInteger.ONE, prev.getHeight() + 1);
+        store.put(block);
+        return block;
+    }
+
+    // The store walking calculation from AbstractBlockChain, returning null where it would not check the difficulty.
+    private BigInteger walkStore(StoredBlock storedPrev) throws Exception {
+        StoredBlock reading = storedPrev;
+        long pastBlocksMass = 0;
+        long pastRateActualSeconds = 0;
+        long pastRateTargetSeconds = 0;
+        BigInteger pastDifficultyAverage = BigInteger.ZERO;
+        for (int i = 1; reading != null && reading.getHeight() > 0; i++) {
+            if (i > PAST_BLOCKS_MAX)
+                break;
+            pastBlocksMass++;
+            BigInteger target = reading.getHeader().getDifficultyTargetAsInteger();
+            if (i == 1)
+                pastDifficultyAverage = target;
+            else
+                pastDifficultyAverage = target.subtract(pastDifficultyAverage).divide(BigInteger.valueOf(i)).add(pastDifficultyAverage);
+            pastRateActualSeconds = Math.max(0, storedPrev.getHeader().getTimeSeconds() - reading.getHeader().getTimeSeconds());
+            pastRateTargetSeconds = SPACING * pastBlocksMass;
+            double ratio = 1;
+            if (pastRateActualSeconds != 0)
+                ratio = (double) pastRateTargetSeconds / pastRateActualSeconds;
+            double deviation = 1 + (0.7084 * Math.pow((double) pastBlocksMass / 144d, -1.228));
+            if (pastBlocksMass >= PAST_BLOCKS_MIN && (ratio <= 1 / deviation || ratio >= deviation))
+                break;
+            reading = reading.getPrev(store);
+            if (reading == null)
+                return null;
+        }
+        if (pastRateActualSeconds != 0 && pastRateTargetSeconds != 0) {
+            pastDifficultyAverage = pastDifficultyAverage.multiply(BigInteger.valueOf(pastRateActualSeconds))
+                    .divide(BigInteger.valueOf(pastRateTargetSeconds));
+        }
+        return pastDifficultyAverage;
+    }
+
+    @Test
+    public void matchesStoreWalk() throws Exception {
+        KimotoGravityWellWindow window = newWindow();
+        StoredBlock head = genesis;
+        window.fill(head, store);
+        for (int i = 0; i < 4500; i++) {
+            head = next(head);
+            window.setChainHead(head, store);
+            assertTrue(window.isAt(head));
+            if (i % 10 == 0 || i > 4020)
+                assertEquals(walkStore(head), window.calculate());
+        }
+    }
+
+    @Test
+    public void reorganize() throws Exception {
+        KimotoGravityWellWindow window = newWindow();
+        StoredBlock head = genesis;
+        for (int i = 0; i < 300; i++)
+            head = next(head);
+        window.fill(head, store);
+        StoredBlock forkPoint = head;
+        for (int i = 0; i < 5; i++)
+            head = next(head);
+        window.setChainHead(head, store);
+        // A longer side chain from the fork point becomes the best chain.
+        StoredBlock side = forkPoint;
+        for (int i = 0; i < 8; i++)
+            side = next(side);
+        window.setChainHead(side, store);
+        assertTrue(window.isAt(side));
+        assertEquals(walkStore(side), window.calculate());
+        // And back again, to a chain forking before the start of the window.
+        StoredBlock old = genesis;
+        for (int i = 0; i < 400; i++)
+            old = next(old);
+        window.setChainHead(old, store);
+        assertTrue(window.isAt(old));
+        assertEquals(walkStore(old), window.calculate());
+    }
+
+    @Test
+    public void checkpointedStore() throws Exception {
+        // A store that starts at a checkpoint rather than the genesis block: not enough blocks to check against.
+        Block header = genesis.getHeader().cloneAsHeader();
+        header.setPrevBlockHash(new Sha256Hash("0000000000000000000000000000000000000000000000000000000000000001"));
+        StoredBlock checkpoint = new StoredBlock(header, BigInteger.ONE, 10000);
+        store.put(checkpoint);
+        StoredBlock head = checkpoint;
+        for (int i = 0; i < 10; i++)
+            head = next(head);
+        KimotoGravityWellWindow window = newWindow();
+        window.fill(head, store);
+        assertNull(walkStore(head));
+        assertNull(window.calculate());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unusableTarget() throws Exception {
+        StoredBlock head = next(next(genesis));
+        head.getHeader().setDifficultyTarget(0x04923456L);  // Negative.
+        KimotoGravityWellWindow window = newWindow();
+        window.fill(head, store);
+        window.calculate();
+    }
+}
@@ -273,6 +273,110 @@ public class PeerGroupTest extends TestWithPeerGroup {
         peerGroup.stop();
     }
 
+    @Test
+    public void parallelBlockDownload() throws Exception {
+        // Check that blocks announced to the download peer are requested from all peers, a window at a time, and are
+        // added to the chain in order whichever peer they come from.
+        peerGroup.setMaxBlocksInFlightPerPeer(2);
+        peerGroup.startAndWait();
+        remoteVersionMessage.bestHeight = 10;
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+
+        Block b1 = TestUtils.createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        Block b2 = TestUtils.makeSolvedTestBlock(b1);
+        Block b3 = TestUtils.makeSolvedTestBlock(b2);
+        Block b4 = TestUtils.makeSolvedTestBlock(b3);
+        Block b5 = TestUtils.makeSolvedTestBlock(b4);
+
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetBlocksMessage);
+        InventoryMessage inv = new InventoryMessage(params);
+        inv.addBlock(b2);
+        inv.addBlock(b3);
+        inv.addBlock(b4);
+        inv.addBlock(b5);
+        inbound(p1, inv);
+        // The blocks are shared out between the peers, as filtered blocks because there is a wallet.
+        GetDataMessage getdata1 = (GetDataMessage) waitForOutbound(p1);
+        assertTrue(waitForOutbound(p1) instanceof Ping);
+        GetDataMessage getdata2 = (GetDataMessage) waitForOutbound(p2);
+        assertTrue(waitForOutbound(p2) instanceof Ping);
+        assertEquals(2, getdata1.getItems().size());
+        assertEquals(InventoryItem.Type.FilteredBlock, getdata1.getItems().get(0).type);
+        assertEquals(b2.getHash(), getdata1.getItems().get(0).hash);
+        assertEquals(b4.getHash(), getdata1.getItems().get(1).hash);
+        assertEquals(b3.getHash(), getdata2.getItems().get(0).hash);
+        assertEquals(b5.getHash(), getdata2.getItems().get(1).hash);
+
+        // The later blocks arrive first, and wait for b2.
+        inbound(p2, b3);
+        inbound(p2, b5);
+        pingAndWait(p2);
+        assertEquals(b1, blockChain.getChainHead().getHeader());
+        inbound(p1, b2);
+        inbound(p1, b4);
+        // Once they're all in, the download peer is asked for more.
+        GetBlocksMessage getblocks = (GetBlocksMessage) waitForOutbound(p1);
+        assertEquals(b5.getHash(), getblocks.getLocator().get(0));
+        assertEquals(b5, blockChain.getChainHead().getHeader());
+
+        Map<Peer, BlockDownloadScheduler.PeerStats> stats = peerGroup.getDownloadScheduler().getPeerStats();
+        assertEquals(2, stats.get(peerOf(p1)).getBlocksReceived());
+        assertEquals(2, stats.get(peerOf(p2)).getBlocksReceived());
+        assertEquals(0, stats.get(peerOf(p2)).getBlocksInFlight());
+        assertTrue(stats.get(peerOf(p2)).getBytesReceived() > 0);
+        peerGroup.stop();
+    }
+
+    @Test
+    public void parallelBlockDownloadStall() throws Exception {
+        // Check that a block which one peer doesn't send is requested from another.
+        peerGroup.setMaxBlocksInFlightPerPeer(1);
+        peerGroup.startAndWait();
+        remoteVersionMessage.bestHeight = 10;
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        Block b1 = TestUtils.createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        Block b2 = TestUtils.makeSolvedTestBlock(b1);
+        Block b3 = TestUtils.makeSolvedTestBlock(b2);
+
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetBlocksMessage);
+        InventoryMessage inv = new InventoryMessage(params);
+        inv.addBlock(b2);
+        inv.addBlock(b3);
+        inbound(p1, inv);
+        assertEquals(b2.getHash(), ((GetDataMessage) waitForOutbound(p1)).getItems().get(0).hash);
+        assertTrue(waitForOutbound(p1) instanceof Ping);
+        assertEquals(b3.getHash(), ((GetDataMessage) waitForOutbound(p2)).getItems().get(0).hash);
+        assertTrue(waitForOutbound(p2) instanceof Ping);
+        inbound(p1, b2);
+        pingAndWait(p1);
+
+        // p2 never sends b3, so once the timeout has passed it's asked of p1 instead.
+        BlockDownloadScheduler scheduler = peerGroup.getDownloadScheduler();
+        try {
+            Utils.rollMockClockMillis(scheduler.getStallTimeoutMsec());
+            scheduler.checkForStalls();
+        } finally {
+            Utils.mockTime = null;
+        }
+        assertEquals(b3.getHash(), ((GetDataMessage) waitForOutbound(p1)).getItems().get(0).hash);
+        assertTrue(waitForOutbound(p1) instanceof Ping);
+        inbound(p1, b3);
+        assertTrue(waitForOutbound(p1) instanceof GetBlocksMessage);
+        assertEquals(b3, blockChain.getChainHead().getHeader());
+        assertEquals(1, scheduler.getPeerStats().get(peerOf(p2)).getStalls());
+        assertEquals(2, scheduler.getPeerStats().get(peerOf(p1)).getBlocksReceived());
+        peerGroup.stop();
+    }
+
     @Test
     public void transactionConfidence() throws Exception {
         // Checks that we correctly count how many peers broadcast a transaction, so we can establish some measure of
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.net.ByteBufferPool;
+import com.google.bitcoin.net.MessageWriteTarget;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PeerSocketHandlerTest {
+    private NetworkParameters params;
+    private BitcoinSerializer serializer;
+    private List<Long> processed;
+    private Semaphore processing;
+    private CountDownLatch closed;
+    private AtomicInteger pauses;
+    private AtomicInteger resumes;
+    private PeerSocketHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        serializer = new BitcoinSerializer(params);
+        processed = Collections.synchronizedList(new ArrayList<Long>());
+        processing = new Semaphore(0);
+        closed = new CountDownLatch(1);
+        pauses = new AtomicInteger();
+        resumes = new AtomicInteger();
+        handler = new PeerSocketHandler(params, new InetSocketAddress("127.0.0.1", 2000)) {
+            @Override
+            protected void processMessage(Message m) throws Exception {
+                processing.acquire();
+                processed.add(((Ping) m).getNonce());
+            }
+
+            @Override
+            public void connectionClosed() {
+                executeAfterReceivedMessages(new Runnable() {
+                    @Override
+                    public void run() {
+                        closed.countDown();
+                    }
+                });
+            }
+
+            @Override
+            public void connectionOpened() {
+            }
+        };
+        handler.setWriteTarget(new MessageWriteTarget() {
+            @Override public void writeBytes(byte[] message) {}
+            @Override public void writeBytes(ByteBuffer[] buffers) { ByteBufferPool.get().release(buffers); }
+            @Override public void pauseReading() { pauses.incrementAndGet(); }
+            @Override public void resumeReading() { resumes.incrementAndGet(); }
+            @Override public void closeConnection() {}
+        });
+    }
+
+    private ByteBuffer pings(long... nonces) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (long nonce : nonces)
+            serializer.serialize(new Ping(nonce), out);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    @Test
+    public void processesInOrderOffNetworkThread() throws Exception {
+        ByteBuffer buff = pings(1, 2, 3);
+        // All the messages are framed and queued without waiting for them to be processed.
+        assertEquals(buff.limit(), handler.receiveBytes(buff));
+        assertEquals(3, handler.getQueuedMessages());
+        handler.connectionClosed();
+        processing.release(3);
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1L, 2L, 3L), processed);
+        assertEquals(0, handler.getQueuedMessages());
+        assertEquals(0, handler.getQueuedBytes());
+    }
+
+    @Test
+    public void readsLargeMessagesInPieces() throws Exception {
+        // A ping with a block behind it, read through a buffer much smaller than the block.
+        NetworkParameters unitTestParams = UnitTestParams.get();
+        Block block = unitTestParams.getGenesisBlock().createNextBlock(new ECKey().toAddress(unitTestParams));
+        for (int i = 0; i < 20; i++) {
+            Transaction tx = new Transaction(unitTestParams);
+            tx.addOutput(Utils.COIN, new ECKey());
+            tx.addSignedInput(new TransactionOutPoint(unitTestParams, i, Sha256Hash.create(new byte[]{1})),
+                    ScriptBuilder.createOutputScript(new ECKey()), new ECKey());
+            block.addTransaction(tx);
+        }
+        block.solve();
+        final List<Message> messages = Collections.synchronizedList(new ArrayList<Message>());
+        PeerSocketHandler blockHandler = new PeerSocketHandler(params, new InetSocketAddress("127.0.0.1", 2000)) {
+            @Override
+            protected void processMessage(Message m) throws Exception {
+                messages.add(m);
+            }
+
+            @Override
+            public void connectionClosed() {
+                executeAfterReceivedMessages(new Runnable() {
+                    @Override
+                    public void run() {
+                        closed.countDown();
+                    }
+                });
+            }
+
+            @Override
+            public void connectionOpened() {
+            }
+        };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(new Ping(1), out);
+        serializer.serialize(block, out);
+        byte[] bytes = out.toByteArray();
+        ByteBuffer buff = ByteBuffer.allocate(256);
+        assertTrue(bytes.length > buff.capacity() * 4);
+        int pos = 0;
+        while (pos < bytes.length) {
+            int n = Math.min(buff.remaining(), bytes.length - pos);
+            buff.put(bytes, pos, n);
+            pos += n;
+            buff.flip();
+            int consumed = blockHandler.receiveBytes(buff);
+            assertEquals(buff.position(), consumed);
+            buff.compact();
+        }
+        blockHandler.connectionClosed();
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        assertEquals(2, messages.size());
+        assertEquals(1, ((Ping) messages.get(0)).getNonce());
+        assertEquals(block, messages.get(1));
+    }
+
+    @Test
+    public void pausesReadingWhenQueueIsFull() throws Exception {
+        handler.setReceiveQueueLimits(1024 * 1024, 4);
+        handler.receiveBytes(pings(1, 2, 3, 4));
+        assertEquals(0, pauses.get());
+        handler.receiveBytes(pings(5, 6));
+        assertEquals(1, pauses.get());
+        // Reading carries on once no more than half the limit is left.
+        processing.release(3);
+        while (processed.size() < 3)
+            Thread.sleep(10);
+        assertEquals(0, resumes.get());
+        processing.release(1);
+        while (resumes.get() == 0)
+            Thread.sleep(10);
+        processing.release(2);
+        handler.connectionClosed();
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        assertEquals(1, pauses.get());
+        assertEquals(1, resumes.get());
+    }
+}
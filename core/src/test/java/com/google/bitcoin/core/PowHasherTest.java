@@ -0,0 +1,82 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.utils.Threading;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PowHasherTest {
+    private static final byte[] HEADER = Hex.decode("0100000040f11b68435988807d64dff20261f7d9827825fbb37542601fb94d4500" +
+            "0000000f28f7c69e2669981f92ff081c129e196200c60f4fad7911d93a682de0b49ea2ecd9d24c1844011d00d36105");
+    private static final String HEADER_POW = "110f0b759d88ecbe6eac10212e8c247f651ee84cde8072985109f6e586846fc8";
+
+    @Test
+    public void hashIntoBuffer() {
+        byte[] padded = new byte[HEADER.length + 10];
+        System.arraycopy(HEADER, 0, padded, 5, HEADER.length);
+        byte[] out = new byte[40];
+        PowHasher.get().hash(padded, 5, HEADER.length, out, 8);
+        assertEquals(HEADER_POW, new String(Hex.encode(Arrays.copyOfRange(out, 8, 40))));
+    }
+
+    @Test
+    public void bulkHash() {
+        byte[] other = HEADER.clone();
+        other[79]++;
+        byte[][] headers = {HEADER, other, HEADER};
+        byte[][] out = new byte[3][PowHasher.HASH_LENGTH];
+        PowHasher.get().hash(headers, out);
+        assertEquals(HEADER_POW, new String(Hex.encode(out[0])));
+        assertArrayEquals(PowHasher.get().hash(other), out[1]);
+        assertFalse(Arrays.equals(out[0], out[1]));
+        assertArrayEquals(out[0], out[2]);
+    }
+
+    @Test
+    public void blockUsesPowHasher() throws Exception {
+        Block block = new Block(UnitTestParams.get(), HEADER);
+        assertEquals(new Sha256Hash(Utils.reverseBytes(Hex.decode(HEADER_POW))), block.getScryptHash());
+    }
+
+    @Test
+    public void headersMessageBatch() throws Exception {
+        Block[] headers = new Block[50];
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = new Block(UnitTestParams.get(), HEADER);
+            headers[i].setNonce(i);
+        }
+        HeadersMessage message = new HeadersMessage(UnitTestParams.get(), headers);
+        HeadersMessage parsed = new HeadersMessage(UnitTestParams.get(), message.bitcoinSerialize());
+        // Only the headers that are going to be verified are hashed.
+        parsed.calculateScryptHashes(Threading.WORKER_POOL, 30);
+        for (int i = 0; i < headers.length; i++) {
+            Block header = parsed.getBlockHeaders().get(i);
+            assertEquals(i < 30, header.isScryptHashCached());
+            if (i >= 30) continue;
+            // Verification gets the hash the batch cached rather than working it out again.
+            Sha256Hash hash = header.getScryptHash();
+            assertEquals(headers[i].getScryptHash(), hash);
+            assertSame(hash, header.getScryptHash());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.fail;
+
+public class ScriptVerificationSchedulerTest {
+    private NetworkParameters params;
+    private ECKey key;
+    private Script scriptPubKey;
+    private ScriptVerificationScheduler scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        key = new ECKey();
+        scriptPubKey = ScriptBuilder.createOutputScript(key.toAddress(params));
+        scheduler = new ScriptVerificationScheduler(2);
+    }
+
+    private Transaction spend(int inputs) throws Exception {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.COIN, new ECKey());
+        // Each input only signs itself, so adding the next doesn't break the signatures of the ones before.
+        for (int i = 0; i < inputs; i++)
+            tx.addSignedInput(new TransactionOutPoint(params, i, Sha256Hash.create(new byte[]{(byte) inputs})),
+                    scriptPubKey, key, Transaction.SigHash.ALL, true);
+        return tx;
+    }
+
+    @Test
+    public void verifiesEveryInput() throws Exception {
+        ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+        for (int n = 1; n <= 10; n++) {
+            Transaction tx = spend(n);
+            for (int i = 0; i < n; i++)
+                batch.submit(tx, i, scriptPubKey, true);
+        }
+        batch.await();
+    }
+
+    @Test
+    public void failsOnBadInput() throws Exception {
+        Script other = ScriptBuilder.createOutputScript(new ECKey().toAddress(params));
+        ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+        Transaction tx = spend(20);
+        for (int i = 0; i < 20; i++)
+            batch.submit(tx, i, i == 10 ? other : scriptPubKey, true);
+        try {
+            batch.await();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        // The threads are still there for the next block.
+        batch = scheduler.newBatch();
+        tx = spend(3);
+        for (int i = 0; i < 3; i++)
+            batch.submit(tx, i, scriptPubKey, true);
+        batch.await();
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        // Without threads of its own, the scheduler runs everything when the batch is waited for.
+        scheduler = new ScriptVerificationScheduler(0);
+        Script other = ScriptBuilder.createOutputScript(new ECKey().toAddress(params));
+        ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+        Transaction tx = spend(5);
+        for (int i = 0; i < 5; i++)
+            batch.submit(tx, i, other, true);
+        batch.cancel();
+        batch.submit(tx, 0, other, true);
+        // None of the bad inputs were checked.
+        batch.await();
+
+        batch = scheduler.newBatch();
+        batch.submit(tx, 0, other, true);
+        try {
+            batch.await();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void failsOnError() throws Exception {
+        Script broken = new Script(scriptPubKey.getProgram()) {
+            @Override
+            public byte[] getProgram() {
+                throw new StackOverflowError();
+            }
+        };
+        ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+        Transaction tx = spend(20);
+        for (int i = 0; i < 20; i++)
+            batch.submit(tx, i, broken, true);
+        try {
+            batch.await();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        // The threads are still there for the next block.
+        batch = scheduler.newBatch();
+        tx = spend(3);
+        for (int i = 0; i < 3; i++)
+            batch.submit(tx, i, scriptPubKey, true);
+        batch.await();
+    }
+}
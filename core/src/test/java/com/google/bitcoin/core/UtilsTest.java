@@ -18,6 +18,7 @@ package com.google.bitcoin.core;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
 
 import java.math.BigInteger;
 
@@ -115,4 +116,42 @@ public class UtilsTest {
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[] {4,3,2,1,8,7,6,5}, 0));
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[0], 0));
     }
+
+    @Test
+    public void testScryptDigest() {
+        // Lyra2REv2 of the 80 byte header of testnet block 00000000a6e5eb79dcec11897af55e90cd571a4335383a3ccfbc12ec81085935.
+        byte[] header = Hex.decode("0100000040f11b68435988807d64dff20261f7d9827825fbb37542601fb94d45000000000f28f7c6" +
+                "9e2669981f92ff081c129e196200c60f4fad7911d93a682de0b49ea2ecd9d24c1844011d00d36105");
+        assertEquals("110f0b759d88ecbe6eac10212e8c247f651ee84cde8072985109f6e586846fc8",
+                new String(Hex.encode(Utils.scryptDigest(header))));
+        // Hashing again on the same thread reuses the engines and must not be affected by the previous call.
+        assertEquals("110f0b759d88ecbe6eac10212e8c247f651ee84cde8072985109f6e586846fc8",
+                new String(Hex.encode(Utils.scryptDigest(header))));
+    }
+
+    @Test
+    public void testDigests() {
+        byte[] input = "xhello worldx".getBytes();
+        assertEquals("2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824",
+                new String(Hex.encode(Utils.singleDigest(input, 1, 5))));
+        assertEquals("9595c9df90075148eb06860365df33584b75bff782a510c6cd4883a419833d50",
+                new String(Hex.encode(Utils.doubleDigest(input, 1, 5))));
+        assertEquals("bc62d4b80d9e36da29c16c5d4d9f11731f36052c72401a76c23c0fb5a9b74423",
+                new String(Hex.encode(Utils.doubleDigestTwoBuffers(input, 1, 6, input, 7, 5))));
+
+        // The variants writing into a caller supplied buffer give the same results and leave the rest of it alone.
+        byte[] out = new byte[Utils.SHA256_LENGTH + 2];
+        Utils.singleDigest(input, 1, 5, out, 1);
+        assertEquals("002cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b982400", new String(Hex.encode(out)));
+        Utils.doubleDigest(input, 1, 5, out, 1);
+        assertEquals("009595c9df90075148eb06860365df33584b75bff782a510c6cd4883a419833d5000", new String(Hex.encode(out)));
+        Utils.doubleDigestTwoBuffers(input, 1, 6, input, 7, 5, out, 1);
+        assertEquals("00bc62d4b80d9e36da29c16c5d4d9f11731f36052c72401a76c23c0fb5a9b7442300", new String(Hex.encode(out)));
+        try {
+            Utils.doubleDigest(input, 1, 5, out, 3);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
 }
@@ -29,8 +29,11 @@ import com.google.bitcoin.utils.MockTransactionBroadcaster;
 import com.google.bitcoin.utils.TestUtils;
 import com.google.bitcoin.utils.TestWithWallet;
 import com.google.bitcoin.utils.Threading;
+import com.google.bitcoin.wallet.CoinSelector;
+import com.google.bitcoin.wallet.DefaultCoinSelector;
 import com.google.bitcoin.wallet.KeyTimeCoinSelector;
 import com.google.bitcoin.wallet.WalletFiles;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
@@ -109,6 +112,35 @@ public class WalletTest extends TestWithWallet {
         super.tearDown();
     }
 
+    // Checks the balances and spend candidates the wallet caches against the same things calculated from its pools.
+    private static void assertCachesConsistent(Wallet wallet) {
+        LinkedList<TransactionOutput> all = Lists.newLinkedList();
+        LinkedList<TransactionOutput> mature = Lists.newLinkedList();
+        BigInteger estimated = BigInteger.ZERO;
+        for (Transaction tx : Iterables.concat(wallet.unspent.values(), wallet.pending.values())) {
+            for (TransactionOutput output : tx.getOutputs()) {
+                if (!output.isAvailableForSpending() || !output.isMine(wallet)) continue;
+                all.add(output);
+                if (tx.isMature())
+                    mature.add(output);
+                estimated = estimated.add(output.getValue());
+            }
+        }
+        ArrayList<TransactionOutput> candidates = new ArrayList<TransactionOutput>(wallet.calculateAllSpendCandidates(false));
+        assertEquals(all.size(), candidates.size());
+        assertEquals(new HashSet<TransactionOutput>(all), new HashSet<TransactionOutput>(candidates));
+        ArrayList<TransactionOutput> sorted = new ArrayList<TransactionOutput>(candidates);
+        Collections.sort(sorted, DefaultCoinSelector.COIN_DEPTH_ORDER);
+        assertEquals(sorted, candidates);
+        assertEquals(mature.size(), wallet.calculateAllSpendCandidates(true).size());
+
+        CoinSelector selector = wallet.getCoinSelector();
+        assertEquals(selector.select(NetworkParameters.MAX_MONEY, mature).valueGathered, wallet.getBalance());
+        assertEquals(estimated, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(selector.select(NetworkParameters.MAX_MONEY, wallet.getWatchedOutputs(true)).valueGathered,
+                wallet.getWatchedBalance());
+    }
+
     @Test
     public void basicSpending() throws Exception {
         basicSpendingCommon(wallet, myAddress, new ECKey().toAddress(params), false);
@@ -377,6 +409,135 @@ public class WalletTest extends TestWithWallet {
         assertEquals(v4, wallet.getBalance(Wallet.BalanceType.AVAILABLE));
     }
 
+    @Test
+    public void runningBalances() throws Exception {
+        // The balances are running totals. Read them before every change so there is something to update.
+        Address watchedAddress = new ECKey().toAddress(params);
+        assertCachesConsistent(wallet);
+        wallet.addWatchedAddress(watchedAddress);
+        assertCachesConsistent(wallet);
+        sendMoneyToWallet(toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertCachesConsistent(wallet);
+        sendMoneyToWallet(wallet, CENT, watchedAddress, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertCachesConsistent(wallet);
+        assertEquals(toNanoCoins(1, 0), wallet.getBalance());
+        assertEquals(CENT, wallet.getWatchedBalance());
+
+        // Spend some of it. The change isn't available until other peers have seen the spend, which the network code
+        // records without telling the wallet.
+        Transaction send = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 10));
+        wallet.commitTx(send);
+        assertCachesConsistent(wallet);
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        assertEquals(toNanoCoins(0, 90), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        send.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{1,2,3,4})));
+        send.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{10,2,3,4})));
+        assertEquals(toNanoCoins(0, 90), wallet.getBalance());
+        assertCachesConsistent(wallet);
+        sendMoneyToWallet(send, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertCachesConsistent(wallet);
+        assertEquals(toNanoCoins(0, 90), wallet.getBalance());
+
+        // Key and coin selector changes.
+        wallet.removeKey(myKey);
+        assertCachesConsistent(wallet);
+        assertEquals(BigInteger.ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        wallet.addKey(myKey);
+        assertCachesConsistent(wallet);
+        wallet.allowSpendingUnconfirmedTransactions();
+        sendMoneyToWallet(CENT, null);
+        assertEquals(toNanoCoins(0, 91), wallet.getBalance());
+        assertCachesConsistent(wallet);
+
+        wallet.clearTransactions(0);
+        assertCachesConsistent(wallet);
+        assertEquals(BigInteger.ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void runningBalancesMatureCoinbase() throws Exception {
+        // A coinbase becomes available once it is deep enough, without anything else happening to it.
+        Block b = blockStore.getChainHead().getHeader().createNextBlockWithCoinbase(myKey.getPubKey());
+        chain.add(b);
+        BigInteger value = b.getTransactions().get(0).getValueSentToMe(wallet);
+        assertEquals(value, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        for (int depth = 1; depth <= params.getSpendableCoinbaseDepth(); depth++) {
+            assertEquals(depth < params.getSpendableCoinbaseDepth() ? BigInteger.ZERO : value, wallet.getBalance());
+            assertCachesConsistent(wallet);
+            chain.add(blockStore.getChainHead().getHeader().createNextBlock(new ECKey().toAddress(params)));
+        }
+        assertEquals(value, wallet.getBalance());
+    }
+
+    @Test
+    public void runningBalancesDoubleSpend() throws Exception {
+        // The killed spend frees up the output that wasn't double spent.
+        sendMoneyToWallet(Utils.toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        sendMoneyToWallet(Utils.toNanoCoins(2, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Transaction send1 = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(2, 90));
+        Transaction send2 = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(1, 0));
+        send2 = new Transaction(params, send2.bitcoinSerialize());
+        wallet.commitTx(send1);
+        assertCachesConsistent(wallet);
+        assertEquals(toNanoCoins(0, 10), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        sendMoneyToWallet(send2, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertCachesConsistent(wallet);
+        assertEquals(Utils.toNanoCoins(2, 0), wallet.getBalance());
+    }
+
+    @Test
+    public void runningBalancesReorganize() throws Exception {
+        // A re-org moves transactions between the pools wholesale and then replays the new chain.
+        Address other = new ECKey().toAddress(params);
+        Block b1 = params.getGenesisBlock().createNextBlock(other);
+        chain.add(b1);
+        Transaction t1 = createFakeTx(params, toNanoCoins(1, 0), myAddress);
+        Block b2 = b1.createNextBlock(other);
+        b2.addTransaction(t1);
+        b2.solve();
+        chain.add(b2);
+        assertEquals(toNanoCoins(1, 0), wallet.getBalance());
+        assertCachesConsistent(wallet);
+        // genesis -> b1 -> b2
+        //              \-> b3 -> b4
+        Block b3 = b1.createNextBlock(other);
+        Block b4 = b3.createNextBlock(other);
+        chain.add(b3);
+        chain.add(b4);
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        assertEquals(toNanoCoins(1, 0), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertCachesConsistent(wallet);
+        Block b5 = b4.createNextBlock(other);
+        b5.addTransaction(t1);
+        b5.solve();
+        chain.add(b5);
+        assertEquals(toNanoCoins(1, 0), wallet.getBalance());
+        assertCachesConsistent(wallet);
+    }
+
+    @Test
+    public void spendCandidates() throws Exception {
+        // Committing spends updates the spend candidates in place and new blocks reorder them.
+        for (int i = 1; i <= 3; i++)
+            sendMoneyToWallet(toNanoCoins(i, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertCachesConsistent(wallet);
+        wallet.allowSpendingUnconfirmedTransactions();
+        List<Transaction> sends = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            Transaction send = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 30));
+            wallet.commitTx(send);
+            sends.add(send);
+            assertCachesConsistent(wallet);
+        }
+        assertEquals(toNanoCoins(4, 50), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        // The first spend only spent confirmed coins.
+        sendMoneyToWallet(sends.get(0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertCachesConsistent(wallet);
+        sendMoneyToWallet(toNanoCoins(0, 10), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertCachesConsistent(wallet);
+        assertEquals(toNanoCoins(4, 60), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
     // Intuitively you'd expect to be able to create a transaction with identical inputs and outputs and get an
     // identical result to the official client. However the signatures are not deterministic - signing the same data
     // with the same key twice gives two different outputs. So we cannot prove bit-for-bit compatibility in this test
@@ -890,6 +1051,40 @@ public class WalletTest extends TestWithWallet {
         assertEquals(now + 60, wallet.getEarliestKeyCreationTime());
     }
 
+    @Test
+    public void keyLookups() throws Exception {
+        wallet = new Wallet(params);
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        assertEquals(2, wallet.addKeys(Lists.newArrayList(key1, key2, key1)));
+        assertEquals(0, wallet.addKeys(Lists.newArrayList(new ECKey(null, key1.getPubKey()))));
+        assertEquals(key1, wallet.findKeyFromPubHash(key1.getPubKeyHash()));
+        assertEquals(key2, wallet.findKeyFromPubKey(key2.getPubKey()));
+        assertTrue(wallet.hasKey(new ECKey(null, key2.getPubKey())));
+        assertNull(wallet.findKeyFromPubHash(new ECKey().getPubKeyHash()));
+
+        assertTrue(wallet.removeKey(key1));
+        assertFalse(wallet.removeKey(key1));
+        assertFalse(wallet.hasKey(key1));
+        assertNull(wallet.findKeyFromPubHash(key1.getPubKeyHash()));
+        assertNull(wallet.findKeyFromPubKey(key1.getPubKey()));
+        assertTrue(wallet.isPubKeyMine(key2.getPubKey()));
+
+        // Encryption replaces the keys with new objects, the lookups must return those.
+        wallet.encrypt(keyCrypter, aesKey);
+        assertTrue(wallet.findKeyFromPubHash(key2.getPubKeyHash()).isEncrypted());
+        assertTrue(wallet.findKeyFromPubKey(key2.getPubKey()).isEncrypted());
+        wallet.decrypt(aesKey);
+        assertFalse(wallet.findKeyFromPubHash(key2.getPubKeyHash()).isEncrypted());
+
+        Protos.Wallet protos = new WalletProtobufSerializer().walletToProto(wallet);
+        Wallet wallet2 = new Wallet(params);
+        new WalletProtobufSerializer().readWallet(protos, wallet2);
+        assertEquals(key2, wallet2.findKeyFromPubHash(key2.getPubKeyHash()));
+        assertTrue(wallet2.hasKey(key2));
+        assertFalse(wallet2.hasKey(key1));
+    }
+
     @Test
     public void spendToSameWallet() throws Exception {
         // Test that a spend to the same wallet is dealt with correctly.
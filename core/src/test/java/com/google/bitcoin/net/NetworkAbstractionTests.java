@@ -19,8 +19,11 @@ package com.google.bitcoin.net;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.bitcoin.core.Utils;
@@ -44,7 +47,8 @@ public class NetworkAbstractionTests {
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3},
+                new Integer[]{4});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
@@ -55,12 +59,15 @@ public class NetworkAbstractionTests {
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
             channels.start();
+        } else if (clientType == 4) {
+            channels = new NioClientManager(3, LoopAssignment.LEAST_LOADED);
+            channels.start();
         } else
             channels = null;
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufParser parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
@@ -156,6 +163,132 @@ public class NetworkAbstractionTests {
         assertFalse(server.isRunning());
     }
 
+    @Test
+    public void serverSelectorLoopsTest() throws Exception {
+        // Tests a server which spreads its connections over several selector loops
+
+        final int clients = 3;
+        final CountDownLatch serverConnectionsOpen = new CountDownLatch(clients);
+        final CountDownLatch serverConnectionsClosed = new CountDownLatch(clients);
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public ProtobufParser getNewParser(InetAddress inetAddress, int port) {
+                return new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        handler.write(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser handler) {
+                        serverConnectionsOpen.countDown();
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufParser handler) {
+                        serverConnectionsClosed.countDown();
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            }
+        }, new InetSocketAddress("localhost", 4243), clients, LoopAssignment.ROUND_ROBIN);
+        server.startAndWait();
+
+        List<MessageWriteTarget> targets = new ArrayList<MessageWriteTarget>();
+        List<SettableFuture<Protos.TwoWayChannelMessage>> received = new ArrayList<SettableFuture<Protos.TwoWayChannelMessage>>();
+        List<ProtobufParser<Protos.TwoWayChannelMessage>> handlers = new ArrayList<ProtobufParser<Protos.TwoWayChannelMessage>>();
+        for (int i = 0; i < clients; i++) {
+            final SettableFuture<Void> clientConnectionOpen = SettableFuture.create();
+            final SettableFuture<Protos.TwoWayChannelMessage> clientMessageReceived = SettableFuture.create();
+            ProtobufParser<Protos.TwoWayChannelMessage> clientHandler = new ProtobufParser<Protos.TwoWayChannelMessage>(
+                    new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                        @Override
+                        public void messageReceived(ProtobufParser handler, Protos.TwoWayChannelMessage msg) {
+                            clientMessageReceived.set(msg);
+                        }
+
+                        @Override
+                        public void connectionOpen(ProtobufParser handler) {
+                            clientConnectionOpen.set(null);
+                        }
+
+                        @Override
+                        public void connectionClosed(ProtobufParser handler) {
+                        }
+                    }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            targets.add(openConnection(new InetSocketAddress("localhost", 4243), clientHandler));
+            clientConnectionOpen.get();
+            received.add(clientMessageReceived);
+            handlers.add(clientHandler);
+        }
+        serverConnectionsOpen.await();
+
+        // Each connection went to a different loop, and is served by it
+        assertEquals(clients, server.getConnectedClientCount());
+        for (SelectorLoop loop : server.loops.getLoops())
+            assertEquals(1, loop.connectedHandlers.size());
+        Protos.TwoWayChannelMessage msg = Protos.TwoWayChannelMessage.newBuilder().setType(Protos.TwoWayChannelMessage.MessageType.CHANNEL_OPEN).build();
+        for (int i = 0; i < clients; i++) {
+            handlers.get(i).write(msg);
+            assertEquals(msg, received.get(i).get());
+        }
+
+        // Stopping the server closes the connections on every loop
+        server.stopAndWait();
+        serverConnectionsClosed.await();
+        assertEquals(0, server.getConnectedClientCount());
+        for (MessageWriteTarget target : targets)
+            target.closeConnection();
+    }
+
+    @Test
+    public void selectorLoopGroupSkipsStoppedLoopsTest() throws Exception {
+        // Loops which are no longer running aren't given any more connections
+        for (LoopAssignment assignment : LoopAssignment.values()) {
+            SelectorLoopGroup group = new SelectorLoopGroup(3, assignment);
+            SelectorLoop stopped = group.getLoops().get(1);
+            stopped.stop();
+            for (int i = 0; i < 6; i++)
+                assertNotSame(stopped, group.next());
+            assertFalse(stopped.execute(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }));
+            group.stop();
+            assertNull(group.next());
+        }
+    }
+
+    @Test
+    public void pendingChannelsResolvedTest() throws Exception {
+        // A client connection stops counting as pending once it has connected, or failed to
+        NioClientManager manager = new NioClientManager(2, LoopAssignment.LEAST_LOADED);
+        manager.startAndWait();
+        final CountDownLatch closed = new CountDownLatch(1);
+        // Nothing listens on this port, so the connection is refused
+        manager.openConnection(new InetSocketAddress("localhost", 4244), new ProtobufParser<Protos.TwoWayChannelMessage>(
+                new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser handler, Protos.TwoWayChannelMessage msg) {
+                        fail.set(true);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser handler) {
+                        fail.set(true);
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufParser handler) {
+                        closed.countDown();
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0));
+        closed.await();
+        for (SelectorLoop loop : manager.loops.getLoops())
+            assertEquals(0, loop.getLoad());
+        manager.stopAndWait();
+    }
+
     @Test
     public void basicTimeoutTest() throws Exception {
         // Tests various timeout scenarios
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.script;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private SignatureCache original;
+    private SignatureCache cache;
+    private ECKey key;
+    private Sha256Hash hash;
+    private ECKey.ECDSASignature sig;
+    private byte[] sigBytes;
+
+    @Before
+    public void setUp() throws Exception {
+        original = SignatureCache.get();
+        cache = new SignatureCache(10);
+        SignatureCache.set(cache);
+        key = new ECKey();
+        hash = Sha256Hash.create(new byte[]{1, 2, 3});
+        sig = key.sign(hash);
+        sigBytes = sig.encodeToDER();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        SignatureCache.set(original);
+    }
+
+    @Test
+    public void remembersValidSignatures() throws Exception {
+        assertTrue(cache.verify(hash.getBytes(), sigBytes, sig, key.getPubKey()));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertTrue(cache.verify(hash.getBytes(), sigBytes, sig, key.getPubKey()));
+        assertEquals(1, cache.getHits());
+        assertEquals(0.5, cache.getHitRate(), 0);
+        // A different key, hash or signature is a different entry.
+        ECKey other = new ECKey();
+        assertFalse(cache.verify(hash.getBytes(), sigBytes, sig, other.getPubKey()));
+        assertFalse(cache.verify(Sha256Hash.create(new byte[]{4}).getBytes(), sigBytes, sig, key.getPubKey()));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void pubKeyLongerThan255Bytes() throws Exception {
+        // A valid signature with 256 bytes of junk after it, which DER decoding ignores.
+        byte[] paddedSig = Arrays.copyOf(sigBytes, sigBytes.length + 256);
+        assertTrue(cache.verify(hash.getBytes(), paddedSig, sig, key.getPubKey()));
+        // The same bytes split so that the junk is part of the public key, whose length is the same modulo 256.
+        byte[] pubKey = key.getPubKey();
+        byte[] longPubKey = new byte[pubKey.length + 256];
+        System.arraycopy(pubKey, 0, longPubKey, 0, pubKey.length);
+        System.arraycopy(paddedSig, 0, longPubKey, pubKey.length, 256);
+        byte[] shortSig = Arrays.copyOfRange(paddedSig, 256, paddedSig.length);
+        try {
+            cache.verify(hash.getBytes(), shortSig, sig, longPubKey);
+        } catch (IllegalArgumentException e) {
+            // Not a public key, but it was checked rather than found in the cache.
+        }
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void forgetsInvalidSignatures() throws Exception {
+        ECKey other = new ECKey();
+        assertFalse(cache.verify(hash.getBytes(), sigBytes, sig, other.getPubKey()));
+        assertFalse(cache.verify(hash.getBytes(), sigBytes, sig, other.getPubKey()));
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            Sha256Hash h = Sha256Hash.create(new byte[]{(byte) i});
+            ECKey.ECDSASignature s = key.sign(h);
+            assertTrue(cache.verify(h.getBytes(), s.encodeToDER(), s, key.getPubKey()));
+        }
+        assertTrue(cache.size() <= 10);
+    }
+
+    @Test
+    public void fakeSignaturesNotRemembered() throws Exception {
+        ECKey other = new ECKey();
+        ECKey.FAKE_SIGNATURES = true;
+        try {
+            assertTrue(cache.verify(hash.getBytes(), sigBytes, sig, other.getPubKey()));
+        } finally {
+            ECKey.FAKE_SIGNATURES = false;
+        }
+        assertFalse(cache.verify(hash.getBytes(), sigBytes, sig, other.getPubKey()));
+    }
+
+    @Test
+    public void usedByScript() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key.toAddress(params));
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.COIN, new ECKey());
+        TransactionInput input = tx.addSignedInput(new TransactionOutPoint(params, 0, hash), scriptPubKey, key);
+        input.getScriptSig().correctlySpends(tx, 0, scriptPubKey, true);
+        assertEquals(0, cache.getHits());
+        // Checking it again, as when the block containing it is connected, finds the signature in the cache.
+        input.getScriptSig().correctlySpends(tx, 0, scriptPubKey, true);
+        assertEquals(1, cache.getHits());
+    }
+}
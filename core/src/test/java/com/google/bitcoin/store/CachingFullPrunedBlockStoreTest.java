@@ -0,0 +1,169 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockStoreTest {
+    private NetworkParameters params;
+    private MemoryFullPrunedBlockStore backing;
+    private CachingFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        backing = new MemoryFullPrunedBlockStore(params, 10);
+        store = new CachingFullPrunedBlockStore(backing, 1024 * 1024, 3);
+    }
+
+    private StoredTransactionOutput output(int n, long index) {
+        Sha256Hash hash = Sha256Hash.create(new byte[]{(byte) n, (byte) (n >> 8)});
+        return new StoredTransactionOutput(hash, index, BigInteger.valueOf(n * 1000 + index), n, true,
+                new byte[]{(byte) n, 1, 2, 3});
+    }
+
+    private StoredBlock nextBlock(StoredBlock prev) throws Exception {
+        Address to = new ECKey().toAddress(params);
+        StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(block, new StoredUndoableBlock(block.getHeader().getHash(),
+                new TransactionOutputChanges(new LinkedList<StoredTransactionOutput>(),
+                        new LinkedList<StoredTransactionOutput>())));
+        return block;
+    }
+
+    @Test
+    public void flushesEveryFewBlocks() throws Exception {
+        StoredBlock genesis = store.getVerifiedChainHead();
+        StoredBlock head = genesis;
+        for (int n = 1; n <= 2; n++) {
+            head = nextBlock(head);
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(output(n, 0));
+            store.addUnspentTransactionOutput(output(n, 1));
+            if (n > 1)
+                store.removeUnspentTransactionOutput(output(n - 1, 0));
+            store.setVerifiedChainHead(head);
+            store.commitDatabaseBatchWrite();
+        }
+        // Nothing has reached the underlying store yet, apart from the blocks themselves.
+        assertEquals(head, store.getVerifiedChainHead());
+        assertEquals(genesis, backing.getVerifiedChainHead());
+        assertEquals(head, backing.getChainHead());
+        assertNotNull(backing.getUndoBlock(head.getHeader().getHash()));
+        assertNull(backing.getTransactionOutput(output(1, 1).getHash(), 1));
+        assertNull(store.getTransactionOutput(output(1, 0).getHash(), 0));
+        assertNotNull(store.getTransactionOutput(output(1, 1).getHash(), 1));
+
+        head = nextBlock(head);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(output(2, 0));
+        store.setVerifiedChainHead(head);
+        store.commitDatabaseBatchWrite();
+        // The third block flushed everything.
+        assertEquals(head, backing.getVerifiedChainHead());
+        assertNotNull(backing.getTransactionOutput(output(1, 1).getHash(), 1));
+        assertNotNull(backing.getTransactionOutput(output(2, 1).getHash(), 1));
+        assertNull(backing.getTransactionOutput(output(1, 0).getHash(), 0));
+        assertNull(backing.getTransactionOutput(output(2, 0).getHash(), 0));
+        // Only the read of the output that was created and spent between flushes went to the store.
+        assertEquals(1, store.getCacheMisses());
+    }
+
+    @Test
+    public void removesFlushedOutputs() throws Exception {
+        StoredTransactionOutput out = output(1, 0);
+        backing.addUnspentTransactionOutput(out);
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 1));
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 1));
+        assertNotNull(backing.getTransactionOutput(out.getHash(), 0));
+        try {
+            store.removeUnspentTransactionOutput(out);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        store.flush();
+        assertNull(backing.getTransactionOutput(out.getHash(), 0));
+        // Putting it back, as a reorg does, writes it to the store again.
+        store.addUnspentTransactionOutput(out);
+        store.flush();
+        assertNotNull(backing.getTransactionOutput(out.getHash(), 0));
+    }
+
+    @Test
+    public void batches() throws Exception {
+        final StoredTransactionOutput out = output(1, 0);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        assertEquals(out, store.getTransactionOutput(out.getHash(), 0));
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 1));
+        // Other threads don't see the batch until it's committed.
+        final AtomicReference<StoredTransactionOutput> seen = new AtomicReference<StoredTransactionOutput>(out);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    seen.set(store.getTransactionOutput(out.getHash(), 0));
+                } catch (BlockStoreException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNull(seen.get());
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        store.addUnspentTransactionOutput(out);
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        store.abortDatabaseBatchWrite();
+        assertEquals(out, store.getTransactionOutput(out.getHash(), 0));
+    }
+
+    @Test
+    public void evictsCleanOutputs() throws Exception {
+        store = new CachingFullPrunedBlockStore(backing, 2000, 1);
+        for (int n = 0; n < 100; n++)
+            backing.addUnspentTransactionOutput(output(n, 0));
+        for (int n = 0; n < 100; n++)
+            assertNotNull(store.getTransactionOutput(output(n, 0).getHash(), 0));
+        assertEquals(100, store.getCacheMisses());
+        // Only the most recently read outputs are still in memory.
+        assertNotNull(store.getTransactionOutput(output(99, 0).getHash(), 0));
+        assertEquals(1, store.getCacheHits());
+        assertNotNull(store.getTransactionOutput(output(0, 0).getHash(), 0));
+        assertEquals(101, store.getCacheMisses());
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompactOutputCodecTest {
+    private static final Sha256Hash HASH = Sha256Hash.create(new byte[]{1});
+
+    private StoredTransactionOutput roundTrip(StoredTransactionOutput out, int expectedLength) throws Exception {
+        byte[] bytes = CompactOutputCodec.encode(out);
+        assertEquals(expectedLength, bytes.length);
+        StoredTransactionOutput decoded = CompactOutputCodec.decode(out.getHash(), out.getIndex(), bytes);
+        assertEquals(out.getHash(), decoded.getHash());
+        assertEquals(out.getIndex(), decoded.getIndex());
+        assertEquals(out.getValue(), decoded.getValue());
+        assertEquals(out.getHeight(), decoded.getHeight());
+        assertArrayEquals(out.getScriptBytes(), decoded.getScriptBytes());
+        return decoded;
+    }
+
+    @Test
+    public void scriptTemplates() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        BigInteger coin = Utils.COIN;
+        // Pay to address and pay to script hash keep their hash, after a byte each for height, value and template.
+        byte[] script = ScriptBuilder.createOutputScript(new ECKey().toAddress(params)).getProgram();
+        roundTrip(new StoredTransactionOutput(HASH, 0, coin, 10, false, script), 23);
+        script = ScriptBuilder.createP2SHOutputScript(new byte[20]).getProgram();
+        roundTrip(new StoredTransactionOutput(HASH, 0, coin, 10, false, script), 23);
+        // Pay to pubkey keeps the X coordinate, whether or not the key is compressed.
+        for (int i = 0; i < 10; i++) {
+            BigInteger priv = new BigInteger(1, new ECKey().getPrivKeyBytes());
+            script = ScriptBuilder.createOutputScript(new ECKey(priv, null, false)).getProgram();
+            assertEquals(67, script.length);
+            roundTrip(new StoredTransactionOutput(HASH, 0, coin, 10, true, script), 35);
+            script = ScriptBuilder.createOutputScript(new ECKey(priv, null, true)).getProgram();
+            assertEquals(35, script.length);
+            roundTrip(new StoredTransactionOutput(HASH, 0, coin, 10, true, script), 35);
+        }
+        // A 65 byte key that isn't on the curve can't be rebuilt from its X coordinate, so it is kept as it is.
+        script = new byte[67];
+        script[0] = 65;
+        script[1] = 4;
+        script[66] = (byte) 0xac;
+        roundTrip(new StoredTransactionOutput(HASH, 0, coin, 10, true, script), 70);
+        // Anything else is kept as it is.
+        roundTrip(new StoredTransactionOutput(HASH, 0, coin, 10, false, new byte[0]), 3);
+        roundTrip(new StoredTransactionOutput(HASH, 0, coin, 10, false, new byte[200]), 204);
+    }
+
+    @Test
+    public void valuesAndHeights() throws Exception {
+        long[] values = {0, 1, 9, 10, 50 * Utils.COIN.longValue(), 21000000L * Utils.COIN.longValue(),
+                1234567890123L, 1000000000000L, Long.MAX_VALUE / 10};
+        for (long value : values) {
+            BigInteger v = BigInteger.valueOf(value);
+            roundTrip(new StoredTransactionOutput(HASH, 5, v, 0, true, new byte[0]),
+                    CompactOutputCodec.encode(new StoredTransactionOutput(HASH, 5, v, 0, true, new byte[0])).length);
+            assertEquals(value, CompactOutputCodec.decompressValue(CompactOutputCodec.compressValue(value)));
+        }
+        // Round numbers of coins take a single byte.
+        assertTrue(CompactOutputCodec.compressValue(Utils.COIN.longValue()) < 0x80);
+        for (int height : new int[]{0, 1, 127, 128, 300000, Integer.MAX_VALUE}) {
+            StoredTransactionOutput out = new StoredTransactionOutput(HASH, 1, Utils.COIN, height, true, new byte[0]);
+            roundTrip(out, CompactOutputCodec.encode(out).length);
+        }
+        // The height of outputs which aren't coinbases isn't kept, as nothing needs it.
+        StoredTransactionOutput out = new StoredTransactionOutput(HASH, 1, Utils.COIN, 300000, false, new byte[0]);
+        roundTrip(out, 3);
+    }
+
+    @Test
+    public void varInts() throws Exception {
+        long[] values = {0, 1, 0x7F, 0x80, 0x407F, 0x4080, 1L << 32, Long.MAX_VALUE};
+        for (long value : values) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            CompactOutputCodec.writeVarInt(stream, value);
+            ByteBuffer buffer = ByteBuffer.wrap(stream.toByteArray());
+            assertEquals(value, CompactOutputCodec.readVarInt(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        CompactOutputCodec.writeVarInt(stream, 0x407F);
+        assertEquals(2, stream.size());
+    }
+
+    @Test
+    public void txOutChanges() throws Exception {
+        Sha256Hash other = Sha256Hash.create(new byte[]{2});
+        List<StoredTransactionOutput> created = new LinkedList<StoredTransactionOutput>();
+        created.add(new StoredTransactionOutput(HASH, 0, Utils.COIN, 7, true, new byte[]{1}));
+        created.add(new StoredTransactionOutput(HASH, 1, Utils.CENT, 7, true, new byte[]{2}));
+        created.add(new StoredTransactionOutput(other, 0, Utils.COIN, 0, false, new byte[]{3}));
+        List<StoredTransactionOutput> spent = new LinkedList<StoredTransactionOutput>();
+        spent.add(new StoredTransactionOutput(other, 3, Utils.COIN, 0, false, new byte[]{4}));
+        byte[] bytes = CompactOutputCodec.encode(new TransactionOutputChanges(created, spent));
+        TransactionOutputChanges changes = CompactOutputCodec.decodeTxOutChanges(bytes);
+        assertEquals(created, changes.txOutsCreated);
+        assertEquals(spent, changes.txOutsSpent);
+        assertArrayEquals(new byte[]{2}, changes.txOutsCreated.get(1).getScriptBytes());
+        assertEquals(Utils.CENT, changes.txOutsCreated.get(1).getValue());
+        assertEquals(7, changes.txOutsCreated.get(1).getHeight());
+        assertEquals(3, changes.txOutsSpent.get(0).getIndex());
+
+        try {
+            CompactOutputCodec.decodeTxOutChanges(Arrays.copyOf(bytes, bytes.length - 1));
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class H2FullPrunedBlockStoreTest {
+    private NetworkParameters params;
+    private File directory;
+    private String dbName;
+    private H2FullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        directory = Files.createTempDir();
+        dbName = new File(directory, "chain").getAbsolutePath();
+        store = new H2FullPrunedBlockStore(params, dbName, 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    private StoredTransactionOutput output(int n, long index) {
+        Sha256Hash hash = Sha256Hash.create(new byte[]{(byte) n, (byte) (n >> 8)});
+        return new StoredTransactionOutput(hash, index, BigInteger.valueOf(n * 1000 + index), n, true,
+                new byte[]{(byte) n, 1, 2, 3});
+    }
+
+    private void assertOutput(StoredTransactionOutput expected, StoredTransactionOutput actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getHash(), actual.getHash());
+        assertEquals(expected.getIndex(), actual.getIndex());
+        assertEquals(expected.getValue(), actual.getValue());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertArrayEquals(expected.getScriptBytes(), actual.getScriptBytes());
+    }
+
+    @Test
+    public void undoableBlocks() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        Address to = new ECKey().toAddress(params);
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        LinkedList<StoredTransactionOutput> created = new LinkedList<StoredTransactionOutput>();
+        created.add(output(1, 0));
+        StoredUndoableBlock undo = new StoredUndoableBlock(b1.getHeader().getHash(),
+                new TransactionOutputChanges(created, new LinkedList<StoredTransactionOutput>()));
+        store.put(b1, undo);
+        // Putting the same block again replaces it rather than failing.
+        store.put(b1, undo);
+        assertEquals(1, store.getUndoBlock(b1.getHeader().getHash()).getTxOutChanges().txOutsCreated.size());
+        assertNotNull(store.getOnceUndoableStoredBlock(b1.getHeader().getHash()));
+    }
+
+    @Test
+    public void batches() throws Exception {
+        final StoredTransactionOutput out = output(1, 0);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        assertOutput(out, store.getTransactionOutput(out.getHash(), 0));
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 1));
+        // Other threads don't see the batch until it's committed.
+        final AtomicReference<StoredTransactionOutput> seen = new AtomicReference<StoredTransactionOutput>(out);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    seen.set(store.getTransactionOutput(out.getHash(), 0));
+                } catch (BlockStoreException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNull(seen.get());
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        store.addUnspentTransactionOutput(output(1, 1));
+        store.removeUnspentTransactionOutput(output(1, 1));
+        store.commitDatabaseBatchWrite();
+        assertOutput(out, store.getTransactionOutput(out.getHash(), 0));
+        assertNull(store.getTransactionOutput(out.getHash(), 1));
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 2));
+        store.addUnspentTransactionOutput(out);
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        try {
+            store.removeUnspentTransactionOutput(out);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        store.abortDatabaseBatchWrite();
+        assertOutput(out, store.getTransactionOutput(out.getHash(), 0));
+
+        // A removed output that the database doesn't have fails the whole batch when it is committed.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(output(2, 0));
+        store.removeUnspentTransactionOutput(output(3, 0));
+        try {
+            store.commitDatabaseBatchWrite();
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        assertNull(store.getTransactionOutput(output(2, 0).getHash(), 0));
+    }
+
+    @Test
+    public void upgradeFromVersion3() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        Address to = new ECKey().toAddress(params);
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        LinkedList<StoredTransactionOutput> created = new LinkedList<StoredTransactionOutput>();
+        created.add(output(1, 0));
+        TransactionOutputChanges changes = new TransactionOutputChanges(created, new LinkedList<StoredTransactionOutput>());
+        store.put(b1, new StoredUndoableBlock(b1.getHeader().getHash(), changes));
+        store.setChainHead(b1);
+        store.close();
+
+        // Turn the database into one written by version 3, which serialized outputs and undo data as they are.
+        StoredTransactionOutput out = output(2, 1);
+        Connection connection = DriverManager.getConnection("jdbc:h2:" + dbName);
+        Statement s = connection.createStatement();
+        s.executeUpdate("DROP TABLE openOutputs");
+        s.executeUpdate("CREATE TABLE openOutputs (hash BINARY(32) NOT NULL, index INT NOT NULL, height INT NOT NULL,"
+                + " value BLOB NOT NULL, scriptBytes BLOB NOT NULL, PRIMARY KEY (hash, index))");
+        PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO openOutputs(hash, index, height, value, scriptBytes) VALUES(?, ?, ?, ?, ?)");
+        insert.setBytes(1, out.getHash().getBytes());
+        insert.setInt(2, (int) out.getIndex());
+        insert.setInt(3, out.getHeight());
+        insert.setBytes(4, out.getValue().toByteArray());
+        insert.setBytes(5, out.getScriptBytes());
+        insert.executeUpdate();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        changes.serializeToStream(bos);
+        PreparedStatement update = connection.prepareStatement(
+                "UPDATE undoableBlocks SET txOutChanges = ? WHERE txOutChanges IS NOT NULL");
+        update.setBytes(1, bos.toByteArray());
+        assertEquals(1, update.executeUpdate());
+        s.executeUpdate("UPDATE settings SET value = '03' WHERE name = 'version'");
+        connection.close();
+
+        // Opening it upgrades it, and the upgraded database opens as it is.
+        for (int i = 0; i < 2; i++) {
+            store = new H2FullPrunedBlockStore(params, dbName, 10);
+            assertEquals(b1, store.getChainHead());
+            assertOutput(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+            TransactionOutputChanges upgraded = store.getUndoBlock(b1.getHeader().getHash()).getTxOutChanges();
+            assertEquals(1, upgraded.txOutsCreated.size());
+            assertOutput(output(1, 0), upgraded.txOutsCreated.get(0));
+            store.close();
+        }
+    }
+}
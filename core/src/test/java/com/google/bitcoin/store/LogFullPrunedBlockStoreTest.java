@@ -0,0 +1,171 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LogFullPrunedBlockStoreTest {
+    private NetworkParameters params;
+    private File directory;
+    private LogFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        directory = Files.createTempDir();
+        store = new LogFullPrunedBlockStore(params, directory, 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    private StoredTransactionOutput output(int n, long index) {
+        Sha256Hash hash = Sha256Hash.create(new byte[]{(byte) n, (byte) (n >> 8)});
+        return new StoredTransactionOutput(hash, index, BigInteger.valueOf(n * 1000 + index), n, true,
+                new byte[]{(byte) n, 1, 2, 3});
+    }
+
+    private void assertOutput(StoredTransactionOutput expected, StoredTransactionOutput actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getHash(), actual.getHash());
+        assertEquals(expected.getIndex(), actual.getIndex());
+        assertEquals(expected.getValue(), actual.getValue());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertArrayEquals(expected.getScriptBytes(), actual.getScriptBytes());
+    }
+
+    private void reopen() throws BlockStoreException {
+        store.close();
+        store = new LogFullPrunedBlockStore(params, directory, 10);
+    }
+
+    @Test
+    public void basics() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.getGenesisBlock().getHash(), genesis.getHeader().getHash());
+        assertEquals(genesis, store.getVerifiedChainHead());
+        assertNotNull(store.getUndoBlock(genesis.getHeader().getHash()));
+
+        Address to = new ECKey().toAddress(params);
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        StoredUndoableBlock undo = new StoredUndoableBlock(b1.getHeader().getHash(),
+                new TransactionOutputChanges(new LinkedList<StoredTransactionOutput>(),
+                        new LinkedList<StoredTransactionOutput>()));
+        store.put(b1, undo);
+        store.setVerifiedChainHead(b1);
+        StoredTransactionOutput out = output(1, 0);
+        store.addUnspentTransactionOutput(out);
+        store.addUnspentTransactionOutput(output(1, 1));
+        store.removeUnspentTransactionOutput(output(1, 1));
+        try {
+            store.removeUnspentTransactionOutput(output(2, 0));
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+
+        reopen();
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(b1, store.getOnceUndoableStoredBlock(b1.getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(b1.getHeader().getHash()));
+        assertEquals(b1, store.getChainHead());
+        assertEquals(b1, store.getVerifiedChainHead());
+        assertOutput(out, store.getTransactionOutput(out.getHash(), 0));
+        assertNull(store.getTransactionOutput(out.getHash(), 1));
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 2));
+    }
+
+    @Test
+    public void batches() throws Exception {
+        final StoredTransactionOutput out = output(1, 0);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        assertOutput(out, store.getTransactionOutput(out.getHash(), 0));
+        // Other threads don't see the batch until it's committed.
+        final AtomicReference<StoredTransactionOutput> seen = new AtomicReference<StoredTransactionOutput>(out);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    seen.set(store.getTransactionOutput(out.getHash(), 0));
+                } catch (BlockStoreException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNull(seen.get());
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        store.addUnspentTransactionOutput(out);
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        store.abortDatabaseBatchWrite();
+        assertOutput(out, store.getTransactionOutput(out.getHash(), 0));
+
+        reopen();
+        assertOutput(out, store.getTransactionOutput(out.getHash(), 0));
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        store.setCompactionThreshold(0);
+        for (int n = 0; n < 2000; n++) {
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(output(n, 0));
+            store.addUnspentTransactionOutput(output(n, 1));
+            if (n > 0)
+                store.removeUnspentTransactionOutput(output(n - 1, 0));
+            store.commitDatabaseBatchWrite();
+        }
+        store.waitForCompaction();
+        assertFalse(new File(directory, "chain-1.log").exists());
+        reopen();
+        for (int n = 0; n < 2000; n++) {
+            assertOutput(output(n, 1), store.getTransactionOutput(output(n, 1).getHash(), 1));
+            if (n < 1999)
+                assertNull(store.getTransactionOutput(output(n, 0).getHash(), 0));
+        }
+        assertOutput(output(1999, 0), store.getTransactionOutput(output(1999, 0).getHash(), 0));
+        // Only the compacted log is left.
+        assertEquals(2, directory.list().length);
+    }
+}
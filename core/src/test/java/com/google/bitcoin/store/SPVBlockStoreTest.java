@@ -17,15 +17,23 @@
 package com.google.bitcoin.store;
 
 import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.Block;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +66,158 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void indexAfterWrapAround() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        File indexFile = new File(f.getPath() + ".idx");
+        indexFile.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+        assertTrue(indexFile.exists());
+
+        // Overwrite the genesis block and the first few blocks we add. The headers don't have to be solved.
+        final int overflow = 100;
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        for (int i = 1; i <= SPVBlockStore.DEFAULT_NUM_HEADERS + overflow; i++) {
+            Block header = params.getGenesisBlock().cloneAsHeader();
+            header.setNonce(i);
+            StoredBlock block = new StoredBlock(header, BigInteger.valueOf(i), i);
+            store.put(block);
+            blocks.add(block);
+        }
+        store.setChainHead(blocks.get(blocks.size() - 1));
+        store.close();
+
+        // Reopen the store so lookups miss the in memory caches, then again with the index rebuilt from scratch.
+        for (int pass = 0; pass < 2; pass++) {
+            if (pass == 1)
+                assertTrue(indexFile.delete());
+            store = new SPVBlockStore(params, f);
+            assertNull(store.get(params.getGenesisBlock().getHash()));
+            for (int i = 0; i < blocks.size(); i++) {
+                StoredBlock block = blocks.get(i);
+                if (i < overflow)
+                    assertNull(store.get(block.getHeader().getHash()));
+                else
+                    assertEquals(block, store.get(block.getHeader().getHash()));
+            }
+            assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+            store.close();
+        }
+    }
+
+    private static StoredBlock nextBlock(NetworkParameters params, StoredBlock prev, long nonce) throws Exception {
+        Block header = new Block(params, 1, prev.getHeader().getHash(), Sha256Hash.ZERO_HASH,
+                prev.getHeader().getTimeSeconds() + 1, prev.getHeader().getDifficultyTarget(), nonce,
+                new ArrayList<Transaction>());
+        return prev.build(header);
+    }
+
+    // Puts count blocks on top of prev, making each the chain head, and returns them.
+    private static List<StoredBlock> extend(SPVBlockStore store, StoredBlock prev, int count, long nonce)
+            throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        for (int i = 0; i < count; i++) {
+            prev = nextBlock(store.params, prev, nonce);
+            store.put(prev);
+            store.setChainHead(prev);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void bestChainByHeight() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        new File(f.getPath() + ".idx").deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        chain.add(genesis);
+        chain.addAll(extend(store, genesis, 50, 1));
+        for (int height = 0; height <= 50; height++)
+            assertEquals(chain.get(height), store.getBestChainBlock(height));
+        assertNull(store.getBestChainBlock(51));
+
+        // Re-organize onto a longer chain that forks after block 30.
+        List<StoredBlock> fork = extend(store, chain.get(30), 25, 2);
+        for (int height = 0; height <= 30; height++)
+            assertEquals(chain.get(height), store.getBestChainBlock(height));
+        for (int height = 31; height <= 55; height++)
+            assertEquals(fork.get(height - 31), store.getBestChainBlock(height));
+        assertNull(store.getBestChainBlock(56));
+
+        // And back to a shorter one.
+        store.setChainHead(chain.get(40));
+        assertEquals(chain.get(35), store.getBestChainBlock(35));
+        assertNull(store.getBestChainBlock(41));
+        store.close();
+
+        // The index is rebuilt as needed after reopening the store.
+        store = new SPVBlockStore(params, f);
+        assertEquals(chain.get(40), store.getBestChainBlock(40));
+        assertEquals(chain.get(0), store.getBestChainBlock(0));
+        assertEquals(chain.get(33), store.getBestChainBlock(33));
+        store.close();
+    }
+
+    @Test
+    public void capacityAndResize() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        new File(f.getPath() + ".idx").deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 100);
+        assertEquals(100, store.getCapacity());
+        List<StoredBlock> chain = extend(store, store.getChainHead(), 150, 1);
+        // The ring holds blocks 51 to 150, ie. chain indexes 50 to 149.
+        store.close();
+
+        // Opening with the default constructor keeps the capacity of the file.
+        store = new SPVBlockStore(params, f);
+        assertEquals(100, store.getCapacity());
+        assertNull(store.get(chain.get(49).getHeader().getHash()));
+        assertEquals(chain.get(50), store.get(chain.get(50).getHeader().getHash()));
+
+        // Growing keeps everything and makes room for more blocks.
+        store.resize(300);
+        assertEquals(300, store.getCapacity());
+        chain.addAll(extend(store, chain.get(chain.size() - 1), 200, 2));
+        store.close();
+        store = new SPVBlockStore(params, f);
+        assertEquals(300, store.getCapacity());
+        assertEquals(chain.get(349), store.getChainHead());
+        for (int i = 50; i < chain.size(); i++)
+            assertEquals(chain.get(i), store.getBestChainBlock(i + 1));
+        assertNull(store.getBestChainBlock(50));
+        store.close();
+
+        // Shrinking through the constructor keeps the newest blocks.
+        store = new SPVBlockStore(params, f, 20);
+        assertEquals(20, store.getCapacity());
+        assertEquals(chain.get(349), store.getChainHead());
+        assertNull(store.get(chain.get(329).getHeader().getHash()));
+        for (int i = 330; i < chain.size(); i++)
+            assertEquals(chain.get(i), store.get(chain.get(i).getHeader().getHash()));
+        chain.addAll(extend(store, chain.get(chain.size() - 1), 10, 3));
+        assertEquals(chain.get(359), store.getBestChainBlock(360));
+        assertEquals(chain.get(340), store.getBestChainBlock(341));
+        assertNull(store.getBestChainBlock(340));
+
+        // Shrinking an open store drops the blocks which no longer fit, even ones just looked up.
+        Sha256Hash dropped = chain.get(349).getHeader().getHash();
+        assertEquals(chain.get(349), store.get(dropped));
+        store.resize(5);
+        assertEquals(5, store.getCapacity());
+        assertNull(store.get(dropped));
+        assertEquals(chain.get(355), store.get(chain.get(355).getHeader().getHash()));
+        store.close();
+    }
 }
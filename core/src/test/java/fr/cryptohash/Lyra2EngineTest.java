@@ -0,0 +1,78 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.cryptohash;
+
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class Lyra2EngineTest {
+    // Recorded from the original BigInteger based Lyra2.LYRA2 implementation.
+    private static final String[][] LYRA2REV2_VECTORS = {
+            {"00070e151c232a31383f464d545b626970777e858c939aa1a8afb6bdc4cbd2d9",
+             "d497a4a2ce68a6525d8e5c165f317ce3e55a44bf0ead953bb7ccda530ebf0d1b"},
+            {"1f272f373f474f575f676f777f878f979fa7afb7bfc7cfd7dfe7eff7ff070f17",
+             "1bd22eeae269dc9f3c62e4de1974b48f003bc2a326e99486922f51737e8c7126"},
+            {"3e475059626b747d868f98a1aab3bcc5ced7e0e9f2fb040d161f28313a434c55",
+             "ebe16ff59fe1a05755ffecd424630d02259776a00f7ce37e7d325a1b54b39aec"},
+    };
+
+    @Test
+    public void lyra2REv2Vectors() {
+        Lyra2Engine engine = Lyra2Engine.forLyra2REv2();
+        for (String[] vector : LYRA2REV2_VECTORS) {
+            byte[] in = Hex.decode(vector[0]);
+            byte[] out = new byte[32];
+            engine.hash(out, in, in);
+            assertEquals(vector[1], new String(Hex.encode(out)));
+        }
+    }
+
+    @Test
+    public void genericParameters() {
+        byte[] password = "password".getBytes();
+        byte[] salt = "salt".getBytes();
+        byte[] out = new byte[64];
+        new Lyra2Engine(2, 5, 3).hash(out, password, salt);
+        assertEquals("7705516fe1767e97b314a3e4164a0c10dfa85f0f8b5e58cf0a0e4e378badcd52" +
+                "13e7da939137a658bccc725cdd65b494c21069d2b6f3d9a0cc5bc0f5545235ef", new String(Hex.encode(out)));
+    }
+
+    @Test
+    public void matchesReferenceImplementation() {
+        Random random = new Random(1);
+        int[][] parameters = {{1, 4, 4}, {2, 5, 3}, {3, 8, 8}, {5, 7, 2}};
+        for (int[] p : parameters) {
+            Lyra2Engine engine = new Lyra2Engine(p[0], p[1], p[2]);
+            for (int i = 0; i < 20; i++) {
+                byte[] password = new byte[random.nextInt(40)];
+                byte[] salt = new byte[random.nextInt(40)];
+                random.nextBytes(password);
+                random.nextBytes(salt);
+                byte[] expected = new byte[1 + random.nextInt(300)];
+                byte[] actual = new byte[expected.length];
+                Lyra2.LYRA2(expected, password, salt, p[0], p[1], p[2]);
+                engine.hash(actual, password, salt);
+                assertArrayEquals(expected, actual);
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2014 The vertcoinj developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hashengineering.difficulty.KimotoGravityWell;
+
+import com.google.bitcoin.core.Utils;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KimotoGravityWellCalculatorTest {
+    private static final BigInteger PROOF_OF_WORK_LIMIT = Utils.decodeCompactBits(0x1e0fffffL);
+    private static final int CHAIN_LENGTH = 4500;
+
+    private final KimotoGravityWellCalculator calculator =
+            new KimotoGravityWellCalculator(PROOF_OF_WORK_LIMIT, 150, 144, 4032);
+
+    /**
+     * Generates the chains the native results in kgw_native.txt were recorded from. A maxSpacing of zero alternates
+     * between fast and slow blocks every 300 blocks.
+     */
+    private static void generate(long seed, long maxSpacing, long[] bits, long[] times) {
+        Random random = new Random(seed);
+        bits[0] = 0x1e0fffffL;
+        times[0] = 1389311371L;
+        for (int h = 1; h < bits.length; h++) {
+            bits[h] = ((long) (0x1b + random.nextInt(3)) << 24) | (0x8000 + random.nextInt(0x7f8000));
+            long max = maxSpacing != 0 ? maxSpacing : ((h / 300) % 2 == 0 ? 40 : 1200);
+            long spacing = random.nextInt(10) == 0 ? -random.nextInt(600) : random.nextInt((int) max);
+            times[h] = times[h - 1] + spacing;
+        }
+    }
+
+    private BigInteger calculate(long[] bits, long[] times, int lastSolved) {
+        calculator.reset();
+        for (int height = lastSolved; height > 0; height--) {
+            int result = calculator.addBlock(bits[height], times[height]);
+            assertNotEquals(KimotoGravityWellCalculator.BAD_TARGET, result);
+            if (result == KimotoGravityWellCalculator.STOP)
+                break;
+        }
+        return calculator.getNewDifficulty();
+    }
+
+    // The original BigInteger implementation from AbstractBlockChain.
+    private static BigInteger reference(long[] bits, long[] times, int lastSolved) {
+        long pastBlocksMass = 0;
+        long pastRateActualSeconds = 0;
+        long pastRateTargetSeconds = 0;
+        BigInteger pastDifficultyAverage = BigInteger.ZERO;
+        for (int i = 1, height = lastSolved; height > 0; i++, height--) {
+            if (i > 4032)
+                break;
+            pastBlocksMass++;
+            BigInteger target = Utils.decodeCompactBits(bits[height]);
+            if (i == 1)
+                pastDifficultyAverage = target;
+            else
+                pastDifficultyAverage = target.subtract(pastDifficultyAverage).divide(BigInteger.valueOf(i)).add(pastDifficultyAverage);
+            pastRateActualSeconds = Math.max(0, times[lastSolved] - times[height]);
+            pastRateTargetSeconds = 150 * pastBlocksMass;
+            double ratio = 1;
+            if (pastRateActualSeconds != 0)
+                ratio = (double) pastRateTargetSeconds / pastRateActualSeconds;
+            double deviation = 1 + (0.7084 * Math.pow((double) pastBlocksMass / 144d, -1.228));
+            if (pastBlocksMass >= 144 && (ratio <= 1 / deviation || ratio >= deviation))
+                break;
+        }
+        if (pastRateActualSeconds != 0 && pastRateTargetSeconds != 0) {
+            pastDifficultyAverage = pastDifficultyAverage.multiply(BigInteger.valueOf(pastRateActualSeconds))
+                    .divide(BigInteger.valueOf(pastRateTargetSeconds));
+        }
+        return pastDifficultyAverage;
+    }
+
+    @Test
+    public void matchesNativeImplementation() throws Exception {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                getClass().getResourceAsStream("kgw_native.txt"), Charset.forName("UTF-8")));
+        long[] bits = new long[CHAIN_LENGTH];
+        long[] times = new long[CHAIN_LENGTH];
+        int profiles = 0, vectors = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("#") || line.isEmpty())
+                continue;
+            String[] fields = line.split(" ");
+            if (fields[0].equals("profile")) {
+                generate(Long.parseLong(fields[1]), Long.parseLong(fields[2]), bits, times);
+                profiles++;
+                continue;
+            }
+            int height = Integer.parseInt(fields[0]);
+            assertEquals("height " + height, new BigInteger(fields[1], 16), calculate(bits, times, height));
+            vectors++;
+        }
+        in.close();
+        assertEquals(4, profiles);
+        assertTrue(vectors > 1000);
+    }
+
+    @Test
+    public void matchesBigIntegerImplementation() {
+        long[] bits = new long[CHAIN_LENGTH];
+        long[] times = new long[CHAIN_LENGTH];
+        generate(5, 0, bits, times);
+        for (int height = 1; height < CHAIN_LENGTH; height += 7)
+            assertEquals("height " + height, reference(bits, times, height), calculate(bits, times, height));
+    }
+
+    @Test
+    public void badTargets() {
+        long[] badTargets = {
+                0x00000000L,    // Zero.
+                0x01003456L,    // Zero after truncation.
+                0x04923456L,    // Negative.
+                0x1e100000L,    // Above the proof of work limit.
+                0x22123456L,    // Too big for 256 bits.
+        };
+        for (long target : badTargets) {
+            calculator.reset();
+            assertEquals(KimotoGravityWellCalculator.CONTINUE, calculator.addBlock(0x1e0fffffL, 1000));
+            assertEquals(KimotoGravityWellCalculator.BAD_TARGET, calculator.addBlock(target, 900));
+        }
+        calculator.reset();
+        assertEquals(KimotoGravityWellCalculator.CONTINUE, calculator.addBlock(0x1e0fffffL, 1000));
+        assertEquals(Utils.decodeCompactBits(0x1e0fffffL), calculator.getNewDifficulty());
+    }
+}
@@ -5,15 +5,17 @@ import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.params.TestNet3Params;
 import com.google.bitcoin.store.*;
 import com.google.bitcoin.utils.BlockFileLoader;
+import com.google.bitcoin.utils.ParallelBlockFileLoader;
 import com.google.common.base.Preconditions;
 
 import java.io.File;
 
-/** Very thin wrapper around {@link com.google.bitcoin.utils.BlockFileLoader} */
+/** Very thin wrapper around {@link com.google.bitcoin.utils.ParallelBlockFileLoader} */
 public class BlockImporter {
     public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
-        System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore]");
+        System.out.println("USAGE: BlockImporter (prod|test) (H2|Log|Disk|MemFull|Mem|SPV) [blockStore]");
         System.out.println("       blockStore is required unless type is Mem or MemFull");
+        System.out.println("       -Dthreads=N sets the number of threads parsing blocks, -DqueueDepth=N how far they read ahead");
         System.out.println("       eg BlockImporter prod H2 /home/user/bitcoinj.h2store");
         System.out.println("       Does full verification if the store supports it");
         Preconditions.checkArgument(args.length == 2 || args.length == 3);
@@ -28,6 +30,9 @@ public class BlockImporter {
         if (args[1].equals("H2")) {
             Preconditions.checkArgument(args.length == 3);
             store = new H2FullPrunedBlockStore(params, args[2], 100);
+        } else if (args[1].equals("Log")) {
+            Preconditions.checkArgument(args.length == 3);
+            store = new LogFullPrunedBlockStore(params, new File(args[2]), 100);
         } else if (args[1].equals("MemFull")) {
             Preconditions.checkArgument(args.length == 2);
             store = new MemoryFullPrunedBlockStore(params, 100);
@@ -43,14 +48,37 @@ public class BlockImporter {
         }
         
         AbstractBlockChain chain = null;
-        if (store instanceof FullPrunedBlockStore)
+        if (store instanceof FullPrunedBlockStore) {
             chain = new FullPrunedBlockChain(params, (FullPrunedBlockStore) store);
-        else
+            // The blocks are all old, so check their scripts a few blocks behind connecting them.
+            ((FullPrunedBlockChain) chain).setMaxBlocksInFlight(8);
+        } else {
             chain = new BlockChain(params, store);
+        }
         
-        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
-        
-        for (Block block : loader)
+        ParallelBlockFileLoader loader = new ParallelBlockFileLoader(params,
+                BlockFileLoader.getReferenceClientBlockFileList(),
+                Integer.getInteger("threads", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("queueDepth", ParallelBlockFileLoader.DEFAULT_QUEUE_DEPTH));
+
+        // Report the import rate, so that stores can be compared. The queue shows whether reading or the chain is
+        // holding things up: it is full when the chain is, and empty when reading is.
+        long start = System.currentTimeMillis();
+        long lastReport = start;
+        int count = 0;
+        for (Block block : loader) {
             chain.add(block);
+            count++;
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= 10000) {
+                lastReport = now;
+                System.out.printf("%d blocks, %.1f blocks/sec, %.1f MB/sec read, %d queued, %d skipped%n", count,
+                        count * 1000.0 / (now - start), loader.getBytesRead() / 1024.0 / 1024 * 1000 / (now - start),
+                        loader.getQueuedBlocks(), loader.getBlocksSkipped());
+            }
+        }
+        if (chain instanceof FullPrunedBlockChain)
+            ((FullPrunedBlockChain) chain).flushBlocksInFlight();
+        System.out.printf("Imported %d blocks in %d seconds%n", count, (System.currentTimeMillis() - start) / 1000);
     }
 }